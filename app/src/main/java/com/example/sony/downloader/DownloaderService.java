@@ -5,6 +5,9 @@ import android.content.*;
 import android.os.*;
 import android.util.Log;
 
+import java.io.*;
+import java.util.*;
+
 /**
  * This service downloads file in the background.
  * Even if the downloader application is exited, the service remains running
@@ -13,104 +16,353 @@ import android.util.Log;
 public class DownloaderService extends Service {
     public static final String ACTION_DOWNLOAD = "download";
     public static final String ACTION_DOWNLOAD_COMPLETE = "download_complete";
+    public static final String ACTION_DOWNLOAD_PROGRESS = "download_progress";
+    public static final String ACTION_DOWNLOAD_BATCH = "download_batch";
+    public static final String ACTION_DOWNLOAD_BATCH_COMPLETE = "download_batch_complete";
     public static final String ACTION_FETCH_LINKS = "fetch_links";
+    public static final String ACTION_FETCH_LINKS_PARTIAL = "fetch_links_partial";
     public static final String ACTION_FETCH_LINKS_COMPLETE = "fetch_links_complete";
+    public static final String ACTION_CRAWL = "crawl";
+    public static final String ACTION_CONFIGURE = "configure";
+    public static final String ACTION_FAILED = "failed";
 
     // constant ID sent when we broadcast a download-complete message
     public static final int ID_NOTIFICATION_DL_COMPLETE = 1234;
+    public static final int ID_NOTIFICATION_BATCH_COMPLETE = 1235;
+    public static final int ID_NOTIFICATION_FAILED = 1236;
+
+    // in-progress notifications use this ID plus the download's progress ID
+    public static final int ID_NOTIFICATION_PROGRESS_BASE = 2000;
+
+    // default limits of the job scheduler; the per-host limit counts connections,
+    // and one segmented download may use up to SegmentedDownload.DEFAULT_SEGMENTS
+    public static final int DEFAULT_MAX_WORKERS = 4;
+    public static final int DEFAULT_MAX_PER_HOST = 4;
+
+    // size limits of the cache of extracted links
+    public static final int LINK_CACHE_MEMORY_ENTRIES = 32;
+    public static final int LINK_CACHE_DISK_ENTRIES = 256;
+
+    // file in the app's private files folder that metrics snapshots are written to
+    public static final String METRICS_FILE_NAME = "metrics.json";
+
+    // file in the app's private files folder that holds the queue of downloads
+    public static final String JOB_QUEUE_FILE_NAME = "jobs.log";
+
+    // how long onDestroy() waits for running jobs before closing the job queue;
+    // it runs on the main thread, so the wait is bounded and jobs finishing
+    // later are still written by the closed queue
+    public static final long SHUTDOWN_WAIT_MS = 2000;
 
-    // handler thread loops waiting for jobs/tasks (downloads) to run
-    // in a separate thread
-    private HandlerThread handler_thread;
+    // links of the page fetched (or site crawled) last, shared with MainActivity;
+    // only a count goes out with each broadcast, the links stay here
+    private static volatile LinkStore link_store = new LinkStore(null);
+
+    // scheduler runs jobs/tasks (downloads) on a bounded pool of worker threads
+    private DownloadScheduler scheduler;
+
+    // runs jobs on the scheduler, retrying them after transient failures
+    private RetryEngine retry_engine;
+
+    // reports the progress of running downloads a few times per second
+    private ProgressReporter progress_reporter;
+
+    // writes the engine's metrics to METRICS_FILE_NAME every so often
+    private MetricsReporter metrics_reporter;
+
+    // downloads not yet done, kept on disk so they survive the process being killed
+    private JobQueue job_queue;
 
     /*
      * This method runs when the service starts up.
-     * Set up initial state of the handler thread.
+     * Points the download engine at the device's Downloads folder and its
+     * log at logcat, sets up initial state of the job scheduler, and picks up
+     * the downloads left in the job queue when the service last stopped.
      */
     @Override
     public void
     onCreate()
     {
         super.onCreate();
-        handler_thread = new HandlerThread("jobs_handler");
-        handler_thread.start();
+        // the app's own process; set before the first connection opens the HTTP stack
+        HttpClient.applyProcessSettings();
+        Downloader.setStorageRoot(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS));
+        EngineLog.setSink(new EngineLog.Sink()
+        {
+            public void println(int priority, String tag, String message)
+            {
+                Log.println(priority, tag, message);
+            }
+        }, EngineLog.VERBOSE);
+        scheduler = new DownloadScheduler(DEFAULT_MAX_WORKERS, DEFAULT_MAX_PER_HOST);
+        retry_engine = new RetryEngine(scheduler, new ExponentialBackoff(), new CircuitBreaker());
+        progress_reporter = new ProgressReporter(new ProgressListener(),
+                ProgressReporter.DEFAULT_FRAME_INTERVAL_MS);
+
+        // queue wait and depth, retries and failures join the downloads' own metrics
+        Metrics metrics = Downloader.getMetrics();
+        scheduler.setMetrics(metrics);
+        retry_engine.setMetrics(metrics);
+        metrics.gauge("progress.active_downloads", new Metrics.Gauge()
+        {
+            public long value()
+            {
+                return progress_reporter.getActiveCount();
+            }
+        });
+        metrics_reporter = new MetricsReporter(metrics, new File(getFilesDir(), METRICS_FILE_NAME));
+        metrics_reporter.start(MetricsReporter.DEFAULT_INTERVAL_MS);
+        if (Downloader.getLinkCache() == null)
+        {
+            Downloader.setLinkCache(new LinkCache(LINK_CACHE_MEMORY_ENTRIES,
+                    new File(getCacheDir(), "links"), LINK_CACHE_DISK_ENTRIES));
+        }
+        try {
+            job_queue = JobQueue.open(new File(getFilesDir(), JOB_QUEUE_FILE_NAME));
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("cannot open the job queue", e);
+        }
+        resumeQueuedJobs();
+    }
+
+    /*
+     * This method runs when the service is stopped.
+     * Queued jobs are dropped, but stay in the job queue for the next start;
+     * running ones are allowed to finish, and are waited for briefly so
+     * they are out of the job queue before it is closed.
+     */
+    @Override
+    public void
+    onDestroy()
+    {
+        metrics_reporter.stop();
+        retry_engine.shutdown();
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(SHUTDOWN_WAIT_MS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        job_queue.close();
+        super.onDestroy();
     }
 
     /*
      * This method gets call each time a request come in from the application via an intent.
-     * It processes the request by enqueuing a new download job in the background handler thread.
-     * If the request to fetch for all the links on the web page, then a new fetch job runs
-     * in the background handler thread.
+     * It processes the request by enqueuing a new download job in the job scheduler.
+     * If the request to fetch for all the links on the web page, then a new fetch job is
+     * queued ahead of the downloads.
+     * The optional "size_hint" extra lets smaller downloads overtake larger ones.
      */
     @Override
     public int
     onStartCommand(final Intent intent, int flags, int start_id)
     {
+        if (intent == null)
+        {
+            // the system restarted the sticky service after killing it;
+            // onCreate already picked up the downloads that were cut off
+            Log.d("DownloaderService", "restarted - resuming queued downloads");
+            return START_STICKY;
+        }
+
         String action = intent.getAction();
         if (action.equals(ACTION_DOWNLOAD))
         {
             Log.d("DownloaderService", "starting Action Download - DownloaderService");
-            // create a runnable task to deal with this download
-            Runnable runner_job = new Runnable()
+            // the optional "checksum" extra is "sha256:<hex>", "md5:<hex>" or bare hex
+            Checksum checksum = null;
+            try {
+                checksum = Checksum.parse(intent.getStringExtra("checksum"));
+            }
+            catch (IllegalArgumentException e) {
+                Log.d("DownloaderService", "ignoring download with a bad checksum: " + e.getMessage());
+                return START_NOT_STICKY;
+            }
+            enqueueDownload(intent.getStringExtra("url"),
+                    intent.getLongExtra("size_hint", DownloadScheduler.SIZE_UNKNOWN), checksum);
+        }
+        else if (action.equals(ACTION_DOWNLOAD_BATCH))
+        {
+            Log.d("DownloaderService", "starting Action Download Batch - DownloaderService");
+            // "urls" is the candidate list; without it, the links in the link store
+            // are, narrowed by the optional "link_query" as in LinkStore.search.
+            // "extensions" (comma-separated), "regex" and "max_size" (bytes) are
+            // optional filters
+            String extensions = intent.getStringExtra("extensions");
+            LinkFilter filter = new LinkFilter(
+                    extensions == null ? null : Arrays.asList(extensions.split(",")),
+                    intent.getStringExtra("regex"),
+                    intent.getLongExtra("max_size", LinkFilter.NO_SIZE_LIMIT));
+            List<String> urls = intent.getStringArrayListExtra("urls");
+            enqueueBatch(urls != null ? urls : link_store.getLinks(intent.getStringExtra("link_query")), filter);
+        }
+        else if (action.equals(ACTION_FETCH_LINKS))
+        {
+            Log.d("DownloaderService", "starting Action Fetch Links - DownloaderService");
+
+            // create a task for obtaining the links on a web page
+            // Android 3.0 and up requires network operation to be perform in a thread
+            // to allow for smooth UI interface.
+            final String url = intent.getStringExtra("url");
+            RetryEngine.Task task = new RetryEngine.Task()
             {
-                public void run()
-                {
-                    // download the file
-                    String url = intent.getStringExtra("url");
-                    String filename = Downloader.download(url);
-
-                    // show a notification in the top notification bar
-                    Notification.Builder builder = new Notification.Builder(DownloaderService.this)
-                            .setContentTitle("Download Complete")
-                            .setContentText(url)
-                            .setAutoCancel(true)
-                            .setSmallIcon(R.drawable.icon_download);
-                    Notification notification = builder.build();
-                    NotificationManager notification_manager = (NotificationManager)
-                            getSystemService(Context.NOTIFICATION_SERVICE);
-                    notification_manager.notify(ID_NOTIFICATION_DL_COMPLETE, notification);
-
-                    // broadcast a message back to the application to inform it that we are done downloading
+                public void run(int attempt) throws IOException {
+                    // store each chunk of links as soon as the scanner finds it and
+                    // announce it, so the list fills in while the page is still downloading
+                    final LinkStore links_found = newLinkStore(url);
+                    final int[] chunks_sent = {0};
+                    int link_count;
+                    try {
+                        link_count = Downloader.streamAllLinks(url, new LinkScanner.LinkSink()
+                        {
+                            public void onLinks(List<String> links)
+                            {
+                                links_found.append(links);
+                                Intent partial = new Intent();
+                                partial.setAction(ACTION_FETCH_LINKS_PARTIAL);
+                                partial.putExtra("url", url);
+                                partial.putExtra("link_count", links_found.size());
+                                sendBroadcast(partial);
+                                chunks_sent[0]++;
+                            }
+                        });
+                    }
+                    catch (RuntimeException e) {
+                        if (chunks_sent[0] > 0)
+                        {
+                            // a retry would send the same links again
+                            throw new RetryPolicy.PermanentException("page broke off after "
+                                    + chunks_sent[0] + " chunks: " + e.getCause());
+                        }
+                        throw e;
+                    }
+
+                    // broadcast a message back to the application to inform fetching links is complete
                     Intent done = new Intent();
-                    done.setAction(ACTION_DOWNLOAD_COMPLETE);
+                    done.setAction(ACTION_FETCH_LINKS_COMPLETE);
                     done.putExtra("url", url);
-                    done.putExtra("filename", filename);
+                    done.putExtra("link_count", link_count);
                     sendBroadcast(done);
                 }
             };
 
-            // wrap the runnable into a Handler job to be given to background thread
-            Handler handler = new Handler(handler_thread.getLooper());
-            handler.post(runner_job);
+            // fetching links is what the user is waiting on; run it ahead of downloads
+            retry_engine.submit(url, DownloadScheduler.PRIORITY_HIGH, DownloadScheduler.SIZE_UNKNOWN,
+                    task, new FailureReporter(ACTION_FETCH_LINKS));
         }
-        else if (action.equals(ACTION_FETCH_LINKS))
+        else if (action.equals(ACTION_CRAWL))
         {
-            Log.d("DownloaderService", "starting Action Fetch Links - DownloaderService");
+            Log.d("DownloaderService", "starting Action Crawl - DownloaderService");
 
-            // create a runnable task for obtaining the links on a web page
-            // Android 3.0 and up requires network operation to be perform in a thread
-            // to allow for smooth UI interface.
-            Runnable runner_job = new Runnable()
+            // create a task that follows links down the site tree; files found
+            // are reported like fetched links, as ACTION_FETCH_LINKS_PARTIAL chunks.
+            // Pages that fail are skipped by the crawler itself, so it is not retried
+            final String url = intent.getStringExtra("url");
+            RetryEngine.Task task = new RetryEngine.Task()
             {
-                public void run() {
-                    String url = intent.getStringExtra("url");
-                    String[] all_links = Downloader.getAllLinks(url);
+                public void run(int attempt) {
+                    String extensions = intent.getStringExtra("extensions");     // comma-separated
+                    Crawler crawler = new Crawler(
+                            intent.getIntExtra("max_depth", Crawler.DEFAULT_MAX_DEPTH),
+                            intent.getBooleanExtra("same_host", true),
+                            extensions == null ? Arrays.asList(Crawler.DEFAULT_EXTENSIONS)
+                                               : Arrays.asList(extensions.split(",")),
+                            intent.getIntExtra("max_pages", Crawler.DEFAULT_MAX_PAGES),
+                            Crawler.DEFAULT_THREADS);
 
-                    // broadcast a message back to the application to inform fetching links is complete
+                    final LinkStore links_found = newLinkStore(url);
+                    try {
+                        crawler.crawl(url, new LinkScanner.LinkSink()
+                        {
+                            public void onLinks(List<String> links)
+                            {
+                                links_found.append(links);
+                                Intent partial = new Intent();
+                                partial.setAction(ACTION_FETCH_LINKS_PARTIAL);
+                                partial.putExtra("url", url);
+                                partial.putExtra("link_count", links_found.size());
+                                sendBroadcast(partial);
+                            }
+                        });
+                    }
+                    catch (InterruptedException e) {
+                        // stopped early; what was found so far is still reported
+                        Thread.currentThread().interrupt();
+                    }
+
+                    // broadcast a message back to the application to inform crawling is complete
                     Intent done = new Intent();
                     done.setAction(ACTION_FETCH_LINKS_COMPLETE);
                     done.putExtra("url", url);
-                    done.putExtra("links_array", all_links);
+                    done.putExtra("link_count", links_found.size());
                     sendBroadcast(done);
                 }
             };
 
-            // wrap the runnable into a Handler job to be given to background thread
-            Handler handler = new Handler(handler_thread.getLooper());
-            handler.post(runner_job);
+            retry_engine.submit(url, DownloadScheduler.PRIORITY_HIGH, DownloadScheduler.SIZE_UNKNOWN,
+                    task, new FailureReporter(ACTION_CRAWL));
+        }
+        else if (action.equals(ACTION_CONFIGURE))
+        {
+            // change the scheduler and bandwidth limits; every extra is optional,
+            // and a rate of 0 (RateLimiter.UNLIMITED) removes that cap
+            if (intent.hasExtra("max_workers"))
+            {
+                scheduler.setMaxWorkers(intent.getIntExtra("max_workers", DEFAULT_MAX_WORKERS));
+            }
+            if (intent.hasExtra("max_per_host"))
+            {
+                scheduler.setMaxPerHost(intent.getIntExtra("max_per_host", DEFAULT_MAX_PER_HOST));
+            }
+            if (intent.hasExtra("max_bytes_per_second"))
+            {
+                Downloader.setMaxBytesPerSecond(
+                        intent.getLongExtra("max_bytes_per_second", RateLimiter.UNLIMITED));
+            }
+            if (intent.hasExtra("max_bytes_per_second_per_job"))
+            {
+                Downloader.setMaxBytesPerSecondPerJob(
+                        intent.getLongExtra("max_bytes_per_second_per_job", RateLimiter.UNLIMITED));
+            }
+            if (intent.hasExtra("sidecar_checksums"))
+            {
+                Downloader.setSidecarChecksums(intent.getBooleanExtra("sidecar_checksums", false));
+            }
+            if (intent.hasExtra("compressed_transfer"))
+            {
+                Downloader.setCompressedTransfer(intent.getBooleanExtra("compressed_transfer", true));
+            }
+            if (intent.hasExtra("unpack_on_store"))
+            {
+                Downloader.setUnpackOnStore(intent.getBooleanExtra("unpack_on_store", false));
+            }
+            if (intent.hasExtra("max_attempts") || intent.hasExtra("backoff_base_ms")
+                    || intent.hasExtra("backoff_max_ms"))
+            {
+                retry_engine.setPolicy(new ExponentialBackoff(
+                        intent.getIntExtra("max_attempts", ExponentialBackoff.DEFAULT_MAX_ATTEMPTS),
+                        intent.getLongExtra("backoff_base_ms", ExponentialBackoff.DEFAULT_BASE_DELAY_MS),
+                        intent.getLongExtra("backoff_max_ms", ExponentialBackoff.DEFAULT_MAX_DELAY_MS)));
+            }
+            if (intent.hasExtra("metrics_interval_ms"))
+            {
+                // 0 stops the snapshots, after writing a last one
+                long interval_ms = intent.getLongExtra("metrics_interval_ms", MetricsReporter.DEFAULT_INTERVAL_MS);
+                if (interval_ms > 0)
+                {
+                    metrics_reporter.start(interval_ms);
+                }
+                else
+                {
+                    metrics_reporter.stop();
+                }
+            }
         }
 
-        if (action.equals(ACTION_DOWNLOAD)) {
+        if (action.equals(ACTION_DOWNLOAD) || action.equals(ACTION_DOWNLOAD_BATCH)) {
             return START_STICKY;   // keep service running
         }
         else {
@@ -118,6 +370,466 @@ public class DownloaderService extends Service {
         }
     }
 
+    /*
+     * Returns the links of the page fetched or site crawled last. They are
+     * announced by ACTION_FETCH_LINKS_PARTIAL broadcasts carrying the
+     * store's size so far, and stay here until the next fetch or crawl.
+     */
+    public static LinkStore
+    getLinkStore()
+    {
+        return link_store;
+    }
+
+    /*
+     * Replaces the shared link store with an empty one for the page.
+     * Whoever still holds the old store can go on reading it.
+     */
+    static LinkStore
+    newLinkStore(String page_url)
+    {
+        LinkStore store = new LinkStore(page_url);
+        link_store = store;
+        return store;
+    }
+
+    /*
+     * Queues a job that downloads the file at the URL, verifying it against
+     * the checksum if one is given, then notifies the user and broadcasts
+     * ACTION_DOWNLOAD_COMPLETE. Transient failures are retried; if the
+     * download still fails, ACTION_FAILED is broadcast instead.
+     */
+    private void
+    enqueueDownload(String url, long size_hint, Checksum checksum)
+    {
+        runDownload(job_queue.add(url, size_hint, checksum, null, LinkFilter.NO_SIZE_LIMIT));
+    }
+
+    /*
+     * Runs a download from the job queue, as enqueueDownload describes, and
+     * takes it off the queue once it is done.
+     */
+    private void
+    runDownload(JobQueue.Job job)
+    {
+        final String url = job.url;
+        final Checksum checksum = job.checksum;
+
+        // create a task to deal with this download
+        RetryEngine.Task task = new RetryEngine.Task()
+        {
+            public void run(int attempt)
+            {
+                // download the file
+                DownloadProgress progress = progress_reporter.start(url);
+                String filename;
+                try {
+                    filename = Downloader.download(url, progress, checksum);
+                }
+                finally {
+                    progress_reporter.finish(progress);
+                }
+
+                // show a notification in the top notification bar
+                Notification.Builder builder = new Notification.Builder(DownloaderService.this)
+                        .setContentTitle("Download Complete")
+                        .setContentText(url)
+                        .setAutoCancel(true)
+                        .setSmallIcon(R.drawable.icon_download);
+                Notification notification = builder.build();
+                NotificationManager notification_manager = (NotificationManager)
+                        getSystemService(Context.NOTIFICATION_SERVICE);
+                notification_manager.notify(ID_NOTIFICATION_DL_COMPLETE, notification);
+
+                // broadcast a message back to the application to inform it that we are done downloading
+                Intent done = new Intent();
+                done.setAction(ACTION_DOWNLOAD_COMPLETE);
+                done.putExtra("url", url);
+                done.putExtra("filename", filename);
+                sendBroadcast(done);
+            }
+        };
+
+        // give the job to the scheduler to run on a worker thread
+        retry_engine.submit(url, DownloadScheduler.PRIORITY_NORMAL, job.size_hint, task,
+                new Dequeuer(job, new FailureReporter(ACTION_DOWNLOAD)));
+    }
+
+    /*
+     * Queues the links that pass the filter as one batch. Each file is still
+     * its own scheduler job, so the batch downloads in parallel, but the user
+     * gets a single notification and the application a single
+     * ACTION_DOWNLOAD_BATCH_COMPLETE broadcast once every file is done.
+     * With a size limit, each file is probed just before it would download
+     * and skipped if it is too large.
+     */
+    private void
+    enqueueBatch(List<String> urls, LinkFilter filter)
+    {
+        List<String> accepted = filter.filter(urls == null ? Collections.<String>emptyList() : urls);
+        Log.d("DownloaderService", "batch of " + accepted.size() + " files after filtering");
+
+        // the batch's jobs share a group, so a restart can pick them up as one batch again
+        String group = UUID.randomUUID().toString();
+        ArrayList<JobQueue.Job> jobs = new ArrayList<>();
+        for (String url : accepted)
+        {
+            jobs.add(job_queue.add(url, DownloadScheduler.SIZE_UNKNOWN, null, group, filter.getMaxSize()));
+        }
+        runBatch(jobs, filter, urls == null ? 0 : urls.size() - accepted.size());
+    }
+
+    /*
+     * Runs the jobs of a batch from the job queue, as enqueueBatch
+     * describes, taking each off the queue once it is done. filtered_out
+     * links are reported as skipped.
+     */
+    private void
+    runBatch(List<JobQueue.Job> jobs, final LinkFilter filter, int filtered_out)
+    {
+        final BatchResult batch = new BatchResult(jobs.size(), filtered_out);
+        if (jobs.isEmpty())
+        {
+            finishBatch(batch);
+            return;
+        }
+
+        // every file ends as downloaded, skipped or (after its retries) failed
+        RetryEngine.Listener outcome = new RetryEngine.Listener()
+        {
+            public void onSuccess(String url, int attempts)
+            {
+                if (batch.isDone())
+                {
+                    finishBatch(batch);
+                }
+            }
+
+            public void onFailure(String url, Exception reason, int attempts)
+            {
+                Log.d("DownloaderService", "batch download of " + url + " failed: " + reason);
+                batch.failed(url);
+                if (batch.isDone())
+                {
+                    finishBatch(batch);
+                }
+            }
+        };
+
+        for (JobQueue.Job job : jobs)
+        {
+            final String url = job.url;
+            retry_engine.submit(url, DownloadScheduler.PRIORITY_NORMAL, DownloadScheduler.SIZE_UNKNOWN,
+                    new RetryEngine.Task()
+            {
+                public void run(int attempt)
+                {
+                    if (filter.hasSizeLimit())
+                    {
+                        RemoteFile remote_file = Downloader.probeQuietly(url);
+                        if (remote_file != null && !filter.acceptsSize(remote_file.length))
+                        {
+                            Log.d("DownloaderService", "skipping " + url + ": " + remote_file.length + " bytes");
+                            batch.skipped();
+                            return;
+                        }
+                    }
+                    DownloadProgress progress = progress_reporter.start(url);
+                    try {
+                        batch.succeeded(Downloader.download(url, progress));
+                    }
+                    finally {
+                        progress_reporter.finish(progress);
+                    }
+                }
+            }, new Dequeuer(job, outcome));
+        }
+    }
+
+    /*
+     * Reports a finished batch with one notification and one broadcast.
+     */
+    private void
+    finishBatch(BatchResult batch)
+    {
+        String summary = batch.getDownloaded().size() + " downloaded, " + batch.getSkipped() + " skipped, "
+                + batch.getFailed().size() + " failed";
+        Notification.Builder builder = new Notification.Builder(DownloaderService.this)
+                .setContentTitle("Batch Download Complete")
+                .setContentText(summary)
+                .setAutoCancel(true)
+                .setSmallIcon(R.drawable.icon_download);
+        NotificationManager notification_manager = (NotificationManager)
+                getSystemService(Context.NOTIFICATION_SERVICE);
+        notification_manager.notify(ID_NOTIFICATION_BATCH_COMPLETE, builder.build());
+
+        Intent done = new Intent();
+        done.setAction(ACTION_DOWNLOAD_BATCH_COMPLETE);
+        done.putStringArrayListExtra("filenames", batch.getDownloaded());
+        done.putStringArrayListExtra("failed_urls", batch.getFailed());
+        done.putExtra("skipped_count", batch.getSkipped());
+        sendBroadcast(done);
+    }
+
+    /*
+     * This listener takes a job off the job queue once it has succeeded or
+     * failed for good, then passes the outcome on. A job cut off by the
+     * process dying never gets here, so it stays queued for the next start.
+     */
+    private class Dequeuer implements RetryEngine.Listener {
+        private final JobQueue.Job job;
+        private final RetryEngine.Listener next;
+
+        Dequeuer(JobQueue.Job job, RetryEngine.Listener next)
+        {
+            this.job = job;
+            this.next = next;
+        }
+
+        public void
+        onSuccess(String url, int attempts)
+        {
+            job_queue.remove(job);
+            next.onSuccess(url, attempts);
+        }
+
+        public void
+        onFailure(String url, Exception reason, int attempts)
+        {
+            job_queue.remove(job);
+            next.onFailure(url, reason, attempts);
+        }
+    }
+
+    /*
+     * Tells the user and the application about a job the retry engine gave
+     * up on: a notification, and an ACTION_FAILED broadcast naming the
+     * action that failed, the URL, the reason and the number of attempts.
+     */
+    private class FailureReporter implements RetryEngine.Listener {
+        private final String failed_action;
+
+        FailureReporter(String failed_action)
+        {
+            this.failed_action = failed_action;
+        }
+
+        public void
+        onSuccess(String url, int attempts)
+        {
+            // the job reports its own success
+        }
+
+        public void
+        onFailure(String url, Exception reason, int attempts)
+        {
+            IOException failure = RetryEngine.ioFailureOf(reason);
+            String message = failure != null ? failure.getMessage() : reason.toString();
+            Notification.Builder builder = new Notification.Builder(DownloaderService.this)
+                    .setContentTitle("Failed after " + attempts + (attempts == 1 ? " attempt" : " attempts"))
+                    .setContentText(url + ": " + message)
+                    .setAutoCancel(true)
+                    .setSmallIcon(R.drawable.icon_download);
+            NotificationManager notification_manager = (NotificationManager)
+                    getSystemService(Context.NOTIFICATION_SERVICE);
+            notification_manager.notify(ID_NOTIFICATION_FAILED, builder.build());
+
+            Intent failed = new Intent();
+            failed.setAction(ACTION_FAILED);
+            failed.putExtra("action", failed_action);
+            failed.putExtra("url", url);
+            failed.putExtra("reason", message);
+            failed.putExtra("attempts", attempts);
+            if (failure instanceof HttpStatusException)
+            {
+                failed.putExtra("http_status", ((HttpStatusException) failure).status);
+            }
+            sendBroadcast(failed);
+        }
+    }
+
+    /*
+     * Turns progress frames into one in-progress notification per download
+     * and a single ACTION_DOWNLOAD_PROGRESS broadcast per frame, whose
+     * extras are parallel arrays with one entry per download that moved.
+     */
+    private class ProgressListener implements ProgressReporter.Listener {
+        public void
+        onProgress(List<DownloadProgress.Snapshot> snapshots)
+        {
+            NotificationManager notification_manager = (NotificationManager)
+                    getSystemService(Context.NOTIFICATION_SERVICE);
+            int count = snapshots.size();
+            String[] urls = new String[count];
+            long[] bytes = new long[count];
+            long[] totals = new long[count];
+            long[] rates = new long[count];
+            long[] etas = new long[count];
+            for (int i = 0; i < count; i++)
+            {
+                DownloadProgress.Snapshot snapshot = snapshots.get(i);
+                urls[i] = snapshot.url;
+                bytes[i] = snapshot.bytes;
+                totals[i] = snapshot.total;
+                rates[i] = snapshot.bytes_per_second;
+                etas[i] = snapshot.eta_seconds;
+
+                boolean known = snapshot.total > 0;
+                String text = (snapshot.bytes / 1024) + " KB"
+                        + (known ? " of " + (snapshot.total / 1024) + " KB" : "")
+                        + ", " + (snapshot.bytes_per_second / 1024) + " KB/s"
+                        + (snapshot.eta_seconds >= 0 ? ", " + snapshot.eta_seconds + " s left" : "");
+                Notification.Builder builder = new Notification.Builder(DownloaderService.this)
+                        .setContentTitle("Downloading " + snapshot.url)
+                        .setContentText(text)
+                        .setOngoing(true)
+                        .setOnlyAlertOnce(true)
+                        .setProgress(100, known ? (int) (snapshot.bytes * 100 / snapshot.total) : 0, !known)
+                        .setSmallIcon(R.drawable.icon_download);
+                notification_manager.notify(ID_NOTIFICATION_PROGRESS_BASE + snapshot.id, builder.build());
+            }
+
+            Intent update = new Intent();
+            update.setAction(ACTION_DOWNLOAD_PROGRESS);
+            update.putExtra("urls", urls);
+            update.putExtra("bytes", bytes);
+            update.putExtra("totals", totals);
+            update.putExtra("rates", rates);
+            update.putExtra("etas", etas);
+            sendBroadcast(update);
+        }
+
+        public void
+        onFinished(DownloadProgress.Snapshot snapshot)
+        {
+            NotificationManager notification_manager = (NotificationManager)
+                    getSystemService(Context.NOTIFICATION_SERVICE);
+            notification_manager.cancel(ID_NOTIFICATION_PROGRESS_BASE + snapshot.id);
+        }
+    }
+
+    /*
+     * Outcome of a batch, filled in by its jobs from several worker threads.
+     */
+    private static class BatchResult {
+        private final ArrayList<String> downloaded = new ArrayList<>();
+        private final ArrayList<String> failed = new ArrayList<>();
+        private int skipped;
+        private int remaining;
+
+        BatchResult(int count, int filtered_out)
+        {
+            this.remaining = count;
+            this.skipped = filtered_out;
+        }
+
+        synchronized void
+        succeeded(String filename)
+        {
+            downloaded.add(filename);
+            remaining--;
+        }
+
+        synchronized void
+        failed(String url)
+        {
+            failed.add(url);
+            remaining--;
+        }
+
+        synchronized void
+        skipped()
+        {
+            skipped++;
+            remaining--;
+        }
+
+        /*
+         * Returns true exactly once, for the job that finished the batch.
+         */
+        synchronized boolean
+        isDone()
+        {
+            if (remaining == 0)
+            {
+                remaining = -1;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized ArrayList<String>
+        getDownloaded()
+        {
+            return new ArrayList<>(downloaded);
+        }
+
+        synchronized ArrayList<String>
+        getFailed()
+        {
+            return new ArrayList<>(failed);
+        }
+
+        synchronized int
+        getSkipped()
+        {
+            return skipped;
+        }
+    }
+
+    /*
+     * Runs the jobs left in the job queue when the service last stopped, as
+     * they were queued: single downloads on their own and the rest of each
+     * batch as one batch. Partially downloaded files continue from their
+     * last checkpoint. A partial file whose download is not in the queue
+     * (the queue's last records were lost, or it predates the queue) is
+     * queued again as well. The scan runs on a worker thread, not the main
+     * thread.
+     */
+    private void
+    resumeQueuedJobs()
+    {
+        scheduler.submit("", DownloadScheduler.PRIORITY_HIGH, DownloadScheduler.SIZE_UNKNOWN, new Runnable()
+        {
+            public void run()
+            {
+                HashSet<String> queued_urls = new HashSet<>();
+                LinkedHashMap<String, List<JobQueue.Job>> batches = new LinkedHashMap<>();
+                for (JobQueue.Job job : job_queue.getPending())
+                {
+                    queued_urls.add(job.url);
+                    if (job.group == null)
+                    {
+                        Log.d("DownloaderService", "resuming download of " + job.url);
+                        runDownload(job);
+                    }
+                    else
+                    {
+                        if (!batches.containsKey(job.group))
+                        {
+                            batches.put(job.group, new ArrayList<JobQueue.Job>());
+                        }
+                        batches.get(job.group).add(job);
+                    }
+                }
+                for (List<JobQueue.Job> jobs : batches.values())
+                {
+                    Log.d("DownloaderService", "resuming batch of " + jobs.size() + " files");
+                    runBatch(jobs, new LinkFilter(null, null, jobs.get(0).max_size), 0);
+                }
+
+                for (String url : Downloader.findInterruptedDownloads())
+                {
+                    if (!queued_urls.contains(url))
+                    {
+                        Log.d("DownloaderService", "resuming download of " + url);
+                        enqueueDownload(url, DownloadScheduler.SIZE_UNKNOWN, null);
+                    }
+                }
+            }
+        });
+    }
+
     /*
      * This method specifies how our service will deal with binding.
      * We do not choose to support binding, which is indicated by
@@ -0,0 +1,178 @@
+package com.example.sony.downloader;
+
+import android.content.*;
+import android.os.*;
+import android.view.*;
+import android.widget.*;
+
+/*
+ * This adapter shows the links of a LinkStore in a ListView. It copies
+ * nothing: the ListView asks for the rows it is about to draw, and those
+ * are read straight from the store, so a page with 100k links costs no
+ * more to show than one with ten.
+ *
+ * The list can be filtered as the user types (see LinkStore.search). The
+ * search runs on a background thread and each one starts from the last
+ * result, so the UI thread only swaps in a finished result.
+ *
+ * All methods are called on the UI thread.
+ */
+public class LinkListAdapter extends BaseAdapter {
+    private final LayoutInflater inflater;
+    private final Handler filter_handler;       // runs searches off the UI thread
+    private final Handler ui_handler = new Handler(Looper.getMainLooper());
+
+    private LinkStore store;
+    private int count;                          // links shown when unfiltered
+    private String query = "";
+    private LinkStore.Matches matches;          // shown when filtered; null until the first search is done
+    private LinkStore.Matches latest;           // the last search done, for the next one to start from
+    private int search_sequence;                // counts searches asked for
+    private int running_search;                 // sequence of the search on the filter thread, or 0
+
+    public
+    LinkListAdapter(Context context, LinkStore store, Looper filter_looper)
+    {
+        this.inflater = LayoutInflater.from(context);
+        this.filter_handler = new Handler(filter_looper);
+        this.store = store;
+        this.count = store.size();
+    }
+
+    /*
+     * Shows the links added to the store since the last call, or switches
+     * to another store (the links of a new page).
+     */
+    public void
+    refresh(LinkStore current_store)
+    {
+        if (current_store != store)
+        {
+            store = current_store;
+            matches = null;
+            latest = null;
+            running_search = 0;
+        }
+        count = store.size();
+        notifyDataSetChanged();
+        if (query.length() > 0 && (matches == null || matches.isBehind()))
+        {
+            search();
+        }
+    }
+
+    /*
+     * Shows only the links matching the query; an empty query shows all.
+     */
+    public void
+    setQuery(String new_query)
+    {
+        if (new_query.equals(query))
+        {
+            return;
+        }
+        query = new_query;
+        if (query.length() == 0)
+        {
+            running_search = 0;     // drop any search still running
+            matches = null;
+            notifyDataSetChanged();
+        }
+        else
+        {
+            search();
+        }
+    }
+
+    public String
+    getQuery()
+    {
+        return query;
+    }
+
+    public LinkStore
+    getStore()
+    {
+        return store;
+    }
+
+    @Override
+    public int
+    getCount()
+    {
+        if (query.length() == 0)
+        {
+            return count;
+        }
+        return matches == null ? 0 : matches.size();
+    }
+
+    @Override
+    public String
+    getItem(int index)
+    {
+        return store.get(query.length() == 0 ? index : matches.positionAt(index));
+    }
+
+    @Override
+    public long
+    getItemId(int index)
+    {
+        return index;
+    }
+
+    @Override
+    public View
+    getView(int index, View convert_view, ViewGroup parent)
+    {
+        TextView text_view = (TextView) (convert_view != null ? convert_view
+                : inflater.inflate(android.R.layout.simple_list_item_1, parent, false));
+        text_view.setText(getItem(index));
+        return text_view;
+    }
+
+    /*
+     * Starts a search for the current query on the filter thread. While one
+     * runs, further calls only mark that another is needed once it is done,
+     * so fast typing and a stream of new links queue up at most one search.
+     */
+    private void
+    search()
+    {
+        final int sequence = ++search_sequence;
+        if (running_search != 0)
+        {
+            return;
+        }
+        running_search = sequence;
+        final LinkStore search_store = store;
+        final String search_query = query;
+        final LinkStore.Matches previous = latest;
+        filter_handler.post(new Runnable() {
+            public void run()
+            {
+                final LinkStore.Matches result = search_store.search(search_query, previous);
+                ui_handler.post(new Runnable() {
+                    public void run()
+                    {
+                        if (running_search != sequence)
+                        {
+                            return;         // the filter was cleared or the store replaced meanwhile
+                        }
+                        running_search = 0;
+                        latest = result;
+                        if (search_query.equals(query))
+                        {
+                            matches = result;
+                            notifyDataSetChanged();
+                        }
+                        if (sequence != search_sequence || result.isBehind())
+                        {
+                            search();
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
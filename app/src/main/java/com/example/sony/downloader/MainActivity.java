@@ -4,6 +4,7 @@ import android.app.*;
 import android.content.*;
 import android.os.*;
 import android.support.v7.app.ActionBarActivity;
+import android.text.*;
 import android.util.*;
 import android.view.*;
 import android.widget.*;
@@ -28,14 +29,13 @@ public class MainActivity extends ActionBarActivity
     // web domain where files will be downloaded from
     private String DOMAIN;
 
-    private ArrayList<String> list_of_links;    // links for the ListView
-    private ArrayAdapter<String> adapter;
+    private LinkListAdapter adapter;            // shows the service's LinkStore in the ListView
     private MyReceiver my_receiver;
     private ArrayList<String> files_downloaded; // keeps track of all the files downloaded while app is open
 
 
-    // handler thread loops waiting for jobs/tasks (getting links from web page) to run
-    // in a separate thread
+    // handler thread loops waiting for jobs/tasks (filtering the links of a web page)
+    // to run in a separate thread
     private HandlerThread links_handler_thread;
 
     /*
@@ -52,18 +52,40 @@ public class MainActivity extends ActionBarActivity
         links_handler_thread = new HandlerThread("links_handler");
         links_handler_thread.start();
 
-        // set up the ListView
-        list_of_links = new ArrayList<>();
-        adapter = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, list_of_links);
+        // set up the ListView; it reads the links straight from the service's store
+        adapter = new LinkListAdapter(this, DownloaderService.getLinkStore(), links_handler_thread.getLooper());
         ListView list_view = (ListView) findViewById(R.id.list_of_links);
         list_view.setAdapter(adapter);
+        list_view.setFastScrollEnabled(true);   // a thumb to drag through thousands of links
         list_view.setOnItemClickListener(this); // 'this' will be AdapterView.OnItemClickListener
                                                 // implemented in this activity
 
+        // narrow the list down as the user types in the filter box
+        EditText filter_text = (EditText) findViewById(R.id.filter);
+        filter_text.addTextChangedListener(new TextWatcher()
+        {
+            public void beforeTextChanged(CharSequence text, int start, int count, int after)
+            {
+            }
+
+            public void onTextChanged(CharSequence text, int start, int before, int count)
+            {
+            }
+
+            public void afterTextChanged(Editable text)
+            {
+                adapter.setQuery(text.toString().trim());
+            }
+        });
+
         // set up a broadcast receiver to receive notification when downloads are finished
         IntentFilter filter = new IntentFilter();
         filter.addAction(DownloaderService.ACTION_DOWNLOAD_COMPLETE);
+        filter.addAction(DownloaderService.ACTION_DOWNLOAD_PROGRESS);
+        filter.addAction(DownloaderService.ACTION_DOWNLOAD_BATCH_COMPLETE);
+        filter.addAction(DownloaderService.ACTION_FETCH_LINKS_PARTIAL);
         filter.addAction(DownloaderService.ACTION_FETCH_LINKS_COMPLETE);
+        filter.addAction(DownloaderService.ACTION_FAILED);
         my_receiver = new MyReceiver();
         registerReceiver(my_receiver, filter);
     }
@@ -92,7 +114,7 @@ public class MainActivity extends ActionBarActivity
     {
         EditText edit_text = (EditText) findViewById(R.id.the_url);
         String domain = edit_text.getText().toString();
-        String url = list_of_links.get(index);
+        String url = adapter.getItem(index);
 
         if (!url.contains("http"))
         {
@@ -114,10 +136,10 @@ public class MainActivity extends ActionBarActivity
     public void
     onGoButtonClick(View view)
     {
-        list_of_links.clear();
         EditText edit_text = (EditText) findViewById(R.id.the_url);
         String web_page_url = edit_text.getText().toString();
         DOMAIN = web_page_url;
+        adapter.refresh(DownloaderService.newLinkStore(web_page_url));
 
         // send request to DownloaderService using an intent
         Intent intent = new Intent(this, DownloaderService.class);
@@ -126,9 +148,56 @@ public class MainActivity extends ActionBarActivity
         startService(intent);
     }
 
+    /*
+     * This method gets call when the user clicks the "All" button.
+     * It asks the DownloaderService to download every listed link that
+     * looks like a file, as one batch with one result. The service takes
+     * the links from its own store, narrowed by the filter in use, so no
+     * list of URLs has to be sent with the intent.
+     */
+    public void
+    onDownloadAllButtonClick(View view)
+    {
+        StringBuilder extensions = new StringBuilder();
+        for (String extension : Crawler.DEFAULT_EXTENSIONS)
+        {
+            extensions.append(extensions.length() == 0 ? "" : ",").append(extension);
+        }
+
+        // send request to DownloadService using an intent
+        Intent intent = new Intent(this, DownloaderService.class);
+        intent.putExtra("link_query", adapter.getQuery());
+        intent.putExtra("extensions", extensions.toString());
+        intent.setAction(DownloaderService.ACTION_DOWNLOAD_BATCH);
+        startService(intent);
+    }
+
+    /*
+     * This method gets call when the user clicks the "Crawl" button.
+     * Like "Go", but also follows links to other pages on the same site
+     * and lists only the downloadable files found along the way.
+     */
+    public void
+    onCrawlButtonClick(View view)
+    {
+        EditText edit_text = (EditText) findViewById(R.id.the_url);
+        String web_page_url = edit_text.getText().toString();
+        DOMAIN = web_page_url;
+        adapter.refresh(DownloaderService.newLinkStore(web_page_url));
+
+        // send request to DownloaderService using an intent
+        Intent intent = new Intent(this, DownloaderService.class);
+        intent.putExtra("url", web_page_url);
+        intent.setAction(DownloaderService.ACTION_CRAWL);
+        startService(intent);
+    }
+
     /*
      * This broadcast receiver listens for broadcast indicating "download complete" or
      * "fetch links complete" sent by the DownloadService and reacts to them by showing a toast.
+     * Links are announced in chunks ("fetch links partial") before the "fetch links complete"
+     * message; the links themselves are read from the service's LinkStore.
+     * A job that failed for good is reported with a "failed" message carrying the reason.
      */
     private class MyReceiver extends BroadcastReceiver {
         @Override
@@ -143,29 +212,58 @@ public class MainActivity extends ActionBarActivity
                 Log.d("MainActivity", "filename is " + intent.getStringExtra("filename"));
                 Toast.makeText(MainActivity.this, "done downloading from " + url, Toast.LENGTH_SHORT).show();
             }
+            else if (action.equals(DownloaderService.ACTION_DOWNLOAD_PROGRESS))
+            {
+                // at most a few of these arrive per second, however many downloads run
+                long[] rates = intent.getLongArrayExtra("rates");
+                long[] etas = intent.getLongArrayExtra("etas");
+                long total_rate = 0;
+                long longest_eta = -1;
+                for (int i = 0; i < rates.length; i++)
+                {
+                    total_rate += rates[i];
+                    longest_eta = Math.max(longest_eta, etas[i]);
+                }
+                TextView status = (TextView) findViewById(R.id.status);
+                status.setText(rates.length + " downloading, " + (total_rate / 1024) + " KB/s"
+                        + (longest_eta >= 0 ? ", " + longest_eta + " s left" : ""));
+            }
+            else if (action.equals(DownloaderService.ACTION_DOWNLOAD_BATCH_COMPLETE))
+            {
+                ArrayList<String> filenames = intent.getStringArrayListExtra("filenames");
+                ArrayList<String> failed_urls = intent.getStringArrayListExtra("failed_urls");
+                files_downloaded.addAll(filenames);
+                Toast.makeText(MainActivity.this, "done downloading " + filenames.size() + " files ("
+                        + failed_urls.size() + " failed)", Toast.LENGTH_SHORT).show();
+            }
+            else if (action.equals(DownloaderService.ACTION_FETCH_LINKS_PARTIAL))
+            {
+                // ignore leftovers from a page fetched before the last "Go" click
+                if (intent.getStringExtra("url").equals(DOMAIN))
+                {
+                    adapter.refresh(DownloaderService.getLinkStore());
+                }
+            }
             else if (action.equals(DownloaderService.ACTION_FETCH_LINKS_COMPLETE))
             {
-
                 String url = intent.getStringExtra("url");
-                updateListOfLinks(intent.getStringArrayExtra("links_array"));
-                Toast.makeText(MainActivity.this, "done fetching links from " + url, Toast.LENGTH_SHORT).show();
+                int link_count = intent.getIntExtra("link_count", 0);
+                if (url.equals(DOMAIN))
+                {
+                    adapter.refresh(DownloaderService.getLinkStore());
+                }
+                Toast.makeText(MainActivity.this, "done fetching " + link_count + " links from " + url,
+                        Toast.LENGTH_SHORT).show();
+            }
+            else if (action.equals(DownloaderService.ACTION_FAILED))
+            {
+                // sent once the service has given up retrying a job
+                String url = intent.getStringExtra("url");
+                String reason = intent.getStringExtra("reason");
+                int attempts = intent.getIntExtra("attempts", 1);
+                Toast.makeText(MainActivity.this, "failed " + url + " after " + attempts + " attempts: " + reason,
+                        Toast.LENGTH_LONG).show();
             }
         }
     }
-
-    /*
-     * This method fills the ListView with all the links from a web page.
-     * The web page is the one in the EditText at the time when the "Go"
-     * button was clicked.
-     */
-    private void
-    updateListOfLinks(String[] links)
-    {
-        list_of_links.clear();
-        for (int i = 0; i < links.length; i++)
-        {
-            list_of_links.add(links[i]);
-        }
-        adapter.notifyDataSetChanged();
-    }
 }
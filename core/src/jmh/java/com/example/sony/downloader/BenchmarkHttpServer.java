@@ -0,0 +1,291 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A stand-in for a real web server in the benchmarks. It generates what it
+ * serves, so payloads of any size cost no memory, and can be made to act
+ * like a distant or slow server:
+ *
+ *   /bytes/n     n bytes of binary data
+ *   /page/n      an HTML page with n anchors, half absolute, half relative
+ *
+ * latency_ms is waited before every response, and bytes_per_second (if not
+ * 0) caps the rate of every response body. GET, HEAD and single byte ranges
+ * are understood, and connections are kept alive, so the Downloader's
+ * connection pool and segmented downloads work as they do on the internet.
+ */
+public class BenchmarkHttpServer implements Closeable {
+    // size of the block binary payloads repeat, and of every write
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    private final ServerSocket server_socket;
+    private final long latency_ms;
+    private final long bytes_per_second;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final ConcurrentHashMap<Integer, byte[]> pages = new ConcurrentHashMap<>();
+    private final ExecutorService connections;
+
+    public
+    BenchmarkHttpServer(long latency_ms, long bytes_per_second) throws IOException
+    {
+        this.latency_ms = latency_ms;
+        this.bytes_per_second = bytes_per_second;
+        new Random(42).nextBytes(block);
+        this.server_socket = new ServerSocket(0, 100, InetAddress.getByName("127.0.0.1"));
+        this.connections = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "benchmark_http_server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        connections.execute(new Runnable() {
+            public void run()
+            {
+                acceptLoop();
+            }
+        });
+    }
+
+    /*
+     * Returns the URL of the given path on this server.
+     */
+    public String
+    url(String path)
+    {
+        return "http://127.0.0.1:" + server_socket.getLocalPort() + path;
+    }
+
+    /*
+     * Returns the HTML page served as /page/anchors.
+     */
+    public static byte[]
+    pageWithAnchors(int anchors)
+    {
+        StringBuilder html = new StringBuilder(anchors * 64 + 256);
+        html.append("<!DOCTYPE html>\n<html><head><title>index</title></head><body>\n<ul>\n");
+        for (int i = 0; i < anchors; i++)
+        {
+            html.append("<li><a href=\"");
+            if (i % 2 == 0)
+            {
+                html.append("http://mirror").append(i % 7).append(".example.com/files/");
+            }
+            else
+            {
+                html.append("files/sub").append(i % 13).append('/');
+            }
+            html.append("file").append(i).append(".bin\">file ").append(i).append("</a> ")
+                    .append(i * 1024).append(" bytes</li>\n");
+        }
+        html.append("</ul>\n</body></html>\n");
+        try {
+            return html.toString().getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public void
+    close() throws IOException
+    {
+        server_socket.close();
+        connections.shutdownNow();
+    }
+
+    private void
+    acceptLoop()
+    {
+        while (!server_socket.isClosed())
+        {
+            try {
+                final Socket socket = server_socket.accept();
+                socket.setTcpNoDelay(true);
+                connections.execute(new Runnable() {
+                    public void run()
+                    {
+                        serve(socket);
+                    }
+                });
+            }
+            catch (IOException e) {
+                // closed
+            }
+            catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Answers requests on the connection until the client closes it.
+     */
+    private void
+    serve(Socket socket)
+    {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            OutputStream output_stream = new BufferedOutputStream(socket.getOutputStream(), BLOCK_SIZE);
+            String request_line;
+            while ((request_line = reader.readLine()) != null)
+            {
+                String range = null;
+                String line;
+                while ((line = reader.readLine()) != null && line.length() > 0)
+                {
+                    if (line.regionMatches(true, 0, "Range:", 0, 6))
+                    {
+                        range = line.substring(6).trim();
+                    }
+                }
+                String[] parts = request_line.split(" ");
+                if (parts.length < 2 || !respond(parts[0], parts[1], range, output_stream))
+                {
+                    break;
+                }
+            }
+        }
+        catch (IOException e) {
+            // client went away
+        }
+        catch (InterruptedException e) {
+            // shutting down
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // empty
+            }
+        }
+    }
+
+    /*
+     * Sends the response to one request. Returns false if the connection
+     * has to be closed afterwards.
+     */
+    private boolean
+    respond(String method, String path, String range, OutputStream output_stream)
+            throws IOException, InterruptedException
+    {
+        if (latency_ms > 0)
+        {
+            Thread.sleep(latency_ms);
+        }
+
+        byte[] page = null;
+        long length;
+        String content_type;
+        try {
+            if (path.startsWith("/bytes/"))
+            {
+                length = Long.parseLong(path.substring(7));
+                content_type = "application/octet-stream";
+            }
+            else if (path.startsWith("/page/"))
+            {
+                int anchors = Integer.parseInt(path.substring(6));
+                page = pages.get(anchors);
+                if (page == null)
+                {
+                    page = pageWithAnchors(anchors);
+                    pages.put(anchors, page);
+                }
+                length = page.length;
+                content_type = "text/html; charset=UTF-8";
+            }
+            else
+            {
+                throw new NumberFormatException();
+            }
+        }
+        catch (NumberFormatException e) {
+            output_stream.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes("ISO-8859-1"));
+            output_stream.flush();
+            return true;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        boolean partial = false;
+        if (range != null && range.startsWith("bytes="))
+        {
+            String[] bounds = range.substring(6).split("-", -1);
+            start = Long.parseLong(bounds[0]);
+            if (bounds[1].length() > 0)
+            {
+                end = Math.min(end, Long.parseLong(bounds[1]));
+            }
+            partial = true;
+        }
+
+        StringBuilder response = new StringBuilder();
+        response.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        response.append("Content-Type: ").append(content_type).append("\r\n");
+        response.append("Accept-Ranges: bytes\r\n");
+        response.append("ETag: \"").append(path.hashCode()).append('-').append(length).append("\"\r\n");
+        response.append("Content-Length: ").append(end - start + 1).append("\r\n");
+        if (partial)
+        {
+            response.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(length).append("\r\n");
+        }
+        response.append("\r\n");
+        output_stream.write(response.toString().getBytes("ISO-8859-1"));
+        if (!method.equals("HEAD"))
+        {
+            writeBody(page, start, end + 1, output_stream);
+        }
+        output_stream.flush();
+        return true;
+    }
+
+    /*
+     * Writes bytes start..end (exclusive) of the payload, which is the page
+     * if not null and the repeating block otherwise, at the configured rate.
+     */
+    private void
+    writeBody(byte[] page, long start, long end, OutputStream output_stream)
+            throws IOException, InterruptedException
+    {
+        long begin_nanos = System.nanoTime();
+        long sent = 0;
+        for (long position = start; position < end; )
+        {
+            int count;
+            if (page != null)
+            {
+                count = (int) Math.min(BLOCK_SIZE, end - position);
+                output_stream.write(page, (int) position, count);
+            }
+            else
+            {
+                int offset = (int) (position % BLOCK_SIZE);
+                count = (int) Math.min(BLOCK_SIZE - offset, end - position);
+                output_stream.write(block, offset, count);
+            }
+            position += count;
+            sent += count;
+
+            if (bytes_per_second > 0)
+            {
+                // sleep until the bytes sent so far are due
+                long due_nanos = sent * 1000000000L / bytes_per_second;
+                long ahead_nanos = due_nanos - (System.nanoTime() - begin_nanos);
+                if (ahead_nanos > 1000000)
+                {
+                    output_stream.flush();
+                    Thread.sleep(ahead_nanos / 1000000);
+                }
+            }
+        }
+    }
+}
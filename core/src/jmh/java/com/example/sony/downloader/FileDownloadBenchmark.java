@@ -0,0 +1,88 @@
+package com.example.sony.downloader;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Times Downloader.download end to end, from the first request to the
+ * finished, hashed and indexed file, for files up to 1 GB, in one stream
+ * and in segments. Every download goes into an empty folder, so the
+ * content store never finds the file already there.
+ *
+ * The original download, which held the whole file in memory first, is
+ * compared in TransferBenchmark; at these sizes it runs out of memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileDownloadBenchmark {
+    @Param({"1048576", "67108864", "1073741824"})
+    public long size;
+
+    @Param({"1", "4"})
+    public int segments;
+
+    @Param({"0"})
+    public long latency_ms;
+
+    @Param({"0"})
+    public long bytes_per_second;
+
+    private BenchmarkHttpServer server;
+    private String url;
+    private File folder;
+
+    @Setup(Level.Trial)
+    public void
+    setUp() throws IOException
+    {
+        EngineLog.setSink(EngineLog.NONE, EngineLog.DEBUG);
+        server = new BenchmarkHttpServer(latency_ms, bytes_per_second);
+        url = server.url("/bytes/" + size);
+        Downloader.setSegmentCount(segments);
+    }
+
+    @Setup(Level.Invocation)
+    public void
+    newFolder() throws IOException
+    {
+        folder = File.createTempFile("download_benchmark", "");
+        folder.delete();
+        Downloader.setStorageRoot(folder);
+    }
+
+    @TearDown(Level.Invocation)
+    public void
+    deleteFolder()
+    {
+        File[] files = folder.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void
+    tearDown() throws IOException
+    {
+        server.close();
+        Downloader.setSegmentCount(SegmentedDownload.DEFAULT_SEGMENTS);
+    }
+
+    @Benchmark
+    public String
+    download()
+    {
+        return Downloader.download(url);
+    }
+}
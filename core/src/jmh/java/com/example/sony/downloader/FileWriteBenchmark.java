@@ -0,0 +1,133 @@
+package com.example.sony.downloader;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Times only the disk side of a download, with the data coming from
+ * memory: streaming blocks to a file, positional writes into a channel
+ * (what segmented downloads do), and the original way of collecting the
+ * whole file in memory and writing it in one go.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileWriteBenchmark {
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    @Param({"65536"})
+    public int block_size;
+
+    private final byte[] block = new byte[64 * 1024];
+    private TransferEngine engine;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void
+    setUp() throws IOException
+    {
+        new Random(42).nextBytes(block);
+        engine = new TransferEngine(block_size);
+        file = File.createTempFile("write_benchmark", ".bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void
+    tearDown()
+    {
+        file.delete();
+    }
+
+    @Benchmark
+    public long
+    streamToFile() throws IOException
+    {
+        FileOutputStream output_stream = new FileOutputStream(file);
+        try {
+            return engine.copy(new PayloadInputStream(block, size), output_stream);
+        }
+        finally {
+            output_stream.close();
+        }
+    }
+
+    @Benchmark
+    public long
+    channelToFile() throws IOException
+    {
+        RandomAccessFile random_access_file = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = random_access_file.getChannel();
+            return engine.copy(new PayloadInputStream(block, size), channel, 0, size);
+        }
+        finally {
+            random_access_file.close();
+        }
+    }
+
+    @Benchmark
+    public long
+    legacyBufferThenWrite() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream input_stream = new PayloadInputStream(block, size);
+        int byte_read;
+        while ((byte_read = input_stream.read()) != -1)
+        {
+            bytes.write(byte_read);
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes.toByteArray());
+        out.close();
+        return bytes.size();
+    }
+
+    /*
+     * Serves length bytes made of the block repeated, from memory.
+     */
+    static class PayloadInputStream extends InputStream {
+        private final byte[] block;
+        private final long length;
+        private long position;
+
+        PayloadInputStream(byte[] block, long length)
+        {
+            this.block = block;
+            this.length = length;
+        }
+
+        @Override
+        public int
+        read()
+        {
+            if (position >= length)
+            {
+                return -1;
+            }
+            return block[(int) (position++ % block.length)] & 0xff;
+        }
+
+        @Override
+        public int
+        read(byte[] buffer, int offset, int count)
+        {
+            if (position >= length)
+            {
+                return -1;
+            }
+            int start = (int) (position % block.length);
+            count = (int) Math.min(Math.min(count, block.length - start), length - position);
+            System.arraycopy(block, start, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * The Downloader's first versions of its hot paths, kept as the baseline
+ * the benchmarks compare the current ones against. They are copied as they
+ * were, character-at-a-time loops included; nothing else uses them.
+ */
+class LegacyDownloader {
+    private
+    LegacyDownloader()
+    {
+    }
+
+    /*
+     * Downloads the file found at the URL into a memory buffer of bytes,
+     * one character at a time through a BufferedReader, on a fresh
+     * connection every time.
+     */
+    static byte[]
+    downloadToByteArray(String url_string) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        URL url = new URL(url_string);
+        InputStream input_stream = url.openStream();
+        BufferedReader buffered_reader = new BufferedReader(new InputStreamReader(input_stream));
+        int byte_read;
+        while ((byte_read = buffered_reader.read()) != -1)
+        {
+            bytes.write(byte_read);
+        }
+        input_stream.close();
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Downloads the file found at the URL into memory and then writes the
+     * whole buffer to the file.
+     */
+    static void
+    downloadToFile(String url_string, File out_file) throws IOException
+    {
+        byte[] bytes = downloadToByteArray(url_string);
+        FileOutputStream out = new FileOutputStream(out_file);
+        out.write(bytes);
+        out.close();
+    }
+
+    /*
+     * Reads the entire file as text, one character at a time, for as long
+     * as the reader says it is ready.
+     */
+    static String
+    readEntireFile(File file) throws IOException
+    {
+        StringBuilder string_builder = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        while (reader.ready())
+        {
+            string_builder.append((char) reader.read());
+        }
+        reader.close();
+        return string_builder.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.sony.downloader;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Times pulling the links out of synthetic index pages of 10 to 100k
+ * anchors: getAllLinks (jsoup, whole document) and streamAllLinks
+ * (LinkScanner, while the page arrives) over the local server, and the
+ * two parsers on their own on a page already in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinkExtractionBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int anchors;
+
+    @Param({"0"})
+    public long latency_ms;
+
+    @Param({"0"})
+    public long bytes_per_second;
+
+    private BenchmarkHttpServer server;
+    private String url;
+    private byte[] page;
+
+    @Setup(Level.Trial)
+    public void
+    setUp() throws IOException
+    {
+        EngineLog.setSink(EngineLog.NONE, EngineLog.DEBUG);
+        server = new BenchmarkHttpServer(latency_ms, bytes_per_second);
+        url = server.url("/page/" + anchors);
+        page = BenchmarkHttpServer.pageWithAnchors(anchors);
+    }
+
+    @TearDown(Level.Trial)
+    public void
+    tearDown() throws IOException
+    {
+        server.close();
+    }
+
+    @Benchmark
+    public String[]
+    getAllLinks()
+    {
+        return Downloader.getAllLinks(url);
+    }
+
+    @Benchmark
+    public int
+    streamAllLinks(final Blackhole blackhole)
+    {
+        return Downloader.streamAllLinks(url, new LinkScanner.LinkSink() {
+            public void onLinks(List<String> links)
+            {
+                blackhole.consume(links);
+            }
+        });
+    }
+
+    @Benchmark
+    public int
+    jsoupParseOnly(Blackhole blackhole) throws IOException
+    {
+        Document document = Jsoup.parse(new ByteArrayInputStream(page), "UTF-8", url);
+        int count = 0;
+        for (Element link : document.getElementsByTag("a"))
+        {
+            blackhole.consume(link.attr("abs:href"));
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int
+    scanOnly(final Blackhole blackhole) throws IOException
+    {
+        LinkScanner scanner = new LinkScanner(new URL(url), new LinkScanner.LinkSink() {
+            public void onLinks(List<String> links)
+            {
+                blackhole.consume(links);
+            }
+        });
+        return scanner.scan(new InputStreamReader(new ByteArrayInputStream(page), "UTF-8"));
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.sony.downloader;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Times reading a downloaded text file: readEntireFile, which decodes
+ * memory-mapped chunks, against the original character-at-a-time loop,
+ * and walking the file line by line without holding it all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TextReadBenchmark {
+    @Param({"65536", "16777216"})
+    public int size;
+
+    private File folder;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void
+    setUp() throws IOException
+    {
+        EngineLog.setSink(EngineLog.NONE, EngineLog.DEBUG);
+        folder = File.createTempFile("text_benchmark", "");
+        folder.delete();
+        folder.mkdirs();
+        Downloader.setStorageRoot(folder);
+        file = new File(folder, "text.txt");
+
+        // lines of words, with some non-ASCII text among them
+        Random random = new Random(42);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            int written = 0;
+            while (written < size)
+            {
+                String line = "line " + random.nextInt() + " caf\u00e9 na\u00efve \u65e5\u672c words and more words\n";
+                writer.write(line);
+                written += line.getBytes("UTF-8").length;
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void
+    tearDown()
+    {
+        file.delete();
+        folder.delete();
+    }
+
+    @Benchmark
+    public String
+    readEntireFile()
+    {
+        return Downloader.readEntireFile(file.getName());
+    }
+
+    @Benchmark
+    public String
+    legacyReadEntireFile() throws IOException
+    {
+        return LegacyDownloader.readEntireFile(file);
+    }
+
+    @Benchmark
+    public int
+    countLines() throws IOException
+    {
+        TextFileReader reader = Downloader.openTextFile(file.getName());
+        try {
+            int count = 0;
+            for (String line : reader.lines())
+            {
+                count++;
+            }
+            return count;
+        }
+        finally {
+            reader.close();
+        }
+    }
+}
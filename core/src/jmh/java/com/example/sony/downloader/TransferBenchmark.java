@@ -0,0 +1,62 @@
+package com.example.sony.downloader;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Times downloading a payload into memory: the Downloader's pooled
+ * connection and block copy loop against the original loop, which read
+ * one character at a time over a fresh connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int size;
+
+    // server behaviour; 0 means a fast local server
+    @Param({"0"})
+    public long latency_ms;
+
+    @Param({"0"})
+    public long bytes_per_second;
+
+    private BenchmarkHttpServer server;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void
+    setUp() throws IOException
+    {
+        EngineLog.setSink(EngineLog.NONE, EngineLog.DEBUG);
+        server = new BenchmarkHttpServer(latency_ms, bytes_per_second);
+        url = server.url("/bytes/" + size);
+    }
+
+    @TearDown(Level.Trial)
+    public void
+    tearDown() throws IOException
+    {
+        server.close();
+    }
+
+    @Benchmark
+    public byte[]
+    downloadToByteArray()
+    {
+        return Downloader.downloadToByteArray(url);
+    }
+
+    @Benchmark
+    public byte[]
+    legacyDownloadToByteArray() throws IOException
+    {
+        return LegacyDownloader.downloadToByteArray(url);
+    }
+}
@@ -0,0 +1,267 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This is a command line front end to the download engine, for running
+ * batch downloads on a server with the same code the app uses:
+ *
+ *   BatchDownloader [options] [url ...]
+ *
+ *   -o folder      save into folder (default ./Downloads)
+ *   -i file        also read URLs from file, one per line; "-" is stdin
+ *   -j workers     downloads running at once (default 4)
+ *   -h per_host    connections at once per host (default 4); a segmented
+ *                  download uses several
+ *   -r rate        total bytes per second, 0 for unlimited (default 0)
+ *   -a attempts    attempts per URL before giving up (default 5)
+ *   -m file        write metrics as JSON to file, every 10 s and at the end
+ *   -u             store .gz and .bz2 files unpacked, without the suffix
+ *   -q             no progress lines
+ *   -v             verbose engine log
+ *
+ * Each finished URL is reported on standard output as "ok url file" or
+ * "failed url reason". The exit status is 0 if every URL was downloaded,
+ * 1 if some failed and 2 for bad arguments.
+ */
+public class BatchDownloader {
+    private static final String USAGE = "usage: BatchDownloader [-o folder] [-i file] [-j workers] "
+            + "[-h per_host] [-r rate] [-a attempts] [-m file] [-u] [-q] [-v] [url ...]";
+
+    // time between two metrics snapshots written with -m
+    private static final long METRICS_INTERVAL_MS = 10 * 1000;
+
+    public static void
+    main(String[] args) throws Exception
+    {
+        // this is the whole process, so the connection pool can be set up for it
+        HttpClient.applyProcessSettings();
+        File folder = new File("Downloads");
+        ArrayList<String> urls = new ArrayList<>();
+        int workers = 4;
+        int per_host = 4;
+        long rate = RateLimiter.UNLIMITED;
+        int max_attempts = ExponentialBackoff.DEFAULT_MAX_ATTEMPTS;
+        boolean quiet = false;
+        boolean verbose = false;
+        boolean unpack = false;
+        File metrics_file = null;
+        try {
+            for (int i = 0; i < args.length; i++)
+            {
+                String arg = args[i];
+                if (arg.equals("-o"))
+                {
+                    folder = new File(args[++i]);
+                }
+                else if (arg.equals("-i"))
+                {
+                    readUrls(args[++i], urls);
+                }
+                else if (arg.equals("-j"))
+                {
+                    workers = Integer.parseInt(args[++i]);
+                }
+                else if (arg.equals("-h"))
+                {
+                    per_host = Integer.parseInt(args[++i]);
+                }
+                else if (arg.equals("-r"))
+                {
+                    rate = Long.parseLong(args[++i]);
+                }
+                else if (arg.equals("-a"))
+                {
+                    max_attempts = Integer.parseInt(args[++i]);
+                }
+                else if (arg.equals("-m"))
+                {
+                    metrics_file = new File(args[++i]);
+                }
+                else if (arg.equals("-u"))
+                {
+                    unpack = true;
+                }
+                else if (arg.equals("-q"))
+                {
+                    quiet = true;
+                }
+                else if (arg.equals("-v"))
+                {
+                    verbose = true;
+                }
+                else if (arg.startsWith("-"))
+                {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                }
+                else
+                {
+                    urls.add(arg);
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            usage("missing value after " + args[args.length - 1]);
+        }
+        catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+        catch (IOException e) {
+            usage("cannot read URLs: " + e.getMessage());
+        }
+        if (urls.isEmpty())
+        {
+            usage("no URLs given");
+        }
+
+        EngineLog.setSink(verbose ? EngineLog.STANDARD_ERROR : EngineLog.NONE, EngineLog.VERBOSE);
+        Downloader.setStorageRoot(folder);
+        Downloader.setMaxBytesPerSecond(rate);
+        Downloader.setUnpackOnStore(unpack);
+        MetricsReporter metrics_reporter = null;
+        if (metrics_file != null)
+        {
+            metrics_reporter = new MetricsReporter(Downloader.getMetrics(), metrics_file);
+            metrics_reporter.start(METRICS_INTERVAL_MS);
+        }
+        int failed = new BatchDownloader(workers, per_host, max_attempts, quiet).run(urls);
+        if (metrics_reporter != null)
+        {
+            metrics_reporter.stop();
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private final DownloadScheduler scheduler;
+    private final RetryEngine retry_engine;
+    private final ProgressReporter progress_reporter;
+
+    BatchDownloader(int workers, int per_host, int max_attempts, final boolean quiet)
+    {
+        this.scheduler = new DownloadScheduler(workers, per_host);
+        this.retry_engine = new RetryEngine(scheduler, new ExponentialBackoff(max_attempts,
+                ExponentialBackoff.DEFAULT_BASE_DELAY_MS, ExponentialBackoff.DEFAULT_MAX_DELAY_MS),
+                new CircuitBreaker());
+        scheduler.setMetrics(Downloader.getMetrics());
+        retry_engine.setMetrics(Downloader.getMetrics());
+        this.progress_reporter = new ProgressReporter(new ProgressReporter.Listener() {
+            public void onProgress(List<DownloadProgress.Snapshot> snapshots)
+            {
+                if (quiet)
+                {
+                    return;
+                }
+                for (DownloadProgress.Snapshot snapshot : snapshots)
+                {
+                    System.err.println(snapshot.url + ": " + snapshot.bytes / 1024 + " KB"
+                            + (snapshot.total >= 0 ? " of " + snapshot.total / 1024 + " KB" : "")
+                            + ", " + snapshot.bytes_per_second / 1024 + " KB/s"
+                            + (snapshot.eta_seconds >= 0 ? ", " + snapshot.eta_seconds + " s left" : ""));
+                }
+            }
+
+            public void onFinished(DownloadProgress.Snapshot snapshot)
+            {
+            }
+        }, ProgressReporter.DEFAULT_FRAME_INTERVAL_MS * 2);
+    }
+
+    /*
+     * Downloads every URL, printing a line per outcome, and returns the
+     * number of URLs that failed.
+     */
+    int
+    run(List<String> urls) throws InterruptedException
+    {
+        final CountDownLatch remaining = new CountDownLatch(urls.size());
+        final int[] failed = {0};
+        RetryEngine.Listener outcome = new RetryEngine.Listener()
+        {
+            public void onSuccess(String url, int attempts)
+            {
+                remaining.countDown();
+            }
+
+            public void onFailure(String url, Exception reason, int attempts)
+            {
+                IOException failure = RetryEngine.ioFailureOf(reason);
+                synchronized (System.out)
+                {
+                    System.out.println("failed " + url + " " + (failure != null ? failure.getMessage() : reason)
+                            + " (" + attempts + (attempts == 1 ? " attempt)" : " attempts)"));
+                    failed[0]++;
+                }
+                remaining.countDown();
+            }
+        };
+
+        for (final String url : urls)
+        {
+            retry_engine.submit(url, DownloadScheduler.PRIORITY_NORMAL, DownloadScheduler.SIZE_UNKNOWN,
+                    new RetryEngine.Task()
+            {
+                public void run(int attempt)
+                {
+                    DownloadProgress progress = progress_reporter.start(url);
+                    String file_name;
+                    try {
+                        file_name = Downloader.download(url, progress);
+                    }
+                    finally {
+                        progress_reporter.finish(progress);
+                    }
+                    synchronized (System.out)
+                    {
+                        System.out.println("ok " + url + " " + file_name);
+                    }
+                }
+            }, outcome);
+        }
+
+        remaining.await();
+        retry_engine.shutdown();
+        scheduler.shutdown();
+        synchronized (System.out)
+        {
+            return failed[0];
+        }
+    }
+
+    /*
+     * Adds the URLs in the file (or stdin for "-"), one per line, to urls.
+     * Blank lines and lines starting with '#' are skipped.
+     */
+    private static void
+    readUrls(String path, List<String> urls) throws IOException
+    {
+        InputStream input_stream = path.equals("-") ? System.in : new FileInputStream(path);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input_stream, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#"))
+                {
+                    urls.add(line);
+                }
+            }
+        }
+        finally {
+            if (input_stream != System.in)
+            {
+                reader.close();
+            }
+        }
+    }
+
+    private static void
+    usage(String problem)
+    {
+        System.err.println(problem);
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * This is the checksum a download is expected to have, SHA-256 or MD5.
+ * It is either given by the user, or read from the sidecar file a server
+ * publishes next to the download ("file.zip.sha256", "file.zip.md5"),
+ * in the usual "<hex>  <file name>" format of sha256sum and md5sum.
+ */
+public class Checksum {
+    // sidecar files are small; anything larger is not one
+    private static final int MAX_SIDECAR_BYTES = 4096;
+
+    public final String algorithm;          // StreamingDigest.SHA_256 or StreamingDigest.MD5
+    public final String hex;                // lower case
+
+    public
+    Checksum(String algorithm, String hex)
+    {
+        this.algorithm = algorithm;
+        this.hex = hex.toLowerCase(Locale.US);
+    }
+
+    /*
+     * Parses "sha256:<hex>", "md5:<hex>", or a bare hex string whose length
+     * tells the algorithm. Returns null for null or empty input.
+     */
+    public static Checksum
+    parse(String spec)
+    {
+        if (spec == null || spec.trim().length() == 0)
+        {
+            return null;
+        }
+        String value = spec.trim();
+        int colon = value.indexOf(':');
+        if (colon >= 0)
+        {
+            String name = value.substring(0, colon).replace("-", "").toLowerCase(Locale.US);
+            value = value.substring(colon + 1).trim();
+            if (name.equals("sha256"))
+            {
+                return checked(StreamingDigest.SHA_256, value, 64);
+            }
+            if (name.equals("md5"))
+            {
+                return checked(StreamingDigest.MD5, value, 32);
+            }
+            throw new IllegalArgumentException("unsupported checksum algorithm: " + name);
+        }
+        if (value.length() == 64)
+        {
+            return checked(StreamingDigest.SHA_256, value, 64);
+        }
+        return checked(StreamingDigest.MD5, value, 32);
+    }
+
+    /*
+     * Looks for a ".sha256", then an ".md5" sidecar of the URL and returns
+     * the checksum it holds, or null if the server has neither.
+     */
+    public static Checksum
+    fetchSidecar(HttpClient client, String url_string)
+    {
+        String[][] sidecars = {
+                {".sha256", StreamingDigest.SHA_256},
+                {".md5", StreamingDigest.MD5}
+        };
+        for (String[] sidecar : sidecars)
+        {
+            String text = fetchSmall(client, url_string + sidecar[0]);
+            if (text == null)
+            {
+                continue;
+            }
+            String[] fields = text.trim().split("\\s+");
+            try {
+                return checked(sidecar[1], fields[0], sidecar[1].equals(StreamingDigest.MD5) ? 32 : 64);
+            }
+            catch (IllegalArgumentException e) {
+                EngineLog.d("Checksum", "ignoring sidecar of " + url_string + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Returns true if the given hex hash is this checksum.
+     */
+    public boolean
+    matches(String actual_hex)
+    {
+        return hex.equalsIgnoreCase(actual_hex);
+    }
+
+    @Override
+    public String
+    toString()
+    {
+        return algorithm + ":" + hex;
+    }
+
+    private static Checksum
+    checked(String algorithm, String hex, int length)
+    {
+        if (hex.length() != length || !hex.matches("[0-9a-fA-F]+"))
+        {
+            throw new IllegalArgumentException("not a " + algorithm + " checksum: " + hex);
+        }
+        return new Checksum(algorithm, hex);
+    }
+
+    /*
+     * Returns the body of a small text resource, or null if it is missing,
+     * too large or cannot be fetched.
+     */
+    private static String
+    fetchSmall(HttpClient client, String url_string)
+    {
+        URLConnection connection = null;
+        InputStream input_stream = null;
+        try {
+            connection = client.open(url_string);
+            if (HttpClient.responseCode(connection) != HttpURLConnection.HTTP_OK)
+            {
+                return null;
+            }
+            input_stream = HttpClient.body(connection);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[512];
+            int bytes_read;
+            while ((bytes_read = input_stream.read(buffer)) != -1)
+            {
+                bytes.write(buffer, 0, bytes_read);
+                if (bytes.size() > MAX_SIDECAR_BYTES)
+                {
+                    return null;
+                }
+            }
+            return bytes.toString("US-ASCII");
+        }
+        catch (IOException e) {
+            return null;
+        }
+        finally {
+            if (connection != null)
+            {
+                HttpClient.release(connection, input_stream);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.sony.downloader;
+
+import java.util.*;
+
+/**
+ * This class keeps track of which hosts are failing, so jobs for a dead
+ * host fail fast instead of each waiting out its own connect timeout on a
+ * worker thread.
+ *
+ * Each host has a breaker. It starts closed (requests go through). After
+ * failure_threshold failures in a row it opens, and requests to the host
+ * are refused for the cooldown. After that it lets a single trial request
+ * through (half open): if it succeeds the breaker closes again; if it
+ * fails the breaker opens for twice as long, up to max_cooldown_ms.
+ *
+ * Only failures that say something about the host count (timeouts,
+ * refused connections, 5xx); a 404 is an answer, and counts as a success.
+ */
+public class CircuitBreaker {
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_COOLDOWN_MS = 30 * 1000;
+    public static final long DEFAULT_MAX_COOLDOWN_MS = 5 * 60 * 1000;
+
+    private final int failure_threshold;
+    private final long cooldown_ms;
+    private final long max_cooldown_ms;
+    private final HashMap<String, Host> hosts = new HashMap<>();       // guarded by this
+
+    public
+    CircuitBreaker()
+    {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_COOLDOWN_MS, DEFAULT_MAX_COOLDOWN_MS);
+    }
+
+    public
+    CircuitBreaker(int failure_threshold, long cooldown_ms, long max_cooldown_ms)
+    {
+        if (failure_threshold < 1 || cooldown_ms < 0 || max_cooldown_ms < cooldown_ms)
+        {
+            throw new IllegalArgumentException("bad breaker settings");
+        }
+        this.failure_threshold = failure_threshold;
+        this.cooldown_ms = cooldown_ms;
+        this.max_cooldown_ms = max_cooldown_ms;
+    }
+
+    /*
+     * Returns 0 if a request to the host may go ahead now, otherwise the
+     * milliseconds until the breaker will let one through. Going ahead
+     * while half open claims the single trial request; its outcome must
+     * be reported with recordSuccess or recordFailure.
+     */
+    public synchronized long
+    acquire(String host)
+    {
+        Host state = hosts.get(host);
+        if (state == null || state.open_until == 0)
+        {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if (now < state.open_until)
+        {
+            return state.open_until - now;
+        }
+        if (state.trial_running)
+        {
+            // someone else is finding out whether the host is back
+            return Math.max(1, state.cooldown_ms / 4);
+        }
+        state.trial_running = true;
+        return 0;
+    }
+
+    /*
+     * Records that a request to the host worked; closes its breaker.
+     */
+    public synchronized void
+    recordSuccess(String host)
+    {
+        hosts.remove(host);
+    }
+
+    /*
+     * Records that a request to the host failed in a way that points at the
+     * host. Opens the breaker at the threshold, or again after a failed trial.
+     */
+    public synchronized void
+    recordFailure(String host)
+    {
+        Host state = hosts.get(host);
+        if (state == null)
+        {
+            state = new Host();
+            hosts.put(host, state);
+        }
+        state.failures++;
+        if (state.trial_running)
+        {
+            state.trial_running = false;
+            state.cooldown_ms = Math.min(max_cooldown_ms, state.cooldown_ms * 2);
+            state.open_until = System.currentTimeMillis() + state.cooldown_ms;
+        }
+        else if (state.open_until == 0 && state.failures >= failure_threshold)
+        {
+            state.cooldown_ms = cooldown_ms;
+            state.open_until = System.currentTimeMillis() + state.cooldown_ms;
+        }
+    }
+
+    /*
+     * Returns true if requests to the host are currently being refused.
+     */
+    public synchronized boolean
+    isOpen(String host)
+    {
+        Host state = hosts.get(host);
+        return state != null && state.open_until > System.currentTimeMillis();
+    }
+
+    /*
+     * Breaker state of one host that has failed recently.
+     */
+    private static class Host {
+        int failures;                   // in a row
+        long open_until;                // 0 while closed
+        long cooldown_ms;
+        boolean trial_running;
+    }
+}
@@ -0,0 +1,455 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This is the index of what a download folder holds. For every URL
+ * downloaded it records the file the content was saved as, the SHA-256
+ * of that content, and the length and validators (ETag, Last-Modified)
+ * the server gave for it.
+ *
+ * With it the Downloader
+ *  - gives every URL a file name of its own, so two URLs ending in the same
+ *    name no longer overwrite each other ("file.zip", "file-1.zip", ...);
+ *  - skips the transfer altogether when the server still reports the same
+ *    validators and length for a URL whose file is on disk;
+ *  - keeps one copy of identical content fetched from different URLs
+ *    (mirrors), pointing every such URL at the same file.
+ *
+ * A shared file is never rewritten for one of its URLs: when such a URL
+ * is downloaded again, it gets a file of its own and the others keep the
+ * old one. The newest finished record of a file says what it holds; any
+ * other URL recorded in it with different content is dropped, so it is
+ * fetched again rather than served the wrong bytes.
+ *
+ * The index is a tab-separated text file in the folder, one record per
+ * line, appended to as downloads finish; a later line for a URL replaces
+ * an earlier one. It is compacted when it is loaded. A lost or broken
+ * index only costs some redundant downloads.
+ */
+public class ContentStore {
+    // name of the index file inside the folder
+    public static final String INDEX_NAME = ".content_index";
+
+    // marks an unset field in the index
+    private static final String NONE = "-";
+
+    private final File folder;
+    private final File index_file;
+    private final HashMap<String, Record> by_url = new HashMap<>();        // guarded by this
+    private final HashMap<String, String> by_hash = new HashMap<>();       // sha256 -> file name, guarded by this
+    private final HashMap<String, Set<String>> by_name = new HashMap<>();  // file name -> URLs, guarded by this
+
+    public
+    ContentStore(File folder)
+    {
+        this.folder = folder;
+        this.index_file = new File(folder, INDEX_NAME);
+        load();
+    }
+
+    /*
+     * Returns the folder this store indexes.
+     */
+    public File
+    getFolder()
+    {
+        return folder;
+    }
+
+    /*
+     * Returns the file name already holding the content of the remote file,
+     * if the URL was downloaded before, the server still reports the same
+     * length and validators, and the file is still there; otherwise null.
+     */
+    public synchronized String
+    findUnchanged(RemoteFile remote_file)
+    {
+        Record record = by_url.get(remote_file.url);
+        if (record == null || record.sha256 == null || remote_file.length == RemoteFile.LENGTH_UNKNOWN
+                || record.length != remote_file.length)
+        {
+            return null;
+        }
+        boolean same = remote_file.etag != null
+                ? remote_file.etag.equals(record.etag)
+                : remote_file.last_modified != null && remote_file.last_modified.equals(record.last_modified);
+        if (!same)
+        {
+            return null;
+        }
+        File file = new File(folder, record.file_name);
+        return file.length() == record.length ? record.file_name : null;
+    }
+
+    /*
+     * Returns the SHA-256 of the URL's stored content, or null if there is none.
+     */
+    public synchronized String
+    getSha256(String url)
+    {
+        Record record = by_url.get(url);
+        return record == null ? null : record.sha256;
+    }
+
+    /*
+     * Returns the name of a stored file with the given content, or null.
+     * The index must still say the file holds that hash and length, and
+     * the file must have that length; the caller may want to hash it too
+     * before relying on it.
+     */
+    public synchronized String
+    findContent(String sha256, long length)
+    {
+        String file_name = by_hash.get(sha256);
+        if (file_name == null || !holds(file_name, sha256, length)
+                || new File(folder, file_name).length() != length)
+        {
+            return null;
+        }
+        return file_name;
+    }
+
+    /*
+     * Returns the file name the URL is saved as. A URL seen before keeps its
+     * name, unless other URLs share its file; then it gets a new one, so
+     * downloading it again cannot change what they hold. A new URL gets the
+     * wanted name, or a numbered variant of it if another URL or an unknown
+     * file already has that name. The name is reserved in the index straight
+     * away, so concurrent downloads do not pick the same one and an
+     * interrupted download resumes into it.
+     */
+    public synchronized String
+    nameFor(String url, String wanted_name) throws IOException
+    {
+        Record record = by_url.get(url);
+        if (record != null)
+        {
+            if (by_name.get(record.file_name).size() == 1)
+            {
+                return record.file_name;
+            }
+            wanted_name = record.file_name;
+        }
+        if (wanted_name.length() == 0)
+        {
+            wanted_name = "download";
+        }
+        int dot = wanted_name.lastIndexOf('.');
+        String base = dot > 0 ? wanted_name.substring(0, dot) : wanted_name;
+        String extension = dot > 0 ? wanted_name.substring(dot) : "";
+        String candidate = wanted_name;
+        for (int i = 1; isTaken(candidate); i++)
+        {
+            candidate = base + "-" + i + extension;
+        }
+        put(new Record(url, candidate, null, RemoteFile.LENGTH_UNKNOWN, null, null));
+        return candidate;
+    }
+
+    /*
+     * Records that the URL's content, with the given hash and length, is
+     * stored as the given file.
+     */
+    public synchronized void
+    record(String url, String file_name, String sha256, long length, String etag, String last_modified)
+            throws IOException
+    {
+        put(new Record(url, file_name, sha256, length, etag, last_modified));
+    }
+
+    /*
+     * Records that the URL's content, with the given hash and length, is
+     * the content of the stored file, and is kept in that file from now on.
+     * Returns false and records nothing if the index no longer says the
+     * file holds that content (e.g. it was just downloaded again).
+     */
+    public synchronized boolean
+    recordShared(String url, String file_name, String sha256, long length, String etag, String last_modified)
+            throws IOException
+    {
+        if (!holds(file_name, sha256, length))
+        {
+            return false;
+        }
+        put(new Record(url, file_name, sha256, length, etag, last_modified));
+        return true;
+    }
+
+    /*
+     * Returns the number of URLs whose content is stored in the file.
+     */
+    public synchronized int
+    sharersOf(String file_name)
+    {
+        Set<String> urls = by_name.get(file_name);
+        return urls == null ? 0 : urls.size();
+    }
+
+    /*
+     * Returns the number of URLs in the index.
+     */
+    public synchronized int
+    size()
+    {
+        return by_url.size();
+    }
+
+    private boolean
+    isTaken(String file_name)
+    {
+        return by_name.containsKey(file_name) || new File(folder, file_name).exists()
+                || new File(folder, file_name + ".part").exists();
+    }
+
+    /*
+     * Adds the record to the maps and appends it to the index file.
+     */
+    private void
+    put(Record record) throws IOException
+    {
+        apply(record);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(index_file, true), "UTF-8");
+        try {
+            writer.write(record.toLine());
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    /*
+     * Returns true if the finished records of the file say it holds the
+     * given content. They all agree, since apply() drops the ones that do not.
+     */
+    private boolean
+    holds(String file_name, String sha256, long length)
+    {
+        Set<String> urls = by_name.get(file_name);
+        if (urls != null)
+        {
+            for (String url : urls)
+            {
+                Record record = by_url.get(url);
+                if (record.sha256 != null)
+                {
+                    return record.sha256.equals(sha256) && record.length == length;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Adds the record to the maps, replacing the URL's previous one. If it
+     * is a finished record, other URLs recorded in the same file with other
+     * content are dropped: the file was rewritten, so their content is gone.
+     */
+    private void
+    apply(Record record)
+    {
+        Record previous = by_url.put(record.url, record);
+        if (previous != null)
+        {
+            unlink(previous);
+        }
+        Set<String> urls = by_name.get(record.file_name);
+        if (urls == null)
+        {
+            urls = new HashSet<>();
+            by_name.put(record.file_name, urls);
+        }
+        if (record.sha256 != null)
+        {
+            for (String url : new ArrayList<>(urls))
+            {
+                Record other = by_url.get(url);
+                if (other.sha256 != null && (!other.sha256.equals(record.sha256) || other.length != record.length))
+                {
+                    EngineLog.d("ContentStore", url + " no longer stored in " + record.file_name);
+                    by_url.remove(url);
+                    urls.remove(url);
+                }
+            }
+            by_hash.put(record.sha256, record.file_name);
+        }
+        urls.add(record.url);
+    }
+
+    /*
+     * Removes the record from the file name map.
+     */
+    private void
+    unlink(Record record)
+    {
+        Set<String> urls = by_name.get(record.file_name);
+        if (urls != null)
+        {
+            urls.remove(record.url);
+            if (urls.isEmpty())
+            {
+                by_name.remove(record.file_name);
+            }
+        }
+    }
+
+    /*
+     * Reads the index, dropping records whose file is gone, and rewrites
+     * it if it holds many replaced or dropped lines. Records are applied in
+     * the order they were written, so a file's newest record wins again.
+     */
+    private synchronized void
+    load()
+    {
+        if (!index_file.exists())
+        {
+            return;
+        }
+        int line_count = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(index_file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line_count++;
+                Record record = Record.parse(line);
+                if (record != null)
+                {
+                    apply(record);
+                }
+            }
+        }
+        catch (IOException e) {
+            EngineLog.d("ContentStore", "could not read " + index_file + ": " + e);
+        }
+        finally {
+            if (reader != null)
+            {
+                try {
+                    reader.close();
+                }
+                catch (IOException e) {
+                    // empty
+                }
+            }
+        }
+
+        // a finished record whose file was deleted is useless; a reserved
+        // name stays as long as its download may still be resumed
+        Iterator<Record> records = by_url.values().iterator();
+        while (records.hasNext())
+        {
+            Record record = records.next();
+            File file = new File(folder, record.file_name);
+            boolean present = record.sha256 != null ? file.exists() : new File(file.getPath() + ".part").exists();
+            if (!present)
+            {
+                records.remove();
+                unlink(record);
+            }
+        }
+        if (line_count > 2 * by_url.size() + 16)
+        {
+            compact();
+        }
+    }
+
+    /*
+     * Rewrites the index with one line per URL. The new index goes to a
+     * temporary file that replaces the old one only once fully written.
+     */
+    private void
+    compact()
+    {
+        File temp_file = new File(index_file.getPath() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp_file), "UTF-8");
+            try {
+                for (Record record : by_url.values())
+                {
+                    writer.write(record.toLine());
+                }
+            }
+            finally {
+                writer.close();
+            }
+            if (!temp_file.renameTo(index_file))
+            {
+                // some platforms will not rename over an existing file
+                index_file.delete();
+                if (!temp_file.renameTo(index_file))
+                {
+                    throw new IOException("could not replace " + index_file);
+                }
+            }
+        }
+        catch (IOException e) {
+            EngineLog.d("ContentStore", "could not compact " + index_file + ": " + e);
+            temp_file.delete();
+        }
+    }
+
+    /*
+     * One line of the index. sha256 is null while the download is running.
+     */
+    private static class Record {
+        final String url;
+        final String file_name;
+        final String sha256;
+        final long length;
+        final String etag;
+        final String last_modified;
+
+        Record(String url, String file_name, String sha256, long length, String etag, String last_modified)
+        {
+            this.url = url;
+            this.file_name = file_name;
+            this.sha256 = sha256;
+            this.length = length;
+            this.etag = etag;
+            this.last_modified = last_modified;
+        }
+
+        String
+        toLine()
+        {
+            return url + '\t' + file_name + '\t' + orNone(sha256) + '\t' + length + '\t'
+                    + orNone(etag) + '\t' + orNone(last_modified) + '\n';
+        }
+
+        /*
+         * Returns the record in the line, or null if it is broken
+         * (e.g. cut short by a crash while it was being appended).
+         */
+        static Record
+        parse(String line)
+        {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 6)
+            {
+                return null;
+            }
+            try {
+                return new Record(fields[0], fields[1], orNull(fields[2]), Long.parseLong(fields[3]),
+                        orNull(fields[4]), orNull(fields[5]));
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static String
+        orNone(String value)
+        {
+            return value == null ? NONE : value.replace('\t', ' ').replace('\n', ' ');
+        }
+
+        private static String
+        orNull(String value)
+        {
+            return value.equals(NONE) ? null : value;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.sony.downloader;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class follows links from a starting page down a site tree to find
+ * downloadable files. getAllLinks only looks at one page, and on directory
+ * listings most of its links are just more pages; the crawler visits those
+ * pages too, up to a maximum depth, and reports only the links whose file
+ * extension is one of the wanted ones.
+ *
+ * Pages are fetched by a small pool of threads from a shared frontier, with
+ * every page URL recorded in a UrlSet so no page is fetched twice. Each page
+ * is scanned with Downloader.streamAllLinks, so the link cache applies.
+ * Run as a DownloadScheduler job, the pool is only as large as the
+ * connections the scheduler grants the job's host.
+ */
+public class Crawler {
+    // extensions reported when none are given
+    public static final String[] DEFAULT_EXTENSIONS = {
+            "7z", "bz2", "dll", "exe", "gif", "gz", "jpg", "jpeg", "mp3", "mp4",
+            "pdf", "png", "tar", "tgz", "txt", "xz", "zip"
+    };
+
+    // extensions of links that may lead to more links
+    private static final Set<String> PAGE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "", "htm", "html", "shtml", "php", "asp", "aspx", "jsp"));
+
+    public static final int DEFAULT_MAX_DEPTH = 2;
+    public static final int DEFAULT_MAX_PAGES = 1000;
+    public static final int DEFAULT_THREADS = 4;
+
+    private final int max_depth;
+    private final boolean same_host;
+    private final Set<String> extensions;
+    private final int max_pages;
+    private final int thread_count;
+
+    /*
+     * max_depth is how many links away from the starting page the crawler
+     * goes (0 only scans the starting page); same_host keeps it on the
+     * starting page's host; extensions are the file extensions to report,
+     * without the dot; max_pages bounds the number of pages fetched.
+     */
+    public
+    Crawler(int max_depth, boolean same_host, Collection<String> extensions, int max_pages, int thread_count)
+    {
+        this.max_depth = max_depth;
+        this.same_host = same_host;
+        this.extensions = new HashSet<>();
+        for (String extension : extensions)
+        {
+            this.extensions.add(extension.toLowerCase(Locale.US));
+        }
+        this.max_pages = max_pages;
+        this.thread_count = thread_count;
+    }
+
+    /*
+     * Crawls from the root page and hands every wanted file link to the sink,
+     * in chunks, as pages are scanned. The sink is called from several
+     * threads. Returns the number of file links found. On a scheduler job's
+     * thread, one page is fetched per connection the job is granted.
+     */
+    public int
+    crawl(String root_url, final LinkScanner.LinkSink sink) throws InterruptedException
+    {
+        final String root_host = hostOf(root_url);
+        final UrlSet seen = new UrlSet();
+        final AtomicInteger pages_started = new AtomicInteger();
+        final AtomicInteger artifact_count = new AtomicInteger();
+        final AtomicInteger outstanding = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(1);
+        int fetcher_count = DownloadScheduler.reserveConnections(thread_count);
+        final ExecutorService frontier = Executors.newFixedThreadPool(fetcher_count);
+
+        // a page task scans one page, reports its files and queues its sub-pages
+        class PageTask implements Runnable {
+            final String url;
+            final int depth;
+
+            PageTask(String url, int depth)
+            {
+                this.url = url;
+                this.depth = depth;
+            }
+
+            public void run()
+            {
+                try {
+                    Downloader.streamAllLinks(url, new LinkScanner.LinkSink() {
+                        public void onLinks(List<String> links)
+                        {
+                            ArrayList<String> artifacts = new ArrayList<>();
+                            for (String link : links)
+                            {
+                                String normalized = normalize(link);
+                                if (normalized == null || (same_host && !hostOf(normalized).equals(root_host)))
+                                {
+                                    continue;
+                                }
+                                String extension = extensionOf(normalized);
+                                if (extensions.contains(extension))
+                                {
+                                    if (seen.add(normalized))
+                                    {
+                                        artifacts.add(normalized);
+                                    }
+                                }
+                                else if (depth < max_depth && PAGE_EXTENSIONS.contains(extension)
+                                        && seen.add(normalized)
+                                        && pages_started.incrementAndGet() <= max_pages)
+                                {
+                                    outstanding.incrementAndGet();
+                                    frontier.execute(new PageTask(normalized, depth + 1));
+                                }
+                            }
+                            if (!artifacts.isEmpty())
+                            {
+                                artifact_count.addAndGet(artifacts.size());
+                                sink.onLinks(artifacts);
+                            }
+                        }
+                    });
+                }
+                catch (RuntimeException e) {
+                    // one broken page should not end the crawl
+                    EngineLog.d("Crawler", "skipping " + url + ": " + e);
+                }
+                finally {
+                    if (outstanding.decrementAndGet() == 0)
+                    {
+                        finished.countDown();
+                    }
+                }
+            }
+        }
+
+        try {
+            String root = normalize(root_url);
+            if (root == null)
+            {
+                throw new IllegalArgumentException("not a crawlable URL: " + root_url);
+            }
+            seen.add(root);
+            pages_started.incrementAndGet();
+            outstanding.incrementAndGet();
+            frontier.execute(new PageTask(root, 0));
+            finished.await();
+        }
+        finally {
+            frontier.shutdownNow();
+            DownloadScheduler.releaseConnections();
+        }
+        EngineLog.d("Crawler", "crawled " + Math.min(pages_started.get(), max_pages) + " pages under " + root_url
+                + ", found " + artifact_count.get() + " files");
+        return artifact_count.get();
+    }
+
+    /*
+     * Returns the URL without its fragment and with a lower-case scheme and
+     * host, so trivially different spellings of a page count as one;
+     * or null if it is not an http(s) URL.
+     */
+    static String
+    normalize(String url_string)
+    {
+        try {
+            URL url = new URL(url_string);
+            String protocol = url.getProtocol().toLowerCase(Locale.US);
+            if (!protocol.equals("http") && !protocol.equals("https"))
+            {
+                return null;
+            }
+            String file = url.getFile().length() == 0 ? "/" : url.getFile();
+            int port = url.getPort() == url.getDefaultPort() ? -1 : url.getPort();
+            return new URL(protocol, url.getHost().toLowerCase(Locale.US), port, file).toString();
+        }
+        catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Returns the lower-case extension of the last path segment, without
+     * the dot, or "" if there is none (e.g. a directory).
+     */
+    static String
+    extensionOf(String url_string)
+    {
+        int end = url_string.length();
+        int query = url_string.indexOf('?');
+        if (query >= 0)
+        {
+            end = query;
+        }
+        int slash = url_string.lastIndexOf('/', end - 1);
+        int dot = url_string.lastIndexOf('.', end - 1);
+        if (dot <= slash)
+        {
+            return "";
+        }
+        return url_string.substring(dot + 1, end).toLowerCase(Locale.US);
+    }
+
+    private static String
+    hostOf(String url_string)
+    {
+        try {
+            return new URL(url_string).getHost().toLowerCase(Locale.US);
+        }
+        catch (MalformedURLException e) {
+            return "";
+        }
+    }
+}
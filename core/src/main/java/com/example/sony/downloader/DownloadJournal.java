@@ -0,0 +1,474 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This is the on-disk progress record of one partially downloaded file.
+ * It sits next to the ".part" file and remembers the URL, the validators
+ * the server gave for the file (ETag and Last-Modified), its length, and
+ * how many bytes of each segment have already been written. With it a
+ * download that was cut off by a dropped connection or a killed process
+ * picks up where it stopped instead of starting over.
+ *
+ * Progress is recorded in memory on every block but only written to disk
+ * in batches (every few megabytes or seconds), by a background thread,
+ * so the journal never slows the transfer down: a segment only adds to a
+ * counter, and the forcing and writing happen without any lock the other
+ * segments need. The worst a crash can cost is one batch of bytes,
+ * which are simply fetched again. Before a checkpoint claims any bytes,
+ * the ".part" file is forced to disk, so after a power loss the journal
+ * never vouches for ranges that did not make it there.
+ *
+ * The file format is plain text, one "key=value" per line, with one
+ * "segment=start end committed" line per segment.
+ */
+public class DownloadJournal {
+    // suffix appended to the ".part" file name to get the journal file name
+    public static final String SUFFIX = ".journal";
+
+    // a checkpoint is written after this many new bytes ...
+    private static final long CHECKPOINT_BYTES = 4 * 1024 * 1024;
+
+    // ... or after this much time, whichever comes first
+    private static final long CHECKPOINT_INTERVAL_MS = 2000;
+
+    private final File journal_file;
+    private final String url;
+    private final String etag;
+    private final String last_modified;
+    private final long length;
+    private final List<Segment> segments;
+
+    // threads that write checkpoints in the background, at most one per journal at a time
+    private static final ExecutorService checkpointers =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "journal_checkpoint");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // held while a checkpoint forces the data and writes the journal file, so
+    // that only one is ever written at a time; taken before this, never inside it
+    private final Object write_lock = new Object();
+
+    private long uncheckpointed_bytes;      // guarded by this
+    private long last_checkpoint_time;      // guarded by this
+    private FileChannel data_channel;       // guarded by this; the open ".part" file, or null
+    private boolean checkpoint_pending;     // guarded by this; a background checkpoint is due
+    private IOException checkpoint_failure; // guarded by this; of the last background checkpoint
+
+    private
+    DownloadJournal(File journal_file, String url, String etag, String last_modified,
+                    long length, List<Segment> segments)
+    {
+        this.journal_file = journal_file;
+        this.url = url;
+        this.etag = etag;
+        this.last_modified = last_modified;
+        this.length = length;
+        this.segments = Collections.unmodifiableList(segments);
+        this.last_checkpoint_time = System.currentTimeMillis();
+    }
+
+    /*
+     * Returns the journal file that belongs to the given ".part" file.
+     */
+    public static File
+    fileFor(File part_file)
+    {
+        return new File(part_file.getPath() + SUFFIX);
+    }
+
+    /*
+     * Starts a new journal for a fresh download of the remote file, split
+     * into the given number of equal segments, and writes it to disk.
+     */
+    public static DownloadJournal
+    create(File part_file, RemoteFile remote_file, int segment_count) throws IOException
+    {
+        ArrayList<Segment> segments = new ArrayList<>();
+        long segment_size = remote_file.length / segment_count;
+        for (int i = 0; i < segment_count; i++)
+        {
+            long start = i * segment_size;
+            long end = (i == segment_count - 1) ? remote_file.length - 1 : start + segment_size - 1;
+            segments.add(new Segment(start, end, 0));
+        }
+        DownloadJournal journal = new DownloadJournal(fileFor(part_file), remote_file.url,
+                remote_file.etag, remote_file.last_modified, remote_file.length, segments);
+        journal.checkpoint();
+        return journal;
+    }
+
+    /*
+     * Reads the journal for the given ".part" file.
+     * Returns null if there is none, or if it cannot be understood; a broken
+     * journal only means the download starts over.
+     */
+    public static DownloadJournal
+    load(File part_file)
+    {
+        File journal_file = fileFor(part_file);
+        if (!journal_file.exists() || !part_file.exists())
+        {
+            return null;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal_file), "UTF-8"));
+            String url = null;
+            String etag = null;
+            String last_modified = null;
+            long length = RemoteFile.LENGTH_UNKNOWN;
+            ArrayList<Segment> segments = new ArrayList<>();
+
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                int equals = line.indexOf('=');
+                if (equals < 0)
+                {
+                    continue;
+                }
+                String key = line.substring(0, equals);
+                String value = line.substring(equals + 1);
+                if (key.equals("url"))
+                {
+                    url = value;
+                }
+                else if (key.equals("etag"))
+                {
+                    etag = value;
+                }
+                else if (key.equals("last_modified"))
+                {
+                    last_modified = value;
+                }
+                else if (key.equals("length"))
+                {
+                    length = Long.parseLong(value);
+                }
+                else if (key.equals("segment"))
+                {
+                    String[] fields = value.split(" ");
+                    segments.add(new Segment(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2])));
+                }
+            }
+
+            if (url == null || length <= 0 || segments.isEmpty() || part_file.length() != length)
+            {
+                return null;
+            }
+            return new DownloadJournal(journal_file, url, etag, last_modified, length, segments);
+        }
+        catch (IOException | RuntimeException e) {
+            return null;
+        }
+        finally {
+            if (reader != null)
+            {
+                try {
+                    reader.close();
+                }
+                catch (IOException e) {
+                    // empty
+                }
+            }
+        }
+    }
+
+    public String
+    getUrl()
+    {
+        return url;
+    }
+
+    public long
+    getLength()
+    {
+        return length;
+    }
+
+    public List<Segment>
+    getSegments()
+    {
+        return segments;
+    }
+
+    /*
+     * Returns the number of bytes written so far, over all segments.
+     */
+    public long
+    getCommittedBytes()
+    {
+        long total = 0;
+        for (Segment segment : segments)
+        {
+            total += segment.committed;
+        }
+        return total;
+    }
+
+    /*
+     * Returns the length of the part of the file, from the start, that is
+     * written without gaps.
+     */
+    public long
+    getContiguousBytes()
+    {
+        for (Segment segment : segments)
+        {
+            if (!segment.isComplete())
+            {
+                return segment.nextOffset();
+            }
+        }
+        return length;
+    }
+
+    /*
+     * Returns true if the remote file still looks like the one this journal
+     * was started for, so the bytes already on disk can be kept.
+     * Strong validators are compared when the server sent them; otherwise
+     * only the length can be checked.
+     */
+    public boolean
+    matches(RemoteFile remote_file)
+    {
+        if (!remote_file.accepts_ranges || remote_file.length != length)
+        {
+            return false;
+        }
+        if (etag != null && !etag.equals(remote_file.etag))
+        {
+            return false;
+        }
+        if (last_modified != null && !last_modified.equals(remote_file.last_modified))
+        {
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Sets the channel the segments are being written through, so that
+     * checkpoints can force the data to disk first; null once it is closed.
+     */
+    public synchronized void
+    setDataChannel(FileChannel channel)
+    {
+        data_channel = channel;
+    }
+
+    /*
+     * Records that bytes of the segment have been written to the ".part" file.
+     * Called by the transfer loop after every block; once enough bytes or
+     * time have gone by since the last checkpoint, has one written in the
+     * background. Throws the error of a background checkpoint that failed.
+     */
+    public void
+    commit(Segment segment, int bytes) throws IOException
+    {
+        segment.committed += bytes;
+        synchronized (this)
+        {
+            if (checkpoint_failure != null)
+            {
+                throw new IOException("could not checkpoint " + journal_file, checkpoint_failure);
+            }
+            uncheckpointed_bytes += bytes;
+            if (checkpoint_pending || (uncheckpointed_bytes < CHECKPOINT_BYTES
+                    && System.currentTimeMillis() - last_checkpoint_time < CHECKPOINT_INTERVAL_MS))
+            {
+                return;
+            }
+            checkpoint_pending = true;
+        }
+        checkpointers.execute(new Runnable() {
+            public void run()
+            {
+                checkpointInBackground();
+            }
+        });
+    }
+
+    /*
+     * Writes the journal to disk now, and waits for a background checkpoint
+     * being written. The committed counts are read first and the data
+     * channel (if set) is forced after, so every byte the new checkpoint
+     * claims is on disk before it is. The new contents go to a temporary
+     * file that replaces the journal only once fully written, so a crash
+     * mid-write leaves the previous checkpoint intact.
+     */
+    public void
+    checkpoint() throws IOException
+    {
+        synchronized (write_lock)
+        {
+            synchronized (this)
+            {
+                checkpoint_pending = false;
+            }
+            write();
+        }
+    }
+
+    /*
+     * Writes the checkpoint commit() asked for, unless checkpoint() or
+     * delete() came first. A failure is kept for commit() to throw.
+     */
+    private void
+    checkpointInBackground()
+    {
+        synchronized (write_lock)
+        {
+            synchronized (this)
+            {
+                if (!checkpoint_pending)
+                {
+                    return;
+                }
+                checkpoint_pending = false;
+            }
+            try {
+                write();
+            }
+            catch (IOException e) {
+                synchronized (this)
+                {
+                    checkpoint_failure = e;
+                }
+            }
+        }
+    }
+
+    /*
+     * Copies the committed counts under the lock, then forces the data and
+     * writes the journal file without it. Called with write_lock held.
+     */
+    private void
+    write() throws IOException
+    {
+        String contents;
+        FileChannel channel;
+        synchronized (this)
+        {
+            contents = contents();
+            channel = data_channel;
+            uncheckpointed_bytes = 0;
+            last_checkpoint_time = System.currentTimeMillis();
+        }
+        if (channel != null)
+        {
+            channel.force(false);
+        }
+
+        File temp_file = new File(journal_file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp_file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+        if (!temp_file.renameTo(journal_file))
+        {
+            // some platforms will not rename over an existing file
+            journal_file.delete();
+            if (!temp_file.renameTo(journal_file))
+            {
+                throw new IOException("could not write journal " + journal_file);
+            }
+        }
+    }
+
+    /*
+     * Returns what the journal file holds, with the current committed counts.
+     */
+    private synchronized String
+    contents()
+    {
+        StringBuilder contents = new StringBuilder();
+        contents.append("url=").append(url).append('\n');
+        if (etag != null)
+        {
+            contents.append("etag=").append(etag).append('\n');
+        }
+        if (last_modified != null)
+        {
+            contents.append("last_modified=").append(last_modified).append('\n');
+        }
+        contents.append("length=").append(length).append('\n');
+        for (Segment segment : segments)
+        {
+            contents.append("segment=").append(segment.start).append(' ')
+                    .append(segment.end).append(' ').append(segment.committed).append('\n');
+        }
+        return contents.toString();
+    }
+
+    /*
+     * Removes the journal once the download is complete or abandoned. A
+     * background checkpoint still due is dropped, so it cannot bring the
+     * journal back.
+     */
+    public void
+    delete()
+    {
+        synchronized (write_lock)
+        {
+            synchronized (this)
+            {
+                checkpoint_pending = false;
+            }
+            journal_file.delete();
+        }
+    }
+
+    /*
+     * One byte range of the file and how much of it is already on disk.
+     * Each segment is only ever advanced by the one thread fetching it.
+     */
+    public static class Segment {
+        public final long start;
+        public final long end;              // inclusive
+        volatile long committed;
+
+        Segment(long start, long end, long committed)
+        {
+            this.start = start;
+            this.end = end;
+            this.committed = committed;
+        }
+
+        public long
+        getCommitted()
+        {
+            return committed;
+        }
+
+        /*
+         * Returns the offset of the first byte not yet written.
+         */
+        public long
+        nextOffset()
+        {
+            return start + committed;
+        }
+
+        public boolean
+        isComplete()
+        {
+            return start + committed > end;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.sony.downloader;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * This is the live progress of one download. The transfer loop only ever
+ * adds to an atomic byte counter, which costs next to nothing per block;
+ * everything derived from it (rate, ETA) is worked out by the
+ * ProgressReporter on its own thread, a few times per second.
+ */
+public class DownloadProgress {
+    // value of total when the length of the file is not known
+    public static final long TOTAL_UNKNOWN = -1;
+
+    // weight of the newest sample in the smoothed rate
+    private static final double RATE_SMOOTHING = 0.3;
+
+    // a decaying rate below this many bytes per second is taken as stopped
+    private static final double MIN_RATE = 1;
+
+    public final int id;
+    public final String url;
+
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile long total = TOTAL_UNKNOWN;
+
+    // only touched by the reporter thread
+    private long last_sample_bytes = -1;
+    private long last_sample_time;
+    private double bytes_per_second;
+
+    DownloadProgress(int id, String url)
+    {
+        this.id = id;
+        this.url = url;
+    }
+
+    /*
+     * Adds transferred bytes. Called from the copy loop, possibly by several
+     * segment threads at once.
+     */
+    public void
+    add(long count)
+    {
+        bytes.addAndGet(count);
+    }
+
+    /*
+     * Sets the bytes already on disk before this transfer started, e.g.
+     * when a partial download is resumed.
+     */
+    public void
+    setBytes(long count)
+    {
+        bytes.set(count);
+    }
+
+    public void
+    setTotal(long total)
+    {
+        this.total = total;
+    }
+
+    public long
+    getBytes()
+    {
+        return bytes.get();
+    }
+
+    public long
+    getTotal()
+    {
+        return total;
+    }
+
+    /*
+     * Takes a sample for the rate estimate and returns a snapshot, or null
+     * if nothing changed since the last sample: no bytes moved, and the rate
+     * has already decayed to zero. Only called by the reporter.
+     */
+    Snapshot
+    sample(long now)
+    {
+        long current = bytes.get();
+        if (current == last_sample_bytes)
+        {
+            if (bytes_per_second == 0 || now - last_sample_time <= 0)
+            {
+                return null;
+            }
+            // stalled: let the rate decay instead of freezing at its last value,
+            // and publish it until it reaches zero
+            bytes_per_second *= 1 - RATE_SMOOTHING;
+            if (bytes_per_second < MIN_RATE)
+            {
+                bytes_per_second = 0;
+            }
+            return snapshot();
+        }
+        if (last_sample_bytes >= 0 && now > last_sample_time)
+        {
+            double instant = (current - last_sample_bytes) * 1000.0 / (now - last_sample_time);
+            bytes_per_second = bytes_per_second == 0 ? instant
+                    : RATE_SMOOTHING * instant + (1 - RATE_SMOOTHING) * bytes_per_second;
+        }
+        last_sample_bytes = current;
+        last_sample_time = now;
+        return snapshot();
+    }
+
+    /*
+     * Returns the current state without taking a rate sample.
+     */
+    Snapshot
+    snapshot()
+    {
+        long current = bytes.get();
+        long eta_seconds = -1;
+        if (total != TOTAL_UNKNOWN && bytes_per_second > 0)
+        {
+            eta_seconds = (long) Math.ceil(Math.max(0, total - current) / bytes_per_second);
+        }
+        return new Snapshot(id, url, current, total, (long) bytes_per_second, eta_seconds);
+    }
+
+    /*
+     * Progress of one download at one moment.
+     */
+    public static class Snapshot {
+        public final int id;
+        public final String url;
+        public final long bytes;
+        public final long total;                // TOTAL_UNKNOWN if not known
+        public final long bytes_per_second;
+        public final long eta_seconds;          // -1 if not known
+
+        Snapshot(int id, String url, long bytes, long total, long bytes_per_second, long eta_seconds)
+        {
+            this.id = id;
+            this.url = url;
+            this.bytes = bytes;
+            this.total = total;
+            this.bytes_per_second = bytes_per_second;
+            this.eta_seconds = eta_seconds;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.example.sony.downloader;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This is the job scheduler for the DownloaderService. Jobs wait in a
+ * priority queue and are handed to a bounded pool of worker threads.
+ *
+ * Jobs are ordered by priority class first, then by expected size, so a
+ * small file queued behind a huge one still starts first. Waiting ages a
+ * job: every second in the queue counts as AGING_BYTES_PER_SECOND off its
+ * size, so a steady stream of small jobs cannot hold a large one back
+ * forever.
+ *
+ * The per-host limit counts connections, not jobs. A running job holds
+ * one; a job that opens several at once (a segmented download) asks for
+ * more with reserveConnections and only gets those the host has to spare.
+ * A job only starts while its host has a connection free; jobs for busy
+ * hosts stay queued and let jobs for other hosts go ahead of them.
+ */
+public class DownloadScheduler {
+    // priority classes; lower values run first
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+
+    // size hint for jobs whose size is not known up front
+    public static final long SIZE_UNKNOWN = -1;
+
+    // size assumed for ordering when a job's size is unknown
+    private static final long UNKNOWN_SIZE_ESTIMATE = 1024 * 1024;
+
+    // how much smaller, for ordering, a job counts per second it has waited
+    public static final long AGING_BYTES_PER_SECOND = 1024 * 1024;
+
+    // the job running on each worker thread, for reserveConnections
+    private static final ThreadLocal<Job> current_job = new ThreadLocal<>();
+
+    // how long an idle worker thread waits for a job before exiting
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor workers;
+    private final TreeSet<Job> pending;                 // queued jobs in run order
+    private final HashMap<String, Integer> active_per_host;    // connections held per host
+    private final long created_nanos = System.nanoTime();
+    private int max_workers;
+    private int max_per_host;
+    private int running;
+    private long next_sequence;
+    private boolean shut_down;
+    private volatile Metrics metrics;
+
+    public
+    DownloadScheduler(int max_workers, int max_per_host)
+    {
+        if (max_workers < 1 || max_per_host < 1)
+        {
+            throw new IllegalArgumentException("limits must be at least 1");
+        }
+        this.max_workers = max_workers;
+        this.max_per_host = max_per_host;
+        this.pending = new TreeSet<>();
+        this.active_per_host = new HashMap<>();
+
+        // one thread per worker slot; jobs are only handed over while a slot is
+        // free, so the executor's own queue never holds more than a hand-off
+        this.workers = new ThreadPoolExecutor(max_workers, max_workers,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private int count;
+
+                    public synchronized Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "download_worker_" + (++count));
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+                });
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    /*
+     * Queues a job. The url is only used for the per-host limit; size_hint is
+     * the expected number of bytes, or SIZE_UNKNOWN.
+     */
+    public synchronized void
+    submit(String url, int priority, long size_hint, Runnable job)
+    {
+        if (shut_down)
+        {
+            throw new IllegalStateException("scheduler is shut down");
+        }
+        // aging: adding the time of queueing (since the scheduler was created)
+        // instead of subtracting the time waited gives the same order, and
+        // keeps each job's key fixed
+        long size = size_hint < 0 ? UNKNOWN_SIZE_ESTIMATE : size_hint;
+        long queued_at_ms = (System.nanoTime() - created_nanos) / 1000000;
+        long rank = size + queued_at_ms * AGING_BYTES_PER_SECOND / 1000;
+        pending.add(new Job(this, hostOf(url), priority, rank, next_sequence++, job));
+        dispatch();
+    }
+
+    /*
+     * Lets the job running on the calling thread hold up to wanted
+     * connections to its host at once. Returns how many it may use: the one
+     * it holds by running, plus as many more as its host has to spare. On a
+     * thread that is not running a scheduler job, returns wanted. Extra
+     * connections are given back by releaseConnections, or when the job ends.
+     */
+    public static int
+    reserveConnections(int wanted)
+    {
+        Job job = current_job.get();
+        if (job == null)
+        {
+            return Math.max(1, wanted);
+        }
+        return job.scheduler.reserve(job, Math.max(1, wanted));
+    }
+
+    /*
+     * Gives back the extra connections of the job running on the calling thread.
+     */
+    public static void
+    releaseConnections()
+    {
+        reserveConnections(1);
+    }
+
+    /*
+     * Starts recording into the given metrics: the time jobs wait in the
+     * queue ("scheduler.queue_wait_ms"), the number of jobs started, and
+     * the queue depth and running jobs as gauges.
+     */
+    public void
+    setMetrics(Metrics metrics)
+    {
+        metrics.gauge("scheduler.queue_depth", new Metrics.Gauge() {
+            public long value()
+            {
+                return getQueueDepth();
+            }
+        });
+        metrics.gauge("scheduler.running", new Metrics.Gauge() {
+            public long value()
+            {
+                return getRunningCount();
+            }
+        });
+        this.metrics = metrics;
+    }
+
+    /*
+     * Changes how many jobs may run at once. Takes effect as running jobs finish.
+     */
+    public synchronized void
+    setMaxWorkers(int max_workers)
+    {
+        if (max_workers < 1)
+        {
+            throw new IllegalArgumentException("limit must be at least 1");
+        }
+        // grow the pool before raising the core size, shrink it after lowering it
+        if (max_workers > workers.getMaximumPoolSize())
+        {
+            workers.setMaximumPoolSize(max_workers);
+            workers.setCorePoolSize(max_workers);
+        }
+        else
+        {
+            workers.setCorePoolSize(max_workers);
+            workers.setMaximumPoolSize(max_workers);
+        }
+        this.max_workers = max_workers;
+        dispatch();
+    }
+
+    /*
+     * Changes how many connections jobs may hold at once to the same host.
+     */
+    public synchronized void
+    setMaxPerHost(int max_per_host)
+    {
+        if (max_per_host < 1)
+        {
+            throw new IllegalArgumentException("limit must be at least 1");
+        }
+        this.max_per_host = max_per_host;
+        dispatch();
+    }
+
+    /*
+     * Returns the number of jobs waiting for a worker.
+     */
+    public synchronized int
+    getQueueDepth()
+    {
+        return pending.size();
+    }
+
+    /*
+     * Returns the number of jobs currently running.
+     */
+    public synchronized int
+    getRunningCount()
+    {
+        return running;
+    }
+
+    /*
+     * Drops all queued jobs and stops the workers once running jobs finish.
+     */
+    public synchronized void
+    shutdown()
+    {
+        shut_down = true;
+        pending.clear();
+        workers.shutdown();
+    }
+
+    /*
+     * Waits, after shutdown(), for the running jobs to finish, for at most
+     * timeout_ms. Returns true if they did.
+     */
+    public boolean
+    awaitTermination(long timeout_ms) throws InterruptedException
+    {
+        return workers.awaitTermination(timeout_ms, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Starts queued jobs, in order, for as long as there are free workers.
+     * A job whose host is at its limit is skipped, not waited for.
+     */
+    private void
+    dispatch()
+    {
+        Iterator<Job> iterator = pending.iterator();
+        while (running < max_workers && iterator.hasNext())
+        {
+            final Job job = iterator.next();
+            int active = activeConnections(job.host);
+            if (active >= max_per_host)
+            {
+                continue;
+            }
+
+            iterator.remove();
+            job.connections = 1;
+            active_per_host.put(job.host, active + 1);
+            running++;
+            Metrics metrics = this.metrics;
+            if (metrics != null)
+            {
+                metrics.recordMillisSince("scheduler.queue_wait_ms", job.queued_nanos);
+                metrics.increment("scheduler.jobs_started");
+            }
+            workers.execute(new Runnable() {
+                public void run()
+                {
+                    current_job.set(job);
+                    try {
+                        job.runnable.run();
+                    }
+                    finally {
+                        current_job.remove();
+                        finished(job);
+                    }
+                }
+            });
+        }
+    }
+
+    /*
+     * Sets the number of connections a running job holds to between 1 and
+     * wanted, as far as its host's limit allows, and returns it.
+     */
+    private synchronized int
+    reserve(Job job, int wanted)
+    {
+        int active = activeConnections(job.host);
+        int spare = Math.max(0, max_per_host - active);
+        int granted = Math.min(wanted, job.connections + spare);
+        if (granted != job.connections)
+        {
+            setActiveConnections(job.host, active - job.connections + granted);
+            boolean released = granted < job.connections;
+            job.connections = granted;
+            if (released && !shut_down)
+            {
+                dispatch();
+            }
+        }
+        return granted;
+    }
+
+    /*
+     * Releases the worker and host connections of a finished job and starts
+     * the next ones.
+     */
+    private synchronized void
+    finished(Job job)
+    {
+        running--;
+        setActiveConnections(job.host, activeConnections(job.host) - job.connections);
+        job.connections = 0;
+        if (!shut_down)
+        {
+            dispatch();
+        }
+    }
+
+    private int
+    activeConnections(String host)
+    {
+        Integer count = active_per_host.get(host);
+        return count == null ? 0 : count;
+    }
+
+    private void
+    setActiveConnections(String host, int count)
+    {
+        if (count == 0)
+        {
+            active_per_host.remove(host);
+        }
+        else
+        {
+            active_per_host.put(host, count);
+        }
+    }
+
+    /*
+     * Returns the host of the URL, or an empty string if it cannot be parsed,
+     * so malformed URLs share one slot instead of failing the scheduler.
+     */
+    private static String
+    hostOf(String url_string)
+    {
+        try {
+            return new URL(url_string).getHost().toLowerCase(Locale.US);
+        }
+        catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    /*
+     * A queued job along with the keys it is ordered by.
+     */
+    private static class Job implements Comparable<Job> {
+        final DownloadScheduler scheduler;
+        final String host;
+        final int priority;
+        final long rank;            // expected size plus aging, see submit
+        final long sequence;
+        final Runnable runnable;
+        final long queued_nanos = System.nanoTime();
+        int connections;            // held while running; guarded by the scheduler
+
+        Job(DownloadScheduler scheduler, String host, int priority, long rank, long sequence, Runnable runnable)
+        {
+            this.scheduler = scheduler;
+            this.host = host;
+            this.priority = priority;
+            this.rank = rank;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        public int
+        compareTo(Job other)
+        {
+            if (priority != other.priority)
+            {
+                return priority < other.priority ? -1 : 1;
+            }
+            if (rank != other.rank)
+            {
+                return rank < other.rank ? -1 : 1;
+            }
+            if (sequence != other.sequence)
+            {
+                return sequence < other.sequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,1271 @@
+package com.example.sony.downloader;
+
+import org.jsoup.nodes.*;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.w3c.dom.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.jsoup.Jsoup;
+import org.jsoup.select.Elements;
+// Jsoup API reference:
+// http://jsoup.org/apidocs/
+
+/**
+ * This is a helper class for the Downloader application. It does the
+ * actual work of downloading a file from a given URL. It also includes
+ * "fake" download methods to simulate downloading the file without
+ * actually using the network for testing purposes.
+ *
+ */
+public class Downloader {
+    // copy loop shared by every download; replaced when the block size changes
+    private static volatile TransferEngine transfer_engine = new TransferEngine();
+
+    // number of ranges a large file is fetched as; 1 disables segmented downloads
+    private static volatile int segment_count = SegmentedDownload.DEFAULT_SEGMENTS;
+
+    // counters and histograms of every phase of every download and page fetch
+    private static final Metrics metrics = new Metrics();
+
+    // every request goes through this client so connections are reused
+    private static final HttpClient http_client = new HttpClient();
+
+    static {
+        http_client.setMetrics(metrics);
+    }
+
+    // caps the total and per-download transfer rate; unlimited by default
+    private static final RateLimiter rate_limiter = new RateLimiter(RateLimiter.UNLIMITED);
+
+    // folder downloads are saved to; the app sets the device's Downloads folder
+    private static volatile File storage_root = new File(System.getProperty("user.dir"), "Downloads");
+
+    // index of the storage root; created on first use
+    private static ContentStore content_store;
+
+    // URLs being downloaded (with their folder), so a second call for one waits
+    private static final Set<String> urls_in_progress = new HashSet<>();
+
+    // extracted links of recently fetched pages; null disables caching
+    private static volatile LinkCache link_cache;
+
+    // suffix of the temporary file a download is streamed into
+    private static final String PART_SUFFIX = ".part";
+
+    // times a range download is resumed within one call before giving up
+    private static final int MAX_RESUME_ATTEMPTS = 3;
+
+    // times a whole file is fetched before a checksum mismatch is final
+    private static final int MAX_VERIFY_ATTEMPTS = 2;
+
+    // whether a ".sha256" or ".md5" sidecar is looked for when no checksum is given
+    private static volatile boolean sidecar_checksums;
+
+    // text-like files, which are worth fetching compressed
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "txt", "text", "csv", "tsv", "json", "xml", "html", "htm", "js", "css", "md", "log", "svg"));
+
+    // whether text-like files are requested with gzip or deflate, and unpacked as they arrive
+    private static volatile boolean compressed_transfer = true;
+
+    // whether ".gz" and ".bz2" downloads are stored unpacked
+    private static volatile boolean unpack_on_store;
+
+    // input buffer of the unpacking stream of a ".gz" or ".bz2" download
+    private static final int UNPACK_BUFFER_SIZE = 64 * 1024;
+
+    /*
+     * Downloads the file found at the given URL into the storage root
+     * (see setStorageRoot), and returns the file name it was saved to.
+     *
+     * The folder's ContentStore picks a file name no other URL uses, and
+     * the content is hashed as it arrives. If the URL was downloaded before
+     * and the server reports it unchanged, nothing is transferred; if the
+     * same content is already stored under another name (and hashing that
+     * file confirms it), the new copy is dropped and that name is returned.
+     * A URL sharing its file with others that changed is saved to a file of
+     * its own, so the others keep their content.
+     *
+     * Calls for the same URL run one at a time, since they would write the
+     * same part file; a call that waited usually finds the URL unchanged.
+     */
+    public static String
+    download(String url_string)
+    {
+        return download(url_string, null, null);
+    }
+
+    /*
+     * Same as download(url), counting the transferred bytes in the given
+     * progress tracker (if not null) as they arrive.
+     */
+    public static String
+    download(String url_string, DownloadProgress progress)
+    {
+        return download(url_string, progress, null);
+    }
+
+    /*
+     * Same as download(url, progress), also verifying the file against the
+     * expected checksum (if not null, or if sidecar checksums are on and the
+     * server has one). The checksum is computed from the copy loop's own
+     * blocks. A file whose checksum does not match is fetched once more;
+     * if it still does not match, it is deleted and the download fails.
+     */
+    public static String
+    download(String url_string, DownloadProgress progress, Checksum expected)
+    {
+        long start = System.nanoTime();
+        metrics.increment("download.started");
+        File folder = storage_root;
+        EngineLog.v("Downloader", "downloading from " + url_string + " to " + folder);
+
+        if (!folder.exists())
+        {
+            // create folder
+            folder.mkdirs();
+        }
+
+        ContentStore store = contentStore(folder);
+        if (expected == null && sidecar_checksums)
+        {
+            expected = Checksum.fetchSidecar(http_client, url_string);
+        }
+        String url_key = folder.getPath() + "\n" + url_string;
+        lockUrl(url_key);
+        try {
+            return downloadLocked(url_string, folder, store, progress, expected, start);
+        }
+        finally {
+            unlockUrl(url_key);
+        }
+    }
+
+    /*
+     * The rest of download(url, progress, expected), run while no other
+     * call is downloading the URL.
+     */
+    private static String
+    downloadLocked(String url_string, File folder, ContentStore store, DownloadProgress progress,
+            Checksum expected, long start)
+    {
+        String packing = unpack_on_store ? packingOf(url_string) : null;
+        long probe_start = System.nanoTime();
+        RemoteFile remote_file = probeQuietly(url_string);
+        metrics.recordMillisSince("download.probe_ms", probe_start);
+
+        // an unpacked copy is not the length the server reports, so it never counts as unchanged
+        String stored_name = remote_file == null || packing != null ? null : store.findUnchanged(remote_file);
+        if (stored_name != null && expected != null && !(expected.algorithm.equals(StreamingDigest.SHA_256)
+                && expected.matches(store.getSha256(url_string))))
+        {
+            // the stored copy cannot be vouched for; fetch it again
+            stored_name = null;
+        }
+        if (stored_name != null)
+        {
+            EngineLog.d("Downloader", url_string + " is unchanged, already stored as " + stored_name);
+            metrics.increment("download.unchanged");
+            if (progress != null)
+            {
+                progress.setTotal(remote_file.length);
+                progress.setBytes(remote_file.length);
+            }
+            return stored_name;
+        }
+
+        // stream the file straight to disk; peak memory stays at one buffer
+        // no matter how large the file is
+        try {
+            String wanted_name = new File(url_string).getName();
+            if (packing != null && wanted_name.toLowerCase(Locale.US).endsWith("." + packing))
+            {
+                wanted_name = wanted_name.substring(0, wanted_name.length() - packing.length() - 1);
+            }
+            String file_name = store.nameFor(url_string, wanted_name);
+            File out_file = new File(folder, file_name);
+            StreamingDigest digest;
+            StreamingDigest checked_digest;
+            long transfer_nanos;
+            for (int attempt = 1; ; attempt++)
+            {
+                // SHA-256 always, for the content store; the expected algorithm too if different
+                digest = expected == null || expected.algorithm.equals(StreamingDigest.SHA_256)
+                        ? new StreamingDigest(StreamingDigest.SHA_256)
+                        : new StreamingDigest(StreamingDigest.SHA_256, expected.algorithm);
+                long transfer_start = System.nanoTime();
+                if (packing != null)
+                {
+                    // an expected checksum is of the packed file, as served
+                    checked_digest = expected == null ? digest : new StreamingDigest(expected.algorithm);
+                    unpackToFile(url_string, packing, remote_file, out_file, digest,
+                            checked_digest == digest ? null : checked_digest, progress);
+                }
+                else
+                {
+                    checked_digest = digest;
+                    downloadToFile(url_string, remote_file, out_file, digest, progress);
+                }
+                transfer_nanos = System.nanoTime() - transfer_start;
+                if (expected == null || expected.matches(checked_digest.getHash(expected.algorithm)))
+                {
+                    break;
+                }
+
+                // a whole-file checksum does not say which bytes are wrong
+                metrics.increment("download.checksum_mismatches");
+                out_file.delete();
+                String message = "checksum mismatch for " + url_string + ": expected " + expected
+                        + ", got " + checked_digest.getHash(expected.algorithm);
+                if (attempt >= MAX_VERIFY_ATTEMPTS)
+                {
+                    throw new RetryPolicy.PermanentException(message);
+                }
+                EngineLog.d("Downloader", message + " - fetching again");
+            }
+
+            String sha256 = digest.finish();
+            long length = out_file.length();
+            metrics.add("download.bytes", length);
+            metrics.record("download.transfer_ms", transfer_nanos / 1000000);
+            if (transfer_nanos > 0)
+            {
+                metrics.record("download.bytes_per_second", (long) (length * 1e9 / transfer_nanos));
+            }
+            String etag = remote_file == null ? null : remote_file.etag;
+            String last_modified = remote_file == null ? null : remote_file.last_modified;
+            String existing_name = store.findContent(sha256, length);
+            if (existing_name != null && !existing_name.equals(file_name)
+                    && holdsContent(new File(folder, existing_name), sha256, length)
+                    && store.recordShared(url_string, existing_name, sha256, length, etag, last_modified))
+            {
+                // identical content from another URL; keep one copy
+                EngineLog.d("Downloader", url_string + " has the same content as " + existing_name);
+                metrics.increment("download.deduplicated");
+                out_file.delete();
+                file_name = existing_name;
+            }
+            else
+            {
+                store.record(url_string, file_name, sha256, length, etag, last_modified);
+            }
+            metrics.increment("download.completed");
+            metrics.recordMillisSince("download.total_ms", start);
+            EngineLog.v("Downloader", "downloaded " + url_string + ": " + length + " bytes, transfer "
+                    + transfer_nanos / 1000000 + " ms, total " + (System.nanoTime() - start) / 1000000 + " ms");
+            return file_name;
+        }
+        catch (IOException e) {
+            metrics.increment("download.failed");
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * Waits until no other call is downloading the URL (keyed by folder and
+     * URL), then marks it as being downloaded.
+     */
+    private static void
+    lockUrl(String url_key)
+    {
+        synchronized (urls_in_progress)
+        {
+            while (urls_in_progress.contains(url_key))
+            {
+                try {
+                    urls_in_progress.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(new InterruptedIOException("interrupted waiting for the same URL"));
+                }
+            }
+            urls_in_progress.add(url_key);
+        }
+    }
+
+    private static void
+    unlockUrl(String url_key)
+    {
+        synchronized (urls_in_progress)
+        {
+            urls_in_progress.remove(url_key);
+            urls_in_progress.notifyAll();
+        }
+    }
+
+    /*
+     * Sets the folder downloads are saved to and looked for in. It is
+     * created when the first download starts.
+     */
+    public static void
+    setStorageRoot(File folder)
+    {
+        storage_root = folder;
+    }
+
+    public static File
+    getStorageRoot()
+    {
+        return storage_root;
+    }
+
+    /*
+     * Turns looking for ".sha256" and ".md5" sidecar files on or off, for
+     * downloads that are not given a checksum.
+     */
+    public static void
+    setSidecarChecksums(boolean enabled)
+    {
+        sidecar_checksums = enabled;
+    }
+
+    /*
+     * Turns fetching text-like files (".txt", ".html", ".csv", ...) with
+     * gzip or deflate on or off. On by default. Such a file is fetched as
+     * one stream and unpacked as it arrives, rather than in parallel
+     * ranges; a server that does not compress just sends it as it is.
+     */
+    public static void
+    setCompressedTransfer(boolean enabled)
+    {
+        compressed_transfer = enabled;
+    }
+
+    /*
+     * Turns storing ".gz" and ".bz2" downloads unpacked on or off. Off by
+     * default. The file is unpacked while it streams in and stored without
+     * the suffix, so there is no second pass over it.
+     */
+    public static void
+    setUnpackOnStore(boolean enabled)
+    {
+        unpack_on_store = enabled;
+    }
+
+    /*
+     * Returns true if the file really holds content of the given hash and
+     * length. The index only says what was written; the file may have been
+     * changed since, and other URLs are about to rely on it.
+     */
+    private static boolean
+    holdsContent(File file, String sha256, long length)
+    {
+        StreamingDigest digest = new StreamingDigest(StreamingDigest.SHA_256);
+        try {
+            if (file.length() != length)
+            {
+                return false;
+            }
+            digest.catchUp(file, length);
+            return digest.finish().equals(sha256);
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /*
+     * Returns the content store of the given folder, loading its index the
+     * first time.
+     */
+    private static synchronized ContentStore
+    contentStore(File folder)
+    {
+        if (content_store == null || !content_store.getFolder().equals(folder))
+        {
+            content_store = new ContentStore(folder);
+        }
+        return content_store;
+    }
+
+    /*
+     * This method pretends to download the file found at the given URL.
+     * Returns the file name it would have been saved to.
+     */
+    public static String
+    downloadFake(String url_string)
+    {
+        EngineLog.d("Downloader", "downloadFake called ...");
+        File folder = storage_root;
+        File url_file = new File(url_string);
+        String file_name = url_file.getName();
+        File out_file = new File(folder, file_name);
+        EngineLog.v("Downloader", "downloading " + url_string + " to " + out_file);
+
+        try
+        {
+            Thread.sleep(3000);
+        }
+        catch (InterruptedException ie)
+        {
+            // empty
+        }
+        return file_name;
+    }
+
+    /*
+     * This method retrieves all of the links like <a href="http://example.com/foo.html">...</a>
+     * from the page and returns their href URLs as an array.
+     * Does not work on some pages due to invalid HTML content.
+     *
+     * Update: Decided to change original method since many web pages are messy.
+     * Many web pages causes this function to break. Now, I am using Jsoup, which is
+     * a opens ource Java HTML parser. Now this function can handle for
+     * some messy HTML web pages.
+     *
+     * Issues:
+     *      When fetching all the links, depending on the HTML file there
+     *      may be some links that are not necessarily correct. That is
+     *      some links does not actually lead to an object to download.
+     *      It is just link to another web page.
+     *
+     */
+    public static String[]
+    getAllLinks(String web_page_url)
+    {
+        EngineLog.d("Downloader", "getAllLinks called ...");
+        long start = System.nanoTime();
+        ArrayList<String> list = new ArrayList<>();
+        try {
+            // get and parse HTML file from url, over the shared connection pool
+            URLConnection connection = http_client.open(web_page_url);
+            InputStream input_stream = HttpClient.body(connection);
+            Document document;
+            long parse_start = System.nanoTime();
+            try {
+                document = Jsoup.parse(input_stream, charsetOf(connection.getContentType()),
+                        connection.getURL().toString());
+            }
+            finally {
+                HttpClient.release(connection, input_stream);
+            }
+            // the body is read while it is parsed, so this includes the transfer
+            metrics.recordMillisSince("links.parse_ms", parse_start);
+
+            Elements links = document.getElementsByTag("a");    // list of all <a> tag elements
+            for (Element link: links)
+            {
+                String href = link.attr("abs:href");
+                try {
+                    URL url = new URL(href);     // try to parse string as URL;
+                                                 // throws MalformedURLException if cannot
+                    list.add(href);
+                }
+                catch (MalformedURLException mf_url_e)
+                {
+                    // invalid URL; do not add
+                }
+            }
+
+            metrics.record("links.found", list.size());
+            metrics.recordMillisSince("links.total_ms", start);
+            return list.toArray(new String[0]);
+        }
+        catch (Exception e) {
+            metrics.increment("links.failed");
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * This method is the streaming counterpart of getAllLinks. Instead of
+     * parsing the whole page into a document first, it scans the page as it
+     * downloads and hands the links to the sink in chunks as soon as they
+     * are found. Meant for huge index pages, where the first links can be
+     * shown long before the last byte arrives. Returns the total number of
+     * links found.
+     *
+     * If a LinkCache is installed, a page fetched before is requested
+     * conditionally; when the server says it has not changed, the cached
+     * links are handed out and the page is not downloaded or parsed.
+     */
+    public static int
+    streamAllLinks(String web_page_url, final LinkScanner.LinkSink sink)
+    {
+        EngineLog.d("Downloader", "streamAllLinks called ...");
+        long start = System.nanoTime();
+        LinkCache cache = link_cache;
+        LinkCache.Entry cached = cache == null ? null : cache.get(web_page_url);
+        URLConnection connection = null;
+        InputStream input_stream = null;
+        try {
+            // if cached, ask the server to skip the page if it has not changed
+            String[] conditions = cached == null ? null : new String[] {
+                    "If-None-Match", cached.etag,
+                    "If-Modified-Since", cached.last_modified
+            };
+            connection = http_client.open(web_page_url, conditions, true);
+            if (cached != null && HttpClient.responseCode(connection) == HttpURLConnection.HTTP_NOT_MODIFIED)
+            {
+                cache.recordHit();
+                metrics.increment("links.cache_hits");
+                EngineLog.d("Downloader", "page not modified, " + cached.links.length + " links from cache - " + cache);
+                sendInChunks(cached.links, sink);
+                return cached.links.length;
+            }
+
+            input_stream = HttpClient.body(connection);
+            Reader reader = new InputStreamReader(input_stream, charsetOf(connection.getContentType()));
+
+            // keep a copy of the links for the cache while passing them on
+            final ArrayList<String> all_links = new ArrayList<>();
+            LinkScanner.LinkSink cache_sink = sink;
+            if (cache != null)
+            {
+                cache_sink = new LinkScanner.LinkSink() {
+                    public void onLinks(List<String> links)
+                    {
+                        all_links.addAll(links);
+                        sink.onLinks(links);
+                    }
+                };
+            }
+
+            // relative links are resolved against the final URL after redirects
+            LinkScanner scanner = new LinkScanner(connection.getURL(), cache_sink);
+            long scan_start = System.nanoTime();
+            int count = scanner.scan(reader);
+            // the page is scanned as it arrives, so this includes the transfer
+            metrics.recordMillisSince("links.scan_ms", scan_start);
+            metrics.record("links.found", count);
+            if (cache != null)
+            {
+                cache.recordMiss();
+                cache.put(web_page_url, connection.getHeaderField("ETag"),
+                        connection.getHeaderField("Last-Modified"), all_links);
+                EngineLog.d("Downloader", "found " + count + " links - streamAllLinks - " + cache);
+            }
+            else
+            {
+                EngineLog.d("Downloader", "found " + count + " links - streamAllLinks");
+            }
+            metrics.recordMillisSince("links.total_ms", start);
+            return count;
+        }
+        catch (IOException e) {
+            metrics.increment("links.failed");
+            throw new RuntimeException(e);
+        }
+        finally {
+            if (connection != null)
+            {
+                HttpClient.release(connection, input_stream);
+            }
+        }
+    }
+
+    /*
+     * Returns the measurements of every download and page fetch so far,
+     * e.g. to hand to a MetricsReporter. Other parts of the engine (the
+     * scheduler, the retry engine) can be told to record into it too.
+     */
+    public static Metrics
+    getMetrics()
+    {
+        return metrics;
+    }
+
+    /*
+     * Returns the client all network requests go through, e.g. to change
+     * its timeouts or read its connection statistics.
+     */
+    public static HttpClient
+    getHttpClient()
+    {
+        return http_client;
+    }
+
+    /*
+     * Installs the cache used by streamAllLinks, or removes it if null.
+     */
+    public static void
+    setLinkCache(LinkCache cache)
+    {
+        link_cache = cache;
+    }
+
+    /*
+     * Returns the cache used by streamAllLinks, or null if there is none.
+     */
+    public static LinkCache
+    getLinkCache()
+    {
+        return link_cache;
+    }
+
+    /*
+     * Hands cached links to the sink in the same chunk size the scanner uses.
+     */
+    private static void
+    sendInChunks(String[] links, LinkScanner.LinkSink sink)
+    {
+        for (int start = 0; start < links.length; start += LinkScanner.DEFAULT_CHUNK_SIZE)
+        {
+            int end = Math.min(links.length, start + LinkScanner.DEFAULT_CHUNK_SIZE);
+            sink.onLinks(new ArrayList<>(Arrays.asList(links).subList(start, end)));
+        }
+    }
+
+    /*
+     * Returns the charset named in a Content-Type header value, or UTF-8
+     * if none is named (or it is not supported).
+     */
+    private static String
+    charsetOf(String content_type)
+    {
+        if (content_type != null)
+        {
+            for (String parameter : content_type.split(";"))
+            {
+                String trimmed = parameter.trim();
+                if (trimmed.regionMatches(true, 0, "charset=", 0, 8))
+                {
+                    String charset = trimmed.substring(8).replace("\"", "").trim();
+                    try {
+                        if (Charset.isSupported(charset))
+                        {
+                            return charset;
+                        }
+                    }
+                    catch (IllegalCharsetNameException e) {
+                        // fall through to the default
+                    }
+                }
+            }
+        }
+        return "UTF-8";
+    }
+
+     /*
+      * Original approach
+      * Works well if HTML file is clean. Otherwise, parser throws exceptions.
+      * There is no built in HTML parser in Java, so this is parser for XML file. Thus,
+      * messy HTML files does not work.
+
+    public static String[]
+    getAllLinks(String web_page_url)
+    {
+        EngineLog.d("Downloader", "getAllLinks called ...");
+        try {
+            ArrayList<String> list = new ArrayList<>();
+            byte[] bytes = downloadToByteArray(web_page_url);
+
+            EngineLog.d("Downloader", "starting to build doc - getAllLinks");
+            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+            documentBuilderFactory.setNamespaceAware(true);                     // awareness of namespace
+            documentBuilderFactory.setIgnoringElementContentWhitespace(true);   // ignore whitespace
+            documentBuilderFactory.setValidating(false);                        // validate while parsing
+
+            DocumentBuilder document_builder = documentBuilderFactory.newDocumentBuilder();
+
+            URL web_url = new URL(web_page_url);
+            InputStream input_stream = web_url.openStream();
+
+            Document document = document_builder.parse(input_stream);
+            //Document document = document_builder.parse(new ByteArrayInputStream(bytes));    // represents entire HTML document
+
+            NodeList link_nodes = document.getElementsByTagName("a");       // node list of all <a> tags in document
+            for (int i = 0; i < link_nodes.getLength(); i++)
+            {
+                Node node = link_nodes.item(i);
+                Node href_node = node.getAttributes().getNamedItem("href");
+                if(href_node != null)
+                {
+                    String href_url_string = href_node.getNodeValue();     // url string
+                    try {
+                        URL url = new URL(href_url_string);     // try to parse string as URL;
+                                                                // throws MalformedURLException if cannot
+                        list.add(href_url_string);
+                    }
+                    catch (MalformedURLException mf_url_e)
+                    {
+                        // invalid URL; do not add
+                    }
+                }
+            }
+
+            return list.toArray(new String[0]);
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+*/
+    /*
+     * Reads the entire contents of the given file from the storage root.
+     * Returns the file's content as the text string, decoded as UTF-8.
+     * The file is read in large memory-mapped chunks; for files too large
+     * to hold as one string, walk openTextFile(filename).lines() instead.
+     */
+    public static String
+    readEntireFile(String filename)
+    {
+        TextFileReader reader = null;
+        try {
+            reader = openTextFile(filename);
+            return reader.readAll();
+        }
+        catch (IOException e){
+            throw new RuntimeException(e);
+        }
+        finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /*
+     * Opens the given file from the storage root for reading
+     * as UTF-8 text, in chunks or by line or word. The caller closes it.
+     */
+    public static TextFileReader
+    openTextFile(String filename) throws IOException
+    {
+        File directory = storage_root;
+        return new TextFileReader(new File(directory, filename));
+    }
+
+    /*
+     * Downloads the file found at the URL into the given file, feeding
+     * every byte to the digest. remote_file is the result of probing the
+     * URL, or null if the probe failed.
+     * The data goes into a temporary ".part" file next to the destination,
+     * which is renamed over the destination only once the whole file has
+     * arrived. A failed download therefore never leaves a truncated file
+     * under the final name.
+     *
+     * Files on servers that accept byte ranges are tracked in a
+     * DownloadJournal: large ones are fetched as several ranges at once,
+     * and if the connection drops the missing ranges are requested again,
+     * up to MAX_RESUME_ATTEMPTS times. If it still fails, the ".part" file
+     * and its journal are kept so a later call (e.g. after the service is
+     * restarted) resumes instead of starting over. Everything else is
+     * streamed over one connection.
+     */
+    private static void
+    downloadToFile(String url_string, RemoteFile remote_file, File out_file, StreamingDigest digest,
+                   DownloadProgress progress) throws IOException
+    {
+        EngineLog.d("Downloader", "downloadToFile called ...");
+        File part_file = new File(out_file.getPath() + PART_SUFFIX);
+        TransferEngine engine = transfer_engine;
+        RateLimiter job_limiter = rate_limiter.newJob();
+        try {
+            DownloadJournal journal = DownloadJournal.load(part_file);
+            if (journal != null && !(journal.getUrl().equals(url_string)
+                    && remote_file != null && journal.matches(remote_file)))
+            {
+                // a different or changed file; the bytes on disk are useless
+                EngineLog.d("Downloader", "discarding stale partial download " + part_file);
+                journal.delete();
+                journal = null;
+            }
+
+            // text compresses well; fetch it whole and compressed rather than in ranges
+            boolean compressed = compressed_transfer
+                    && COMPRESSIBLE_EXTENSIONS.contains(Crawler.extensionOf(url_string));
+            if (journal == null && remote_file != null && remote_file.accepts_ranges && !compressed)
+            {
+                part_file.delete();
+                journal = DownloadJournal.create(part_file, remote_file,
+                        SegmentedDownload.segmentCountFor(remote_file, segment_count));
+            }
+
+            if (journal != null)
+            {
+                if (progress != null)
+                {
+                    progress.setTotal(journal.getLength());
+                }
+                fetchWithResume(part_file, journal, engine, job_limiter, digest, progress);
+                // hash whatever the segments could not hash in order
+                digest.catchUp(part_file, journal.getLength());
+                journal.delete();
+            }
+            else
+            {
+                if (progress != null && remote_file != null)
+                {
+                    progress.setTotal(remote_file.length);
+                }
+                streamToFile(url_string, part_file, engine, job_limiter, digest, progress, compressed);
+            }
+
+            // every byte on disk must have gone through the digest
+            if (digest.getPosition() != part_file.length())
+            {
+                throw new IOException("hashed " + digest.getPosition() + " of "
+                        + part_file.length() + " bytes of " + part_file);
+            }
+
+            moveIntoPlace(part_file, out_file);
+            EngineLog.d("Downloader", "finished downloading to " + out_file + " - downloadToFile");
+        }
+        catch (IOException e) {
+            if (!DownloadJournal.fileFor(part_file).exists())
+            {
+                // nothing to resume from
+                part_file.delete();
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * Fetches the unfinished segments of the journal, resuming after
+     * network errors until the file is complete or the attempts run out.
+     */
+    private static void
+    fetchWithResume(File part_file, DownloadJournal journal, TransferEngine engine,
+                    RateLimiter limiter, StreamingDigest digest, DownloadProgress progress)
+            throws IOException
+    {
+        for (int attempt = 1; ; attempt++)
+        {
+            try {
+                if (progress != null)
+                {
+                    // resumed bytes count as already transferred
+                    progress.setBytes(journal.getCommittedBytes());
+                }
+                new SegmentedDownload(http_client, part_file, journal, engine, limiter, digest, progress).run();
+                return;
+            }
+            catch (IOException e) {
+                if (attempt >= MAX_RESUME_ATTEMPTS)
+                {
+                    throw e;
+                }
+                EngineLog.d("Downloader", "resuming " + journal.getUrl() + " at "
+                        + journal.getCommittedBytes() + " bytes after: " + e);
+            }
+        }
+    }
+
+    /*
+     * Returns the URLs of downloads in the storage root that were cut
+     * off before they finished and can be resumed by calling download again.
+     */
+    public static List<String>
+    findInterruptedDownloads()
+    {
+        ArrayList<String> urls = new ArrayList<>();
+        File folder = storage_root;
+        File[] files = folder.listFiles();
+        if (files == null)
+        {
+            return urls;
+        }
+        String journal_suffix = PART_SUFFIX + DownloadJournal.SUFFIX;
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (!name.endsWith(journal_suffix))
+            {
+                continue;
+            }
+            File part_file = new File(folder, name.substring(0, name.length() - DownloadJournal.SUFFIX.length()));
+            DownloadJournal journal = DownloadJournal.load(part_file);
+            if (journal != null)
+            {
+                urls.add(journal.getUrl());
+            }
+        }
+        return urls;
+    }
+
+    /*
+     * Streams the file found at the URL into the given file, block by block,
+     * no faster than the limiter allows.
+     *
+     * The length the server announced is checked against what arrived. If
+     * the stream ends early or breaks off, only the missing tail is asked
+     * for, with a Range request, up to MAX_RESUME_ATTEMPTS times. A server
+     * that answers with the whole file instead is streamed from the start.
+     *
+     * With accept_compressed the server may send the file gzipped or
+     * deflated; it is unpacked on the way to disk. Its length is then not
+     * known up front, and a broken stream is fetched again from the start,
+     * since ranges of an encoded body cannot be unpacked on their own.
+     */
+    private static void
+    streamToFile(String url_string, File file, TransferEngine engine, RateLimiter limiter,
+                 final StreamingDigest digest, final DownloadProgress progress,
+                 boolean accept_compressed) throws IOException
+    {
+        final long[] written = {0};
+        String validator = null;
+        for (int attempt = 1; ; attempt++)
+        {
+            URLConnection connection = written[0] == 0
+                    ? http_client.open(url_string, null, accept_compressed)
+                    : http_client.openRange(url_string, written[0], -1, validator);
+            InputStream input_stream = null;
+            OutputStream output_stream = null;
+            long expected_length;
+            boolean encoded;
+            try {
+                boolean append = written[0] > 0 && HttpClient.responseCode(connection) == HttpURLConnection.HTTP_PARTIAL;
+                if (written[0] > 0 && !append)
+                {
+                    EngineLog.d("Downloader", "server sent all of " + url_string + " again");
+                    written[0] = 0;
+                    digest.reset();
+                    if (progress != null)
+                    {
+                        progress.setBytes(0);
+                    }
+                }
+                input_stream = HttpClient.body(connection);
+                encoded = HttpClient.isEncoded(connection);
+                if (encoded)
+                {
+                    metrics.increment("download.encoded");
+                }
+                long content_length = encoded ? RemoteFile.LENGTH_UNKNOWN
+                        : RemoteFile.parseLength(connection.getHeaderField("Content-Length"));
+                expected_length = content_length == RemoteFile.LENGTH_UNKNOWN
+                        ? RemoteFile.LENGTH_UNKNOWN : written[0] + content_length;
+                if (validator == null)
+                {
+                    validator = connection.getHeaderField("ETag") != null
+                            ? connection.getHeaderField("ETag") : connection.getHeaderField("Last-Modified");
+                }
+
+                output_stream = new FileOutputStream(file, append);
+                TransferEngine.TransferListener listener = new TransferEngine.TransferListener() {
+                    public void onBlock(byte[] block, int length)
+                    {
+                        written[0] += length;
+                        digest.update(block, length);
+                        if (progress != null)
+                        {
+                            progress.add(length);
+                        }
+                    }
+                };
+                try {
+                    engine.copy(limiter.throttle(input_stream), output_stream, listener);
+                }
+                catch (IOException e) {
+                    if (written[0] == 0 || attempt >= MAX_RESUME_ATTEMPTS)
+                    {
+                        throw e;
+                    }
+                    if (encoded)
+                    {
+                        EngineLog.d("Downloader", "fetching " + url_string + " again after: " + e);
+                        written[0] = 0;
+                        digest.reset();
+                        if (progress != null)
+                        {
+                            progress.setBytes(0);
+                        }
+                        continue;
+                    }
+                    EngineLog.d("Downloader", "resuming " + url_string + " at " + written[0] + " bytes after: " + e);
+                    continue;
+                }
+                output_stream.close();
+                output_stream = null;
+            }
+            finally {
+                HttpClient.release(connection, input_stream);
+                closeQuietly(output_stream);
+            }
+
+            if (expected_length == RemoteFile.LENGTH_UNKNOWN || written[0] == expected_length)
+            {
+                return;
+            }
+            if (written[0] > expected_length || attempt >= MAX_RESUME_ATTEMPTS)
+            {
+                throw new EOFException(url_string + " ended after " + written[0] + " of "
+                        + expected_length + " bytes");
+            }
+            EngineLog.d("Downloader", "stream of " + url_string + " was cut short at " + written[0]
+                    + " of " + expected_length + " bytes - resuming");
+        }
+    }
+
+    /*
+     * Probes the URL for its length and range support.
+     * Returns null if the probe fails; the caller then falls back to
+     * a plain single-stream download, which reports any real error.
+     */
+    public static RemoteFile
+    probeQuietly(String url_string)
+    {
+        try {
+            return RemoteFile.probe(http_client, url_string);
+        }
+        catch (IOException e) {
+            // includes non-HTTP URLs (e.g. file: or ftp:); no ranges to be had
+            EngineLog.d("Downloader", "probe failed for " + url_string + ": " + e);
+            return null;
+        }
+    }
+
+    /*
+     * Downloads a ".gz" or ".bz2" file and stores it unpacked into out_file,
+     * unpacking it while it streams in. digest sees the unpacked bytes;
+     * wire_digest (if not null) and progress see the packed ones, as served.
+     * An unpacking stream cannot be picked up in the middle, so a transfer
+     * that breaks off starts over, up to MAX_RESUME_ATTEMPTS times.
+     */
+    private static void
+    unpackToFile(String url_string, String packing, RemoteFile remote_file, File out_file,
+                 final StreamingDigest digest, final StreamingDigest wire_digest,
+                 final DownloadProgress progress) throws IOException
+    {
+        File part_file = new File(out_file.getPath() + PART_SUFFIX);
+        TransferEngine engine = transfer_engine;
+        RateLimiter job_limiter = rate_limiter.newJob();
+        if (progress != null && remote_file != null)
+        {
+            progress.setTotal(remote_file.length);
+        }
+        for (int attempt = 1; ; attempt++)
+        {
+            URLConnection connection = http_client.open(url_string, null, false);
+            InputStream input_stream = null;
+            OutputStream output_stream = null;
+            try {
+                input_stream = HttpClient.body(connection);
+
+                // count and hash the packed bytes on their way into the unpacker; the gzip
+                // reader takes its header and trailer a byte at a time, so read() counts too
+                InputStream packed = new FilterInputStream(job_limiter.throttle(input_stream)) {
+                    private final byte[] one = new byte[1];
+
+                    @Override
+                    public int
+                    read() throws IOException
+                    {
+                        return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+                    }
+
+                    @Override
+                    public int
+                    read(byte[] buffer, int offset, int length) throws IOException
+                    {
+                        int bytes_read = super.read(buffer, offset, length);
+                        if (bytes_read > 0)
+                        {
+                            if (wire_digest != null)
+                            {
+                                wire_digest.update(buffer, offset, bytes_read);
+                            }
+                            if (progress != null)
+                            {
+                                progress.add(bytes_read);
+                            }
+                        }
+                        return bytes_read;
+                    }
+                };
+                output_stream = new FileOutputStream(part_file);
+                TransferEngine.TransferListener listener = new TransferEngine.TransferListener() {
+                    public void onBlock(byte[] block, int length)
+                    {
+                        digest.update(block, length);
+                    }
+                };
+                try {
+                    // both readers already pull data when created (bzip2 a whole block)
+                    InputStream unpacked;
+                    if (packing.equals("bz2"))
+                    {
+                        // the bzip2 reader pulls single bytes; give it a buffer to pull them from
+                        unpacked = new BZip2CompressorInputStream(
+                                new BufferedInputStream(packed, UNPACK_BUFFER_SIZE), true);
+                    }
+                    else
+                    {
+                        unpacked = new GZIPInputStream(packed, UNPACK_BUFFER_SIZE);
+                    }
+                    engine.copy(unpacked, output_stream, listener);
+                    output_stream.close();
+                    output_stream = null;
+
+                    // whatever follows the packed stream is part of the file as served
+                    byte[] rest = new byte[UNPACK_BUFFER_SIZE];
+                    while (packed.read(rest, 0, rest.length) != -1)
+                    {
+                        // hashed and counted by the filter
+                    }
+                }
+                catch (IOException e) {
+                    if (attempt >= MAX_RESUME_ATTEMPTS)
+                    {
+                        throw e;
+                    }
+                    EngineLog.d("Downloader", "fetching " + url_string + " again after: " + e);
+                    digest.reset();
+                    if (wire_digest != null)
+                    {
+                        wire_digest.reset();
+                    }
+                    if (progress != null)
+                    {
+                        progress.setBytes(0);
+                    }
+                    continue;
+                }
+            }
+            catch (IOException e) {
+                part_file.delete();
+                throw e;
+            }
+            finally {
+                HttpClient.release(connection, input_stream);
+                closeQuietly(output_stream);
+            }
+
+            metrics.increment("download.unpacked");
+            moveIntoPlace(part_file, out_file);
+            EngineLog.d("Downloader", "unpacked " + url_string + " to " + out_file + ": "
+                    + out_file.length() + " bytes");
+            return;
+        }
+    }
+
+    /*
+     * Returns "gz" or "bz2" if the URL names a file packed that way, which
+     * can be unpacked on the way to disk; otherwise null.
+     */
+    static String
+    packingOf(String url_string)
+    {
+        String extension = Crawler.extensionOf(url_string);
+        return extension.equals("gz") || extension.equals("bz2") ? extension : null;
+    }
+
+    /*
+     * Renames a finished ".part" file to its final name, replacing any
+     * older file of that name.
+     */
+    private static void
+    moveIntoPlace(File part_file, File out_file) throws IOException
+    {
+        // File.renameTo does not replace an existing file on every platform
+        if (out_file.exists() && !out_file.delete())
+        {
+            throw new IOException("could not replace " + out_file);
+        }
+        if (!part_file.renameTo(out_file))
+        {
+            throw new IOException("could not rename " + part_file + " to " + out_file);
+        }
+    }
+
+    /*
+     * Closes the given stream, ignoring null and any error on close.
+     */
+    private static void
+    closeQuietly(Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try {
+                closeable.close();
+            }
+            catch (IOException e) {
+                // empty
+            }
+        }
+    }
+
+    /*
+     * Sets the number of bytes moved per read/write call for downloads
+     * started after this call. Downloads already running keep their engine.
+     */
+    public static void
+    setBlockSize(int block_size)
+    {
+        transfer_engine = new TransferEngine(block_size);
+    }
+
+    /*
+     * Caps the combined transfer rate of all downloads, in bytes per second,
+     * or removes the cap if RateLimiter.UNLIMITED. Applies to running
+     * downloads too.
+     */
+    public static void
+    setMaxBytesPerSecond(long bytes_per_second)
+    {
+        rate_limiter.setRate(bytes_per_second);
+    }
+
+    /*
+     * Caps the transfer rate of each single download, in bytes per second,
+     * or removes the cap if RateLimiter.UNLIMITED. Applies to running
+     * downloads too.
+     */
+    public static void
+    setMaxBytesPerSecondPerJob(long bytes_per_second)
+    {
+        rate_limiter.setPerJobRate(bytes_per_second);
+    }
+
+    /*
+     * Returns the global limiter, e.g. to read the current rates.
+     */
+    public static RateLimiter
+    getRateLimiter()
+    {
+        return rate_limiter;
+    }
+
+    /*
+     * Sets how many ranges a large file is fetched as at once.
+     * A count of 1 turns segmented downloads off.
+     */
+    public static void
+    setSegmentCount(int count)
+    {
+        if (count < 1)
+        {
+            throw new IllegalArgumentException("segment count must be at least 1");
+        }
+        segment_count = count;
+    }
+
+    /*
+     * Downloads the file found at the URL into a memory buffer of bytes.
+     * Returns the bytes as an array. Only meant for small payloads;
+     * files are streamed to disk by downloadToFile instead. Package-private
+     * for TransferBenchmark.
+     */
+    static byte[]
+    downloadToByteArray(String url_string)
+    {
+        EngineLog.d("Downloader", "downloadToByteArray called ...");
+        URLConnection connection = null;
+        InputStream input_stream = null;
+        try {
+            // download the file into a memory buffer
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            connection = http_client.open(url_string, null, true);
+            input_stream = HttpClient.body(connection);
+            transfer_engine.copy(input_stream, bytes);
+            EngineLog.d("Downloader", "finished reading to byte stream - downloadToByteArray");
+            return bytes.toByteArray();
+        }
+        catch(IOException e){
+            throw new RuntimeException(e);
+        }
+        finally {
+            if (connection != null)
+            {
+                HttpClient.release(connection, input_stream);
+            }
+        }
+    }
+}
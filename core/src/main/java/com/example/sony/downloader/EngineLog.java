@@ -0,0 +1,78 @@
+package com.example.sony.downloader;
+
+/**
+ * This is where the download engine logs to. It does not know where the
+ * messages end up: on Android the DownloaderService plugs in a sink that
+ * passes them to android.util.Log, elsewhere they go to standard error
+ * unless another sink is set.
+ *
+ * The priorities have the same values as android.util.Log's, so a sink
+ * can hand them on as they are.
+ */
+public class EngineLog {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+
+    // writes "D/tag: message" lines to standard error
+    public static final Sink STANDARD_ERROR = new Sink()
+    {
+        public void println(int priority, String tag, String message)
+        {
+            System.err.println((priority == VERBOSE ? "V/" : "D/") + tag + ": " + message);
+        }
+    };
+
+    // drops every message
+    public static final Sink NONE = new Sink()
+    {
+        public void println(int priority, String tag, String message)
+        {
+        }
+    };
+
+    private static volatile Sink sink = STANDARD_ERROR;
+    private static volatile int min_priority = DEBUG;
+
+    private
+    EngineLog()
+    {
+    }
+
+    /*
+     * Sends all further messages of at least the given priority to the sink.
+     */
+    public static void
+    setSink(Sink sink, int min_priority)
+    {
+        EngineLog.sink = sink;
+        EngineLog.min_priority = min_priority;
+    }
+
+    public static void
+    v(String tag, String message)
+    {
+        println(VERBOSE, tag, message);
+    }
+
+    public static void
+    d(String tag, String message)
+    {
+        println(DEBUG, tag, message);
+    }
+
+    private static void
+    println(int priority, String tag, String message)
+    {
+        if (priority >= min_priority)
+        {
+            sink.println(priority, tag, message);
+        }
+    }
+
+    /*
+     * Receives the engine's log messages. Called from any thread.
+     */
+    public interface Sink {
+        void println(int priority, String tag, String message);
+    }
+}
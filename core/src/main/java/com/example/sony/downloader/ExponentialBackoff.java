@@ -0,0 +1,94 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * This is the default retry policy: transient failures (timeouts, dropped
+ * connections, 5xx, 429) are retried after a delay that doubles with every
+ * attempt, up to a maximum, and is then jittered to somewhere between half
+ * and all of that, so jobs that failed together do not all come back at
+ * the same moment. A Retry-After from the server is honoured when it asks
+ * for longer. Failures no retry can fix (404, bad URLs, checksum
+ * mismatches) are not retried at all.
+ */
+public class ExponentialBackoff implements RetryPolicy {
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_BASE_DELAY_MS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MS = 60 * 1000;
+
+    private final int max_attempts;
+    private final long base_delay_ms;
+    private final long max_delay_ms;
+    private final Random random = new Random();
+
+    public
+    ExponentialBackoff()
+    {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    /*
+     * max_attempts counts the first attempt too; 1 means never retry.
+     */
+    public
+    ExponentialBackoff(int max_attempts, long base_delay_ms, long max_delay_ms)
+    {
+        if (max_attempts < 1 || base_delay_ms < 0 || max_delay_ms < base_delay_ms)
+        {
+            throw new IllegalArgumentException("bad backoff settings: " + max_attempts + ", "
+                    + base_delay_ms + ", " + max_delay_ms);
+        }
+        this.max_attempts = max_attempts;
+        this.base_delay_ms = base_delay_ms;
+        this.max_delay_ms = max_delay_ms;
+    }
+
+    public long
+    delayBeforeRetry(int attempt, IOException failure)
+    {
+        if (attempt >= max_attempts || !isTransient(failure))
+        {
+            return NO_RETRY;
+        }
+        long ceiling = base_delay_ms << Math.min(attempt - 1, 30);
+        if (ceiling > max_delay_ms || ceiling < 0)
+        {
+            ceiling = max_delay_ms;
+        }
+        long half = ceiling / 2;
+        long delay;
+        synchronized (random)
+        {
+            delay = half + (long) (random.nextDouble() * (ceiling - half));
+        }
+        if (failure instanceof HttpStatusException)
+        {
+            long retry_after = ((HttpStatusException) failure).retry_after_ms;
+            if (retry_after > delay)
+            {
+                delay = Math.min(retry_after, max_delay_ms);
+            }
+        }
+        return delay;
+    }
+
+    /*
+     * Returns true if the failure may well not happen again: anything but an
+     * error status the server means, a missing file, a malformed URL, or a
+     * PermanentException.
+     */
+    public static boolean
+    isTransient(IOException failure)
+    {
+        if (failure instanceof HttpStatusException)
+        {
+            return ((HttpStatusException) failure).isTransient();
+        }
+        return !(failure instanceof PermanentException
+                || failure instanceof FileNotFoundException
+                || failure instanceof MalformedURLException
+                || failure instanceof ProtocolException);
+    }
+}
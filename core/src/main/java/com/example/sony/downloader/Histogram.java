@@ -0,0 +1,154 @@
+package com.example.sony.downloader;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A histogram of non-negative long values (durations, sizes, rates) that
+ * is cheap enough to record into from every job: recording is a few
+ * arithmetic operations and one atomic increment, with no locks and no
+ * allocation.
+ *
+ * Values below 16 get a bucket each; above that every power of two is
+ * split into 8 buckets, so a percentile is off by at most 1/8 of its
+ * value. Count, sum, minimum and maximum are exact.
+ */
+public class Histogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKETS = 8;               // per power of two
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /*
+     * Adds a value; negative values count as 0.
+     */
+    public void
+    record(long value)
+    {
+        if (value < 0)
+        {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value < (current = min.get()) && !min.compareAndSet(current, value))
+        {
+            // retry
+        }
+        while (value > (current = max.get()) && !max.compareAndSet(current, value))
+        {
+            // retry
+        }
+    }
+
+    public long
+    getCount()
+    {
+        return count.get();
+    }
+
+    /*
+     * Returns a consistent-enough copy of the histogram's state. Values
+     * recorded while the snapshot is taken may or may not be in it.
+     */
+    public Snapshot
+    snapshot()
+    {
+        long[] copy = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            copy[i] = buckets.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.get(), total == 0 ? 0 : min.get(), total == 0 ? 0 : max.get());
+    }
+
+    static int
+    bucketOf(long value)
+    {
+        if (value < LINEAR_BUCKETS)
+        {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub_bucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub_bucket;
+    }
+
+    /*
+     * Returns the smallest value that falls into the bucket.
+     */
+    static long
+    lowestValueOf(int bucket)
+    {
+        if (bucket < LINEAR_BUCKETS)
+        {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int sub_bucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub_bucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /*
+     * The state of a histogram at one moment.
+     */
+    public static class Snapshot {
+        private final long[] buckets;
+        public final long count;
+        public final long sum;
+        public final long min;
+        public final long max;
+
+        Snapshot(long[] buckets, long count, long sum, long min, long max)
+        {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        public double
+        getMean()
+        {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /*
+         * Returns the value below which the given fraction (0..1) of the
+         * recorded values fall: the middle of its bucket, kept within the
+         * recorded minimum and maximum.
+         */
+        public long
+        getPercentile(double fraction)
+        {
+            if (count == 0)
+            {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++)
+            {
+                seen += buckets[i];
+                if (seen >= rank)
+                {
+                    long low = lowestValueOf(i);
+                    long high = i + 1 < BUCKET_COUNT ? lowestValueOf(i + 1) - 1 : Long.MAX_VALUE;
+                    long middle = low + (high - low) / 2;
+                    return Math.max(min, Math.min(max, middle));
+                }
+            }
+            return max;
+        }
+    }
+}
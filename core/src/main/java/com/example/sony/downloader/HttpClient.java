@@ -0,0 +1,430 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.net.*;
+import java.security.Security;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+/**
+ * This is the one place the Downloader opens network connections.
+ *
+ * It is a thin layer over URLConnection that makes connection reuse work:
+ * the platform's HttpURLConnection already keeps idle keep-alive
+ * connections in a per-host pool, but only if every response body is read
+ * to the end and closed, and disconnect() is never called. All requests
+ * therefore go through open()/release() here. The layer also applies the
+ * configured timeouts, asks for gzip or deflate on whole-body requests
+ * (and unpacks them while they stream), and measures how long it takes
+ * to get each connection, which drops to almost nothing when one is
+ * reused, and how long the server then takes to answer.
+ *
+ * The size of the platform's connection pool is a setting of the whole
+ * process, so it is left alone unless the program that runs the engine
+ * asks for it with applyProcessSettings().
+ */
+public class HttpClient {
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 15000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30000;
+
+    // idle keep-alive connections kept per host
+    public static final int MAX_IDLE_CONNECTIONS_PER_HOST = 8;
+
+    // seconds a resolved host name is reused before asking DNS again (JVM only)
+    public static final int DNS_CACHE_SECONDS = 300;
+
+    // what whole-body requests that may come back compressed accept
+    public static final String ACCEPT_COMPRESSED = "gzip, deflate";
+
+    // input buffer of a decompressing stream; the JDK's default of 512 bytes
+    // costs a native call per half kilobyte
+    private static final int DECODE_BUFFER_SIZE = 16 * 1024;
+
+    // when releasing a connection, at most this much of an unread body is
+    // drained to keep the connection reusable; beyond that it is cheaper to
+    // drop the connection
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private volatile int connect_timeout_ms = DEFAULT_CONNECT_TIMEOUT_MS;
+    private volatile int read_timeout_ms = DEFAULT_READ_TIMEOUT_MS;
+
+    private final AtomicLong request_count = new AtomicLong();
+    private final AtomicLong total_connect_nanos = new AtomicLong();
+    private final AtomicLong max_connect_nanos = new AtomicLong();
+    private volatile Metrics metrics;
+
+    /*
+     * Turns on keep-alive and keeps up to MAX_IDLE_CONNECTIONS_PER_HOST
+     * idle connections per host. On a JVM it also caches resolved host
+     * names for DNS_CACHE_SECONDS; Android's resolver keeps its own cache
+     * and ignores that setting.
+     *
+     * These are settings of the whole process, and affect every other HTTP
+     * user in it. They are only read when the platform's HTTP stack starts
+     * up, so this must be called before the first connection is opened;
+     * it is meant for the program's entry point, not for library code.
+     */
+    public static void
+    applyProcessSettings()
+    {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS_PER_HOST));
+        try {
+            Security.setProperty("networkaddress.cache.ttl", String.valueOf(DNS_CACHE_SECONDS));
+        }
+        catch (SecurityException e) {
+            // keep the platform's own DNS cache policy
+        }
+    }
+
+    public void
+    setConnectTimeout(int connect_timeout_ms)
+    {
+        this.connect_timeout_ms = connect_timeout_ms;
+    }
+
+    public void
+    setReadTimeout(int read_timeout_ms)
+    {
+        this.read_timeout_ms = read_timeout_ms;
+    }
+
+    /*
+     * Opens a GET request for the whole resource and sends it. gzip and
+     * deflate are accepted; body() undoes them. Returns the connection with
+     * the response headers available.
+     */
+    public URLConnection
+    open(String url_string) throws IOException
+    {
+        return open(url_string, null, true);
+    }
+
+    /*
+     * Same as open(url), also setting the given extra request headers,
+     * given as name, value, name, value, ... (null values are skipped).
+     * If accept_compressed is false the body is requested as is, which is
+     * what most file downloads want: a ".gz" file should arrive as a ".gz"
+     * file, and ranges count encoded bytes.
+     */
+    public URLConnection
+    open(String url_string, String[] headers, boolean accept_compressed) throws IOException
+    {
+        URLConnection connection = prepare(url_string);
+        connection.setRequestProperty("Accept-Encoding", accept_compressed ? ACCEPT_COMPRESSED : "identity");
+        setHeaders(connection, headers);
+        return execute(connection);
+    }
+
+    /*
+     * Opens a GET request for bytes start..end (inclusive) of the resource and
+     * sends it. Compression is refused, since ranges count encoded bytes.
+     * If if_range is not null, it is sent as If-Range so a changed resource
+     * comes back whole (HTTP 200) instead of as a mismatched range.
+     */
+    public HttpURLConnection
+    openRange(String url_string, long start, long end, String if_range) throws IOException
+    {
+        HttpURLConnection connection = asHttp(prepare(url_string));
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + (end < 0 ? "" : String.valueOf(end)));
+        if (if_range != null)
+        {
+            connection.setRequestProperty("If-Range", if_range);
+        }
+        execute(connection);
+        return connection;
+    }
+
+    /*
+     * Sends a HEAD request for the resource.
+     */
+    public HttpURLConnection
+    openHead(String url_string) throws IOException
+    {
+        HttpURLConnection connection = asHttp(prepare(url_string));
+        connection.setRequestMethod("HEAD");
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        execute(connection);
+        return connection;
+    }
+
+    /*
+     * Returns the HTTP status of the response, or 200 for non-HTTP URLs
+     * (file:, ftp:), which either work or throw.
+     */
+    public static int
+    responseCode(URLConnection connection) throws IOException
+    {
+        if (connection instanceof HttpURLConnection)
+        {
+            return ((HttpURLConnection) connection).getResponseCode();
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+
+    /*
+     * Returns the response body, unpacking gzip or deflate if the server
+     * used it. An error status is thrown as an HttpStatusException instead.
+     */
+    public static InputStream
+    body(URLConnection connection) throws IOException
+    {
+        checkStatus(connection);
+        InputStream input_stream = connection.getInputStream();
+        String encoding = connection.getContentEncoding();
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding))
+        {
+            return new GZIPInputStream(input_stream, DECODE_BUFFER_SIZE);
+        }
+        if ("deflate".equalsIgnoreCase(encoding))
+        {
+            return inflate(input_stream);
+        }
+        return input_stream;
+    }
+
+    /*
+     * Returns true if the response body is compressed for the transfer, so
+     * its Content-Length and any ranges count encoded bytes.
+     */
+    public static boolean
+    isEncoded(URLConnection connection)
+    {
+        String encoding = connection.getContentEncoding();
+        return encoding != null && !encoding.equalsIgnoreCase("identity");
+    }
+
+    /*
+     * Unpacks a "deflate" body. That should be a zlib stream, but some
+     * servers send bare deflate data; the first two bytes tell which.
+     */
+    private static InputStream
+    inflate(InputStream input_stream) throws IOException
+    {
+        PushbackInputStream pushback = new PushbackInputStream(input_stream, 2);
+        int first = pushback.read();
+        int second = first == -1 ? -1 : pushback.read();
+        if (second != -1)
+        {
+            pushback.unread(second);
+        }
+        if (first != -1)
+        {
+            pushback.unread(first);
+        }
+        boolean zlib = first != -1 && second != -1 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlib), DECODE_BUFFER_SIZE)
+        {
+            @Override
+            public void
+            close() throws IOException
+            {
+                // an Inflater passed in is not ended by InflaterInputStream itself
+                super.close();
+                inf.end();
+            }
+        };
+    }
+
+    /*
+     * Throws an HttpStatusException if the response has an error status
+     * (400 and up), with the server's Retry-After if it sent one.
+     */
+    public static void
+    checkStatus(URLConnection connection) throws IOException
+    {
+        int code = responseCode(connection);
+        if (code >= 400)
+        {
+            throw new HttpStatusException(connection.getURL().toString(), code,
+                    parseRetryAfter(connection.getHeaderField("Retry-After")));
+        }
+    }
+
+    /*
+     * Parses a Retry-After header, given either in seconds or as an HTTP
+     * date, into milliseconds from now; or returns NO_RETRY_AFTER.
+     */
+    static long
+    parseRetryAfter(String header)
+    {
+        if (header == null)
+        {
+            return HttpStatusException.NO_RETRY_AFTER;
+        }
+        try {
+            return Math.max(0, Long.parseLong(header.trim()) * 1000);
+        }
+        catch (NumberFormatException e) {
+            // not seconds; try a date
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, format.parse(header.trim()).getTime() - System.currentTimeMillis());
+        }
+        catch (ParseException e) {
+            return HttpStatusException.NO_RETRY_AFTER;
+        }
+    }
+
+    /*
+     * Finishes with a connection so it can go back to the keep-alive pool.
+     * A small unread remainder of the body is drained; a large one is not
+     * worth the bandwidth, so the connection is closed instead. Never throws.
+     */
+    public static void
+    release(URLConnection connection, InputStream body)
+    {
+        try {
+            InputStream raw = body;
+            if (raw == null)
+            {
+                int code = responseCode(connection);
+                raw = code >= 400 && connection instanceof HttpURLConnection
+                        ? ((HttpURLConnection) connection).getErrorStream()
+                        : connection.getInputStream();
+            }
+            if (raw != null)
+            {
+                byte[] scrap = new byte[4096];
+                long drained = 0;
+                int bytes_read = 0;
+                while (drained < MAX_DRAIN_BYTES && (bytes_read = raw.read(scrap)) != -1)
+                {
+                    drained += bytes_read;
+                }
+                raw.close();
+                if (bytes_read != -1 && connection instanceof HttpURLConnection)
+                {
+                    ((HttpURLConnection) connection).disconnect();
+                }
+            }
+        }
+        catch (IOException e) {
+            if (connection instanceof HttpURLConnection)
+            {
+                ((HttpURLConnection) connection).disconnect();
+            }
+        }
+    }
+
+    /*
+     * Starts recording every request into the given metrics: the request
+     * count ("http.requests"), the time to get a connection
+     * ("http.connect_us") and the time from sending the request to having
+     * the response headers ("http.ttfb_us").
+     */
+    public void
+    setMetrics(Metrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /*
+     * Returns the number of requests sent so far.
+     */
+    public long
+    getRequestCount()
+    {
+        return request_count.get();
+    }
+
+    /*
+     * Returns the average time, in milliseconds, from starting a request to
+     * having a connection to send it on. Includes DNS, TCP and TLS setup
+     * for new connections; close to zero for reused ones.
+     */
+    public double
+    getAverageConnectMillis()
+    {
+        long count = request_count.get();
+        return count == 0 ? 0 : total_connect_nanos.get() / 1e6 / count;
+    }
+
+    public double
+    getMaxConnectMillis()
+    {
+        return max_connect_nanos.get() / 1e6;
+    }
+
+    @Override
+    public String
+    toString()
+    {
+        return String.format("HttpClient[requests=%d, avg connect=%.1f ms, max connect=%.1f ms]",
+                request_count.get(), getAverageConnectMillis(), getMaxConnectMillis());
+    }
+
+    private URLConnection
+    prepare(String url_string) throws IOException
+    {
+        URLConnection connection = new URL(url_string).openConnection();
+        connection.setConnectTimeout(connect_timeout_ms);
+        connection.setReadTimeout(read_timeout_ms);
+        connection.setRequestProperty("Connection", "keep-alive");
+        return connection;
+    }
+
+    /*
+     * Connects (or takes a pooled connection) and records how long that took.
+     * With metrics on, the request is also sent and its response headers
+     * read here, to time the server's answer.
+     */
+    private URLConnection
+    execute(URLConnection connection) throws IOException
+    {
+        long start = System.nanoTime();
+        connection.connect();
+        long elapsed = System.nanoTime() - start;
+        Metrics metrics = this.metrics;
+        if (metrics != null)
+        {
+            metrics.increment("http.requests");
+            metrics.record("http.connect_us", elapsed / 1000);
+            if (connection instanceof HttpURLConnection)
+            {
+                long sent = System.nanoTime();
+                ((HttpURLConnection) connection).getResponseCode();
+                metrics.record("http.ttfb_us", (System.nanoTime() - sent) / 1000);
+            }
+        }
+
+        request_count.incrementAndGet();
+        total_connect_nanos.addAndGet(elapsed);
+        long max;
+        while (elapsed > (max = max_connect_nanos.get()) && !max_connect_nanos.compareAndSet(max, elapsed))
+        {
+            // retry
+        }
+        return connection;
+    }
+
+    private static void
+    setHeaders(URLConnection connection, String[] headers)
+    {
+        if (headers != null)
+        {
+            for (int i = 0; i + 1 < headers.length; i += 2)
+            {
+                if (headers[i + 1] != null)
+                {
+                    connection.setRequestProperty(headers[i], headers[i + 1]);
+                }
+            }
+        }
+    }
+
+    private static HttpURLConnection
+    asHttp(URLConnection connection) throws IOException
+    {
+        if (!(connection instanceof HttpURLConnection))
+        {
+            throw new IOException("not an HTTP URL: " + connection.getURL());
+        }
+        return (HttpURLConnection) connection;
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+
+/**
+ * Thrown when a server answers a request with an error status (4xx, 5xx).
+ * Carries the status, so a retry policy can tell a server that is briefly
+ * overloaded (503, 429) from a request that will never work (404), and
+ * the server's Retry-After, if it sent one.
+ */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    // value of retry_after_ms when the server did not send Retry-After
+    public static final long NO_RETRY_AFTER = -1;
+
+    public final int status;
+    public final long retry_after_ms;
+
+    public
+    HttpStatusException(String url, int status, long retry_after_ms)
+    {
+        super("HTTP " + status + " for " + url);
+        this.status = status;
+        this.retry_after_ms = retry_after_ms;
+    }
+
+    /*
+     * Returns true for statuses that may well be gone on the next attempt:
+     * request timeout, too many requests, and server-side errors.
+     */
+    public boolean
+    isTransient()
+    {
+        return status == 408 || status == 429 || status >= 500;
+    }
+}
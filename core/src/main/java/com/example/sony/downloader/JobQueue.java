@@ -0,0 +1,505 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * This is the durable list of downloads still to be done, so that queued
+ * and half-finished downloads carry on after the process is killed. The
+ * service adds a job when a download is asked for, removes it once the
+ * download has succeeded or failed for good, and on startup runs every
+ * job that is still in the queue.
+ *
+ * The queue is an append-only log: one line per added or removed job.
+ * Records are collected in memory and written with a single fsync every
+ * sync interval, so a burst of a thousand queued links costs one disk
+ * flush instead of a thousand; a crash loses at most the last interval's
+ * records. Every line carries a CRC, and a line cut off by a crash is
+ * dropped when the log is read back. Once removed jobs make up most of
+ * the log, it is compacted: the pending jobs are written to a new file,
+ * which is renamed over the old one.
+ *
+ * After close() the queue still takes records, e.g. from a download that
+ * finished while the owner was shutting down, but writes and syncs each
+ * one straight away instead of batching it.
+ *
+ * Record format, fields separated by tabs:
+ *   <crc32 hex> A <id> <size_hint> <max_size> <checksum> <group> <url>
+ *   <crc32 hex> D <id>
+ */
+public class JobQueue {
+    // time between a record being added and it being written and synced
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 200;
+
+    // the log is compacted once it holds this many records ...
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    // ... and this many times more records than pending jobs
+    private static final int COMPACT_RATIO = 4;
+
+    private final File file;
+    private final long sync_interval_ms;
+    private final ScheduledExecutorService syncer;
+
+    private final LinkedHashMap<Long, Job> pending = new LinkedHashMap<>();   // guarded by this
+    private long next_id = 1;                               // guarded by this
+    private int record_count;                               // guarded by this; records in the log
+    private StringBuilder unsynced = new StringBuilder();   // guarded by this
+    private boolean sync_scheduled;                         // guarded by this
+    private boolean closed;                                 // guarded by this
+
+    private FileOutputStream output;                        // guarded by output_lock
+    private final Object output_lock = new Object();
+
+    private
+    JobQueue(File file, long sync_interval_ms)
+    {
+        this.file = file;
+        this.sync_interval_ms = sync_interval_ms;
+        this.syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "job_queue_sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static JobQueue
+    open(File file) throws IOException
+    {
+        return open(file, DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    /*
+     * Reads back the log (creating it if there is none) and opens it for
+     * appending. The jobs it still holds are returned by getPending().
+     */
+    public static JobQueue
+    open(File file, long sync_interval_ms) throws IOException
+    {
+        JobQueue queue = new JobQueue(file, sync_interval_ms);
+        File folder = file.getAbsoluteFile().getParentFile();
+        if (folder != null && !folder.exists())
+        {
+            folder.mkdirs();
+        }
+        long good_length = file.exists() ? queue.replay() : 0;
+        synchronized (queue.output_lock)
+        {
+            RandomAccessFile log = new RandomAccessFile(file, "rw");
+            try {
+                if (log.length() > good_length)
+                {
+                    // drop a record cut off by a crash, so new ones start on a fresh line
+                    EngineLog.d("JobQueue", "dropping " + (log.length() - good_length) + " bytes of broken log");
+                    log.setLength(good_length);
+                }
+            }
+            finally {
+                log.close();
+            }
+            queue.output = new FileOutputStream(file, true);
+        }
+        synchronized (queue)
+        {
+            if (queue.needsCompaction())
+            {
+                queue.scheduleSync();
+            }
+        }
+        return queue;
+    }
+
+    /*
+     * Adds a download to the queue and returns its job. group ties together
+     * the jobs of one batch (null for none); max_size is the batch's size
+     * limit (LinkFilter.NO_SIZE_LIMIT for none).
+     */
+    public Job
+    add(String url, long size_hint, Checksum checksum, String group, long max_size)
+    {
+        Job job;
+        boolean write_now;
+        synchronized (this)
+        {
+            job = new Job(next_id++, url, size_hint, checksum, group, max_size);
+            pending.put(job.id, job);
+            append(recordOf(job));
+            write_now = closed;
+        }
+        if (write_now)
+        {
+            syncAfterClose();
+        }
+        return job;
+    }
+
+    /*
+     * Removes a finished (or given up) job. Removing one twice is harmless.
+     */
+    public void
+    remove(Job job)
+    {
+        boolean write_now;
+        synchronized (this)
+        {
+            if (pending.remove(job.id) == null)
+            {
+                return;
+            }
+            append("D\t" + job.id);
+            write_now = closed;
+        }
+        if (write_now)
+        {
+            syncAfterClose();
+        }
+    }
+
+    /*
+     * Returns the jobs still queued, oldest first.
+     */
+    public synchronized List<Job>
+    getPending()
+    {
+        return new ArrayList<>(pending.values());
+    }
+
+    public synchronized int
+    size()
+    {
+        return pending.size();
+    }
+
+    public File
+    getFile()
+    {
+        return file;
+    }
+
+    /*
+     * Writes and syncs every record added so far, without waiting for the
+     * sync interval. After close() the records go through a stream opened
+     * just for them.
+     */
+    public void
+    sync() throws IOException
+    {
+        // output_lock keeps syncs in order: records taken first are written first
+        synchronized (output_lock)
+        {
+            String records;
+            List<Job> live = null;
+            synchronized (this)
+            {
+                sync_scheduled = false;
+                if (output != null && needsCompaction())
+                {
+                    live = new ArrayList<>(pending.values());
+                    record_count = live.size();
+                }
+                records = unsynced.toString();
+                unsynced = new StringBuilder();
+            }
+
+            if (output == null)
+            {
+                if (records.length() > 0)
+                {
+                    FileOutputStream late_output = new FileOutputStream(file, true);
+                    try {
+                        late_output.write(records.getBytes("UTF-8"));
+                        late_output.getChannel().force(false);
+                    }
+                    finally {
+                        late_output.close();
+                    }
+                }
+                return;
+            }
+            if (live != null)
+            {
+                // the rewritten log holds everything, including the unsynced records
+                compact(live);
+            }
+            else if (records.length() > 0)
+            {
+                output.write(records.getBytes("UTF-8"));
+                output.getChannel().force(false);
+            }
+        }
+    }
+
+    /*
+     * Syncs what is left and closes the log. Records added after this are
+     * written one by one; see syncAfterClose().
+     */
+    public void
+    close()
+    {
+        synchronized (this)
+        {
+            closed = true;
+        }
+        syncer.shutdown();
+        try {
+            sync();
+        }
+        catch (IOException e) {
+            EngineLog.d("JobQueue", "could not sync " + file + ": " + e);
+        }
+        synchronized (output_lock)
+        {
+            try {
+                if (output != null)
+                {
+                    output.close();
+                }
+            }
+            catch (IOException e) {
+                // nothing left to lose
+            }
+            output = null;
+        }
+    }
+
+    /*
+     * Writes the record just added to a closed queue. The caller may not
+     * be able to handle a failure, so it is only logged; the job then
+     * stays as it was on disk, as after a crash.
+     */
+    private void
+    syncAfterClose()
+    {
+        try {
+            sync();
+        }
+        catch (IOException e) {
+            EngineLog.d("JobQueue", "could not write to closed " + file + ": " + e);
+        }
+    }
+
+    private void
+    append(String record)
+    {
+        unsynced.append(crcOf(record)).append('\t').append(record).append('\n');
+        record_count++;
+        scheduleSync();
+    }
+
+    private void
+    scheduleSync()
+    {
+        if (sync_scheduled || closed)
+        {
+            return;
+        }
+        sync_scheduled = true;
+        syncer.schedule(new Runnable() {
+            public void run()
+            {
+                try {
+                    sync();
+                }
+                catch (IOException e) {
+                    EngineLog.d("JobQueue", "could not sync " + file + ": " + e);
+                }
+            }
+        }, sync_interval_ms, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean
+    needsCompaction()
+    {
+        return record_count >= COMPACT_MIN_RECORDS && record_count >= COMPACT_RATIO * pending.size();
+    }
+
+    /*
+     * Replaces the log with one holding just the given jobs. Called with
+     * output_lock held.
+     */
+    private void
+    compact(List<Job> live) throws IOException
+    {
+        File temp_file = new File(file.getPath() + ".tmp");
+        FileOutputStream temp_output = new FileOutputStream(temp_file);
+        try {
+            StringBuilder records = new StringBuilder();
+            for (Job job : live)
+            {
+                String record = recordOf(job);
+                records.append(crcOf(record)).append('\t').append(record).append('\n');
+            }
+            temp_output.write(records.toString().getBytes("UTF-8"));
+            temp_output.getChannel().force(false);
+        }
+        finally {
+            temp_output.close();
+        }
+        output.close();
+        if (!temp_file.renameTo(file))
+        {
+            file.delete();
+            if (!temp_file.renameTo(file))
+            {
+                output = new FileOutputStream(file, true);
+                throw new IOException("cannot replace " + file);
+            }
+        }
+        output = new FileOutputStream(file, true);
+        EngineLog.v("JobQueue", "compacted " + file + " to " + live.size() + " jobs");
+    }
+
+    /*
+     * Reads the log into pending and returns the length of its readable
+     * part; reading stops at the first broken record.
+     */
+    private long
+    replay() throws IOException
+    {
+        InputStream input_stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            long offset = 0;
+            long good_length = 0;
+            int b;
+            while ((b = input_stream.read()) != -1)
+            {
+                offset++;
+                if (b != '\n')
+                {
+                    line.write(b);
+                    continue;
+                }
+                if (!replayRecord(line.toString("UTF-8")))
+                {
+                    break;
+                }
+                line.reset();
+                good_length = offset;
+            }
+            return good_length;
+        }
+        finally {
+            input_stream.close();
+        }
+    }
+
+    private boolean
+    replayRecord(String line)
+    {
+        int tab = line.indexOf('\t');
+        if (tab < 0 || !line.substring(0, tab).equals(crcOf(line.substring(tab + 1))))
+        {
+            return false;
+        }
+        String[] fields = line.substring(tab + 1).split("\t", -1);
+        try {
+            long id = Long.parseLong(fields[1]);
+            if (fields[0].equals("A") && fields.length == 7)
+            {
+                String checksum = unescape(fields[4]);
+                String group = unescape(fields[5]);
+                pending.put(id, new Job(id, unescape(fields[6]), Long.parseLong(fields[2]),
+                        checksum.length() == 0 ? null : Checksum.parse(checksum),
+                        group.length() == 0 ? null : group, Long.parseLong(fields[3])));
+            }
+            else if (fields[0].equals("D") && fields.length == 2)
+            {
+                pending.remove(id);
+            }
+            else
+            {
+                return false;
+            }
+            next_id = Math.max(next_id, id + 1);
+            record_count++;
+            return true;
+        }
+        catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static String
+    recordOf(Job job)
+    {
+        return "A\t" + job.id + "\t" + job.size_hint + "\t" + job.max_size
+                + "\t" + escape(job.checksum == null ? "" : job.checksum.toString())
+                + "\t" + escape(job.group == null ? "" : job.group) + "\t" + escape(job.url);
+    }
+
+    private static String
+    crcOf(String record)
+    {
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(record.getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    // tabs, line breaks and backslashes would break the record format
+    private static String
+    escape(String value)
+    {
+        if (value.indexOf('\\') < 0 && value.indexOf('\t') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+        {
+            return value;
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String
+    unescape(String value)
+    {
+        if (value.indexOf('\\') < 0)
+        {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length())
+            {
+                char next = value.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            }
+            else
+            {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /*
+     * One queued download.
+     */
+    public static class Job {
+        public final long id;
+        public final String url;
+        public final long size_hint;
+        public final Checksum checksum;     // null for none
+        public final String group;          // batch the job belongs to, or null
+        public final long max_size;         // the batch's size limit
+
+        Job(long id, String url, long size_hint, Checksum checksum, String group, long max_size)
+        {
+            this.id = id;
+            this.url = url;
+            this.size_hint = size_hint;
+            this.checksum = checksum;
+            this.group = group;
+            this.max_size = max_size;
+        }
+    }
+}
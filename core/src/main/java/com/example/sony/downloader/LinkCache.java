@@ -0,0 +1,338 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This is a cache of the links extracted from web pages, keyed by page URL.
+ * Each entry keeps the validators (ETag, Last-Modified) the server sent with
+ * the page, so fetching the same page again can be a conditional request:
+ * if the server answers "304 Not Modified", the cached links are reused and
+ * the page is neither downloaded nor parsed.
+ *
+ * Entries are held in memory in least-recently-used order up to a fixed
+ * count. If a directory is given, entries are also written there, so the
+ * cache survives the process; the directory is bounded separately.
+ *
+ * Hit, miss and eviction counts are kept so the sizes can be tuned.
+ */
+public class LinkCache {
+    private final int max_entries;
+    private final File disk_directory;          // null for memory only
+    private final int max_disk_entries;
+    private final LinkedHashMap<String, Entry> entries;     // guarded by itself
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /*
+     * Creates a memory-only cache of at most max_entries pages.
+     */
+    public
+    LinkCache(int max_entries)
+    {
+        this(max_entries, null, 0);
+    }
+
+    /*
+     * Creates a cache of at most max_entries pages in memory, backed by at
+     * most max_disk_entries pages in the given directory.
+     */
+    public
+    LinkCache(int max_entries, File disk_directory, int max_disk_entries)
+    {
+        if (max_entries < 1)
+        {
+            throw new IllegalArgumentException("cache must hold at least one entry");
+        }
+        this.max_entries = max_entries;
+        this.disk_directory = disk_directory;
+        this.max_disk_entries = max_disk_entries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean
+            removeEldestEntry(Map.Entry<String, LinkCache.Entry> eldest)
+            {
+                if (size() > LinkCache.this.max_entries)
+                {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        if (disk_directory != null)
+        {
+            disk_directory.mkdirs();
+        }
+    }
+
+    /*
+     * Returns the cached entry for the page, from memory or disk, or null.
+     * The entry still has to be revalidated with the server before use.
+     */
+    public Entry
+    get(String url)
+    {
+        synchronized (entries)
+        {
+            Entry entry = entries.get(url);
+            if (entry != null)
+            {
+                return entry;
+            }
+        }
+        Entry entry = readFromDisk(url);
+        if (entry != null)
+        {
+            synchronized (entries)
+            {
+                entries.put(url, entry);
+            }
+        }
+        return entry;
+    }
+
+    /*
+     * Stores the links of a freshly fetched page. Pages the server gave no
+     * validators for are not stored, since they could never be revalidated;
+     * any older entry for them is dropped.
+     */
+    public void
+    put(String url, String etag, String last_modified, List<String> links)
+    {
+        if (etag == null && last_modified == null)
+        {
+            synchronized (entries)
+            {
+                entries.remove(url);
+            }
+            if (disk_directory != null)
+            {
+                diskFileFor(url).delete();
+            }
+            return;
+        }
+        Entry entry = new Entry(url, etag, last_modified, links.toArray(new String[links.size()]));
+        synchronized (entries)
+        {
+            entries.put(url, entry);
+        }
+        writeToDisk(entry);
+    }
+
+    /*
+     * Records that a cached entry was confirmed unchanged by the server.
+     */
+    public void
+    recordHit()
+    {
+        hits.incrementAndGet();
+    }
+
+    /*
+     * Records that a page had to be downloaded and parsed.
+     */
+    public void
+    recordMiss()
+    {
+        misses.incrementAndGet();
+    }
+
+    public long
+    getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long
+    getMissCount()
+    {
+        return misses.get();
+    }
+
+    public long
+    getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+    public int
+    size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String
+    toString()
+    {
+        return "LinkCache[size=" + size() + "/" + max_entries + ", hits=" + hits.get()
+                + ", misses=" + misses.get() + ", evictions=" + evictions.get() + "]";
+    }
+
+    /*
+     * Returns the file an entry for the URL is kept in on disk.
+     */
+    private File
+    diskFileFor(String url)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest)
+            {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(disk_directory, name.append(".links").toString());
+        }
+        catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new RuntimeException(e);      // both are guaranteed to exist
+        }
+    }
+
+    /*
+     * Reads an entry from disk. Any problem with the file is treated as a
+     * plain cache miss.
+     * The file holds the URL, ETag and Last-Modified (empty if absent) on
+     * the first three lines, followed by one link per line.
+     */
+    private Entry
+    readFromDisk(String url)
+    {
+        if (disk_directory == null)
+        {
+            return null;
+        }
+        File file = diskFileFor(url);
+        if (!file.exists())
+        {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String stored_url = reader.readLine();
+            String etag = reader.readLine();
+            String last_modified = reader.readLine();
+            if (!url.equals(stored_url) || last_modified == null)
+            {
+                return null;
+            }
+            ArrayList<String> links = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                links.add(line);
+            }
+            file.setLastModified(System.currentTimeMillis());   // for disk LRU
+            return new Entry(url, etag.length() == 0 ? null : etag,
+                    last_modified.length() == 0 ? null : last_modified,
+                    links.toArray(new String[links.size()]));
+        }
+        catch (IOException e) {
+            return null;
+        }
+        finally {
+            if (reader != null)
+            {
+                try {
+                    reader.close();
+                }
+                catch (IOException e) {
+                    // empty
+                }
+            }
+        }
+    }
+
+    /*
+     * Writes an entry to disk and trims the directory to its limit,
+     * dropping the least recently used files. Failures only cost the
+     * disk copy; the memory entry is unaffected.
+     */
+    private void
+    writeToDisk(Entry entry)
+    {
+        if (disk_directory == null)
+        {
+            return;
+        }
+        File file = diskFileFor(entry.url);
+        File temp_file = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp_file), "UTF-8"));
+            writer.write(entry.url + "\n");
+            writer.write((entry.etag == null ? "" : entry.etag) + "\n");
+            writer.write((entry.last_modified == null ? "" : entry.last_modified) + "\n");
+            for (String link : entry.links)
+            {
+                writer.write(link);
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            file.delete();
+            if (!temp_file.renameTo(file))
+            {
+                temp_file.delete();
+            }
+        }
+        catch (IOException e) {
+            temp_file.delete();
+        }
+        finally {
+            if (writer != null)
+            {
+                try {
+                    writer.close();
+                }
+                catch (IOException e) {
+                    // empty
+                }
+            }
+        }
+
+        File[] files = disk_directory.listFiles();
+        if (files != null && files.length > max_disk_entries)
+        {
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File a, File b)
+                {
+                    long difference = a.lastModified() - b.lastModified();
+                    return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+                }
+            });
+            for (int i = 0; i < files.length - max_disk_entries; i++)
+            {
+                files[i].delete();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /*
+     * The links of one page along with the validators needed to revalidate them.
+     */
+    public static class Entry {
+        public final String url;
+        public final String etag;
+        public final String last_modified;
+        public final String[] links;
+
+        Entry(String url, String etag, String last_modified, String[] links)
+        {
+            this.url = url;
+            this.etag = etag;
+            this.last_modified = last_modified;
+            this.links = links;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.sony.downloader;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * This class decides which links of a batch are actually downloaded.
+ * A link passes if its file extension is one of the wanted ones (when any
+ * are given), if it matches the regular expression (when one is given),
+ * and if the file is not larger than the size limit (when one is given).
+ *
+ * The extension and pattern checks are free; the size check needs the
+ * server's answer to a probe, so it is applied separately, just before
+ * each download.
+ */
+public class LinkFilter {
+    // value of max_size when there is no size limit
+    public static final long NO_SIZE_LIMIT = -1;
+
+    private final Set<String> extensions;       // empty accepts every extension
+    private final Pattern pattern;              // null accepts every link
+    private final long max_size;
+
+    public
+    LinkFilter(Collection<String> extensions, String regex, long max_size)
+    {
+        this.extensions = new HashSet<>();
+        if (extensions != null)
+        {
+            for (String extension : extensions)
+            {
+                String trimmed = extension.trim().toLowerCase(Locale.US);
+                if (trimmed.startsWith("."))
+                {
+                    trimmed = trimmed.substring(1);
+                }
+                if (trimmed.length() > 0)
+                {
+                    this.extensions.add(trimmed);
+                }
+            }
+        }
+        this.pattern = (regex == null || regex.length() == 0) ? null : Pattern.compile(regex);
+        this.max_size = max_size;
+    }
+
+    /*
+     * Returns true if the link passes the extension and pattern checks.
+     */
+    public boolean
+    accepts(String url)
+    {
+        if (!extensions.isEmpty() && !extensions.contains(Crawler.extensionOf(url)))
+        {
+            return false;
+        }
+        return pattern == null || pattern.matcher(url).find();
+    }
+
+    /*
+     * Returns true if a file of the given length passes the size limit.
+     * Files of unknown length pass, since there is nothing to judge them by.
+     */
+    public boolean
+    acceptsSize(long length)
+    {
+        return max_size == NO_SIZE_LIMIT || length == RemoteFile.LENGTH_UNKNOWN || length <= max_size;
+    }
+
+    /*
+     * Returns true if the size limit is set, i.e. links must be probed first.
+     */
+    public boolean
+    hasSizeLimit()
+    {
+        return max_size != NO_SIZE_LIMIT;
+    }
+
+    public long
+    getMaxSize()
+    {
+        return max_size;
+    }
+
+    /*
+     * Returns the links that pass the extension and pattern checks, in order.
+     */
+    public List<String>
+    filter(Collection<String> urls)
+    {
+        ArrayList<String> accepted = new ArrayList<>();
+        for (String url : urls)
+        {
+            if (accepts(url))
+            {
+                accepted.add(url);
+            }
+        }
+        return accepted;
+    }
+}
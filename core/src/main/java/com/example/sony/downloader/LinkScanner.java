@@ -0,0 +1,485 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * This is a streaming link extractor. Instead of building a whole document
+ * tree first (as Jsoup does), it tokenizes the page as characters arrive
+ * and hands out the href of every <a> tag in small chunks, so the first
+ * links of a huge directory listing show up while the rest of the page is
+ * still downloading, and memory use does not grow with the page size.
+ *
+ * Only the markup that matters is understood: tags, quoted attributes,
+ * comments, <script>/<style> bodies (skipped), <base href> (used to resolve
+ * relative links) and the common character entities in attribute values.
+ * Links are checked against a short list of downloadable schemes before a
+ * URL object is ever built, so rejecting junk like "javascript:" or
+ * "mailto:" links costs no exception.
+ */
+public class LinkScanner {
+    // links are handed out in chunks of at most this many ...
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    // ... or as soon as the oldest waiting link is this old
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 250;
+
+    // longest tag that is buffered; anything longer is not a link we want
+    private static final int MAX_TAG_LENGTH = 16 * 1024;
+
+    private static final int READ_SIZE = 8192;
+
+    private final LinkSink sink;
+    private final int chunk_size;
+    private final long flush_interval_ms;
+    private URL base_url;
+
+    private ArrayList<String> chunk;
+    private long chunk_started;
+    private int link_count;
+
+    public
+    LinkScanner(URL base_url, LinkSink sink)
+    {
+        this(base_url, sink, DEFAULT_CHUNK_SIZE, DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    public
+    LinkScanner(URL base_url, LinkSink sink, int chunk_size, long flush_interval_ms)
+    {
+        this.base_url = base_url;
+        this.sink = sink;
+        this.chunk_size = chunk_size;
+        this.flush_interval_ms = flush_interval_ms;
+        this.chunk = new ArrayList<>();
+    }
+
+    /*
+     * Reads the whole page from the reader, handing links to the sink as
+     * they are found. Returns the total number of links found.
+     */
+    public int
+    scan(Reader reader) throws IOException
+    {
+        char[] buffer = new char[READ_SIZE];
+        StringBuilder tag = new StringBuilder();
+        boolean in_tag = false;
+        char quote = 0;                 // quote char while inside a quoted attribute value
+        String skip_until = null;       // closing text to look for (comment, script, style)
+        int skip_matched = 0;
+
+        int chars_read;
+        while ((chars_read = reader.read(buffer)) != -1)
+        {
+            for (int i = 0; i < chars_read; i++)
+            {
+                char c = buffer[i];
+                if (skip_until != null)
+                {
+                    // inside a comment or script/style body; match the closing text
+                    // case-insensitively, one char at a time
+                    skip_matched = advanceMatch(skip_until, skip_matched, Character.toLowerCase(c));
+                    if (skip_matched == skip_until.length())
+                    {
+                        skip_until = null;
+                    }
+                }
+                else if (!in_tag)
+                {
+                    if (c == '<')
+                    {
+                        in_tag = true;
+                        tag.setLength(0);
+                    }
+                }
+                else if (quote != 0)
+                {
+                    if (c == quote)
+                    {
+                        quote = 0;
+                    }
+                    appendBounded(tag, c);
+                }
+                else if (tag.length() == 0 && !isLetter(c) && c != '/' && c != '!')
+                {
+                    // a stray '<' in text, as in "a < b"
+                    in_tag = c == '<';
+                }
+                else if (c == '>')
+                {
+                    in_tag = false;
+                    skip_until = handleTag(tag);
+                    skip_matched = 0;
+                }
+                else
+                {
+                    if ((c == '"' || c == '\'') && lastNonSpace(tag) == '=')
+                    {
+                        quote = c;
+                    }
+                    appendBounded(tag, c);
+                    if (tag.length() == 3 && tag.charAt(0) == '!'
+                            && tag.charAt(1) == '-' && tag.charAt(2) == '-')
+                    {
+                        // comment: ignore everything up to "-->"
+                        in_tag = false;
+                        skip_until = "-->";
+                        skip_matched = 0;
+                    }
+                }
+            }
+            if (!chunk.isEmpty() && System.currentTimeMillis() - chunk_started >= flush_interval_ms)
+            {
+                flush();
+            }
+        }
+        flush();
+        return link_count;
+    }
+
+    /*
+     * Returns how many chars of the closing text are matched once c follows
+     * the first matched ones: the longest prefix of the text that the input
+     * now ends with. On a mismatch this falls back to a shorter prefix
+     * rather than to nothing, so "--->" still ends a comment at "-->".
+     * Closing texts are a few chars long, so each prefix is simply tried.
+     */
+    static int
+    advanceMatch(String text, int matched, char c)
+    {
+        if (text.charAt(matched) == c)
+        {
+            return matched + 1;
+        }
+        for (int length = matched; length > 0; length--)
+        {
+            // do the last length - 1 matched chars plus c spell the first length chars?
+            if (text.charAt(length - 1) == c && text.regionMatches(0, text, matched - length + 1, length - 1))
+            {
+                return length;
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * Looks at one complete tag (without the angle brackets). Collects the
+     * href of <a> tags and applies <base href>. Returns the text to skip to
+     * if the tag opens a script or style body, or null.
+     */
+    private String
+    handleTag(StringBuilder tag)
+    {
+        int name_end = 0;
+        while (name_end < tag.length() && !isSpace(tag.charAt(name_end)) && tag.charAt(name_end) != '/')
+        {
+            name_end++;
+        }
+        if (name_end == 0)
+        {
+            return null;
+        }
+        String name = tag.substring(0, name_end).toLowerCase(Locale.US);
+        if (name.equals("script") || name.equals("style"))
+        {
+            return tag.charAt(tag.length() - 1) == '/' ? null : "</" + name;
+        }
+        if (!name.equals("a") && !name.equals("base"))
+        {
+            return null;
+        }
+
+        String href = findAttribute(tag, name_end, "href");
+        if (href == null)
+        {
+            return null;
+        }
+        URL url = resolve(href);
+        if (url == null)
+        {
+            return null;
+        }
+        if (name.equals("base"))
+        {
+            base_url = url;
+        }
+        else
+        {
+            addLink(url.toString());
+        }
+        return null;
+    }
+
+    /*
+     * Returns the decoded value of the named attribute, or null.
+     */
+    private static String
+    findAttribute(StringBuilder tag, int position, String wanted)
+    {
+        int length = tag.length();
+        while (position < length)
+        {
+            // skip to the next attribute name
+            while (position < length && (isSpace(tag.charAt(position)) || tag.charAt(position) == '/'))
+            {
+                position++;
+            }
+            int name_start = position;
+            while (position < length && !isSpace(tag.charAt(position)) && tag.charAt(position) != '=')
+            {
+                position++;
+            }
+            int name_end = position;
+            while (position < length && isSpace(tag.charAt(position)))
+            {
+                position++;
+            }
+            if (position >= length || tag.charAt(position) != '=')
+            {
+                continue;       // attribute without a value
+            }
+            position++;
+            while (position < length && isSpace(tag.charAt(position)))
+            {
+                position++;
+            }
+
+            int value_start;
+            int value_end;
+            if (position < length && (tag.charAt(position) == '"' || tag.charAt(position) == '\''))
+            {
+                char quote = tag.charAt(position);
+                value_start = position + 1;
+                value_end = value_start;
+                while (value_end < length && tag.charAt(value_end) != quote)
+                {
+                    value_end++;
+                }
+                position = value_end + 1;
+            }
+            else
+            {
+                value_start = position;
+                value_end = position;
+                while (value_end < length && !isSpace(tag.charAt(value_end)))
+                {
+                    value_end++;
+                }
+                position = value_end;
+            }
+
+            if (name_end - name_start == wanted.length()
+                    && tag.substring(name_start, name_end).equalsIgnoreCase(wanted))
+            {
+                return decodeEntities(tag.substring(value_start, value_end).trim());
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Resolves the href against the current base URL. Returns null, without
+     * throwing, for empty links, fragments and non-downloadable schemes.
+     */
+    private URL
+    resolve(String href)
+    {
+        if (href.length() == 0 || href.charAt(0) == '#')
+        {
+            return null;
+        }
+        String scheme = schemeOf(href);
+        if (scheme == null)
+        {
+            if (base_url == null)
+            {
+                return null;
+            }
+        }
+        else if (!scheme.equals("http") && !scheme.equals("https")
+                && !scheme.equals("ftp") && !scheme.equals("file"))
+        {
+            return null;
+        }
+
+        try {
+            // the scheme is known to be supported, so this only fails on
+            // seriously malformed input such as a bad port number
+            return new URL(base_url, href);
+        }
+        catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Returns the lower-case scheme of an absolute URL, or null if the
+     * string is relative.
+     */
+    private static String
+    schemeOf(String href)
+    {
+        for (int i = 0; i < href.length(); i++)
+        {
+            char c = href.charAt(i);
+            if (c == ':')
+            {
+                return i == 0 ? null : href.substring(0, i).toLowerCase(Locale.US);
+            }
+            boolean letter = isLetter(c);
+            boolean other = (c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.';
+            if (!letter && !(other && i > 0))
+            {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Replaces the character entities that show up in URLs.
+     */
+    static String
+    decodeEntities(String value)
+    {
+        int amp = value.indexOf('&');
+        if (amp < 0)
+        {
+            return value;
+        }
+        StringBuilder decoded = new StringBuilder(value.length());
+        int position = 0;
+        while (amp >= 0)
+        {
+            decoded.append(value, position, amp);
+            int semicolon = value.indexOf(';', amp);
+            String entity = (semicolon > amp && semicolon - amp <= 10) ? value.substring(amp + 1, semicolon) : "";
+            int code_point = entityCodePoint(entity);
+            if (code_point >= 0)
+            {
+                decoded.appendCodePoint(code_point);
+                position = semicolon + 1;
+            }
+            else
+            {
+                decoded.append('&');
+                position = amp + 1;
+            }
+            amp = value.indexOf('&', position);
+        }
+        decoded.append(value, position, value.length());
+        return decoded.toString();
+    }
+
+    /*
+     * Returns the code point of a named or numeric entity, or -1.
+     */
+    private static int
+    entityCodePoint(String entity)
+    {
+        if (entity.equals("amp"))
+        {
+            return '&';
+        }
+        if (entity.equals("quot"))
+        {
+            return '"';
+        }
+        if (entity.equals("apos"))
+        {
+            return '\'';
+        }
+        if (entity.equals("lt"))
+        {
+            return '<';
+        }
+        if (entity.equals("gt"))
+        {
+            return '>';
+        }
+        if (entity.length() > 1 && entity.charAt(0) == '#')
+        {
+            boolean hex = entity.charAt(1) == 'x' || entity.charAt(1) == 'X';
+            int code_point = 0;
+            for (int i = hex ? 2 : 1; i < entity.length(); i++)
+            {
+                int digit = Character.digit(entity.charAt(i), hex ? 16 : 10);
+                if (digit < 0 || code_point > 0x10FFFF)
+                {
+                    return -1;
+                }
+                code_point = code_point * (hex ? 16 : 10) + digit;
+            }
+            return Character.isValidCodePoint(code_point) ? code_point : -1;
+        }
+        return -1;
+    }
+
+    private void
+    addLink(String link)
+    {
+        if (chunk.isEmpty())
+        {
+            chunk_started = System.currentTimeMillis();
+        }
+        chunk.add(link);
+        link_count++;
+        if (chunk.size() >= chunk_size)
+        {
+            flush();
+        }
+    }
+
+    private void
+    flush()
+    {
+        if (!chunk.isEmpty())
+        {
+            sink.onLinks(chunk);
+            chunk = new ArrayList<>();
+        }
+    }
+
+    private static void
+    appendBounded(StringBuilder tag, char c)
+    {
+        if (tag.length() < MAX_TAG_LENGTH)
+        {
+            tag.append(c);
+        }
+    }
+
+    private static char
+    lastNonSpace(StringBuilder tag)
+    {
+        for (int i = tag.length() - 1; i >= 0; i--)
+        {
+            if (!isSpace(tag.charAt(i)))
+            {
+                return tag.charAt(i);
+            }
+        }
+        return 0;
+    }
+
+    private static boolean
+    isLetter(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean
+    isSpace(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /*
+     * Receives the links found by a scan, a chunk at a time, on the scanning thread.
+     * The list belongs to the sink once handed over.
+     */
+    public interface LinkSink {
+        void onLinks(List<String> links);
+    }
+}
@@ -0,0 +1,285 @@
+package com.example.sony.downloader;
+
+import java.util.*;
+
+/**
+ * This holds the links found on one page (or one crawl) as they come in,
+ * so the link list can show them without each chunk being copied through
+ * an intent. Links are only ever appended: a position, once handed out,
+ * keeps its link, so the list reads them without locking while the
+ * service is still adding more. They are kept in pages of PAGE_SIZE, and
+ * growing the store never copies the links themselves.
+ *
+ * search() filters the links by a case-insensitive substring, or a prefix
+ * when the query starts with '^'. A TrigramIndex built while appending
+ * narrows a query down to a few candidates, and a search can pick up from
+ * an earlier one: typing one more character only checks the earlier
+ * matches again, and links that arrived since are the only ones scanned.
+ */
+public class LinkStore {
+    public static final int PAGE_SIZE = 1024;
+
+    // below this many links to check, reading them beats asking the index
+    private static final int SCAN_THRESHOLD = 4096;
+
+    private final String page_url;
+    private volatile String[][] pages = new String[16][];
+    private volatile int size;
+    private final TrigramIndex index = new TrigramIndex();     // guarded by this
+
+    public
+    LinkStore(String page_url)
+    {
+        this.page_url = page_url;
+    }
+
+    /*
+     * Returns the page (or crawl start) the links came from.
+     */
+    public String
+    getPageUrl()
+    {
+        return page_url;
+    }
+
+    /*
+     * Adds the links at the end; crawler threads may call this at once.
+     */
+    public synchronized void
+    append(List<String> links)
+    {
+        String[][] current_pages = pages;
+        int position = size;
+        for (String link : links)
+        {
+            int page = position / PAGE_SIZE;
+            if (page == current_pages.length)
+            {
+                current_pages = pages = Arrays.copyOf(current_pages, current_pages.length * 2);
+            }
+            if (current_pages[page] == null)
+            {
+                current_pages[page] = new String[PAGE_SIZE];
+            }
+            current_pages[page][position % PAGE_SIZE] = link;
+            index.add(position, link);
+            position++;
+        }
+        size = position;        // publishes the links written above
+    }
+
+    public int
+    size()
+    {
+        return size;
+    }
+
+    /*
+     * Returns the link at a position below a size() read earlier.
+     */
+    public String
+    get(int position)
+    {
+        return pages[position / PAGE_SIZE][position % PAGE_SIZE];
+    }
+
+    /*
+     * Returns a copy of the links matching the query, or of all links for
+     * an empty query.
+     */
+    public List<String>
+    getLinks(String query)
+    {
+        ArrayList<String> links = new ArrayList<>();
+        if (query == null || query.length() == 0)
+        {
+            int end = size;
+            for (int i = 0; i < end; i++)
+            {
+                links.add(get(i));
+            }
+            return links;
+        }
+        Matches matches = search(query, null);
+        for (int i = 0; i < matches.size(); i++)
+        {
+            links.add(get(matches.positionAt(i)));
+        }
+        return links;
+    }
+
+    /*
+     * Returns the positions of the links matching the query. If previous
+     * is the result of an earlier search on this store, only what that
+     * search did not already settle is looked at.
+     */
+    public Matches
+    search(String query, Matches previous)
+    {
+        boolean anchored = query.startsWith("^");
+        String text = anchored ? query.substring(1) : query;
+        int end = size;
+        int[] positions;
+        int count = 0;
+        int from;
+        if (previous != null && previous.store == this && previous.query.equals(query))
+        {
+            // same query; only links added since can be new matches
+            positions = Arrays.copyOf(previous.positions, Math.max(16, previous.count + (end - previous.scanned) / 8));
+            count = previous.count;
+            from = previous.scanned;
+        }
+        else if (previous != null && previous.store == this && narrows(anchored, text, previous))
+        {
+            // a longer query only matches links the shorter one matched
+            positions = new int[Math.max(16, previous.count)];
+            for (int i = 0; i < previous.count; i++)
+            {
+                int position = previous.positions[i];
+                if (matches(get(position), text, anchored))
+                {
+                    positions[count++] = position;
+                }
+            }
+            from = previous.scanned;
+        }
+        else
+        {
+            positions = new int[16];
+            from = 0;
+        }
+
+        if (end - from >= SCAN_THRESHOLD && text.length() >= TrigramIndex.GRAM_LENGTH)
+        {
+            int[] candidates;
+            synchronized (this)
+            {
+                candidates = index.candidates(text, from);
+            }
+            for (int position : candidates)
+            {
+                if (position >= end)
+                {
+                    break;      // appended after this search started
+                }
+                if (matches(get(position), text, anchored))
+                {
+                    if (count == positions.length)
+                    {
+                        positions = Arrays.copyOf(positions, count * 2);
+                    }
+                    positions[count++] = position;
+                }
+            }
+        }
+        else
+        {
+            for (int position = from; position < end; position++)
+            {
+                if (matches(get(position), text, anchored))
+                {
+                    if (count == positions.length)
+                    {
+                        positions = Arrays.copyOf(positions, count * 2);
+                    }
+                    positions[count++] = position;
+                }
+            }
+        }
+        return new Matches(this, query, positions, count, end);
+    }
+
+    /*
+     * Returns true if every link matching the new query also matched the
+     * previous one.
+     */
+    private static boolean
+    narrows(boolean anchored, String text, Matches previous)
+    {
+        boolean previous_anchored = previous.query.startsWith("^");
+        String previous_text = previous_anchored ? previous.query.substring(1) : previous.query;
+        if (previous_anchored)
+        {
+            return anchored && text.regionMatches(true, 0, previous_text, 0, previous_text.length());
+        }
+        return indexOfIgnoreCase(text, previous_text) >= 0;
+    }
+
+    private static boolean
+    matches(String link, String text, boolean anchored)
+    {
+        if (anchored)
+        {
+            return link.regionMatches(true, 0, text, 0, text.length());
+        }
+        return indexOfIgnoreCase(link, text) >= 0;
+    }
+
+    private static int
+    indexOfIgnoreCase(String string, String text)
+    {
+        int last = string.length() - text.length();
+        if (text.length() == 0)
+        {
+            return 0;
+        }
+        char first = TrigramIndex.lower(text.charAt(0));
+        for (int i = 0; i <= last; i++)
+        {
+            if (TrigramIndex.lower(string.charAt(i)) == first
+                    && string.regionMatches(true, i + 1, text, 1, text.length() - 1))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * The result of a search: positions of matching links, in order, among
+     * the links the store held when the search ran.
+     */
+    public static class Matches {
+        private final LinkStore store;
+        private final String query;
+        private final int[] positions;
+        private final int count;
+        private final int scanned;      // links looked at, from the start
+
+        Matches(LinkStore store, String query, int[] positions, int count, int scanned)
+        {
+            this.store = store;
+            this.query = query;
+            this.positions = positions;
+            this.count = count;
+            this.scanned = scanned;
+        }
+
+        public String
+        getQuery()
+        {
+            return query;
+        }
+
+        public int
+        size()
+        {
+            return count;
+        }
+
+        public int
+        positionAt(int index)
+        {
+            return positions[index];
+        }
+
+        /*
+         * Returns true if links were added to the store after this search.
+         */
+        public boolean
+        isBehind()
+        {
+            return store.size() > scanned;
+        }
+    }
+}
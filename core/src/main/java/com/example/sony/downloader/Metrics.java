@@ -0,0 +1,193 @@
+package com.example.sony.downloader;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This is the registry of the download engine's measurements: counters
+ * (requests sent, downloads failed, ...), histograms (queue wait, connect
+ * time, time to first byte, throughput, parse time, ...) and gauges
+ * (queue depth, running jobs), each under a dotted name whose last part
+ * carries the unit, e.g. "http.connect_us" or "download.bytes_per_second".
+ *
+ * Everything is created on first use, so instrumented code just records
+ * under a name. Recording never blocks. toJson() renders the whole
+ * registry for a MetricsReporter to write out.
+ */
+public class Metrics {
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final long created_ms = System.currentTimeMillis();
+
+    /*
+     * Adds 1 to the named counter.
+     */
+    public void
+    increment(String name)
+    {
+        add(name, 1);
+    }
+
+    public void
+    add(String name, long amount)
+    {
+        AtomicLong counter = counters.get(name);
+        if (counter == null)
+        {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null)
+            {
+                counter = created;
+            }
+        }
+        counter.addAndGet(amount);
+    }
+
+    public long
+    getCount(String name)
+    {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /*
+     * Adds the value to the named histogram.
+     */
+    public void
+    record(String name, long value)
+    {
+        histogram(name).record(value);
+    }
+
+    /*
+     * Records the time since start_nanos (a System.nanoTime() reading) in
+     * milliseconds.
+     */
+    public void
+    recordMillisSince(String name, long start_nanos)
+    {
+        record(name, (System.nanoTime() - start_nanos) / 1000000);
+    }
+
+    public Histogram
+    histogram(String name)
+    {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null)
+        {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null)
+            {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /*
+     * Registers a value that is read whenever a snapshot is taken, replacing
+     * any gauge of the same name.
+     */
+    public void
+    gauge(String name, Gauge gauge)
+    {
+        gauges.put(name, gauge);
+    }
+
+    /*
+     * Returns everything measured so far as a JSON object:
+     *   {"timestamp_ms": ..., "uptime_ms": ...,
+     *    "counters": {name: value, ...}, "gauges": {name: value, ...},
+     *    "histograms": {name: {"count", "sum", "min", "max", "mean",
+     *                          "p50", "p90", "p99"}, ...}}
+     * with names in alphabetical order.
+     */
+    public String
+    toJson()
+    {
+        long now = System.currentTimeMillis();
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\n  \"timestamp_ms\": ").append(now);
+        json.append(",\n  \"uptime_ms\": ").append(now - created_ms);
+
+        json.append(",\n  \"counters\": {");
+        String separator = "\n    ";
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet())
+        {
+            json.append(separator);
+            appendString(json, entry.getKey()).append(": ").append(entry.getValue().get());
+            separator = ",\n    ";
+        }
+
+        json.append("\n  },\n  \"gauges\": {");
+        separator = "\n    ";
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet())
+        {
+            long value;
+            try {
+                value = entry.getValue().value();
+            }
+            catch (RuntimeException e) {
+                continue;
+            }
+            json.append(separator);
+            appendString(json, entry.getKey()).append(": ").append(value);
+            separator = ",\n    ";
+        }
+
+        json.append("\n  },\n  \"histograms\": {");
+        separator = "\n    ";
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet())
+        {
+            Histogram.Snapshot snapshot = entry.getValue().snapshot();
+            json.append(separator);
+            appendString(json, entry.getKey()).append(": {");
+            json.append("\"count\": ").append(snapshot.count);
+            json.append(", \"sum\": ").append(snapshot.sum);
+            json.append(", \"min\": ").append(snapshot.min);
+            json.append(", \"max\": ").append(snapshot.max);
+            json.append(", \"mean\": ").append(String.format(Locale.US, "%.1f", snapshot.getMean()));
+            json.append(", \"p50\": ").append(snapshot.getPercentile(0.50));
+            json.append(", \"p90\": ").append(snapshot.getPercentile(0.90));
+            json.append(", \"p99\": ").append(snapshot.getPercentile(0.99));
+            json.append('}');
+            separator = ",\n    ";
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    private static StringBuilder
+    appendString(StringBuilder json, String string)
+    {
+        json.append('"');
+        for (int i = 0; i < string.length(); i++)
+        {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                json.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                json.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+
+    /*
+     * A value sampled when a snapshot is taken, e.g. a queue's length.
+     */
+    public interface Gauge {
+        long value();
+    }
+}
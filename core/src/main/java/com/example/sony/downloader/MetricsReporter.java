@@ -0,0 +1,121 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * This class writes a Metrics snapshot to a JSON file at a fixed interval,
+ * for collecting from devices or servers and analysing offline. Every
+ * snapshot replaces the previous one: it is written to a temporary file
+ * and renamed over the target, so a reader never sees half a snapshot.
+ */
+public class MetricsReporter {
+    // default time between two snapshots
+    public static final long DEFAULT_INTERVAL_MS = 60 * 1000;
+
+    private final Metrics metrics;
+    private final File file;
+    private ScheduledExecutorService timer;     // guarded by this
+
+    public
+    MetricsReporter(Metrics metrics, File file)
+    {
+        this.metrics = metrics;
+        this.file = file;
+    }
+
+    /*
+     * Starts writing a snapshot every interval_ms, replacing any previous
+     * schedule. The first one is written after one interval.
+     */
+    public synchronized void
+    start(long interval_ms)
+    {
+        stopTimer();
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "metrics_reporter");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        timer.scheduleAtFixedRate(new Runnable() {
+            public void run()
+            {
+                writeQuietly();
+            }
+        }, interval_ms, interval_ms, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Stops the periodic snapshots and writes a last one.
+     */
+    public synchronized void
+    stop()
+    {
+        if (timer != null)
+        {
+            stopTimer();
+            writeQuietly();
+        }
+    }
+
+    /*
+     * Writes a snapshot now.
+     */
+    public void
+    write() throws IOException
+    {
+        File folder = file.getAbsoluteFile().getParentFile();
+        if (folder != null && !folder.exists())
+        {
+            folder.mkdirs();
+        }
+        File temp_file = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp_file), "UTF-8");
+        try {
+            writer.write(metrics.toJson());
+        }
+        finally {
+            writer.close();
+        }
+        if (!temp_file.renameTo(file))
+        {
+            // some file systems will not rename over an existing file
+            file.delete();
+            if (!temp_file.renameTo(file))
+            {
+                throw new IOException("cannot replace " + file);
+            }
+        }
+    }
+
+    public File
+    getFile()
+    {
+        return file;
+    }
+
+    private void
+    writeQuietly()
+    {
+        try {
+            write();
+        }
+        catch (IOException e) {
+            EngineLog.d("MetricsReporter", "could not write " + file + ": " + e);
+        }
+    }
+
+    private void
+    stopTimer()
+    {
+        if (timer != null)
+        {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+}
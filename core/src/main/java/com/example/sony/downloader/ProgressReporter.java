@@ -0,0 +1,128 @@
+package com.example.sony.downloader;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class collects the progress of all running downloads and passes it
+ * on at a fixed frame rate. However fast the copy loops run, the listener
+ * hears at most one update per frame, carrying every download that moved
+ * since the last frame (or whose rate is still falling during a stall), so
+ * notifications and broadcasts to the UI never pile up or slow the
+ * transfers down.
+ */
+public class ProgressReporter {
+    // default time between two updates
+    public static final long DEFAULT_FRAME_INTERVAL_MS = 500;
+
+    private final Listener listener;
+    private final long frame_interval_ms;
+    private final ConcurrentHashMap<Integer, DownloadProgress> active = new ConcurrentHashMap<>();
+    private final AtomicInteger next_id = new AtomicInteger(1);
+    private ScheduledExecutorService timer;     // guarded by this
+
+    public
+    ProgressReporter(Listener listener, long frame_interval_ms)
+    {
+        this.listener = listener;
+        this.frame_interval_ms = frame_interval_ms;
+    }
+
+    /*
+     * Starts tracking a new download and returns its progress counter.
+     * The timer only runs while at least one download is tracked.
+     */
+    public DownloadProgress
+    start(String url)
+    {
+        DownloadProgress progress = new DownloadProgress(next_id.getAndIncrement(), url);
+        active.put(progress.id, progress);
+        synchronized (this)
+        {
+            if (timer == null)
+            {
+                timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "progress_reporter");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                timer.scheduleAtFixedRate(new Runnable() {
+                    public void run()
+                    {
+                        frame();
+                    }
+                }, frame_interval_ms, frame_interval_ms, TimeUnit.MILLISECONDS);
+            }
+        }
+        return progress;
+    }
+
+    /*
+     * Stops tracking a download. The listener hears about it once more,
+     * through onFinished, straight away.
+     */
+    public void
+    finish(DownloadProgress progress)
+    {
+        active.remove(progress.id);
+        listener.onFinished(progress.snapshot());
+        synchronized (this)
+        {
+            if (active.isEmpty() && timer != null)
+            {
+                timer.shutdown();
+                timer = null;
+            }
+        }
+    }
+
+    /*
+     * Returns the number of downloads being tracked.
+     */
+    public int
+    getActiveCount()
+    {
+        return active.size();
+    }
+
+    /*
+     * Samples every tracked download and hands the ones that changed to the listener.
+     */
+    private void
+    frame()
+    {
+        long now = System.currentTimeMillis();
+        ArrayList<DownloadProgress.Snapshot> moved = new ArrayList<>();
+        for (DownloadProgress progress : active.values())
+        {
+            DownloadProgress.Snapshot snapshot = progress.sample(now);
+            if (snapshot != null)
+            {
+                moved.add(snapshot);
+            }
+        }
+        if (!moved.isEmpty())
+        {
+            try {
+                listener.onProgress(moved);
+            }
+            catch (RuntimeException e) {
+                // a failing listener must not stop the timer
+            }
+        }
+    }
+
+    /*
+     * Receives the progress updates. onProgress runs on the reporter's own
+     * thread; onFinished runs on the thread that finished the download.
+     */
+    public interface Listener {
+        void onProgress(List<DownloadProgress.Snapshot> snapshots);
+
+        void onFinished(DownloadProgress.Snapshot snapshot);
+    }
+}
@@ -0,0 +1,291 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * This class caps how fast downloads move bytes, so background downloads
+ * do not take the whole of a shared link. It is a token bucket: tokens
+ * (bytes) flow in at the configured rate, every read takes as many tokens
+ * as it returned bytes, and a read that finds the bucket in debt waits
+ * until it is paid off. The bucket holds at most a quarter of a second of
+ * tokens, so an idle period does not turn into a long burst.
+ *
+ * There is one global limiter for all downloads, and each download gets a
+ * job limiter of its own from newJob(). A job first takes tokens from its
+ * own bucket (the per-job cap), then from the global one (the total cap).
+ * Waiting for tokens goes through fair locks, and a job holds its own lock
+ * while it waits for global tokens, so every job, however many segments it
+ * runs, has at most one request in the global queue at a time; the total
+ * is therefore shared evenly between jobs.
+ *
+ * Both rates can be changed at any time and take effect within a fraction
+ * of a second, also for downloads already running.
+ */
+public class RateLimiter {
+    // rate value meaning no limit
+    public static final long UNLIMITED = 0;
+
+    // the bucket holds this many milliseconds worth of tokens
+    private static final long BURST_MS = 250;
+
+    // a throttled stream reads about this many chunks per second, so that
+    // jobs take turns often enough to share the rate smoothly
+    private static final int CHUNKS_PER_SECOND = 10;
+
+    // throttled reads are never made smaller than this
+    private static final int MIN_CHUNK = 1024;
+
+    // longest single sleep while waiting; rate changes are noticed this fast
+    private static final long MAX_WAIT_MS = 100;
+
+    private final RateLimiter parent;           // null for the global limiter
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private volatile long rate;                 // global limiter only
+    private volatile long per_job_rate;         // global limiter only
+
+    // guarded by lock
+    private double tokens;
+    private long last_refill = System.nanoTime();
+
+    /*
+     * Creates a global limiter with the given total rate and no per-job rate.
+     */
+    public
+    RateLimiter(long bytes_per_second)
+    {
+        this(null);
+        setRate(bytes_per_second);
+    }
+
+    private
+    RateLimiter(RateLimiter parent)
+    {
+        this.parent = parent;
+    }
+
+    /*
+     * Returns a limiter for one download. Its rate is the per-job rate of
+     * this limiter, and whatever it lets through also counts against this
+     * limiter's total rate.
+     */
+    public RateLimiter
+    newJob()
+    {
+        if (parent != null)
+        {
+            throw new IllegalStateException("job limiters have no jobs");
+        }
+        return new RateLimiter(this);
+    }
+
+    /*
+     * Sets the total rate of all downloads, in bytes per second.
+     * UNLIMITED removes the cap.
+     */
+    public void
+    setRate(long bytes_per_second)
+    {
+        checkRate(bytes_per_second);
+        rate = bytes_per_second;
+    }
+
+    /*
+     * Sets the rate of each single download, in bytes per second.
+     * UNLIMITED removes the cap.
+     */
+    public void
+    setPerJobRate(long bytes_per_second)
+    {
+        checkRate(bytes_per_second);
+        per_job_rate = bytes_per_second;
+    }
+
+    /*
+     * Returns the rate this limiter enforces itself: the total rate for the
+     * global limiter, the per-job rate for a job limiter.
+     */
+    public long
+    getRate()
+    {
+        return parent == null ? rate : parent.per_job_rate;
+    }
+
+    public long
+    getPerJobRate()
+    {
+        return per_job_rate;
+    }
+
+    /*
+     * Returns true if neither this limiter nor the global one has a cap.
+     */
+    public boolean
+    isUnlimited()
+    {
+        return getRate() == UNLIMITED && (parent == null || parent.isUnlimited());
+    }
+
+    /*
+     * Takes the given number of bytes' worth of tokens, waiting as long as
+     * the rates require. Returns at once when there is no cap.
+     */
+    public void
+    acquire(int count) throws InterruptedIOException
+    {
+        if (isUnlimited())
+        {
+            return;
+        }
+        try {
+            lock.lockInterruptibly();
+            try {
+                take(count);
+                if (parent != null)
+                {
+                    // still holding our own lock: one queued request per job
+                    parent.acquire(count);
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while throttled");
+        }
+    }
+
+    /*
+     * Returns a stream that reads from the given one no faster than this
+     * limiter allows. Closing it closes the underlying stream.
+     */
+    public InputStream
+    throttle(InputStream input_stream)
+    {
+        return new ThrottledInputStream(input_stream, this);
+    }
+
+    /*
+     * Returns how many bytes a throttled read should ask for at most,
+     * given the tightest rate that applies.
+     */
+    int
+    chunkSize()
+    {
+        long tightest = getRate();
+        if (parent != null && parent.getRate() != UNLIMITED)
+        {
+            tightest = tightest == UNLIMITED ? parent.getRate() : Math.min(tightest, parent.getRate());
+        }
+        if (tightest == UNLIMITED)
+        {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.max(MIN_CHUNK, Math.min(Integer.MAX_VALUE, tightest / CHUNKS_PER_SECOND));
+    }
+
+    /*
+     * Takes tokens from this bucket only, going into debt if needed and
+     * then sleeping until the debt is paid. Called with the lock held.
+     */
+    private void
+    take(int count) throws InterruptedException
+    {
+        long current_rate = getRate();
+        if (current_rate == UNLIMITED)
+        {
+            tokens = 0;
+            last_refill = System.nanoTime();
+            return;
+        }
+        refill(current_rate);
+        tokens -= count;
+        while (tokens < 0)
+        {
+            long wait_ms = (long) Math.ceil(-tokens * 1000 / current_rate);
+            Thread.sleep(Math.max(1, Math.min(MAX_WAIT_MS, wait_ms)));
+            current_rate = getRate();
+            if (current_rate == UNLIMITED)
+            {
+                // the cap was lifted while waiting; forget the debt
+                tokens = 0;
+                return;
+            }
+            refill(current_rate);
+        }
+    }
+
+    /*
+     * Adds the tokens earned since the last refill, up to the bucket size.
+     */
+    private void
+    refill(long current_rate)
+    {
+        long now = System.nanoTime();
+        double capacity = Math.max(MIN_CHUNK, current_rate * BURST_MS / 1000.0);
+        tokens = Math.min(capacity, tokens + (now - last_refill) * current_rate / 1e9);
+        last_refill = now;
+    }
+
+    private static void
+    checkRate(long bytes_per_second)
+    {
+        if (bytes_per_second < 0)
+        {
+            throw new IllegalArgumentException("rate must not be negative: " + bytes_per_second);
+        }
+    }
+
+    /*
+     * Input stream that pays for every byte it returns. Reads are cut to
+     * the limiter's chunk size so a large block does not run up a debt of
+     * several seconds in one go.
+     */
+    private static class ThrottledInputStream extends FilterInputStream {
+        private final RateLimiter limiter;
+
+        ThrottledInputStream(InputStream input_stream, RateLimiter limiter)
+        {
+            super(input_stream);
+            this.limiter = limiter;
+        }
+
+        @Override
+        public int
+        read() throws IOException
+        {
+            int value = in.read();
+            if (value != -1)
+            {
+                limiter.acquire(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int
+        read(byte[] buffer, int offset, int length) throws IOException
+        {
+            int bytes_read = in.read(buffer, offset, Math.min(length, limiter.chunkSize()));
+            if (bytes_read > 0)
+            {
+                limiter.acquire(bytes_read);
+            }
+            return bytes_read;
+        }
+
+        @Override
+        public long
+        skip(long count) throws IOException
+        {
+            long skipped = in.skip(Math.min(count, limiter.chunkSize()));
+            if (skipped > 0)
+            {
+                limiter.acquire((int) skipped);
+            }
+            return skipped;
+        }
+    }
+}
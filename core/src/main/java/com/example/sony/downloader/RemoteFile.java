@@ -0,0 +1,122 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * This class describes a file on a web server as far as the Downloader
+ * cares: how long it is, whether the server will hand out byte ranges
+ * of it, and the validators (ETag, Last-Modified) that tell whether it
+ * changed since a partial download was started. The information comes
+ * from a cheap probe request made before the actual download.
+ */
+public class RemoteFile {
+    // value of length when the server did not say how long the file is
+    public static final long LENGTH_UNKNOWN = -1;
+
+    public final String url;
+    public final long length;
+    public final boolean accepts_ranges;
+    public final String etag;               // null if the server sent none
+    public final String last_modified;      // null if the server sent none
+
+    public
+    RemoteFile(String url, long length, boolean accepts_ranges)
+    {
+        this(url, length, accepts_ranges, null, null);
+    }
+
+    public
+    RemoteFile(String url, long length, boolean accepts_ranges, String etag, String last_modified)
+    {
+        this.url = url;
+        this.length = length;
+        this.accepts_ranges = accepts_ranges && length > 0;
+        this.etag = etag;
+        this.last_modified = last_modified;
+    }
+
+    /*
+     * Asks the server about the file at the given URL.
+     * A HEAD request is tried first. Servers that reject HEAD, or do not
+     * advertise "Accept-Ranges: bytes", are asked for the first byte with a
+     * Range request instead; a 206 answer proves ranges work and its
+     * Content-Range header carries the full length.
+     */
+    public static RemoteFile
+    probe(HttpClient client, String url_string) throws IOException
+    {
+        long length = LENGTH_UNKNOWN;
+
+        HttpURLConnection head = client.openHead(url_string);
+        try {
+            if (head.getResponseCode() == HttpURLConnection.HTTP_OK)
+            {
+                length = parseLength(head.getHeaderField("Content-Length"));
+                if ("bytes".equalsIgnoreCase(head.getHeaderField("Accept-Ranges")))
+                {
+                    return new RemoteFile(url_string, length, true,
+                            head.getHeaderField("ETag"), head.getHeaderField("Last-Modified"));
+                }
+            }
+        }
+        finally {
+            HttpClient.release(head, null);
+        }
+
+        HttpURLConnection range = client.openRange(url_string, 0, 0, null);
+        try {
+            if (range.getResponseCode() == HttpURLConnection.HTTP_PARTIAL)
+            {
+                long total = parseTotalLength(range.getHeaderField("Content-Range"));
+                return new RemoteFile(url_string, total, true,
+                        range.getHeaderField("ETag"), range.getHeaderField("Last-Modified"));
+            }
+            return new RemoteFile(url_string, length, false,
+                    range.getHeaderField("ETag"), range.getHeaderField("Last-Modified"));
+        }
+        finally {
+            // a server that ignored the range is sending the whole file;
+            // release() drops the connection rather than draining all of it
+            HttpClient.release(range, null);
+        }
+    }
+
+    /*
+     * Parses a Content-Length header value, or returns LENGTH_UNKNOWN.
+     */
+    static long
+    parseLength(String header)
+    {
+        if (header == null)
+        {
+            return LENGTH_UNKNOWN;
+        }
+        try {
+            long length = Long.parseLong(header.trim());
+            return length < 0 ? LENGTH_UNKNOWN : length;
+        }
+        catch (NumberFormatException e) {
+            return LENGTH_UNKNOWN;
+        }
+    }
+
+    /*
+     * Parses the total length out of a "Content-Range: bytes 0-0/12345" header,
+     * or returns LENGTH_UNKNOWN if it is missing or given as "*".
+     */
+    static long
+    parseTotalLength(String header)
+    {
+        if (header == null)
+        {
+            return LENGTH_UNKNOWN;
+        }
+        int slash = header.lastIndexOf('/');
+        if (slash < 0)
+        {
+            return LENGTH_UNKNOWN;
+        }
+        return parseLength(header.substring(slash + 1));
+    }
+}
@@ -0,0 +1,298 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class runs network jobs on the DownloadScheduler and deals with
+ * their failures, so a dropped connection or a briefly overloaded server
+ * no longer costs the job.
+ *
+ * A failed attempt is handed to the RetryPolicy, which says whether and
+ * when to try again. The wait happens off the worker threads: the job is
+ * resubmitted to the scheduler by a timer once the delay is up, so a
+ * backlog of retries never blocks fresh jobs. Before every attempt the
+ * host's CircuitBreaker is asked; while it is open the attempt fails at
+ * once without touching the network. A job the policy gives up on is
+ * reported to its listener with the last failure, so every request gets
+ * an answer.
+ */
+public class RetryEngine {
+    private final DownloadScheduler scheduler;
+    private final CircuitBreaker breaker;
+    private volatile RetryPolicy policy;
+    private final ScheduledExecutorService timer;
+    private volatile Metrics metrics;
+
+    public
+    RetryEngine(DownloadScheduler scheduler, RetryPolicy policy, CircuitBreaker breaker)
+    {
+        this.scheduler = scheduler;
+        this.policy = policy;
+        this.breaker = breaker;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "retry_timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /*
+     * Replaces the retry policy; applies to the next failure of any job.
+     */
+    public void
+    setPolicy(RetryPolicy policy)
+    {
+        this.policy = policy;
+    }
+
+    /*
+     * Starts recording into the given metrics: attempts, retries, jobs that
+     * succeeded or failed, attempts refused by an open breaker, failures by
+     * kind ("jobs.failure.http_503", "jobs.failure.SocketTimeoutException"),
+     * and the attempts and time each job took in the end.
+     */
+    public void
+    setMetrics(Metrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    public CircuitBreaker
+    getCircuitBreaker()
+    {
+        return breaker;
+    }
+
+    /*
+     * Queues the task on the scheduler, with the same url, priority and size
+     * hint meaning as DownloadScheduler.submit. The listener (if not null)
+     * hears about the outcome once the task has succeeded or been given up on.
+     */
+    public void
+    submit(String url, int priority, long size_hint, Task task, Listener listener)
+    {
+        new Attempts(url, priority, size_hint, task, listener).schedule();
+    }
+
+    /*
+     * Stops the retry timer. Retries that were waiting are dropped.
+     */
+    public void
+    shutdown()
+    {
+        timer.shutdownNow();
+    }
+
+    /*
+     * Returns the failure behind an exception thrown by a task: the
+     * IOException itself or wrapped in a RuntimeException, or null if it
+     * is no I/O failure at all (i.e. a bug, not worth retrying).
+     */
+    static IOException
+    ioFailureOf(Exception e)
+    {
+        if (e instanceof IOException)
+        {
+            return (IOException) e;
+        }
+        if (e.getCause() instanceof IOException)
+        {
+            return (IOException) e.getCause();
+        }
+        return null;
+    }
+
+    /*
+     * Returns the host of the URL, or "" if it has none.
+     */
+    private static String
+    hostOf(String url_string)
+    {
+        try {
+            return new URL(url_string).getHost().toLowerCase(Locale.US);
+        }
+        catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    /*
+     * The state of one submitted task across its attempts.
+     */
+    private class Attempts implements Runnable {
+        final String url;
+        final String host;
+        final int priority;
+        final long size_hint;
+        final Task task;
+        final Listener listener;
+        final long submitted_nanos = System.nanoTime();
+        int attempt;
+
+        Attempts(String url, int priority, long size_hint, Task task, Listener listener)
+        {
+            this.url = url;
+            this.host = hostOf(url);
+            this.priority = priority;
+            this.size_hint = size_hint;
+            this.task = task;
+            this.listener = listener;
+        }
+
+        void
+        schedule()
+        {
+            scheduler.submit(url, priority, size_hint, this);
+        }
+
+        public void
+        run()
+        {
+            attempt++;
+            count("jobs.attempts");
+            long wait_ms = host.length() == 0 ? 0 : breaker.acquire(host);
+            if (wait_ms > 0)
+            {
+                // the host is known to be down; do not tie up a worker finding out again
+                count("jobs.breaker_rejected");
+                retryOrGiveUp(new IOException("circuit open for " + host), false, wait_ms);
+                return;
+            }
+
+            try {
+                task.run(attempt);
+            }
+            catch (Exception e) {
+                IOException failure = ioFailureOf(e);
+                if (failure == null)
+                {
+                    count("jobs.failure." + e.getClass().getSimpleName());
+                    breaker.recordSuccess(host);
+                    EngineLog.d("RetryEngine", url + " failed for good: " + e);
+                    giveUp(e);
+                    return;
+                }
+                retryOrGiveUp(failure, true, 0);
+                return;
+            }
+            breaker.recordSuccess(host);
+            finished("jobs.succeeded");
+            if (listener != null)
+            {
+                listener.onSuccess(url, attempt);
+            }
+        }
+
+        /*
+         * Asks the policy about the failure and either schedules the next
+         * attempt, no sooner than min_delay_ms, or gives up. reached_host
+         * tells whether the attempt made a request, i.e. whether its outcome
+         * means anything for the breaker.
+         */
+        void
+        retryOrGiveUp(IOException failure, boolean reached_host, long min_delay_ms)
+        {
+            if (reached_host)
+            {
+                count("jobs.failure." + (failure instanceof HttpStatusException
+                        ? "http_" + ((HttpStatusException) failure).status
+                        : failure.getClass().getSimpleName()));
+                if (ExponentialBackoff.isTransient(failure))
+                {
+                    breaker.recordFailure(host);
+                }
+                else
+                {
+                    // the host answered; the request itself is the problem
+                    breaker.recordSuccess(host);
+                }
+            }
+
+            long delay_ms = policy.delayBeforeRetry(attempt, failure);
+            if (delay_ms == RetryPolicy.NO_RETRY)
+            {
+                EngineLog.d("RetryEngine", url + " failed after " + attempt + " attempts: " + failure);
+                giveUp(failure);
+                return;
+            }
+            delay_ms = Math.max(delay_ms, min_delay_ms);
+            count("jobs.retries");
+            EngineLog.d("RetryEngine", "attempt " + attempt + " of " + url + " failed (" + failure
+                    + "), retrying in " + delay_ms + " ms");
+            try {
+                timer.schedule(new Runnable() {
+                    public void run()
+                    {
+                        try {
+                            schedule();
+                        }
+                        catch (IllegalStateException e) {
+                            // the scheduler was shut down while we waited
+                        }
+                    }
+                }, delay_ms, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                giveUp(failure);
+            }
+        }
+
+        /*
+         * Records how the job ended, after how many attempts and how long.
+         */
+        void
+        finished(String outcome)
+        {
+            Metrics metrics = RetryEngine.this.metrics;
+            if (metrics != null)
+            {
+                metrics.increment(outcome);
+                metrics.record("jobs.attempts_per_job", attempt);
+                metrics.recordMillisSince("jobs.total_ms", submitted_nanos);
+            }
+        }
+
+        void
+        giveUp(Exception reason)
+        {
+            finished("jobs.failed");
+            if (listener != null)
+            {
+                listener.onFailure(url, reason, attempt);
+            }
+        }
+    }
+
+    private void
+    count(String name)
+    {
+        Metrics metrics = this.metrics;
+        if (metrics != null)
+        {
+            metrics.increment(name);
+        }
+    }
+
+    /*
+     * One attempt at a job. Any exception fails the attempt; IOExceptions
+     * (also wrapped in a RuntimeException) may be retried, others are not.
+     */
+    public interface Task {
+        void run(int attempt) throws Exception;
+    }
+
+    /*
+     * Hears how a task ended. Runs on a worker thread.
+     */
+    public interface Listener {
+        void onSuccess(String url, int attempts);
+
+        void onFailure(String url, Exception reason, int attempts);
+    }
+}
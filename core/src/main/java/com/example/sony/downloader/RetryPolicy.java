@@ -0,0 +1,34 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+
+/**
+ * Decides whether, and after how long, a failed job is tried again.
+ * The RetryEngine asks it after every failed attempt; ExponentialBackoff
+ * is the policy the DownloaderService uses unless another one is set.
+ */
+public interface RetryPolicy {
+    // returned by delayBeforeRetry when the job should not be tried again
+    long NO_RETRY = -1;
+
+    /*
+     * Returns the milliseconds to wait before attempt number attempt + 1,
+     * given that attempt number attempt (counting from 1) failed with the
+     * given exception; or NO_RETRY to give up.
+     */
+    long delayBeforeRetry(int attempt, IOException failure);
+
+    /*
+     * A failure that no retry can fix, e.g. a file that keeps arriving with
+     * the wrong checksum. Policies never retry it.
+     */
+    class PermanentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public
+        PermanentException(String message)
+        {
+            super(message);
+        }
+    }
+}
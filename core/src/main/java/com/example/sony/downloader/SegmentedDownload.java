@@ -0,0 +1,293 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class downloads one file as several byte ranges at once.
+ * The destination file is preallocated to its full length, and every
+ * segment is fetched over its own HTTP Range request and written straight
+ * at its offset, so no segment waits for another and nothing is stitched
+ * together afterwards.
+ *
+ * A single TCP stream over a high-latency link rarely fills the pipe;
+ * a few parallel streams to the same server usually do.
+ *
+ * The segments and their progress live in a DownloadJournal, so the same
+ * class both starts a download and resumes an interrupted one.
+ *
+ * Every range is a connection to the same host, so when run by the
+ * DownloadScheduler the download only opens as many at once as the host's
+ * connection limit has to spare (see DownloadScheduler.reserveConnections);
+ * the other segments wait for a connection to come free.
+ */
+public class SegmentedDownload {
+    // number of ranges a file is split into by default
+    public static final int DEFAULT_SEGMENTS = 4;
+
+    // files are not split into ranges smaller than this
+    public static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    // threads that fetch segments alongside the thread calling run()
+    private static final ExecutorService segment_workers =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "download_segment");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final HttpClient client;
+    private final String url;
+    private final File out_file;
+    private final DownloadJournal journal;
+    private final TransferEngine transfer_engine;
+    private final RateLimiter limiter;           // shared by all segments of the download
+    private final StreamingDigest digest;
+    private final DownloadProgress progress;     // may be null
+
+    // set once a segment fails, to stop the others; see cancel()
+    private volatile boolean cancelled;
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private final Set<HttpURLConnection> open_connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<HttpURLConnection, Boolean>());
+
+    /*
+     * Prepares to fetch every unfinished segment of the journal into the
+     * ".part" file it belongs to. A fresh journal has nothing committed yet;
+     * a loaded one resumes each segment at its first missing byte.
+     * All segments together stay within the job limiter's rate. Blocks are
+     * fed to the digest in order where possible; see fetchSegment.
+     */
+    public
+    SegmentedDownload(HttpClient client, File out_file, DownloadJournal journal,
+                      TransferEngine transfer_engine, RateLimiter limiter, StreamingDigest digest,
+                      DownloadProgress progress)
+    {
+        this.client = client;
+        this.url = journal.getUrl();
+        this.out_file = out_file;
+        this.journal = journal;
+        this.transfer_engine = transfer_engine;
+        this.limiter = limiter;
+        this.digest = digest;
+        this.progress = progress;
+    }
+
+    /*
+     * Returns how many segments the remote file should be split into when
+     * at most max_segments are wanted; never below the minimum segment size.
+     */
+    public static int
+    segmentCountFor(RemoteFile remote_file, int max_segments)
+    {
+        long fitting = Math.max(1, remote_file.length / MIN_SEGMENT_SIZE);
+        return (int) Math.min(Math.max(1, max_segments), fitting);
+    }
+
+    /*
+     * Fetches all unfinished segments into the output file and returns once
+     * every segment is complete. If any segment fails, the others are
+     * cancelled and waited for, the progress made so far is checkpointed in
+     * the journal, and the first failure is thrown. No fetcher touches the
+     * file or the journal after this returns.
+     */
+    public void
+    run() throws IOException
+    {
+        ArrayList<DownloadJournal.Segment> remaining = new ArrayList<>();
+        for (DownloadJournal.Segment segment : journal.getSegments())
+        {
+            if (!segment.isComplete())
+            {
+                remaining.add(segment);
+            }
+        }
+        EngineLog.d("SegmentedDownload", "fetching " + url + " as " + remaining.size() + " segments");
+        if (remaining.isEmpty())
+        {
+            return;
+        }
+
+        int connections = DownloadScheduler.reserveConnections(remaining.size());
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(out_file, "rw");
+            if (file.length() != journal.getLength())
+            {
+                file.setLength(journal.getLength());     // preallocate
+            }
+            final FileChannel channel = file.getChannel();
+            journal.setDataChannel(channel);
+
+            // each connection fetches segments off the queue until none are left
+            final ConcurrentLinkedQueue<DownloadJournal.Segment> queue = new ConcurrentLinkedQueue<>(remaining);
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (int i = 1; i < connections; i++)
+            {
+                futures.add(segment_workers.submit(new Runnable() {
+                    public void run()
+                    {
+                        fetchQueued(channel, queue);
+                    }
+                }));
+            }
+            fetchQueued(channel, queue);
+
+            // wait for every fetcher, failed or not, before the journal is
+            // written and the file closed under them
+            boolean interrupted = false;
+            for (Future<?> future : futures)
+            {
+                while (true)
+                {
+                    try {
+                        future.get();
+                        break;
+                    }
+                    catch (ExecutionException e) {
+                        fail(new IOException(e.getCause()));
+                        break;
+                    }
+                    catch (InterruptedException e) {
+                        interrupted = true;
+                        fail(new InterruptedIOException("segmented download interrupted"));
+                    }
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+            journal.checkpoint();
+            if (failure.get() != null)
+            {
+                throw failure.get();
+            }
+        }
+        finally {
+            journal.setDataChannel(null);
+            if (file != null)
+            {
+                file.close();
+            }
+            DownloadScheduler.releaseConnections();
+        }
+    }
+
+    /*
+     * Fetches segments off the queue, one after the other, until it is
+     * empty or the download is cancelled. A failure cancels the download.
+     */
+    private void
+    fetchQueued(FileChannel channel, Queue<DownloadJournal.Segment> queue)
+    {
+        DownloadJournal.Segment segment;
+        while (!cancelled && (segment = queue.poll()) != null)
+        {
+            try {
+                fetchSegment(channel, segment);
+            }
+            catch (IOException | RuntimeException e) {
+                fail(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        }
+    }
+
+    /*
+     * Records the failure (only the first one counts) and cancels the
+     * other segments.
+     */
+    private void
+    fail(IOException e)
+    {
+        failure.compareAndSet(null, e);
+        cancel();
+    }
+
+    /*
+     * Stops all segments. Nothing is interrupted: interrupting a thread in
+     * FileChannel.write would close the channel shared by all segments.
+     * Instead, fetchers check the flag between blocks, and their
+     * connections are dropped so that none stays blocked in a read.
+     */
+    private void
+    cancel()
+    {
+        cancelled = true;
+        for (HttpURLConnection connection : open_connections)
+        {
+            connection.disconnect();
+        }
+    }
+
+    /*
+     * Fetches the rest of the segment and writes it at the same offset,
+     * recording every block in the journal and the progress tracker.
+     *
+     * A block that lands right at the digest's position (always the case
+     * for the first segment) is hashed on the spot. Once the segment is
+     * complete, the digest catches up from the file over every byte that
+     * is now written without gaps, which is usually the next segment's
+     * head start, so the hashing follows the download instead of waiting
+     * for its end.
+     */
+    private void
+    fetchSegment(FileChannel channel, final DownloadJournal.Segment segment) throws IOException
+    {
+        long start = segment.nextOffset();
+        long end = segment.end;
+        HttpURLConnection connection = client.openRange(url, start, end, null);
+        InputStream input_stream = null;
+        open_connections.add(connection);
+        try {
+            if (cancelled)
+            {
+                throw new InterruptedIOException("segment " + start + "-" + end + " cancelled");
+            }
+            HttpClient.checkStatus(connection);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL)
+            {
+                throw new IOException("server ignored range " + start + "-" + end
+                        + " (HTTP " + connection.getResponseCode() + ")");
+            }
+            input_stream = connection.getInputStream();
+            long expected = end - start + 1;
+            long copied = transfer_engine.copy(limiter.throttle(input_stream), channel, start, expected,
+                    new TransferEngine.TransferListener() {
+                        public void onBlock(byte[] block, int length) throws IOException
+                        {
+                            if (cancelled)
+                            {
+                                // written but not committed; fetched again on resume
+                                throw new InterruptedIOException("segment " + segment.start + "-"
+                                        + segment.end + " cancelled");
+                            }
+                            // hash before committing, so catchUp never reads past an unhashed block
+                            digest.update(segment.nextOffset(), block, length);
+                            journal.commit(segment, length);
+                            if (progress != null)
+                            {
+                                progress.add(length);
+                            }
+                        }
+                    });
+            if (copied != expected)
+            {
+                throw new EOFException("segment " + start + "-" + end + " ended after "
+                        + copied + " of " + expected + " bytes");
+            }
+            digest.catchUp(channel, journal.getContiguousBytes());
+        }
+        finally {
+            open_connections.remove(connection);
+            HttpClient.release(connection, input_stream);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+
+/**
+ * This class hashes a file while it is being downloaded, from the same
+ * blocks the copy loop writes, so the hash is ready the moment the last
+ * block lands and the file never has to be read back.
+ *
+ * A single stream arrives in order and every block is hashed as it
+ * passes. A segmented download writes several ranges at once, but a hash
+ * can only take bytes in order; blocks that land exactly at the hashed
+ * position are still hashed inline, and the rest is picked up by
+ * catchUp(), which reads them back from the file while they are still in
+ * the page cache, right after the range in front of them completes. It
+ * reads without holding the digest's lock and hashes one block at a time
+ * under it, so the segments still streaming are never held up for long.
+ *
+ * Several algorithms can run over the same bytes at once, e.g. SHA-256
+ * for the content store and MD5 to check a published checksum.
+ */
+public class StreamingDigest {
+    public static final String SHA_256 = "SHA-256";
+    public static final String MD5 = "MD5";
+
+    // bytes read per call when catching up from the file
+    private static final int CATCH_UP_BLOCK = 64 * 1024;
+
+    private final String[] algorithms;
+    private final MessageDigest[] digests;
+    private String[] hashes;                // set by finish(), guarded by this
+    private long position;                  // bytes hashed so far, guarded by this
+    private long caught_up;                 // of which read back from the file, guarded by this
+    private boolean catching_up;            // a catchUp() is running, guarded by this
+
+    /*
+     * Creates a digest computing each of the given algorithms; the first
+     * one is the one finish() returns.
+     */
+    public
+    StreamingDigest(String... algorithms)
+    {
+        this.algorithms = algorithms.clone();
+        this.digests = new MessageDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++)
+        {
+            try {
+                digests[i] = MessageDigest.getInstance(algorithms[i]);
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("unsupported digest " + algorithms[i], e);
+            }
+        }
+    }
+
+    /*
+     * Hashes the next block of an in-order stream.
+     */
+    public void
+    update(byte[] block, int length)
+    {
+        update(block, 0, length);
+    }
+
+    /*
+     * Same as above, for length bytes starting at offset in the block, so a
+     * block read into the middle of a buffer is hashed where it lies.
+     */
+    public synchronized void
+    update(byte[] block, int offset, int length)
+    {
+        for (MessageDigest digest : digests)
+        {
+            digest.update(block, offset, length);
+        }
+        position += length;
+    }
+
+    /*
+     * Hashes a block written at the given file offset if it is the next one
+     * in order, and returns true; otherwise leaves it for catchUp() and
+     * returns false.
+     */
+    public synchronized boolean
+    update(long offset, byte[] block, int length)
+    {
+        if (offset != position)
+        {
+            return false;
+        }
+        update(block, length);
+        return true;
+    }
+
+    /*
+     * Hashes the bytes from the hashed position up to limit (exclusive)
+     * by reading them from the channel. Those bytes must already be written.
+     * Each block is read with the lock released and hashed under it, so
+     * update() calls are not held up for the whole catch-up; a block the
+     * position moved past in the meantime is read again from the new one.
+     * Calls run one at a time.
+     */
+    public void
+    catchUp(FileChannel channel, long limit) throws IOException
+    {
+        synchronized (this)
+        {
+            if (position >= limit)
+            {
+                return;
+            }
+            while (catching_up)
+            {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting to catch up");
+                }
+            }
+            catching_up = true;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(CATCH_UP_BLOCK);
+            while (true)
+            {
+                long from;
+                synchronized (this)
+                {
+                    from = position;
+                }
+                if (from >= limit)
+                {
+                    return;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(CATCH_UP_BLOCK, limit - from));
+                int bytes_read = channel.read(buffer, from);
+                if (bytes_read <= 0)
+                {
+                    throw new EOFException("file ends at " + from + " before " + limit);
+                }
+                synchronized (this)
+                {
+                    if (position == from)
+                    {
+                        update(buffer.array(), bytes_read);
+                        caught_up += bytes_read;
+                    }
+                }
+            }
+        }
+        finally {
+            synchronized (this)
+            {
+                catching_up = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Same as above, reading from the given file.
+     */
+    public void
+    catchUp(File file, long limit) throws IOException
+    {
+        if (getPosition() >= limit)
+        {
+            return;
+        }
+        RandomAccessFile random_access_file = new RandomAccessFile(file, "r");
+        try {
+            catchUp(random_access_file.getChannel(), limit);
+        }
+        finally {
+            random_access_file.close();
+        }
+    }
+
+    /*
+     * Forgets everything hashed so far, e.g. when a server sends the whole
+     * file again instead of the rest of it.
+     */
+    public synchronized void
+    reset()
+    {
+        for (MessageDigest digest : digests)
+        {
+            digest.reset();
+        }
+        position = 0;
+        caught_up = 0;
+    }
+
+    /*
+     * Returns the number of bytes hashed so far.
+     */
+    public synchronized long
+    getPosition()
+    {
+        return position;
+    }
+
+    /*
+     * Returns the number of hashed bytes that had to be read back from the
+     * file rather than hashed inline.
+     */
+    public synchronized long
+    getCaughtUpBytes()
+    {
+        return caught_up;
+    }
+
+    /*
+     * Completes the hashes and returns the first one as lower-case hex.
+     * Nothing more can be hashed afterwards.
+     */
+    public synchronized String
+    finish()
+    {
+        if (hashes == null)
+        {
+            hashes = new String[digests.length];
+            for (int i = 0; i < digests.length; i++)
+            {
+                hashes[i] = toHex(digests[i].digest());
+            }
+        }
+        return hashes[0];
+    }
+
+    /*
+     * Returns the finished hash of the given algorithm as lower-case hex,
+     * or null if it was not computed.
+     */
+    public synchronized String
+    getHash(String algorithm)
+    {
+        finish();
+        for (int i = 0; i < algorithms.length; i++)
+        {
+            if (algorithms[i].equalsIgnoreCase(algorithm))
+            {
+                return hashes[i];
+            }
+        }
+        return null;
+    }
+
+    private static String
+    toHex(byte[] hash)
+    {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
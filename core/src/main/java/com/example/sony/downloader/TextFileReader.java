@@ -0,0 +1,355 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * This class reads a downloaded text file quickly and with the right
+ * charset. The file is memory-mapped a window at a time (FileChannel.map),
+ * so the bytes are never copied through a stream buffer, and decoded in
+ * large chunks by a CharsetDecoder, so characters that take several bytes
+ * come out right even when they straddle two windows. Malformed bytes
+ * become U+FFFD, as with InputStreamReader.
+ *
+ * It is a Reader, so it can be read in chunks of any size. lines() and
+ * words() walk the file one line or word at a time and never hold more
+ * than the current one in memory; readAll() is there for files that are
+ * known to be small enough to keep as one String.
+ *
+ * Files below MIN_MAP_SIZE are read into the heap instead, since mapping
+ * costs more than it saves for them. Windows are kept small enough for a
+ * 32-bit address space.
+ */
+public class TextFileReader extends Reader {
+    // bytes mapped at a time
+    public static final int DEFAULT_WINDOW_SIZE = 8 * 1024 * 1024;
+
+    // files smaller than this are read rather than mapped
+    public static final int MIN_MAP_SIZE = 64 * 1024;
+
+    // chars decoded per call when the caller does not say
+    private static final int CHUNK_CHARS = 16 * 1024;
+
+    private final FileInputStream file_input_stream;
+    private final FileChannel channel;
+    private final long size;
+    private final int window_size;
+    private final CharsetDecoder decoder;
+
+    private ByteBuffer window;              // current window, null before the first
+    private long window_start;              // file offset of the window's first byte
+    private boolean flushed;                // decoder flushed, nothing more to come
+
+    public
+    TextFileReader(File file) throws IOException
+    {
+        this(file, Charset.forName("UTF-8"), DEFAULT_WINDOW_SIZE);
+    }
+
+    public
+    TextFileReader(File file, Charset charset) throws IOException
+    {
+        this(file, charset, DEFAULT_WINDOW_SIZE);
+    }
+
+    public
+    TextFileReader(File file, Charset charset, int window_size) throws IOException
+    {
+        if (window_size < 16)
+        {
+            throw new IllegalArgumentException("window size too small: " + window_size);
+        }
+        this.file_input_stream = new FileInputStream(file);
+        this.channel = file_input_stream.getChannel();
+        this.size = channel.size();
+        this.window_size = window_size;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /*
+     * Returns the size of the file in bytes.
+     */
+    public long
+    getSize()
+    {
+        return size;
+    }
+
+    /*
+     * Decodes up to length chars into the array. Returns the number of chars
+     * decoded, or -1 at the end of the file.
+     */
+    @Override
+    public int
+    read(char[] buffer, int offset, int length) throws IOException
+    {
+        if (!channel.isOpen())
+        {
+            throw new IOException("reader is closed");
+        }
+        if (length == 0)
+        {
+            return 0;
+        }
+        CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+        while (out.position() == offset && !flushed)
+        {
+            if ((window == null || !window.hasRemaining()) && !nextWindow())
+            {
+                decoder.decode(ByteBuffer.allocate(0), out, true);
+                if (decoder.flush(out).isOverflow())
+                {
+                    break;
+                }
+                flushed = true;
+                break;
+            }
+            boolean last = window_start + window.limit() >= size;
+            CoderResult result = decoder.decode(window, out, last);
+            if (result.isOverflow())
+            {
+                break;
+            }
+            if (window.hasRemaining() && !last)
+            {
+                // a character straddles the end of the window; map again from it
+                if (!nextWindow())
+                {
+                    break;
+                }
+            }
+        }
+        int count = out.position() - offset;
+        return count == 0 && flushed ? -1 : count;
+    }
+
+    /*
+     * Reads the rest of the file into one String. Only for files that fit
+     * in memory; use lines() or words() for the others.
+     */
+    public String
+    readAll() throws IOException
+    {
+        StringBuilder text = new StringBuilder((int) Math.min(size, Integer.MAX_VALUE - 8));
+        char[] chunk = new char[CHUNK_CHARS];
+        int count;
+        while ((count = read(chunk, 0, chunk.length)) != -1)
+        {
+            text.append(chunk, 0, count);
+        }
+        return text.toString();
+    }
+
+    /*
+     * Returns the rest of the file one line at a time, without the line
+     * terminator ("\n", "\r\n" or "\r"). Only one pass is possible.
+     * An I/O error while iterating is thrown as a RuntimeException.
+     */
+    public Iterable<String>
+    lines()
+    {
+        return new Iterable<String>() {
+            public Iterator<String> iterator()
+            {
+                return new LineIterator();
+            }
+        };
+    }
+
+    /*
+     * Returns the rest of the file one word at a time. A word is a run of
+     * letters and digits, and may contain apostrophes ("whale's").
+     * Only one pass is possible.
+     */
+    public Iterable<String>
+    words()
+    {
+        return new Iterable<String>() {
+            public Iterator<String> iterator()
+            {
+                return new WordIterator();
+            }
+        };
+    }
+
+    @Override
+    public void
+    close() throws IOException
+    {
+        // mapped windows are released by the garbage collector
+        window = null;
+        file_input_stream.close();
+    }
+
+    /*
+     * Makes the window start at the first byte not yet decoded.
+     * Returns false if there are no bytes left.
+     */
+    private boolean
+    nextWindow() throws IOException
+    {
+        long start = window == null ? 0 : window_start + window.position();
+        if (start >= size)
+        {
+            return false;
+        }
+        long length = Math.min(window_size, size - start);
+        if (size < MIN_MAP_SIZE)
+        {
+            ByteBuffer heap = ByteBuffer.allocate((int) length);
+            while (heap.hasRemaining())
+            {
+                if (channel.read(heap, start + heap.position()) < 0)
+                {
+                    throw new EOFException("file shrank while reading");
+                }
+            }
+            heap.flip();
+            window = heap;
+        }
+        else
+        {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        window_start = start;
+        return true;
+    }
+
+    /*
+     * Base of the line and word iterators: reads the file in chunks and
+     * leaves it to nextToken() to cut the chars into tokens.
+     */
+    private abstract class TokenIterator implements Iterator<String> {
+        final char[] chunk = new char[CHUNK_CHARS];
+        int chunk_position;
+        int chunk_length;
+        String next;
+        boolean done;
+
+        public boolean
+        hasNext()
+        {
+            if (next == null && !done)
+            {
+                try {
+                    next = nextToken();
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                done = next == null;
+            }
+            return next != null;
+        }
+
+        public String
+        next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            String token = next;
+            next = null;
+            return token;
+        }
+
+        public void
+        remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /*
+         * Returns the next char, or -1 at the end of the file.
+         */
+        int
+        nextChar() throws IOException
+        {
+            if (chunk_position == chunk_length)
+            {
+                chunk_length = read(chunk, 0, chunk.length);
+                chunk_position = 0;
+                if (chunk_length <= 0)
+                {
+                    chunk_length = 0;
+                    return -1;
+                }
+            }
+            return chunk[chunk_position++];
+        }
+
+        /*
+         * Returns the next token, or null if there is none.
+         */
+        abstract String
+        nextToken() throws IOException;
+    }
+
+    private class LineIterator extends TokenIterator {
+        final StringBuilder line = new StringBuilder();
+        boolean skip_line_feed;
+
+        String
+        nextToken() throws IOException
+        {
+            line.setLength(0);
+            int c;
+            while ((c = nextChar()) != -1)
+            {
+                if (skip_line_feed)
+                {
+                    skip_line_feed = false;
+                    if (c == '\n')
+                    {
+                        continue;
+                    }
+                }
+                if (c == '\n')
+                {
+                    return line.toString();
+                }
+                if (c == '\r')
+                {
+                    skip_line_feed = true;
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+    }
+
+    private class WordIterator extends TokenIterator {
+        final StringBuilder word = new StringBuilder();
+
+        String
+        nextToken() throws IOException
+        {
+            word.setLength(0);
+            int c;
+            while ((c = nextChar()) != -1)
+            {
+                if (Character.isLetterOrDigit(c) || (c == '\'' && word.length() > 0))
+                {
+                    word.append((char) c);
+                }
+                else if (word.length() > 0)
+                {
+                    break;
+                }
+            }
+            // an apostrophe only counts inside a word
+            while (word.length() > 0 && word.charAt(word.length() - 1) == '\'')
+            {
+                word.setLength(word.length() - 1);
+            }
+            return word.length() > 0 ? word.toString() : null;
+        }
+    }
+}
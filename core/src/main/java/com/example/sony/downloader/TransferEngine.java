@@ -0,0 +1,186 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * This is the byte-oriented copy loop used by the Downloader to move data
+ * from a network stream to its destination. Data is moved a whole block at
+ * a time, never one byte or one char at a time, and is never decoded through
+ * a charset, so binary files (images, archives, executables) arrive intact.
+ *
+ * Blocks are kept in a small pool so that back-to-back and concurrent
+ * transfers reuse the same few arrays instead of allocating a new buffer
+ * for every download.
+ *
+ * A TransferListener may be attached to a copy to see every block right
+ * after it has been written, e.g. to record progress.
+ */
+public class TransferEngine {
+    // block size used when none is configured
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    // smallest block size accepted; anything smaller is all call overhead
+    public static final int MIN_BLOCK_SIZE = 512;
+
+    // most idle blocks kept around for reuse
+    private static final int MAX_POOLED_BLOCKS = 8;
+
+    private final int block_size;
+    private final ArrayDeque<byte[]> pool;      // idle blocks, guarded by itself
+
+    public
+    TransferEngine()
+    {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    public
+    TransferEngine(int block_size)
+    {
+        if (block_size < MIN_BLOCK_SIZE)
+        {
+            throw new IllegalArgumentException("block size must be at least " + MIN_BLOCK_SIZE);
+        }
+        this.block_size = block_size;
+        this.pool = new ArrayDeque<>();
+    }
+
+    /*
+     * Returns the number of bytes moved per read/write call.
+     */
+    public int
+    getBlockSize()
+    {
+        return block_size;
+    }
+
+    /*
+     * Copies everything from the input stream to the output stream.
+     * Neither stream is closed. Returns the number of bytes copied.
+     */
+    public long
+    copy(InputStream input_stream, OutputStream output_stream) throws IOException
+    {
+        return copy(input_stream, output_stream, null);
+    }
+
+    /*
+     * Same as above, telling the listener (if not null) about every block written.
+     */
+    public long
+    copy(InputStream input_stream, OutputStream output_stream, TransferListener listener) throws IOException
+    {
+        byte[] block = acquireBlock();
+        try {
+            long total = 0;
+            int bytes_read;
+            while ((bytes_read = input_stream.read(block, 0, block.length)) != -1)
+            {
+                output_stream.write(block, 0, bytes_read);
+                total += bytes_read;
+                if (listener != null)
+                {
+                    listener.onBlock(block, bytes_read);
+                }
+            }
+            return total;
+        }
+        finally {
+            releaseBlock(block);
+        }
+    }
+
+    /*
+     * Copies up to count bytes from the input stream into the channel,
+     * starting at the given file position. Positional writes leave the
+     * channel's own position alone, so several threads may fill different
+     * parts of the same channel at once. Stops early at end of stream.
+     * Returns the number of bytes copied.
+     */
+    public long
+    copy(InputStream input_stream, FileChannel channel, long position, long count) throws IOException
+    {
+        return copy(input_stream, channel, position, count, null);
+    }
+
+    /*
+     * Same as above, telling the listener (if not null) about every block written.
+     */
+    public long
+    copy(InputStream input_stream, FileChannel channel, long position, long count,
+         TransferListener listener) throws IOException
+    {
+        byte[] block = acquireBlock();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(block);
+            long total = 0;
+            while (total < count)
+            {
+                int wanted = (int) Math.min(block.length, count - total);
+                int bytes_read = input_stream.read(block, 0, wanted);
+                if (bytes_read == -1)
+                {
+                    break;
+                }
+                buffer.limit(bytes_read).position(0);
+                while (buffer.hasRemaining())
+                {
+                    channel.write(buffer, position + total + buffer.position());
+                }
+                total += bytes_read;
+                if (listener != null)
+                {
+                    listener.onBlock(block, bytes_read);
+                }
+            }
+            return total;
+        }
+        finally {
+            releaseBlock(block);
+        }
+    }
+
+    /*
+     * Takes a block from the pool, or allocates one if the pool is empty.
+     */
+    byte[]
+    acquireBlock()
+    {
+        synchronized (pool)
+        {
+            byte[] block = pool.pollFirst();
+            if (block != null)
+            {
+                return block;
+            }
+        }
+        return new byte[block_size];
+    }
+
+    /*
+     * Returns a block to the pool. Blocks beyond the pool limit are left
+     * for the garbage collector.
+     */
+    void
+    releaseBlock(byte[] block)
+    {
+        synchronized (pool)
+        {
+            if (pool.size() < MAX_POOLED_BLOCKS)
+            {
+                pool.addFirst(block);
+            }
+        }
+    }
+
+    /*
+     * Receives every block of a copy right after it has been written.
+     * Runs on the copying thread, so it must be quick.
+     */
+    public interface TransferListener {
+        void onBlock(byte[] block, int length) throws IOException;
+    }
+}
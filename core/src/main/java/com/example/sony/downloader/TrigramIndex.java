@@ -0,0 +1,276 @@
+package com.example.sony.downloader;
+
+import java.util.*;
+
+/**
+ * This is an inverted index from every three-character sequence (trigram)
+ * to the ids of the texts containing it, for finding the texts that contain
+ * a substring without reading all of them. A query's candidates are the
+ * texts holding every trigram of the query; they still have to be checked,
+ * since having all the trigrams does not mean having them in order.
+ *
+ * Ids must be added in increasing order. Each posting list is kept as
+ * variable-length deltas in a byte array, so a trigram shared by every
+ * link of a site (like "htt" or the host name) costs about one byte per
+ * link, and a hundred thousand links take a few megabytes. Trigrams go
+ * through an open-addressing table of primitive longs, as in UrlSet.
+ *
+ * Matching ignores case. The class is not thread-safe; LinkStore guards it.
+ */
+class TrigramIndex {
+    public static final int GRAM_LENGTH = 3;
+
+    private static final int INITIAL_CAPACITY = 1024;          // power of two
+    private static final int INITIAL_POSTINGS_SIZE = 8;
+
+    // keys are three 16-bit chars; this bit keeps a real key from being 0 (empty)
+    private static final long KEY_MARKER = 1L << 48;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private int[] slots = new int[INITIAL_CAPACITY];       // key -> index into the arrays below
+    private int key_count;
+
+    private byte[][] postings = new byte[INITIAL_CAPACITY / 2][];
+    private int[] posting_lengths = new int[INITIAL_CAPACITY / 2];    // bytes used
+    private int[] posting_counts = new int[INITIAL_CAPACITY / 2];     // ids held
+    private int[] last_ids = new int[INITIAL_CAPACITY / 2];
+
+    /*
+     * Indexes the text under the id, which must be larger than any id
+     * added before.
+     */
+    public void
+    add(int id, String text)
+    {
+        if (text.length() < GRAM_LENGTH)
+        {
+            return;
+        }
+        long key = (long) lower(text.charAt(0)) << 16 | lower(text.charAt(1));
+        for (int i = GRAM_LENGTH - 1; i < text.length(); i++)
+        {
+            key = (key << 16 | lower(text.charAt(i))) & 0xFFFFFFFFFFFFL;
+            int slot = slotOf(key | KEY_MARKER, true);
+            if (posting_counts[slot] > 0 && last_ids[slot] == id)
+            {
+                continue;       // the trigram occurs twice in this text
+            }
+            append(slot, posting_counts[slot] == 0 ? id : id - last_ids[slot]);
+            posting_counts[slot]++;
+            last_ids[slot] = id;
+        }
+    }
+
+    /*
+     * Returns, in increasing order, the ids at or above from_id whose text
+     * contains every trigram of the query. The query must be at least
+     * GRAM_LENGTH long.
+     */
+    public int[]
+    candidates(String query, int from_id)
+    {
+        // look up each trigram; one that never occurs rules out everything
+        int[] query_slots = new int[query.length() - GRAM_LENGTH + 1];
+        for (int i = 0; i < query_slots.length; i++)
+        {
+            long key = (long) lower(query.charAt(i)) << 32 | (long) lower(query.charAt(i + 1)) << 16
+                    | lower(query.charAt(i + 2));
+            query_slots[i] = slotOf(key | KEY_MARKER, false);
+            if (query_slots[i] < 0)
+            {
+                return new int[0];
+            }
+        }
+
+        // start from the rarest trigram and narrow it down with the others
+        Integer[] order = new Integer[query_slots.length];
+        for (int i = 0; i < order.length; i++)
+        {
+            order[i] = query_slots[i];
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b)
+            {
+                return posting_counts[a] < posting_counts[b] ? -1 : posting_counts[a] == posting_counts[b] ? 0 : 1;
+            }
+        });
+        int[] result = decode(order[0], from_id);
+        int result_count = result.length;
+        for (int i = 1; i < order.length && result_count > 0; i++)
+        {
+            result_count = intersect(order[i], result, result_count);
+        }
+        return result_count == result.length ? result : Arrays.copyOf(result, result_count);
+    }
+
+    /*
+     * Returns the number of distinct trigrams indexed.
+     */
+    public int
+    size()
+    {
+        return key_count;
+    }
+
+    private int[]
+    decode(int slot, int from_id)
+    {
+        int[] ids = new int[posting_counts[slot]];
+        int count = 0;
+        byte[] bytes = postings[slot];
+        int length = posting_lengths[slot];
+        int id = 0;
+        int position = 0;
+        while (position < length)
+        {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += delta;
+            if (id >= from_id)
+            {
+                ids[count++] = id;
+            }
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    /*
+     * Keeps the first count ids that are also in the slot's postings,
+     * compacted to the front. Returns how many are kept.
+     */
+    private int
+    intersect(int slot, int[] ids, int count)
+    {
+        byte[] bytes = postings[slot];
+        int length = posting_lengths[slot];
+        int id = 0;
+        int position = 0;
+        int kept = 0;
+        int next = 0;
+        while (position < length && next < count)
+        {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += delta;
+            while (next < count && ids[next] < id)
+            {
+                next++;
+            }
+            if (next < count && ids[next] == id)
+            {
+                ids[kept++] = id;
+                next++;
+            }
+        }
+        return kept;
+    }
+
+    private void
+    append(int slot, int value)
+    {
+        byte[] bytes = postings[slot];
+        int length = posting_lengths[slot];
+        if (bytes == null)
+        {
+            bytes = postings[slot] = new byte[INITIAL_POSTINGS_SIZE];
+        }
+        else if (length + 5 > bytes.length)
+        {
+            bytes = postings[slot] = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        while ((value & ~0x7F) != 0)
+        {
+            bytes[length++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+        posting_lengths[slot] = length;
+    }
+
+    /*
+     * Returns the slot of the key, adding it if create is set; otherwise
+     * returns -1 for a key that is not in the index.
+     */
+    private int
+    slotOf(long key, boolean create)
+    {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (keys[i] != 0)
+        {
+            if (keys[i] == key)
+            {
+                return slots[i];
+            }
+            i = (i + 1) & mask;
+        }
+        if (!create)
+        {
+            return -1;
+        }
+        if (key_count == postings.length)
+        {
+            int capacity = postings.length * 2;
+            postings = Arrays.copyOf(postings, capacity);
+            posting_lengths = Arrays.copyOf(posting_lengths, capacity);
+            posting_counts = Arrays.copyOf(posting_counts, capacity);
+            last_ids = Arrays.copyOf(last_ids, capacity);
+        }
+        int slot = key_count++;
+        keys[i] = key;
+        slots[i] = slot;
+        if (key_count * 2 > keys.length)
+        {
+            rehash();
+        }
+        return slot;
+    }
+
+    private void
+    rehash()
+    {
+        long[] old_keys = keys;
+        int[] old_slots = slots;
+        keys = new long[old_keys.length * 2];
+        slots = new int[old_keys.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < old_keys.length; j++)
+        {
+            if (old_keys[j] != 0)
+            {
+                int i = mix(old_keys[j]) & mask;
+                while (keys[i] != 0)
+                {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = old_keys[j];
+                slots[i] = old_slots[j];
+            }
+        }
+    }
+
+    private static int
+    mix(long key)
+    {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key >>> 32);
+    }
+
+    static char
+    lower(char c)
+    {
+        return c < 0x80 ? (c >= 'A' && c <= 'Z' ? (char) (c + 32) : c) : Character.toLowerCase(c);
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.sony.downloader;
+
+/**
+ * This is a compact, thread-safe set of URLs used to avoid visiting the same
+ * page twice during a crawl. Only a 64-bit hash of each URL is kept, in
+ * open-addressing tables of primitive longs, so a hundred thousand URLs
+ * cost a couple of megabytes instead of the strings themselves. With 64-bit
+ * hashes a false "already seen" is astronomically unlikely for any crawl
+ * this app can do.
+ *
+ * The set is split into stripes, each with its own lock, so crawler
+ * threads rarely wait on each other.
+ */
+public class UrlSet {
+    private static final int STRIPES = 16;
+    private static final int INITIAL_STRIPE_CAPACITY = 256;    // power of two
+
+    // 0 marks an empty slot, so a real hash of 0 is stored as this instead
+    private static final long ZERO_HASH_SUBSTITUTE = 0x9E3779B97F4A7C15L;
+
+    private final long[][] tables = new long[STRIPES][];
+    private final int[] sizes = new int[STRIPES];
+    private final Object[] locks = new Object[STRIPES];
+
+    public
+    UrlSet()
+    {
+        for (int i = 0; i < STRIPES; i++)
+        {
+            tables[i] = new long[INITIAL_STRIPE_CAPACITY];
+            locks[i] = new Object();
+        }
+    }
+
+    /*
+     * Adds the URL. Returns true if it was not in the set before.
+     */
+    public boolean
+    add(String url)
+    {
+        long hash = hash(url);
+        int stripe = (int) (hash >>> 60) & (STRIPES - 1);
+        synchronized (locks[stripe])
+        {
+            if (sizes[stripe] * 2 >= tables[stripe].length)
+            {
+                tables[stripe] = grow(tables[stripe]);
+            }
+            if (insert(tables[stripe], hash))
+            {
+                sizes[stripe]++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /*
+     * Returns the number of URLs in the set.
+     */
+    public int
+    size()
+    {
+        int total = 0;
+        for (int i = 0; i < STRIPES; i++)
+        {
+            synchronized (locks[i])
+            {
+                total += sizes[i];
+            }
+        }
+        return total;
+    }
+
+    /*
+     * Puts the hash into the table with linear probing. Returns false if it
+     * was already there.
+     */
+    private static boolean
+    insert(long[] table, long hash)
+    {
+        int mask = table.length - 1;
+        int slot = (int) hash & mask;
+        while (table[slot] != 0)
+        {
+            if (table[slot] == hash)
+            {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = hash;
+        return true;
+    }
+
+    private static long[]
+    grow(long[] table)
+    {
+        long[] bigger = new long[table.length * 2];
+        for (long hash : table)
+        {
+            if (hash != 0)
+            {
+                insert(bigger, hash);
+            }
+        }
+        return bigger;
+    }
+
+    /*
+     * 64-bit FNV-1a over the URL's chars, followed by a final mix so that
+     * both the low bits (slot) and high bits (stripe) are well spread.
+     */
+    static long
+    hash(String url)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); i++)
+        {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == 0 ? ZERO_HASH_SUBSTITUTE : hash;
+    }
+}
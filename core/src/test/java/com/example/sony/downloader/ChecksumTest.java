@@ -0,0 +1,222 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks checksum parsing and sidecar lookup, that a download whose
+ * checksum does not match is fetched once more and then deleted, and that
+ * the streaming digest gives the same hash whatever order the blocks
+ * land in, without holding up blocks while it reads the file back.
+ */
+public class ChecksumTest extends TestCase {
+    private static final int PAYLOAD_SIZE = 2 * 1024 * 1024 + 11;
+
+    private byte[] payload;
+    private LocalHttpServer server;
+    private File folder;
+
+    @Override
+    protected void
+    setUp() throws Exception
+    {
+        payload = LocalHttpServer.payloadOf(PAYLOAD_SIZE);
+        server = new LocalHttpServer(payload);
+        folder = TestFiles.newFolder("checksums");
+        Downloader.setStorageRoot(folder);
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception
+    {
+        Downloader.setSidecarChecksums(false);
+        server.close();
+        TestFiles.delete(folder);
+    }
+
+    public void
+    testChecksumsAreParsed()
+    {
+        String sha256 = SegmentedDownloadTest.sha256(payload);
+        Checksum checksum = Checksum.parse(" SHA-256:" + sha256.toUpperCase(Locale.US) + " ");
+        assertEquals(StreamingDigest.SHA_256, checksum.algorithm);
+        assertEquals(sha256, checksum.hex);
+        assertTrue(checksum.matches(sha256.toUpperCase(Locale.US)));
+        assertEquals(StreamingDigest.SHA_256, Checksum.parse(sha256).algorithm);
+        assertEquals(StreamingDigest.MD5, Checksum.parse("md5:" + md5(payload)).algorithm);
+        assertEquals(StreamingDigest.MD5, Checksum.parse(md5(payload)).algorithm);
+        assertNull(Checksum.parse("  "));
+        assertNull(Checksum.parse(null));
+
+        String[] broken = {"sha256:" + md5(payload), "md5:xyz", "crc32:1234abcd", sha256.substring(1)};
+        for (String spec : broken)
+        {
+            try {
+                Checksum.parse(spec);
+                fail(spec + " parsed");
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    public void
+    testSidecarsAreFound() throws Exception
+    {
+        HttpClient client = new HttpClient();
+        String url = server.url("/file.zip");
+        server.setPage("/file.zip.sha256", (SegmentedDownloadTest.sha256(payload) + "  file.zip\n")
+                .getBytes("US-ASCII"));
+        server.setPage("/file.zip.md5", (md5(payload) + " *file.zip\n").getBytes("US-ASCII"));
+        assertEquals(StreamingDigest.SHA_256, Checksum.fetchSidecar(client, url).algorithm);
+
+        // no ".sha256" on the server: the ".md5" one is used
+        server.failNext(1, 404, -1);
+        Checksum checksum = Checksum.fetchSidecar(client, url);
+        assertEquals(StreamingDigest.MD5, checksum.algorithm);
+        assertEquals(md5(payload), checksum.hex);
+
+        // neither: the other paths serve the payload, which is too large to be a sidecar
+        assertNull(Checksum.fetchSidecar(client, server.url("/other.zip")));
+    }
+
+    public void
+    testMatchingDownloadIsKept() throws Exception
+    {
+        String file_name = Downloader.download(server.url("/file.zip"), null, Checksum.parse("md5:" + md5(payload)));
+        assertTrue(Arrays.equals(payload, TestFiles.read(new File(folder, file_name))));
+        assertEquals(PAYLOAD_SIZE, server.getBodyBytesSent());
+    }
+
+    public void
+    testCorruptDownloadIsFetchedAgain() throws Exception
+    {
+        server.corruptNext(1);
+        String file_name = Downloader.download(server.url("/file.zip"), null,
+                Checksum.parse(SegmentedDownloadTest.sha256(payload)));
+        assertTrue(Arrays.equals(payload, TestFiles.read(new File(folder, file_name))));
+        assertEquals(2L * PAYLOAD_SIZE, server.getBodyBytesSent());
+    }
+
+    public void
+    testMismatchingDownloadIsDeleted() throws Exception
+    {
+        server.setPage("/file.zip.sha256", (SegmentedDownloadTest.sha256(new byte[1]) + "  file.zip\n")
+                .getBytes("US-ASCII"));
+        Downloader.setSidecarChecksums(true);
+        try {
+            Downloader.download(server.url("/file.zip"));
+            fail("download with the wrong checksum succeeded");
+        }
+        catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof RetryPolicy.PermanentException);
+        }
+        assertEquals(2L * PAYLOAD_SIZE, server.getBodyBytesSent() - sidecarBytes());
+        assertEquals(Collections.<String>emptyList(), TestFiles.namesIn(folder, ContentStore.INDEX_NAME));
+    }
+
+    public void
+    testDigestIsTheSameInAnyOrder() throws Exception
+    {
+        File file = new File(folder, "blocks.bin");
+        folder.mkdirs();
+        TestFiles.write(file, payload);
+
+        // the second half lands first and is left for catching up
+        StreamingDigest digest = new StreamingDigest(StreamingDigest.SHA_256, StreamingDigest.MD5);
+        int half = PAYLOAD_SIZE / 2;
+        assertFalse(digest.update(half, Arrays.copyOfRange(payload, half, PAYLOAD_SIZE), PAYLOAD_SIZE - half));
+        assertTrue(digest.update(0, Arrays.copyOf(payload, half), half));
+        digest.catchUp(file, PAYLOAD_SIZE);
+        assertEquals(PAYLOAD_SIZE - half, digest.getCaughtUpBytes());
+        assertEquals(SegmentedDownloadTest.sha256(payload), digest.finish());
+        assertEquals(md5(payload), digest.getHash(StreamingDigest.MD5));
+
+        try {
+            new StreamingDigest(StreamingDigest.SHA_256).catchUp(file, PAYLOAD_SIZE + 1);
+            fail("caught up past the end of the file");
+        }
+        catch (EOFException e) {
+            // expected
+        }
+    }
+
+    public void
+    testBlocksAreHashedWhereTheyLie()
+    {
+        // the payload read a piece at a time into varying spots of one buffer
+        StreamingDigest digest = new StreamingDigest(StreamingDigest.MD5);
+        byte[] buffer = new byte[5000];
+        for (int position = 0, offset = 0; position < PAYLOAD_SIZE; offset = (offset + 7) % 1000)
+        {
+            int length = Math.min(4000 - offset, PAYLOAD_SIZE - position);
+            System.arraycopy(payload, position, buffer, offset, length);
+            digest.update(buffer, offset, length);
+            position += length;
+        }
+        assertEquals(PAYLOAD_SIZE, digest.getPosition());
+        assertEquals(md5(payload), digest.finish());
+    }
+
+    public void
+    testUpdatesGoOnWhileCatchingUp() throws Exception
+    {
+        File file = new File(folder, "blocks.bin");
+        folder.mkdirs();
+        TestFiles.write(file, payload);
+        final StreamingDigest digest = new StreamingDigest(StreamingDigest.SHA_256);
+        RandomAccessFile random_access_file = new RandomAccessFile(file, "r");
+        final StalledChannel channel = new StalledChannel(random_access_file.getChannel(), false, true);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> catch_up = threads.submit(new Callable<Void>() {
+                public Void call() throws IOException
+                {
+                    digest.catchUp(channel, PAYLOAD_SIZE / 2);
+                    return null;
+                }
+            });
+            assertTrue(channel.stalled.await(10, TimeUnit.SECONDS));
+
+            // the catch-up is reading; a block at the hashed position is still taken at once
+            Future<Boolean> update = threads.submit(new Callable<Boolean>() {
+                public Boolean call()
+                {
+                    return digest.update(0, Arrays.copyOf(payload, 1000), 1000);
+                }
+            });
+            assertTrue(update.get(5, TimeUnit.SECONDS));
+
+            // the block the catch-up read is stale now; it goes on from the new position
+            channel.release.countDown();
+            catch_up.get(10, TimeUnit.SECONDS);
+            assertEquals(PAYLOAD_SIZE / 2, digest.getPosition());
+            digest.catchUp(file, PAYLOAD_SIZE);
+            assertEquals(SegmentedDownloadTest.sha256(payload), digest.finish());
+        }
+        finally {
+            channel.release.countDown();
+            threads.shutdownNow();
+            random_access_file.close();
+        }
+    }
+
+    private static long
+    sidecarBytes()
+    {
+        return (SegmentedDownloadTest.sha256(new byte[1]) + "  file.zip\n").length();
+    }
+
+    private static String
+    md5(byte[] data)
+    {
+        StreamingDigest digest = new StreamingDigest(StreamingDigest.MD5);
+        digest.update(data, data.length);
+        return digest.finish();
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import java.io.*;
+import java.net.URLConnection;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Checks that text is fetched compressed and stored as sent, and that
+ * ".gz" and ".bz2" downloads can be stored unpacked.
+ */
+public class CompressionTest extends TestCase {
+    private byte[] text;
+    private File folder;
+
+    @Override
+    protected void
+    setUp() throws Exception
+    {
+        StringBuilder lines = new StringBuilder();
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++)
+        {
+            lines.append("http://mirror.example.com/pub/release-").append(random.nextInt(5000)).append(".zip\n");
+        }
+        text = lines.toString().getBytes("UTF-8");
+        folder = File.createTempFile("downloads", "");
+        folder.delete();
+        Downloader.setStorageRoot(folder);
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception
+    {
+        Downloader.setCompressedTransfer(true);
+        Downloader.setUnpackOnStore(false);
+        File[] files = folder.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    public void
+    testTextIsFetchedCompressed() throws Exception
+    {
+        LocalHttpServer server = new LocalHttpServer(text);
+        try {
+            server.setContentEncoding("gzip");
+            long encoded = Downloader.getMetrics().getCount("download.encoded");
+            String file_name = Downloader.download(server.url("/links.txt"));
+
+            assertEquals("links.txt", file_name);
+            assertTrue(Arrays.equals(text, readFile(new File(folder, file_name))));
+            assertEquals(encoded + 1, Downloader.getMetrics().getCount("download.encoded"));
+            assertTrue(server.getBodyBytesSent() < text.length / 3);
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    public void
+    testBrokenCompressedStreamIsFetchedAgain() throws Exception
+    {
+        LocalHttpServer server = new LocalHttpServer(text);
+        try {
+            server.setContentEncoding("gzip");
+            server.dropNext(1);
+            String file_name = Downloader.download(server.url("/links.txt"));
+            assertTrue(Arrays.equals(text, readFile(new File(folder, file_name))));
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    public void
+    testCompressedTransferCanBeTurnedOff() throws Exception
+    {
+        LocalHttpServer server = new LocalHttpServer(text);
+        try {
+            server.setContentEncoding("gzip");
+            Downloader.setCompressedTransfer(false);
+            String file_name = Downloader.download(server.url("/links.txt"));
+            assertTrue(Arrays.equals(text, readFile(new File(folder, file_name))));
+            assertEquals(text.length, server.getBodyBytesSent());
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    public void
+    testDeflateBodiesAreDecoded() throws Exception
+    {
+        // "deflate" should be zlib-wrapped, but some servers send it raw
+        for (String encoding : new String[] {"deflate", "raw-deflate"})
+        {
+            LocalHttpServer server = new LocalHttpServer(text);
+            try {
+                server.setContentEncoding(encoding);
+                URLConnection connection = new HttpClient().open(server.url("/page.html"), null, true);
+                assertTrue(HttpClient.isEncoded(connection));
+                InputStream input_stream = HttpClient.body(connection);
+                try {
+                    assertTrue(encoding, Arrays.equals(text, readAll(input_stream)));
+                }
+                finally {
+                    HttpClient.release(connection, input_stream);
+                }
+            }
+            finally {
+                server.close();
+            }
+        }
+    }
+
+    public void
+    testGzipIsStoredUnpacked() throws Exception
+    {
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        OutputStream output_stream = new GZIPOutputStream(packed);
+        output_stream.write(text);
+        output_stream.close();
+        assertUnpacked("/links.txt.gz", packed.toByteArray());
+    }
+
+    public void
+    testBzip2IsStoredUnpacked() throws Exception
+    {
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        OutputStream output_stream = new BZip2CompressorOutputStream(packed);
+        output_stream.write(text);
+        output_stream.close();
+        assertUnpacked("/links.txt.bz2", packed.toByteArray());
+    }
+
+    private void
+    assertUnpacked(String path, byte[] packed) throws Exception
+    {
+        LocalHttpServer server = new LocalHttpServer(packed);
+        try {
+            Downloader.setUnpackOnStore(true);
+            server.dropNext(1);     // a broken transfer starts over
+            StreamingDigest packed_digest = new StreamingDigest(StreamingDigest.SHA_256);
+            packed_digest.update(packed, packed.length);
+            Checksum expected = Checksum.parse("sha256:" + packed_digest.finish());
+            DownloadProgress progress = new DownloadProgress(1, path);
+            String file_name = Downloader.download(server.url(path), progress, expected);
+
+            assertEquals("links.txt", file_name);
+            assertTrue(Arrays.equals(text, readFile(new File(folder, file_name))));
+            assertEquals(packed.length, progress.getBytes());
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    private static byte[]
+    readFile(File file) throws IOException
+    {
+        InputStream input_stream = new FileInputStream(file);
+        try {
+            return readAll(input_stream);
+        }
+        finally {
+            input_stream.close();
+        }
+    }
+
+    private static byte[]
+    readAll(InputStream input_stream) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = input_stream.read(buffer)) != -1)
+        {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks that content deduplicated across URLs stays correct when one of
+ * the URLs changes: the file the others share is never rewritten for it,
+ * and a file is only reused while it really holds the content.
+ */
+public class ContentStoreTest extends TestCase {
+    private static final int PAYLOAD_SIZE = 300 * 1000;
+
+    private File folder;
+    private LocalHttpServer first_server;
+    private LocalHttpServer second_server;
+    private byte[] old_content;
+    private byte[] new_content;
+
+    @Override
+    protected void
+    setUp() throws Exception
+    {
+        folder = TestFiles.newFolder("content_store");
+        folder.mkdirs();
+        Downloader.setStorageRoot(folder);
+        old_content = LocalHttpServer.payloadOf(PAYLOAD_SIZE);
+        new_content = old_content.clone();
+        new_content[PAYLOAD_SIZE / 2] ^= 1;
+        // two mirrors of the same file
+        first_server = new LocalHttpServer(old_content);
+        second_server = new LocalHttpServer(old_content);
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception
+    {
+        first_server.close();
+        second_server.close();
+        TestFiles.delete(folder);
+    }
+
+    public void
+    testChangedMirrorGetsAFileOfItsOwn() throws Exception
+    {
+        String first_url = first_server.url("/file.zip");
+        String second_url = second_server.url("/file.zip");
+        assertEquals("file.zip", Downloader.download(first_url));
+        assertEquals("file.zip", Downloader.download(second_url));
+        assertEquals(Arrays.asList("file.zip"), TestFiles.namesIn(folder, ContentStore.INDEX_NAME));
+
+        second_server.setPayload(new_content);
+        assertEquals("file-1.zip", Downloader.download(second_url));
+        assertContent(old_content, "file.zip");
+        assertContent(new_content, "file-1.zip");
+
+        // both are unchanged from here on and keep their own files
+        assertEquals("file.zip", Downloader.download(first_url));
+        assertEquals("file-1.zip", Downloader.download(second_url));
+        assertEquals(Arrays.asList("file-1.zip", "file.zip"), TestFiles.namesIn(folder, ContentStore.INDEX_NAME));
+    }
+
+    public void
+    testChangedOriginalLeavesTheMirrorItsFile() throws Exception
+    {
+        String first_url = first_server.url("/file.zip");
+        String second_url = second_server.url("/file.zip");
+        Downloader.download(first_url);
+        Downloader.download(second_url);
+
+        first_server.setPayload(new_content);
+        assertEquals("file-1.zip", Downloader.download(first_url));
+        assertContent(old_content, "file.zip");
+        assertContent(new_content, "file-1.zip");
+        assertEquals("file.zip", Downloader.download(second_url));
+
+        // a later change of the mirror goes to the same content again
+        second_server.setPayload(new_content);
+        assertEquals("file-1.zip", Downloader.download(second_url));
+        assertEquals(Arrays.asList("file-1.zip"), TestFiles.namesIn(folder, ContentStore.INDEX_NAME));
+    }
+
+    public void
+    testRewrittenFileIsNotReusedForItsOldContent() throws Exception
+    {
+        // the only URL of a file changes, so the file is rewritten in place
+        String first_url = first_server.url("/file.zip");
+        Downloader.download(first_url);
+        first_server.setPayload(new_content);
+        assertEquals("file.zip", Downloader.download(first_url));
+
+        // the old content, of the same length, must not be matched to it
+        assertEquals("file-1.zip", Downloader.download(second_server.url("/file.zip")));
+        assertContent(new_content, "file.zip");
+        assertContent(old_content, "file-1.zip");
+    }
+
+    public void
+    testFileChangedOnDiskIsNotReused() throws Exception
+    {
+        Downloader.download(first_server.url("/file.zip"));
+        TestFiles.write(new File(folder, "file.zip"), new_content);
+
+        assertEquals("file-1.zip", Downloader.download(second_server.url("/file.zip")));
+        assertContent(old_content, "file-1.zip");
+    }
+
+    public void
+    testNewestRecordOfAFileWins() throws Exception
+    {
+        TestFiles.write(new File(folder, "f.zip"), new byte[10]);
+        ContentStore store = new ContentStore(folder);
+        store.record("http://a.example.com/f.zip", "f.zip", "aaaa", 10, "\"a\"", null);
+        assertTrue(store.recordShared("http://b.example.com/f.zip", "f.zip", "aaaa", 10, "\"b\"", null));
+        assertFalse(store.recordShared("http://c.example.com/f.zip", "f.zip", "cccc", 10, null, null));
+        assertEquals(2, store.sharersOf("f.zip"));
+        assertEquals("f.zip", store.findContent("aaaa", 10));
+
+        // the file is rewritten for one URL: the other no longer has its content there
+        store.record("http://a.example.com/f.zip", "f.zip", "bbbb", 10, "\"a2\"", null);
+        assertEquals(1, store.sharersOf("f.zip"));
+        assertNull(store.getSha256("http://b.example.com/f.zip"));
+        assertNull(store.findContent("aaaa", 10));
+        assertEquals("f.zip", store.findContent("bbbb", 10));
+
+        // reading the index back gives the same answer
+        ContentStore reloaded = new ContentStore(folder);
+        assertEquals(1, reloaded.size());
+        assertEquals("bbbb", reloaded.getSha256("http://a.example.com/f.zip"));
+        assertEquals("f.zip", reloaded.nameFor("http://a.example.com/f.zip", "f.zip"));
+        assertEquals("f-1.zip", reloaded.nameFor("http://b.example.com/f.zip", "f.zip"));
+    }
+
+    private void
+    assertContent(byte[] expected, String file_name) throws IOException
+    {
+        assertTrue(file_name, Arrays.equals(expected, TestFiles.read(new File(folder, file_name))));
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks that the Crawler follows pages down to its depth limit, stays on
+ * the starting host, fetches no page twice and reports each file once,
+ * keeps to the connections a scheduler job is granted; and that the
+ * UrlSet it dedups with is exact under concurrent adds.
+ */
+public class CrawlerTest extends TestCase {
+    private LocalHttpServer server;
+
+    @Override
+    protected void
+    setUp() throws Exception
+    {
+        server = new LocalHttpServer(new byte[0]);
+        // a small site: the root links to two sub-pages, one of which goes a level deeper
+        server.setPage("/", pageOf("f1.zip", "a/", "a/#top", "b.html", "notes.doc",
+                "http://localhost:" + portOf(server) + "/elsewhere.zip"));
+        server.setPage("/a/", pageOf("f2.zip", "../f1.zip", "deeper/", "/index.html?sort=name"));
+        server.setPage("/a/deeper/", pageOf("f3.zip", "../../a/"));
+        server.setPage("/b.html", pageOf("/a/f2.zip", "f4.TXT"));
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception
+    {
+        server.close();
+    }
+
+    public void
+    testDepthLimitsTheCrawl() throws Exception
+    {
+        assertEquals(new TreeSet<>(Arrays.asList(server.url("/f1.zip"))), crawl(0));
+        assertEquals(new TreeSet<>(Arrays.asList(server.url("/f1.zip"), server.url("/a/f2.zip"),
+                server.url("/f4.TXT"))), crawl(1));
+
+        int requests = server.getRequestCount();
+        assertEquals(new TreeSet<>(Arrays.asList(server.url("/f1.zip"), server.url("/a/f2.zip"),
+                server.url("/f4.TXT"), server.url("/a/deeper/f3.zip"))), crawl(2));
+        // "/", "/a/", "/b.html", "/index.html?sort=name" and "/a/deeper/", each once
+        assertEquals(5, server.getRequestCount() - requests);
+    }
+
+    public void
+    testPageLimitBoundsTheCrawl() throws Exception
+    {
+        final List<String> found = Collections.synchronizedList(new ArrayList<String>());
+        // the root page and one of its sub-pages, whichever is queued first
+        Crawler crawler = new Crawler(5, true, Arrays.asList("zip", "txt"), 2, 2);
+        crawler.crawl(server.url("/"), new LinkScanner.LinkSink() {
+            public void onLinks(List<String> links)
+            {
+                found.addAll(links);
+            }
+        });
+        assertEquals(2, server.getRequestCount());
+        assertTrue(found.contains(server.url("/f1.zip")));
+    }
+
+    public void
+    testCrawlKeepsToTheHostLimit() throws Exception
+    {
+        // a root page with many sub-pages, each slow to answer
+        String[] sub_pages = new String[12];
+        for (int i = 0; i < sub_pages.length; i++)
+        {
+            sub_pages[i] = "p" + i + "/";
+            server.setPage("/p" + i + "/", pageOf("f" + i + ".zip"));
+        }
+        server.setPage("/", pageOf(sub_pages));
+        server.setResponseDelay(50);
+
+        final List<String> found = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        DownloadScheduler scheduler = new DownloadScheduler(4, 2);
+        try {
+            scheduler.submit(server.url("/"), DownloadScheduler.PRIORITY_NORMAL, 0, new Runnable() {
+                public void run()
+                {
+                    try {
+                        new Crawler(1, true, Arrays.asList("zip"), Crawler.DEFAULT_MAX_PAGES, 4)
+                                .crawl(server.url("/"), new LinkScanner.LinkSink() {
+                                    public void onLinks(List<String> links)
+                                    {
+                                        found.addAll(links);
+                                    }
+                                });
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            });
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+        }
+        finally {
+            scheduler.shutdown();
+        }
+        assertEquals(sub_pages.length, found.size());
+        assertTrue("requests at once: " + server.getMaxRequestsInFlight(), server.getMaxRequestsInFlight() <= 2);
+    }
+
+    public void
+    testUrlsAreNormalized()
+    {
+        assertEquals("http://example.com/a/b.zip", Crawler.normalize("HTTP://Example.COM:80/a/b.zip#part"));
+        assertEquals("https://example.com:8443/", Crawler.normalize("https://example.com:8443"));
+        assertEquals("http://example.com/list?page=2", Crawler.normalize("http://example.com/list?page=2"));
+        assertNull(Crawler.normalize("ftp://example.com/a.zip"));
+        assertNull(Crawler.normalize("not a url"));
+
+        assertEquals("zip", Crawler.extensionOf("http://example.com/a/b.ZIP"));
+        assertEquals("gz", Crawler.extensionOf("http://example.com/a.tar.gz?mirror=1.2"));
+        assertEquals("", Crawler.extensionOf("http://example.com/v1.2/"));
+        assertEquals("", Crawler.extensionOf("http://example.com/download"));
+    }
+
+    public void
+    testUrlSetCountsEachUrlOnce() throws Exception
+    {
+        final UrlSet set = new UrlSet();
+        assertTrue(set.add("http://example.com/a"));
+        assertFalse(set.add("http://example.com/a"));
+        assertTrue(set.add("http://example.com/A"));
+        assertEquals(2, set.size());
+
+        // threads adding overlapping URLs, enough to grow every stripe several times
+        final int per_thread = 20000;
+        final int threads = 4;
+        final ConcurrentLinkedQueue<Integer> added = new ConcurrentLinkedQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+        {
+            final int first = t * per_thread / 2;
+            futures.add(executor.submit(new Runnable() {
+                public void run()
+                {
+                    int count = 0;
+                    for (int i = first; i < first + per_thread; i++)
+                    {
+                        if (set.add("http://example.com/page/" + i))
+                        {
+                            count++;
+                        }
+                    }
+                    added.add(count);
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+        {
+            future.get();
+        }
+        executor.shutdown();
+
+        int total = 0;
+        for (int count : added)
+        {
+            total += count;
+        }
+        int distinct = (threads + 1) * per_thread / 2;
+        assertEquals(distinct, total);
+        assertEquals(distinct + 2, set.size());
+    }
+
+    private SortedSet<String>
+    crawl(int max_depth) throws InterruptedException
+    {
+        final SortedSet<String> found = new ConcurrentSkipListSet<>();
+        final int[] reported = {0};
+        Crawler crawler = new Crawler(max_depth, true, Arrays.asList("zip", "txt"), Crawler.DEFAULT_MAX_PAGES, 3);
+        int count = crawler.crawl(server.url("/"), new LinkScanner.LinkSink() {
+            public void onLinks(List<String> links)
+            {
+                synchronized (reported)
+                {
+                    reported[0] += links.size();
+                }
+                found.addAll(links);
+            }
+        });
+        assertEquals(count, reported[0]);
+        assertEquals(count, found.size());
+        return found;
+    }
+
+    private static int
+    portOf(LocalHttpServer server) throws Exception
+    {
+        return new java.net.URL(server.url("/")).getPort();
+    }
+
+    private static byte[]
+    pageOf(String... links) throws Exception
+    {
+        StringBuilder page = new StringBuilder("<html><body>");
+        for (String link : links)
+        {
+            page.append("<a href=\"").append(link).append("\">").append(link).append("</a>\n");
+        }
+        return page.append("</body></html>").toString().getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks that a DownloadJournal reads back what it wrote, that segments
+ * go on committing while a checkpoint is written, and that a download
+ * killed half way resumes from its last checkpoint into the same file a
+ * complete download gives.
+ */
+public class DownloadJournalTest extends TestCase {
+    private File folder;
+    private File part_file;
+
+    @Override
+    protected void
+    setUp() throws Exception
+    {
+        folder = TestFiles.newFolder("journal");
+        folder.mkdirs();
+        part_file = new File(folder, "file.bin.part");
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception
+    {
+        TestFiles.delete(folder);
+    }
+
+    public void
+    testCheckpointReadsBack() throws Exception
+    {
+        RemoteFile remote_file = new RemoteFile("http://example.com/file.bin", 10 * 1000 * 1000, true,
+                "\"v1\"", "Sat, 17 Oct 2026 10:00:00 GMT");
+        DownloadJournal journal = DownloadJournal.create(part_file, remote_file, 3);
+        RandomAccessFile file = new RandomAccessFile(part_file, "rw");
+        file.setLength(remote_file.length);
+        file.close();
+        journal.commit(journal.getSegments().get(0), 1000);
+        journal.commit(journal.getSegments().get(2), 5);
+        journal.checkpoint();
+
+        DownloadJournal loaded = DownloadJournal.load(part_file);
+        assertEquals(remote_file.url, loaded.getUrl());
+        assertEquals(remote_file.length, loaded.getLength());
+        assertEquals(1005, loaded.getCommittedBytes());
+        assertEquals(1000, loaded.getContiguousBytes());
+        assertEquals(3, loaded.getSegments().size());
+        assertEquals(remote_file.length - 1, loaded.getSegments().get(2).end);
+        assertTrue(loaded.matches(remote_file));
+        assertFalse(loaded.matches(new RemoteFile(remote_file.url, remote_file.length, true,
+                "\"v2\"", remote_file.last_modified)));
+        assertFalse(loaded.matches(new RemoteFile(remote_file.url, remote_file.length + 1, true,
+                remote_file.etag, remote_file.last_modified)));
+
+        // a part file of the wrong length means the journal cannot be trusted
+        file = new RandomAccessFile(part_file, "rw");
+        file.setLength(remote_file.length - 1);
+        file.close();
+        assertNull(DownloadJournal.load(part_file));
+    }
+
+    public void
+    testKilledDownloadResumesFromItsCheckpoint() throws Exception
+    {
+        final byte[] payload = LocalHttpServer.payloadOf(12 * 1024 * 1024 + 5);
+        LocalHttpServer server = new LocalHttpServer(payload);
+        try {
+            server.setChunkDelay(3);
+            RemoteFile remote_file = RemoteFile.probe(new HttpClient(), server.url("/file.bin"));
+            final DownloadJournal journal = DownloadJournal.create(part_file, remote_file, 4);
+            final IOException[] failure = {null};
+            Thread downloader = new Thread() {
+                public void run()
+                {
+                    try {
+                        newDownload(journal, new StreamingDigest(StreamingDigest.SHA_256)).run();
+                    }
+                    catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            downloader.start();
+
+            // what a kill would leave behind: the last checkpoint, and the file as far as it got
+            File journal_file = DownloadJournal.fileFor(part_file);
+            File saved_journal = new File(folder, "saved.journal");
+            File saved_part = new File(folder, "saved.part");
+            long deadline = System.currentTimeMillis() + 20 * 1000;
+            while (true)
+            {
+                if (part_file.exists())
+                {
+                    TestFiles.write(saved_journal, TestFiles.read(journal_file));
+                    TestFiles.write(saved_part, TestFiles.read(part_file));
+                    if (committedIn(saved_journal) > 0 || System.currentTimeMillis() > deadline)
+                    {
+                        break;
+                    }
+                }
+                Thread.sleep(50);
+            }
+            downloader.join();
+            assertNull(failure[0]);
+
+            assertTrue(saved_journal.renameTo(journal_file) || (journal_file.delete()
+                    && saved_journal.renameTo(journal_file)));
+            part_file.delete();
+            assertTrue(saved_part.renameTo(part_file));
+            DownloadJournal resumed = DownloadJournal.load(part_file);
+            assertNotNull(resumed);
+            long committed = resumed.getCommittedBytes();
+            assertTrue(committed > 0 && committed < payload.length);
+
+            // every range the checkpoint claims is really there
+            byte[] on_disk = TestFiles.read(part_file);
+            for (DownloadJournal.Segment segment : resumed.getSegments())
+            {
+                int start = (int) segment.start;
+                int end = (int) segment.nextOffset();
+                assertTrue(Arrays.equals(Arrays.copyOfRange(payload, start, end),
+                        Arrays.copyOfRange(on_disk, start, end)));
+            }
+
+            server.setChunkDelay(0);
+            long sent = server.getBodyBytesSent();
+            StreamingDigest digest = new StreamingDigest(StreamingDigest.SHA_256);
+            newDownload(resumed, digest).run();
+            assertEquals(payload.length - committed, server.getBodyBytesSent() - sent);
+            assertTrue(Arrays.equals(payload, TestFiles.read(part_file)));
+            digest.catchUp(part_file, resumed.getLength());
+            assertEquals(SegmentedDownloadTest.sha256(payload), digest.finish());
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    public void
+    testCommitDoesNotWaitForTheCheckpoint() throws Exception
+    {
+        RemoteFile remote_file = new RemoteFile("http://example.com/file.bin", 100 * 1000 * 1000, true,
+                null, null);
+        DownloadJournal journal = DownloadJournal.create(part_file, remote_file, 2);
+        RandomAccessFile file = new RandomAccessFile(part_file, "rw");
+        try {
+            file.setLength(remote_file.length);
+            StalledChannel channel = new StalledChannel(file.getChannel(), true, false);
+            journal.setDataChannel(channel);
+
+            // a batch's worth of bytes starts a checkpoint, which stalls forcing the data
+            DownloadJournal.Segment first = journal.getSegments().get(0);
+            DownloadJournal.Segment second = journal.getSegments().get(1);
+            journal.commit(first, 5 * 1024 * 1024);
+            assertTrue(channel.stalled.await(10, TimeUnit.SECONDS));
+            long start = System.nanoTime();
+            for (int i = 0; i < 1000; i++)
+            {
+                journal.commit(second, 1024);
+            }
+            assertTrue(System.nanoTime() - start < 1000 * 1000000L);
+            assertEquals(0, committedIn(DownloadJournal.fileFor(part_file)));
+
+            channel.release.countDown();
+            journal.checkpoint();
+            assertEquals(5 * 1024 * 1024 + 1000 * 1024, committedIn(DownloadJournal.fileFor(part_file)));
+        }
+        finally {
+            journal.setDataChannel(null);
+            file.close();
+        }
+    }
+
+    private SegmentedDownload
+    newDownload(DownloadJournal journal, StreamingDigest digest)
+    {
+        return new SegmentedDownload(new HttpClient(), part_file, journal, new TransferEngine(),
+                new RateLimiter(RateLimiter.UNLIMITED).newJob(), digest, null);
+    }
+
+    /*
+     * Returns the committed bytes recorded in a journal file.
+     */
+    private static long
+    committedIn(File journal_file) throws IOException
+    {
+        long committed = 0;
+        for (String line : new String(TestFiles.read(journal_file), "UTF-8").split("\n"))
+        {
+            if (line.startsWith("segment="))
+            {
+                committed += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        return committed;
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Checks the DownloadScheduler's run order, its per-host connection limit
+ * and that waiting jobs age instead of starving.
+ */
+public class DownloadSchedulerTest extends TestCase {
+    private DownloadScheduler scheduler;
+
+    @Override
+    protected void
+    tearDown()
+    {
+        if (scheduler != null)
+        {
+            scheduler.shutdown();
+        }
+    }
+
+    public void
+    testJobsRunByPriorityThenSize() throws Exception
+    {
+        scheduler = new DownloadScheduler(1, 4);
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit("http://a.example.com/block", DownloadScheduler.PRIORITY_NORMAL, 0, new Runnable() {
+            public void run()
+            {
+                await(release);
+            }
+        });
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(5);
+        String[] names = {"300k", "100k", "unknown", "200k", "high"};
+        long[] sizes = {300000, 100000, DownloadScheduler.SIZE_UNKNOWN, 200000, 50 * 1000 * 1000};
+        for (int i = 0; i < names.length; i++)
+        {
+            final String name = names[i];
+            scheduler.submit("http://a.example.com/" + name,
+                    name.equals("high") ? DownloadScheduler.PRIORITY_HIGH : DownloadScheduler.PRIORITY_NORMAL,
+                    sizes[i], new Runnable() {
+                        public void run()
+                        {
+                            order.add(name);
+                            done.countDown();
+                        }
+                    });
+        }
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("high", "100k", "200k", "300k", "unknown"), order);
+    }
+
+    public void
+    testJobsStayWithinTheHostLimit() throws Exception
+    {
+        scheduler = new DownloadScheduler(8, 2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger most_running = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(12);
+        for (int i = 0; i < 12; i++)
+        {
+            scheduler.submit("http://a.example.com/" + i, DownloadScheduler.PRIORITY_NORMAL, 1000, new Runnable() {
+                public void run()
+                {
+                    int now = running.incrementAndGet();
+                    synchronized (most_running)
+                    {
+                        most_running.set(Math.max(most_running.get(), now));
+                    }
+                    sleep(20);
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, most_running.get());
+    }
+
+    public void
+    testExtraConnectionsCountAgainstTheHost() throws Exception
+    {
+        scheduler = new DownloadScheduler(8, 3);
+        final CountDownLatch reserved = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final int[] granted = {0};
+        scheduler.submit("http://a.example.com/big", DownloadScheduler.PRIORITY_NORMAL, 0, new Runnable() {
+            public void run()
+            {
+                granted[0] = DownloadScheduler.reserveConnections(5);
+                reserved.countDown();
+                await(release);
+                DownloadScheduler.releaseConnections();
+                await(finish);
+            }
+        });
+        assertTrue(reserved.await(10, TimeUnit.SECONDS));
+        assertEquals(3, granted[0]);
+
+        // the host has no connection left; another host does
+        final CountDownLatch same_host = new CountDownLatch(1);
+        final CountDownLatch other_host = new CountDownLatch(1);
+        scheduler.submit("http://a.example.com/small", DownloadScheduler.PRIORITY_NORMAL, 0, new Runnable() {
+            public void run()
+            {
+                same_host.countDown();
+            }
+        });
+        scheduler.submit("http://b.example.com/small", DownloadScheduler.PRIORITY_NORMAL, 0, new Runnable() {
+            public void run()
+            {
+                other_host.countDown();
+            }
+        });
+        assertTrue(other_host.await(10, TimeUnit.SECONDS));
+        assertFalse(same_host.await(100, TimeUnit.MILLISECONDS));
+
+        // giving the extra connections back lets it start while the big job still runs
+        release.countDown();
+        assertTrue(same_host.await(10, TimeUnit.SECONDS));
+        finish.countDown();
+
+        // outside the scheduler nothing limits the connections
+        assertEquals(4, DownloadScheduler.reserveConnections(4));
+    }
+
+    public void
+    testLargeJobIsNotStarvedBySmallOnes() throws Exception
+    {
+        scheduler = new DownloadScheduler(1, 1);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger small_jobs = new AtomicInteger();
+        // a small job that queues the next one, so there is always one waiting
+        Runnable small = new Runnable() {
+            public void run()
+            {
+                small_jobs.incrementAndGet();
+                sleep(5);
+                if (!stop.get())
+                {
+                    scheduler.submit("http://a.example.com/small", DownloadScheduler.PRIORITY_NORMAL, 1000, this);
+                }
+            }
+        };
+        scheduler.submit("http://a.example.com/small", DownloadScheduler.PRIORITY_NORMAL, 1000, small);
+        final CountDownLatch large_done = new CountDownLatch(1);
+        scheduler.submit("http://a.example.com/large", DownloadScheduler.PRIORITY_NORMAL, 200 * 1024,
+                new Runnable() {
+                    public void run()
+                    {
+                        large_done.countDown();
+                    }
+                });
+        try {
+            assertTrue(large_done.await(10, TimeUnit.SECONDS));
+            assertTrue(small_jobs.get() > 1);
+        }
+        finally {
+            stop.set(true);
+        }
+    }
+
+    private static void
+    await(CountDownLatch latch)
+    {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void
+    sleep(long ms)
+    {
+        try {
+            Thread.sleep(ms);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks that downloads are streamed to disk intact, that only a complete
+ * file ever appears under the final name, and that two downloads of the
+ * same URL at once do not write over each other.
+ */
+public class DownloaderTest extends TestCase {
+    private static final int PAYLOAD_SIZE = 3 * 1024 * 1024 + 17;
+
+    private File folder;
+
+    @Override
+    protected void
+    setUp() throws Exception
+    {
+        folder = TestFiles.newFolder("downloads");
+        Downloader.setStorageRoot(folder);
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception
+    {
+        TestFiles.delete(folder);
+    }
+
+    public void
+    testRangedFileArrivesIntact() throws Exception
+    {
+        byte[] payload = LocalHttpServer.payloadOf(PAYLOAD_SIZE);
+        LocalHttpServer server = new LocalHttpServer(payload);
+        try {
+            String file_name = Downloader.download(server.url("/big.bin"));
+
+            assertEquals("big.bin", file_name);
+            assertTrue(Arrays.equals(payload, TestFiles.read(new File(folder, file_name))));
+            assertEquals(Arrays.asList("big.bin"), TestFiles.namesIn(folder, ContentStore.INDEX_NAME));
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    public void
+    testStreamedFileArrivesIntact() throws Exception
+    {
+        byte[] payload = LocalHttpServer.payloadOf(PAYLOAD_SIZE);
+        LocalHttpServer server = new LocalHttpServer(payload);
+        try {
+            server.setAcceptRanges(false);
+            String file_name = Downloader.download(server.url("/big.bin"));
+
+            assertTrue(Arrays.equals(payload, TestFiles.read(new File(folder, file_name))));
+            assertEquals(Arrays.asList("big.bin"), TestFiles.namesIn(folder, ContentStore.INDEX_NAME));
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    public void
+    testFailedDownloadLeavesNoFile() throws Exception
+    {
+        LocalHttpServer server = new LocalHttpServer(LocalHttpServer.payloadOf(1024));
+        try {
+            server.setAcceptRanges(false);
+            server.failNext(Integer.MAX_VALUE, 404, -1);
+            try {
+                Downloader.download(server.url("/missing.bin"));
+                fail("download of a missing file succeeded");
+            }
+            catch (RuntimeException e) {
+                // expected
+            }
+            assertEquals(Collections.<String>emptyList(), TestFiles.namesIn(folder, ContentStore.INDEX_NAME));
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    public void
+    testSameUrlTwiceAtOnce() throws Exception
+    {
+        byte[] payload = LocalHttpServer.payloadOf(PAYLOAD_SIZE);
+        final LocalHttpServer server = new LocalHttpServer(payload);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            // slow enough that the two calls overlap
+            server.setChunkDelay(5);
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 2; i++)
+            {
+                results.add(threads.submit(new Callable<String>() {
+                    public String call()
+                    {
+                        return Downloader.download(server.url("/big.bin"));
+                    }
+                }));
+            }
+            assertEquals("big.bin", results.get(0).get(60, TimeUnit.SECONDS));
+            assertEquals("big.bin", results.get(1).get(60, TimeUnit.SECONDS));
+
+            assertTrue(Arrays.equals(payload, TestFiles.read(new File(folder, "big.bin"))));
+            assertEquals(Arrays.asList("big.bin"), TestFiles.namesIn(folder, ContentStore.INDEX_NAME));
+            // the call that waited found the file unchanged
+            assertEquals(PAYLOAD_SIZE, server.getBodyBytesSent());
+        }
+        finally {
+            threads.shutdownNow();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.net.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Checks that the HttpClient hands connections back for reuse, drops them
+ * rather than drain a large unread body, and turns error statuses into
+ * HttpStatusExceptions carrying the server's Retry-After.
+ */
+public class HttpClientTest extends TestCase {
+    private HttpClient client;
+
+    @Override
+    protected void
+    setUp()
+    {
+        client = new HttpClient();
+    }
+
+    public void
+    testReleasedConnectionsAreReused() throws Exception
+    {
+        byte[] payload = LocalHttpServer.payloadOf(10 * 1000);
+        LocalHttpServer server = new LocalHttpServer(payload);
+        try {
+            server.setKeepAlive(true);
+            for (int i = 0; i < 5; i++)
+            {
+                assertTrue(Arrays.equals(payload, fetch(server.url("/file.bin"))));
+            }
+            // a small unread body is drained, so the connection stays usable
+            URLConnection connection = client.open(server.url("/file.bin"), null, false);
+            HttpClient.release(connection, null);
+            assertTrue(Arrays.equals(payload, fetch(server.url("/file.bin"))));
+
+            assertEquals(7, server.getRequestCount());
+            assertEquals(7, client.getRequestCount());
+            assertEquals(1, server.getConnectionCount());
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    public void
+    testLargeUnreadBodyDropsTheConnection() throws Exception
+    {
+        byte[] payload = LocalHttpServer.payloadOf(4 * 1024 * 1024);
+        LocalHttpServer server = new LocalHttpServer(payload);
+        try {
+            server.setKeepAlive(true);
+            URLConnection connection = client.open(server.url("/file.bin"), null, false);
+            InputStream input_stream = HttpClient.body(connection);
+            assertTrue(input_stream.read(new byte[100]) > 0);
+            HttpClient.release(connection, input_stream);
+
+            assertTrue(Arrays.equals(payload, fetch(server.url("/file.bin"))));
+            assertEquals(2, server.getConnectionCount());
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    public void
+    testErrorStatusIsThrown() throws Exception
+    {
+        LocalHttpServer server = new LocalHttpServer(LocalHttpServer.payloadOf(1000));
+        try {
+            server.failNext(1, 503, 7);
+            HttpStatusException e = fetchExpectingError(server.url("/busy"));
+            assertEquals(503, e.status);
+            assertEquals(7000, e.retry_after_ms);
+            assertTrue(e.isTransient());
+            assertTrue(e.getMessage().contains(server.url("/busy")));
+
+            server.failNext(1, 404, -1);
+            e = fetchExpectingError(server.url("/gone"));
+            assertEquals(404, e.status);
+            assertEquals(HttpStatusException.NO_RETRY_AFTER, e.retry_after_ms);
+            assertFalse(e.isTransient());
+
+            server.failNext(1, 429, -1);
+            assertTrue(fetchExpectingError(server.url("/slow_down")).isTransient());
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    public void
+    testRetryAfterIsParsed()
+    {
+        assertEquals(120000, HttpClient.parseRetryAfter("120"));
+        assertEquals(0, HttpClient.parseRetryAfter(" 0 "));
+        assertEquals(0, HttpClient.parseRetryAfter("-5"));
+        assertEquals(HttpStatusException.NO_RETRY_AFTER, HttpClient.parseRetryAfter("soon"));
+        assertEquals(HttpStatusException.NO_RETRY_AFTER, HttpClient.parseRetryAfter(null));
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        long in_a_minute = HttpClient.parseRetryAfter(format.format(new Date(System.currentTimeMillis() + 60000)));
+        assertTrue(in_a_minute > 55000 && in_a_minute <= 60000);
+        assertEquals(0, HttpClient.parseRetryAfter(format.format(new Date(System.currentTimeMillis() - 60000))));
+    }
+
+    public void
+    testRangeAndHeadRequests() throws Exception
+    {
+        byte[] payload = LocalHttpServer.payloadOf(1000);
+        LocalHttpServer server = new LocalHttpServer(payload);
+        try {
+            HttpURLConnection connection = client.openRange(server.url("/file.bin"), 100, 199,
+                    LocalHttpServer.etagOf(payload));
+            assertEquals(HttpURLConnection.HTTP_PARTIAL, connection.getResponseCode());
+            InputStream input_stream = HttpClient.body(connection);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(payload, 100, 200), readAll(input_stream)));
+            HttpClient.release(connection, input_stream);
+
+            connection = client.openHead(server.url("/file.bin"));
+            assertEquals(1000, connection.getContentLength());
+            assertEquals(LocalHttpServer.etagOf(payload), connection.getHeaderField("ETag"));
+            HttpClient.release(connection, null);
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    private byte[]
+    fetch(String url) throws IOException
+    {
+        URLConnection connection = client.open(url);
+        InputStream input_stream = null;
+        try {
+            input_stream = HttpClient.body(connection);
+            return readAll(input_stream);
+        }
+        finally {
+            HttpClient.release(connection, input_stream);
+        }
+    }
+
+    private HttpStatusException
+    fetchExpectingError(String url) throws IOException
+    {
+        try {
+            fetch(url);
+            fail("request for " + url + " succeeded");
+            return null;
+        }
+        catch (HttpStatusException e) {
+            return e;
+        }
+    }
+
+    private static byte[]
+    readAll(InputStream input_stream) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new TransferEngine().copy(input_stream, bytes);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks that the JobQueue gives back after a restart exactly the jobs
+ * that were still pending, including when the log was cut off by a crash
+ * or has been compacted.
+ */
+public class JobQueueTest extends TestCase {
+    private static final String SHA_256 = "sha256:"
+            + "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    private File file;
+
+    @Override
+    protected void
+    setUp() throws Exception
+    {
+        file = File.createTempFile("jobs", ".log");
+        file.delete();
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception
+    {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    public void
+    testPendingJobsSurviveReopening() throws Exception
+    {
+        JobQueue queue = JobQueue.open(file);
+        JobQueue.Job first = queue.add("http://example.com/a.zip", 1024, Checksum.parse(SHA_256), null,
+                LinkFilter.NO_SIZE_LIMIT);
+        JobQueue.Job second = queue.add("http://example.com/b\tc.zip", DownloadScheduler.SIZE_UNKNOWN, null,
+                "batch", 5000);
+        JobQueue.Job third = queue.add("http://example.com/d.zip", 10, null, "batch", 5000);
+        queue.remove(second);
+        queue.remove(second);
+        queue.close();
+
+        queue = JobQueue.open(file);
+        List<JobQueue.Job> pending = queue.getPending();
+        assertEquals(2, pending.size());
+        assertEquals(first.id, pending.get(0).id);
+        assertEquals("http://example.com/a.zip", pending.get(0).url);
+        assertEquals(1024, pending.get(0).size_hint);
+        assertEquals(SHA_256.substring("sha256:".length()), pending.get(0).checksum.hex);
+        assertNull(pending.get(0).group);
+        assertEquals(third.id, pending.get(1).id);
+        assertEquals("batch", pending.get(1).group);
+        assertEquals(5000, pending.get(1).max_size);
+
+        // ids carry on after the ones already used
+        JobQueue.Job fourth = queue.add("http://example.com/e.zip", 0, null, null, LinkFilter.NO_SIZE_LIMIT);
+        assertTrue(fourth.id > third.id);
+        queue.close();
+    }
+
+    public void
+    testRecordsAreWrittenInBatches() throws Exception
+    {
+        JobQueue queue = JobQueue.open(file, 60 * 1000);
+        for (int i = 0; i < 100; i++)
+        {
+            queue.add("http://example.com/" + i + ".zip", 0, null, null, LinkFilter.NO_SIZE_LIMIT);
+        }
+        assertEquals(0, file.length());     // nothing written before the sync interval is up
+
+        queue.sync();
+        assertTrue(file.length() > 0);
+        queue.close();
+        queue = JobQueue.open(file);
+        assertEquals(100, queue.size());
+        queue.close();
+    }
+
+    public void
+    testCutOffRecordIsDropped() throws Exception
+    {
+        JobQueue queue = JobQueue.open(file);
+        queue.add("http://example.com/a.zip", 0, null, null, LinkFilter.NO_SIZE_LIMIT);
+        queue.add("http://example.com/b.zip", 0, null, null, LinkFilter.NO_SIZE_LIMIT);
+        queue.close();
+
+        // a crash in the middle of writing the last record
+        RandomAccessFile log = new RandomAccessFile(file, "rw");
+        log.setLength(log.length() - 5);
+        log.close();
+
+        queue = JobQueue.open(file);
+        assertEquals(1, queue.size());
+        assertEquals("http://example.com/a.zip", queue.getPending().get(0).url);
+
+        // records added after the broken one are read back too
+        queue.add("http://example.com/c.zip", 0, null, null, LinkFilter.NO_SIZE_LIMIT);
+        queue.close();
+        queue = JobQueue.open(file);
+        assertEquals(2, queue.size());
+        assertEquals("http://example.com/c.zip", queue.getPending().get(1).url);
+        queue.close();
+    }
+
+    public void
+    testLogIsCompacted() throws Exception
+    {
+        JobQueue queue = JobQueue.open(file, 60 * 1000);
+        JobQueue.Job kept = queue.add("http://example.com/kept.zip", 0, null, null, LinkFilter.NO_SIZE_LIMIT);
+        for (int i = 0; i < 2000; i++)
+        {
+            queue.remove(queue.add("http://example.com/" + i + ".zip", 0, null, null, LinkFilter.NO_SIZE_LIMIT));
+        }
+        queue.sync();
+        assertEquals(1, countLines(file));
+
+        queue.add("http://example.com/after.zip", 0, null, null, LinkFilter.NO_SIZE_LIMIT);
+        queue.close();
+        queue = JobQueue.open(file);
+        assertEquals(2, queue.size());
+        assertEquals(kept.id, queue.getPending().get(0).id);
+        assertEquals("http://example.com/after.zip", queue.getPending().get(1).url);
+        queue.close();
+    }
+
+    public void
+    testRecordsAfterCloseAreKept() throws Exception
+    {
+        JobQueue queue = JobQueue.open(file, 60 * 1000);
+        JobQueue.Job first = queue.add("http://example.com/a.zip", 0, null, null, LinkFilter.NO_SIZE_LIMIT);
+        JobQueue.Job second = queue.add("http://example.com/b.zip", 0, null, null, LinkFilter.NO_SIZE_LIMIT);
+        queue.close();
+
+        // downloads that finish, or are queued, while the owner shuts down
+        queue.remove(first);
+        queue.add("http://example.com/c.zip", 0, null, null, LinkFilter.NO_SIZE_LIMIT);
+
+        JobQueue reopened = JobQueue.open(file);
+        List<JobQueue.Job> pending = reopened.getPending();
+        assertEquals(2, pending.size());
+        assertEquals(second.id, pending.get(0).id);
+        assertEquals("http://example.com/c.zip", pending.get(1).url);
+        reopened.close();
+        queue.close();
+    }
+
+    public void
+    testWorkersAreStoppedBeforeClosing() throws Exception
+    {
+        // the order DownloaderService.onDestroy() uses
+        final JobQueue queue = JobQueue.open(file, 60 * 1000);
+        final JobQueue.Job job = queue.add("http://example.com/a.zip", 0, null, null, LinkFilter.NO_SIZE_LIMIT);
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1);
+        scheduler.submit(job.url, DownloadScheduler.PRIORITY_NORMAL, 0, new Runnable() {
+            public void run()
+            {
+                try {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                queue.remove(job);
+            }
+        });
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5000));
+        queue.close();
+
+        JobQueue reopened = JobQueue.open(file);
+        assertEquals(0, reopened.size());
+        reopened.close();
+    }
+
+    private static int
+    countLines(File file) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int lines = 0;
+            while (reader.readLine() != null)
+            {
+                lines++;
+            }
+            return lines;
+        }
+        finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Checks that the LinkCache keeps the most recently used pages, survives on
+ * disk, and that streamAllLinks reuses cached links only while the server
+ * says the page has not changed.
+ */
+public class LinkCacheTest extends TestCase {
+    private File folder;
+
+    @Override
+    protected void
+    setUp() throws Exception
+    {
+        folder = TestFiles.newFolder("link_cache");
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception
+    {
+        Downloader.setLinkCache(null);
+        TestFiles.delete(folder);
+    }
+
+    public void
+    testLeastRecentlyUsedPageIsEvicted()
+    {
+        LinkCache cache = new LinkCache(2);
+        cache.put("http://example.com/a", "\"a\"", null, Arrays.asList("http://example.com/a.zip"));
+        cache.put("http://example.com/b", "\"b\"", null, Arrays.asList("http://example.com/b.zip"));
+        assertNotNull(cache.get("http://example.com/a"));
+        cache.put("http://example.com/c", null, "Sat, 17 Oct 2026 10:00:00 GMT",
+                Arrays.asList("http://example.com/c.zip"));
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get("http://example.com/b"));
+        assertEquals("\"a\"", cache.get("http://example.com/a").etag);
+        assertEquals("Sat, 17 Oct 2026 10:00:00 GMT", cache.get("http://example.com/c").last_modified);
+    }
+
+    public void
+    testPageWithoutValidatorsIsNotKept()
+    {
+        LinkCache cache = new LinkCache(4, folder, 4);
+        cache.put("http://example.com/a", "\"a\"", null, Arrays.asList("http://example.com/a.zip"));
+        cache.put("http://example.com/a", null, null, Arrays.asList("http://example.com/other.zip"));
+
+        assertNull(cache.get("http://example.com/a"));
+        assertEquals(0, new LinkCache(4, folder, 4).size());
+        assertNull(new LinkCache(4, folder, 4).get("http://example.com/a"));
+    }
+
+    public void
+    testEntriesSurviveOnDisk()
+    {
+        LinkCache cache = new LinkCache(4, folder, 2);
+        cache.put("http://example.com/a", "\"a\"", "Sat, 17 Oct 2026 10:00:00 GMT",
+                Arrays.asList("http://example.com/1.zip", "http://example.com/2.zip"));
+        cache.put("http://example.com/b", "\"b\"", null, Arrays.asList("http://example.com/b.zip"));
+        for (File file : folder.listFiles())
+        {
+            file.setLastModified(System.currentTimeMillis() - 60 * 1000);
+        }
+        cache.put("http://example.com/c", "\"c\"", null, Collections.<String>emptyList());
+
+        // a new cache, as after a restart, finds the newest pages on disk
+        LinkCache reloaded = new LinkCache(4, folder, 2);
+        assertEquals(2, folder.listFiles().length);
+        LinkCache.Entry entry = reloaded.get("http://example.com/c");
+        assertNotNull(entry);
+        assertEquals("\"c\"", entry.etag);
+        assertNull(entry.last_modified);
+        assertEquals(0, entry.links.length);
+        assertEquals(1, reloaded.size());
+    }
+
+    public void
+    testUnchangedPageIsServedFromTheCache() throws Exception
+    {
+        LocalHttpServer server = new LocalHttpServer(pageOf("a.zip", "b.zip"));
+        try {
+            LinkCache cache = new LinkCache(4);
+            Downloader.setLinkCache(cache);
+            String page_url = server.url("/index.html");
+
+            List<String> first = streamLinks(page_url);
+            assertEquals(Arrays.asList(server.url("/a.zip"), server.url("/b.zip")), first);
+            long sent = server.getBodyBytesSent();
+
+            // the second fetch is answered with 304 and sends no body
+            assertEquals(first, streamLinks(page_url));
+            assertEquals(sent, server.getBodyBytesSent());
+            assertEquals(1, cache.getHitCount());
+            assertEquals(1, cache.getMissCount());
+
+            // once the page changes its new links replace the cached ones
+            server.setPayload(pageOf("c.zip"));
+            assertEquals(Arrays.asList(server.url("/c.zip")), streamLinks(page_url));
+            assertEquals(Arrays.asList(server.url("/c.zip")), streamLinks(page_url));
+            assertEquals(2, cache.getHitCount());
+            assertEquals(2, cache.getMissCount());
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    private static List<String>
+    streamLinks(String page_url)
+    {
+        final List<String> links = new ArrayList<>();
+        int count = Downloader.streamAllLinks(page_url, new LinkScanner.LinkSink() {
+            public void onLinks(List<String> chunk)
+            {
+                links.addAll(chunk);
+            }
+        });
+        assertEquals(count, links.size());
+        return links;
+    }
+
+    private static byte[]
+    pageOf(String... files) throws Exception
+    {
+        StringBuilder page = new StringBuilder("<html><body>");
+        for (String file : files)
+        {
+            page.append("<a href=\"").append(file).append("\">").append(file).append("</a>\n");
+        }
+        return page.append("</body></html>").toString().getBytes("UTF-8");
+    }
+}
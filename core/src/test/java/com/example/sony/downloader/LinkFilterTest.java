@@ -0,0 +1,68 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Checks which links a LinkFilter lets through to a batch download: by
+ * extension, by pattern, and by the size a probe reports.
+ */
+public class LinkFilterTest extends TestCase {
+    private static final List<String> LINKS = Arrays.asList(
+            "http://example.com/pub/tool-1.2.zip",
+            "http://example.com/pub/tool-1.3.ZIP",
+            "http://example.com/pub/notes.txt",
+            "http://example.com/pub/v2.0/",
+            "http://example.com/pub/get?file=tool.tar.gz",
+            "http://example.com/pub/tool-1.3.tar.gz");
+
+    public void
+    testEverythingPassesWithoutConditions()
+    {
+        LinkFilter filter = new LinkFilter(null, null, LinkFilter.NO_SIZE_LIMIT);
+        assertEquals(LINKS, filter.filter(LINKS));
+        assertFalse(filter.hasSizeLimit());
+        assertTrue(filter.acceptsSize(Long.MAX_VALUE));
+        assertEquals(LINKS, new LinkFilter(Arrays.asList("", " "), "", LinkFilter.NO_SIZE_LIMIT).filter(LINKS));
+    }
+
+    public void
+    testExtensionsAreMatchedLoosely()
+    {
+        LinkFilter filter = new LinkFilter(Arrays.asList(" .Zip", "gz "), null, LinkFilter.NO_SIZE_LIMIT);
+        assertEquals(Arrays.asList("http://example.com/pub/tool-1.2.zip", "http://example.com/pub/tool-1.3.ZIP",
+                "http://example.com/pub/tool-1.3.tar.gz"), filter.filter(LINKS));
+    }
+
+    public void
+    testPatternAndExtensionMustBothMatch()
+    {
+        LinkFilter filter = new LinkFilter(Arrays.asList("zip", "gz"), "1\\.3", LinkFilter.NO_SIZE_LIMIT);
+        assertEquals(Arrays.asList("http://example.com/pub/tool-1.3.ZIP", "http://example.com/pub/tool-1.3.tar.gz"),
+                filter.filter(LINKS));
+        assertEquals(Arrays.asList("http://example.com/pub/get?file=tool.tar.gz"),
+                new LinkFilter(null, "\\?file=", LinkFilter.NO_SIZE_LIMIT).filter(LINKS));
+    }
+
+    public void
+    testSizeLimitUsesTheProbedLength() throws Exception
+    {
+        LinkFilter filter = new LinkFilter(null, null, 1000);
+        assertTrue(filter.hasSizeLimit());
+        assertTrue(filter.acceptsSize(1000));
+        assertFalse(filter.acceptsSize(1001));
+        assertTrue(filter.acceptsSize(RemoteFile.LENGTH_UNKNOWN));
+
+        LocalHttpServer server = new LocalHttpServer(LocalHttpServer.payloadOf(1500));
+        try {
+            server.setPage("/small.bin", LocalHttpServer.payloadOf(800));
+            HttpClient client = new HttpClient();
+            assertTrue(filter.acceptsSize(RemoteFile.probe(client, server.url("/small.bin")).length));
+            assertFalse(filter.acceptsSize(RemoteFile.probe(client, server.url("/large.bin")).length));
+        }
+        finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Checks which links the streaming LinkScanner finds, including around
+ * comments and script bodies with unusual endings, and when the page
+ * arrives a few chars at a time.
+ */
+public class LinkScannerTest extends TestCase {
+    private static final String BASE = "http://example.com/pub/";
+
+    public void
+    testLinksAreResolvedAndFiltered() throws Exception
+    {
+        assertEquals(Arrays.asList("http://example.com/pub/a.zip", "http://example.com/b.zip",
+                        "http://other.example.com/c.zip?x=1&y=2", "ftp://example.com/d.iso",
+                        "http://example.com/pub/sub/e.zip"),
+                scan("<html><body>"
+                        + "<a href=\"a.zip\">a</a> <A HREF='/b.zip'>b</A>"
+                        + "<a class=x href=http://other.example.com/c.zip?x=1&amp;y=2>c</a>"
+                        + "<a href=\"ftp://example.com/d.iso\">d</a>"
+                        + "<a href=\"javascript:void(0)\">js</a> <a href=\"mailto:me@example.com\">mail</a>"
+                        + "<a href=\"#top\">top</a> <a name=\"anchor\">no href</a> a < b"
+                        + "<a href=\"sub/e.zip\">e</a>"));
+    }
+
+    public void
+    testBaseHrefChangesLaterLinks() throws Exception
+    {
+        assertEquals(Arrays.asList("http://example.com/pub/a.zip", "http://mirror.example.com/files/b.zip"),
+                scan("<a href=a.zip>a</a><base href=\"http://mirror.example.com/files/\"><a href=b.zip>b</a>"));
+    }
+
+    public void
+    testCommentEndingsAreFound() throws Exception
+    {
+        String[] comments = {"<!-- note -->", "<!-- note --->", "<!---->", "<!----->", "<!-- a -- b - -->",
+                "<!-- <a href=\"hidden.zip\"> -->"};
+        for (String comment : comments)
+        {
+            assertEquals(comment, Arrays.asList(BASE + "x1.zip", BASE + "x2.zip"),
+                    scan("<a href=\"x1.zip\">" + comment + " <a href=\"x2.zip\">"));
+        }
+    }
+
+    public void
+    testScriptAndStyleBodiesAreSkipped() throws Exception
+    {
+        String[] bodies = {"<script>var a = '<a href=\"no.zip\">';</script>",
+                "<SCRIPT type=\"text/javascript\">document.write('<a href=no.zip>')</SCRIPT >",
+                "<script>if (a </scr) { x = '</scrip'; }</script>",
+                "<style>a[href=\"no.zip\"] { color: red }</style>",
+                "<script src=\"app.js\"/>"};
+        for (String body : bodies)
+        {
+            assertEquals(body, Arrays.asList(BASE + "x1.zip", BASE + "x2.zip"),
+                    scan("<a href=\"x1.zip\">" + body + "<a href=\"x2.zip\">"));
+        }
+    }
+
+    public void
+    testPageArrivingInPiecesGivesTheSameLinks() throws Exception
+    {
+        StringBuilder page = new StringBuilder("<html><!-- header --->");
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+        {
+            page.append("<tr><td><a href=\"release-").append(i).append(".zip\" title='r").append(i)
+                    .append("'>release</a></td></tr>\n");
+            expected.add(BASE + "release-" + i + ".zip");
+            if (i % 100 == 0)
+            {
+                page.append("<script>x = '<a href=\"no.zip\">';</SCRIPT><!----->");
+            }
+        }
+        for (int piece = 1; piece <= 7; piece++)
+        {
+            final int size = piece;
+            final Reader whole = new StringReader(page.toString());
+            Reader trickle = new Reader() {
+                @Override
+                public int
+                read(char[] buffer, int offset, int length) throws IOException
+                {
+                    return whole.read(buffer, offset, Math.min(length, size));
+                }
+
+                @Override
+                public void
+                close()
+                {
+                }
+            };
+            assertEquals("read " + size + " chars at a time", expected, scan(trickle));
+        }
+    }
+
+    public void
+    testLinksArriveInChunks() throws Exception
+    {
+        final List<Integer> chunk_sizes = new ArrayList<>();
+        LinkScanner scanner = new LinkScanner(new URL(BASE), new LinkScanner.LinkSink() {
+            public void onLinks(List<String> links)
+            {
+                chunk_sizes.add(links.size());
+            }
+        }, 4, Long.MAX_VALUE);
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < 10; i++)
+        {
+            page.append("<a href=\"").append(i).append(".zip\">");
+        }
+
+        assertEquals(10, scanner.scan(new StringReader(page.toString())));
+        assertEquals(Arrays.asList(4, 4, 2), chunk_sizes);
+    }
+
+    public void
+    testAdvanceMatchFallsBackToShorterPrefixes()
+    {
+        assertEquals(2, LinkScanner.advanceMatch("-->", 1, '-'));
+        assertEquals(2, LinkScanner.advanceMatch("-->", 2, '-'));
+        assertEquals(0, LinkScanner.advanceMatch("-->", 2, 'x'));
+        assertEquals(1, LinkScanner.advanceMatch("</script", 3, '<'));
+        assertEquals(2, LinkScanner.advanceMatch("aab", 2, 'a'));
+        assertEquals(1, LinkScanner.advanceMatch("abab", 3, 'a'));
+    }
+
+    private static List<String>
+    scan(String page) throws IOException
+    {
+        return scan(new StringReader(page));
+    }
+
+    private static List<String>
+    scan(Reader reader) throws IOException
+    {
+        final List<String> links = new ArrayList<>();
+        LinkScanner scanner = new LinkScanner(new URL(BASE), new LinkScanner.LinkSink() {
+            public void onLinks(List<String> chunk)
+            {
+                links.addAll(chunk);
+            }
+        });
+        int count = scanner.scan(reader);
+        assertEquals(count, links.size());
+        return links;
+    }
+}
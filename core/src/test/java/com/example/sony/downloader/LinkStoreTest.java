@@ -0,0 +1,149 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Checks LinkStore searches, from scratch and picking up from earlier
+ * ones, against a plain scan of a large directory listing.
+ */
+public class LinkStoreTest extends TestCase {
+    private static final int LINK_COUNT = 100000;
+
+    private ArrayList<String> links;
+    private LinkStore store;
+
+    @Override
+    protected void
+    setUp()
+    {
+        Random random = new Random(42);
+        String[] extensions = {"zip", "ISO", "tar.gz", "mp3", "html", "Pdf"};
+        links = new ArrayList<>();
+        for (int i = 0; i < LINK_COUNT; i++)
+        {
+            links.add("http://mirror.example.com/pub/" + (char) ('a' + random.nextInt(26)) + "/release-"
+                    + random.nextInt(5000) + "." + extensions[random.nextInt(extensions.length)]);
+        }
+        store = new LinkStore("http://mirror.example.com/pub/");
+        for (int i = 0; i < LINK_COUNT; i += LinkScanner.DEFAULT_CHUNK_SIZE)
+        {
+            store.append(links.subList(i, Math.min(LINK_COUNT, i + LinkScanner.DEFAULT_CHUNK_SIZE)));
+        }
+    }
+
+    public void
+    testLinksKeepTheirPositions()
+    {
+        assertEquals(LINK_COUNT, store.size());
+        for (int i = 0; i < LINK_COUNT; i += 997)
+        {
+            assertEquals(links.get(i), store.get(i));
+        }
+        assertEquals(links.get(LINK_COUNT - 1), store.get(LINK_COUNT - 1));
+        assertEquals(links, store.getLinks(""));
+    }
+
+    public void
+    testSearchFindsWhatAScanFinds()
+    {
+        String[] queries = {"iso", ".ISO", "release-42", "/q/release-1", "e-4999.", "tar.gz", "zz", "x",
+                "missing", "^http://mirror.example.com/pub/k/", "^HTTP", "^ftp"};
+        for (String query : queries)
+        {
+            assertMatches(query, store.search(query, null));
+        }
+    }
+
+    public void
+    testSearchPicksUpFromTheLastOne()
+    {
+        LinkStore.Matches matches = null;
+        String typed = "";
+        for (char c : "release-12.zip".toCharArray())
+        {
+            typed += c;
+            matches = store.search(typed, matches);
+            assertMatches(typed, matches);
+        }
+
+        // deleting a character widens the search again
+        matches = store.search("release-12.zi", matches);
+        assertMatches("release-12.zi", matches);
+        matches = store.search("^http://mirror.example.com/pub/b", matches);
+        assertMatches("^http://mirror.example.com/pub/b", matches);
+        matches = store.search("^http://mirror.example.com/pub/b/release-3", matches);
+        assertMatches("^http://mirror.example.com/pub/b/release-3", matches);
+    }
+
+    public void
+    testLinksAddedLaterAreFound()
+    {
+        LinkStore.Matches matches = store.search("release-7", null);
+        assertFalse(matches.isBehind());
+        int found = matches.size();
+
+        ArrayList<String> more = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+        {
+            more.add("http://mirror.example.com/pub/new/release-" + i + ".zip");
+        }
+        store.append(more);
+        links.addAll(more);
+        assertTrue(matches.isBehind());
+
+        matches = store.search("release-7", matches);
+        assertFalse(matches.isBehind());
+        assertTrue(matches.size() > found);
+        assertMatches("release-7", matches);
+
+        matches = store.search("release-77", matches);
+        assertMatches("release-77", matches);
+    }
+
+    public void
+    testSearchWhileAppending() throws Exception
+    {
+        final LinkStore growing = new LinkStore(null);
+        Thread appender = new Thread() {
+            public void run()
+            {
+                for (int i = 0; i < LINK_COUNT; i += 100)
+                {
+                    growing.append(links.subList(i, i + 100));
+                }
+            }
+        };
+        appender.start();
+        LinkStore.Matches matches = null;
+        while (appender.isAlive() || matches == null || matches.isBehind())
+        {
+            matches = growing.search("release-5", matches);
+        }
+        appender.join();
+        assertMatches("release-5", matches);
+    }
+
+    private void
+    assertMatches(String query, LinkStore.Matches matches)
+    {
+        boolean anchored = query.startsWith("^");
+        String text = (anchored ? query.substring(1) : query).toLowerCase(Locale.US);
+        ArrayList<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < links.size(); i++)
+        {
+            String link = links.get(i).toLowerCase(Locale.US);
+            if (anchored ? link.startsWith(text) : link.contains(text))
+            {
+                expected.add(i);
+            }
+        }
+        ArrayList<Integer> actual = new ArrayList<>();
+        for (int i = 0; i < matches.size(); i++)
+        {
+            actual.add(matches.positionAt(i));
+        }
+        assertEquals(query, expected, actual);
+    }
+}
@@ -0,0 +1,514 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+/**
+ * A small HTTP/1.1 server on the loopback interface for tests. It serves
+ * the same payload for every path and understands GET, HEAD and single
+ * byte ranges, which is all the Downloader asks of a real server. Every
+ * connection is handled on its own thread and closed after one response,
+ * unless keep-alive is turned on.
+ *
+ * Faults can be injected into the next GET requests: an error status
+ * (with an optional Retry-After), a body cut off half way, or a body with
+ * a wrong byte.
+ *
+ * Whole-body GETs can be sent compressed, like a server with gzip turned
+ * on does for clients that accept it.
+ *
+ * The ETag follows the payload's content, and a GET whose If-None-Match
+ * names the current ETag gets "304 Not Modified". The payload can be
+ * replaced to play a file that changes on the server, and single paths
+ * can be given their own body, e.g. to serve a small site of pages.
+ */
+public class LocalHttpServer implements Closeable {
+    private final ServerSocket server_socket;
+    private volatile byte[] payload;
+    private final Map<String, byte[]> pages = new ConcurrentHashMap<>();   // path to body, instead of payload
+    private final AtomicInteger request_count = new AtomicInteger();
+    private final AtomicInteger connection_count = new AtomicInteger();
+    private final AtomicInteger requests_in_flight = new AtomicInteger();
+    private final AtomicInteger max_requests_in_flight = new AtomicInteger();
+    private final AtomicLong body_bytes_sent = new AtomicLong();
+    private final Thread acceptor;
+
+    // fault injection; guarded by this
+    private int failures_left;
+    private int failure_status;
+    private int failure_retry_after_s = -1;
+    private int drops_left;
+    private int corruptions_left;
+
+    private volatile String content_encoding;   // null sends bodies as they are
+    private volatile boolean accept_ranges = true;
+    private volatile long chunk_delay_ms;       // pause after every CHUNK_SIZE bytes of a body
+    private volatile long response_delay_ms;    // pause before answering a request
+    private volatile boolean keep_alive;
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    public
+    LocalHttpServer(byte[] payload) throws IOException
+    {
+        this.payload = payload;
+        this.server_socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.acceptor = new Thread(new Runnable() {
+            public void run()
+            {
+                acceptLoop();
+            }
+        }, "local_http_server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /*
+     * Returns a payload of the given size with a repeating, non-constant pattern.
+     */
+    public static byte[]
+    payloadOf(int size)
+    {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+        {
+            data[i] = (byte) (i * 31 + (i >>> 8));
+        }
+        return data;
+    }
+
+    /*
+     * Returns the URL of the given path on this server.
+     */
+    public String
+    url(String path)
+    {
+        return "http://127.0.0.1:" + server_socket.getLocalPort() + path;
+    }
+
+    /*
+     * Replaces what the server sends from the next request on.
+     */
+    public void
+    setPayload(byte[] payload)
+    {
+        this.payload = payload;
+    }
+
+    /*
+     * Serves the given body for exactly this path (without query) instead
+     * of the payload.
+     */
+    public void
+    setPage(String path, byte[] body)
+    {
+        pages.put(path, body);
+    }
+
+    /*
+     * Returns the ETag the server sends with the given payload.
+     */
+    public static String
+    etagOf(byte[] payload)
+    {
+        return "\"payload-" + payload.length + "-" + Integer.toHexString(Arrays.hashCode(payload)) + "\"";
+    }
+
+    public int
+    getRequestCount()
+    {
+        return request_count.get();
+    }
+
+    /*
+     * Returns the number of connections clients have opened.
+     */
+    public int
+    getConnectionCount()
+    {
+        return connection_count.get();
+    }
+
+    /*
+     * Keeps connections open for more requests after a complete response,
+     * like a server with keep-alive on. A cut off body still closes the
+     * connection.
+     */
+    public void
+    setKeepAlive(boolean enabled)
+    {
+        keep_alive = enabled;
+    }
+
+    /*
+     * Makes the next count GET requests fail with the given status, sending
+     * Retry-After with retry_after_s seconds if that is not negative.
+     * Integer.MAX_VALUE makes every request fail.
+     */
+    public synchronized void
+    failNext(int count, int status, int retry_after_s)
+    {
+        failures_left = count;
+        failure_status = status;
+        failure_retry_after_s = retry_after_s;
+    }
+
+    /*
+     * Sends whole-body GETs encoded with "gzip" or "deflate" to clients that
+     * accept it; "raw-deflate" sends deflate without the zlib wrapper, as
+     * some servers do. null turns encoding off.
+     */
+    public void
+    setContentEncoding(String encoding)
+    {
+        content_encoding = encoding;
+    }
+
+    /*
+     * Turns byte range support on or off. Without it, Range headers are
+     * ignored and every GET gets the whole payload, like a server that
+     * cannot resume.
+     */
+    public void
+    setAcceptRanges(boolean enabled)
+    {
+        accept_ranges = enabled;
+    }
+
+    /*
+     * Makes bodies trickle out: every 16 KB is followed by a pause of the
+     * given length, so transfers are still running when a test looks.
+     */
+    public void
+    setChunkDelay(long delay_ms)
+    {
+        chunk_delay_ms = delay_ms;
+    }
+
+    /*
+     * Makes every request wait the given time before it is answered, so
+     * requests that overlap can be counted.
+     */
+    public void
+    setResponseDelay(long delay_ms)
+    {
+        response_delay_ms = delay_ms;
+    }
+
+    /*
+     * Returns the most requests that were being answered at the same time.
+     */
+    public int
+    getMaxRequestsInFlight()
+    {
+        return max_requests_in_flight.get();
+    }
+
+    /*
+     * Returns the number of body bytes written, as sent over the wire.
+     */
+    public long
+    getBodyBytesSent()
+    {
+        return body_bytes_sent.get();
+    }
+
+    /*
+     * Makes the next count GET requests close the connection after sending
+     * half of the body they promised.
+     */
+    public synchronized void
+    dropNext(int count)
+    {
+        drops_left = count;
+    }
+
+    /*
+     * Makes the next count GET requests send a body whose first byte is
+     * wrong, with nothing else to tell it from a good one.
+     */
+    public synchronized void
+    corruptNext(int count)
+    {
+        corruptions_left = count;
+    }
+
+    @Override
+    public void
+    close() throws IOException
+    {
+        server_socket.close();
+    }
+
+    private void
+    acceptLoop()
+    {
+        while (!server_socket.isClosed())
+        {
+            try {
+                final Socket socket = server_socket.accept();
+                Thread handler = new Thread(new Runnable() {
+                    public void run()
+                    {
+                        handle(socket);
+                    }
+                }, "local_http_connection");
+                handler.setDaemon(true);
+                handler.start();
+            }
+            catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void
+    handle(Socket socket)
+    {
+        connection_count.incrementAndGet();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            OutputStream output_stream = socket.getOutputStream();
+            while (respond(reader, output_stream) && keep_alive)
+            {
+                // next request on the same connection
+            }
+        }
+        catch (IOException e) {
+            // client went away
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // empty
+            }
+        }
+    }
+
+    /*
+     * Reads one request and answers it. Returns false if there was none or
+     * the connection cannot carry another one.
+     */
+    private boolean
+    respond(BufferedReader reader, OutputStream output_stream) throws IOException
+    {
+        String request_line = reader.readLine();
+        if (request_line == null)
+        {
+            return false;
+        }
+        request_count.incrementAndGet();
+        int in_flight = requests_in_flight.incrementAndGet();
+        int max;
+        while (in_flight > (max = max_requests_in_flight.get())
+                && !max_requests_in_flight.compareAndSet(max, in_flight))
+        {
+            // another request raced this one
+        }
+        try {
+            return answer(request_line, reader, output_stream);
+        }
+        finally {
+            requests_in_flight.decrementAndGet();
+        }
+    }
+
+    /*
+     * Reads the rest of the request and answers it; see respond().
+     */
+    private boolean
+    answer(String request_line, BufferedReader reader, OutputStream output_stream) throws IOException
+    {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null && line.length() > 0)
+        {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+            {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+        String connection_header = keep_alive ? "Connection: keep-alive\r\n" : "Connection: close\r\n";
+        if (response_delay_ms > 0)
+        {
+            try {
+                Thread.sleep(response_delay_ms);
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        boolean get = request_line.startsWith("GET ");
+        int status = 0;
+        int retry_after_s = -1;
+        boolean drop = false;
+        boolean corrupt = false;
+        synchronized (this)
+        {
+            if (get && failures_left > 0)
+            {
+                if (failures_left != Integer.MAX_VALUE)
+                {
+                    failures_left--;
+                }
+                status = failure_status;
+                retry_after_s = failure_retry_after_s;
+            }
+            else if (get && drops_left > 0)
+            {
+                drops_left--;
+                drop = true;
+            }
+            else if (get && corruptions_left > 0)
+            {
+                corruptions_left--;
+                corrupt = true;
+            }
+        }
+        if (status != 0)
+        {
+            sendError(output_stream, status, retry_after_s, connection_header);
+            return true;
+        }
+
+        String[] request_parts = request_line.split(" ");
+        String path = request_parts.length > 1 ? request_parts[1].split("\\?")[0] : "/";
+        byte[] payload = pages.containsKey(path) ? pages.get(path) : this.payload;
+        String etag = etagOf(payload);
+        if (get && etag.equals(headers.get("if-none-match")))
+        {
+            output_stream.write(("HTTP/1.1 304 Not Modified\r\nETag: " + etag + "\r\n" + connection_header
+                    + "\r\n").getBytes("ISO-8859-1"));
+            output_stream.flush();
+            return true;
+        }
+
+        long start = 0;
+        long end = payload.length - 1;
+        boolean partial = false;
+        String range = headers.get("range");
+        if (accept_ranges && range != null && range.startsWith("bytes="))
+        {
+            String[] bounds = range.substring(6).split("-", -1);
+            start = Long.parseLong(bounds[0]);
+            if (bounds[1].length() > 0)
+            {
+                end = Math.min(end, Long.parseLong(bounds[1]));
+            }
+            partial = true;
+        }
+
+        byte[] body = payload;
+        String encoding = content_encoding;
+        String accepted = headers.get("accept-encoding");
+        if (encoding != null && !partial && accepted != null
+                && accepted.contains(encoding.equals("raw-deflate") ? "deflate" : encoding))
+        {
+            body = encode(payload, encoding);
+            start = 0;
+            end = body.length - 1;
+        }
+        else
+        {
+            encoding = null;
+        }
+
+        if (corrupt && end >= start)
+        {
+            body = body.clone();
+            body[(int) start] ^= 0x55;
+        }
+
+        StringBuilder response = new StringBuilder();
+        response.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        response.append("Content-Type: application/octet-stream\r\n");
+        response.append(accept_ranges ? "Accept-Ranges: bytes\r\n" : "Accept-Ranges: none\r\n");
+        response.append("ETag: ").append(etag).append("\r\n");
+        if (encoding != null)
+        {
+            response.append("Content-Encoding: ").append(encoding.equals("raw-deflate") ? "deflate" : encoding)
+                    .append("\r\n");
+        }
+        response.append("Content-Length: ").append(end - start + 1).append("\r\n");
+        if (partial)
+        {
+            response.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(payload.length).append("\r\n");
+        }
+        response.append(drop ? "Connection: close\r\n" : connection_header).append("\r\n");
+
+        output_stream.write(response.toString().getBytes("ISO-8859-1"));
+        if (drop)
+        {
+            writeBody(output_stream, body, (int) start, (int) (end - start + 1) / 2);
+        }
+        else if (!request_line.startsWith("HEAD "))
+        {
+            writeBody(output_stream, body, (int) start, (int) (end - start + 1));
+        }
+        output_stream.flush();
+        return !drop;
+    }
+
+    private void
+    writeBody(OutputStream output_stream, byte[] body, int offset, int length) throws IOException
+    {
+        long delay_ms = chunk_delay_ms;
+        int end = offset + length;
+        for (int position = offset; position < end; position += CHUNK_SIZE)
+        {
+            int count = Math.min(CHUNK_SIZE, end - position);
+            output_stream.write(body, position, count);
+            body_bytes_sent.addAndGet(count);
+            if (delay_ms > 0)
+            {
+                output_stream.flush();
+                try {
+                    Thread.sleep(delay_ms);
+                }
+                catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    private static byte[]
+    encode(byte[] data, String encoding) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        boolean raw = encoding.equals("raw-deflate");
+        OutputStream output_stream = encoding.equals("gzip") ? new GZIPOutputStream(bytes)
+                : new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+        output_stream.write(data);
+        output_stream.close();
+        return bytes.toByteArray();
+    }
+
+    private static void
+    sendError(OutputStream output_stream, int status, int retry_after_s, String connection_header)
+            throws IOException
+    {
+        String body = "error " + status + "\n";
+        StringBuilder response = new StringBuilder();
+        response.append("HTTP/1.1 ").append(status).append(" Injected Fault\r\n");
+        response.append("Content-Type: text/plain\r\n");
+        response.append("Content-Length: ").append(body.length()).append("\r\n");
+        if (retry_after_s >= 0)
+        {
+            response.append("Retry-After: ").append(retry_after_s).append("\r\n");
+        }
+        response.append(connection_header).append("\r\n");
+        response.append(body);
+        output_stream.write(response.toString().getBytes("ISO-8859-1"));
+        output_stream.flush();
+    }
+}
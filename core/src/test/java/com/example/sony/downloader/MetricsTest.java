@@ -0,0 +1,195 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks the accuracy of Histogram, the JSON Metrics renders, and that the
+ * scheduler, HTTP client and retry engine record what they say they do.
+ */
+public class MetricsTest extends TestCase {
+    public void
+    testBucketsCoverEveryValue()
+    {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 1000, 123456789L, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long value : values)
+        {
+            int bucket = Histogram.bucketOf(value);
+            assertTrue("bucket of " + value, Histogram.lowestValueOf(bucket) <= value);
+            if (bucket + 1 < Histogram.bucketOf(Long.MAX_VALUE))
+            {
+                assertTrue("bucket of " + value, Histogram.lowestValueOf(bucket + 1) > value);
+            }
+        }
+    }
+
+    public void
+    testPercentilesAreWithinAnEighth()
+    {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 100000; value++)
+        {
+            histogram.record(value);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(100000, snapshot.count);
+        assertEquals(1, snapshot.min);
+        assertEquals(100000, snapshot.max);
+        assertEquals(5000050000L, snapshot.sum);
+        assertWithinAnEighth(50000, snapshot.getPercentile(0.5));
+        assertWithinAnEighth(90000, snapshot.getPercentile(0.9));
+        assertWithinAnEighth(99000, snapshot.getPercentile(0.99));
+        assertEquals(100000, snapshot.getPercentile(1.0));
+    }
+
+    public void
+    testConcurrentRecordingLosesNothing() throws Exception
+    {
+        final Metrics metrics = new Metrics();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        for (int thread = 0; thread < 4; thread++)
+        {
+            pool.execute(new Runnable() {
+                public void run()
+                {
+                    for (int i = 0; i < 100000; i++)
+                    {
+                        metrics.increment("test.count");
+                        metrics.record("test.value_ms", i % 100);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(400000, metrics.getCount("test.count"));
+        assertEquals(400000, metrics.histogram("test.value_ms").getCount());
+    }
+
+    public void
+    testJsonHoldsEveryKind() throws Exception
+    {
+        Metrics metrics = new Metrics();
+        metrics.add("b.counter", 5);
+        metrics.increment("a.counter");
+        metrics.record("c.latency_ms", 12);
+        metrics.gauge("d.depth", new Metrics.Gauge() {
+            public long value()
+            {
+                return 7;
+            }
+        });
+        String json = metrics.toJson();
+
+        assertTrue(json, json.contains("\"a.counter\": 1"));
+        assertTrue(json, json.contains("\"b.counter\": 5"));
+        assertTrue(json, json.indexOf("\"a.counter\"") < json.indexOf("\"b.counter\""));
+        assertTrue(json, json.contains("\"d.depth\": 7"));
+        assertTrue(json, json.contains("\"c.latency_ms\": {\"count\": 1, \"sum\": 12, \"min\": 12, \"max\": 12"));
+    }
+
+    public void
+    testReporterReplacesTheFile() throws Exception
+    {
+        Metrics metrics = new Metrics();
+        File file = File.createTempFile("metrics", ".json");
+        try {
+            MetricsReporter reporter = new MetricsReporter(metrics, file);
+            reporter.start(20);
+            metrics.increment("test.count");
+            Thread.sleep(100);
+            assertTrue(read(file).contains("\"test.count\": 1"));
+
+            metrics.increment("test.count");
+            reporter.stop();
+            assertTrue(read(file).contains("\"test.count\": 2"));
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    public void
+    testEngineRecordsEveryPhase() throws Exception
+    {
+        Metrics metrics = new Metrics();
+        LocalHttpServer server = new LocalHttpServer(LocalHttpServer.payloadOf(1024));
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1);
+        try {
+            final HttpClient client = new HttpClient();
+            client.setMetrics(metrics);
+            scheduler.setMetrics(metrics);
+            RetryEngine engine = new RetryEngine(scheduler, new ExponentialBackoff(3, 10, 50), new CircuitBreaker());
+            engine.setMetrics(metrics);
+
+            server.failNext(1, 503, -1);
+            final String url = server.url("/file.bin");
+            final CountDownLatch done = new CountDownLatch(1);
+            engine.submit(url, DownloadScheduler.PRIORITY_NORMAL, DownloadScheduler.SIZE_UNKNOWN,
+                    new RetryEngine.Task() {
+                        public void run(int attempt) throws IOException
+                        {
+                            java.net.URLConnection connection = client.open(url);
+                            InputStream input_stream = HttpClient.body(connection);
+                            HttpClient.release(connection, input_stream);
+                        }
+                    },
+                    new RetryEngine.Listener() {
+                        public void onSuccess(String url, int attempts)
+                        {
+                            done.countDown();
+                        }
+
+                        public void onFailure(String url, Exception reason, int attempts)
+                        {
+                        }
+                    });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            assertEquals(2, metrics.getCount("http.requests"));
+            assertEquals(2, metrics.histogram("http.connect_us").getCount());
+            assertEquals(2, metrics.histogram("http.ttfb_us").getCount());
+            assertEquals(2, metrics.histogram("scheduler.queue_wait_ms").getCount());
+            assertEquals(2, metrics.getCount("jobs.attempts"));
+            assertEquals(1, metrics.getCount("jobs.retries"));
+            assertEquals(1, metrics.getCount("jobs.failure.http_503"));
+            assertEquals(1, metrics.getCount("jobs.succeeded"));
+            assertEquals(2, metrics.histogram("jobs.attempts_per_job").snapshot().max);
+            assertTrue(metrics.toJson().contains("\"scheduler.queue_depth\": 0"));
+        }
+        finally {
+            scheduler.shutdown();
+            server.close();
+        }
+    }
+
+    private static void
+    assertWithinAnEighth(long expected, long actual)
+    {
+        assertTrue("expected about " + expected + ", got " + actual,
+                Math.abs(actual - expected) <= expected / 8);
+    }
+
+    private static String
+    read(File file) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            StringBuilder text = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                text.append(line).append('\n');
+            }
+            return text.toString();
+        }
+        finally {
+            reader.close();
+        }
+    }
+}
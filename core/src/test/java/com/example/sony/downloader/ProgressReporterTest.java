@@ -0,0 +1,145 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Checks the rate and ETA a DownloadProgress works out, that the
+ * ProgressReporter sends at most one update per frame however fast bytes
+ * arrive, and that a real download reports every byte.
+ */
+public class ProgressReporterTest extends TestCase {
+    public void
+    testRateIsSmoothedAndDecaysWhenStalled()
+    {
+        DownloadProgress progress = new DownloadProgress(1, "http://example.com/a.zip");
+        progress.setTotal(10000);
+        assertNotNull(progress.sample(1000));
+
+        progress.add(1000);
+        DownloadProgress.Snapshot snapshot = progress.sample(2000);
+        assertEquals(1000, snapshot.bytes);
+        assertEquals(1000, snapshot.bytes_per_second);
+        assertEquals(9, snapshot.eta_seconds);
+
+        progress.add(2000);
+        snapshot = progress.sample(3000);
+        assertEquals(1300, snapshot.bytes_per_second);
+        assertEquals(6, snapshot.eta_seconds);
+
+        // nothing moved: the rate estimate drops, and the update says so
+        snapshot = progress.sample(4000);
+        assertEquals(3000, snapshot.bytes);
+        assertTrue(snapshot.bytes_per_second >= 909 && snapshot.bytes_per_second <= 910);
+        assertEquals(8, snapshot.eta_seconds);
+
+        progress.setTotal(DownloadProgress.TOTAL_UNKNOWN);
+        assertEquals(-1, progress.snapshot().eta_seconds);
+    }
+
+    public void
+    testStalledDownloadDecaysToZero()
+    {
+        DownloadProgress progress = new DownloadProgress(1, "http://example.com/a.zip");
+        progress.setTotal(10000);
+        progress.sample(1000);
+        progress.add(1000);
+        progress.sample(2000);
+
+        // every sample of the stall is published, each slower and with a later ETA
+        long last_rate = 1000;
+        long last_eta = 9;
+        long now = 2000;
+        DownloadProgress.Snapshot snapshot;
+        while ((snapshot = progress.sample(now += 1000)) != null && snapshot.bytes_per_second > 0)
+        {
+            assertTrue(snapshot.bytes_per_second <= last_rate);
+            assertTrue(snapshot.eta_seconds >= last_eta);
+            last_rate = snapshot.bytes_per_second;
+            last_eta = snapshot.eta_seconds;
+        }
+        assertNotNull("the rate reaching zero is published", snapshot);
+        assertEquals(0, snapshot.bytes_per_second);
+        assertEquals(-1, snapshot.eta_seconds);
+        assertTrue(now < 60 * 1000);
+
+        // from then on nothing changes until bytes move again
+        assertNull(progress.sample(now += 1000));
+        progress.add(500);
+        assertEquals(1500, progress.sample(now + 1000).bytes);
+    }
+
+    public void
+    testUpdatesArriveAtTheFrameRate() throws Exception
+    {
+        final AtomicInteger frames = new AtomicInteger();
+        final List<DownloadProgress.Snapshot> finished = new CopyOnWriteArrayList<>();
+        ProgressReporter reporter = new ProgressReporter(new ProgressReporter.Listener() {
+            public void onProgress(List<DownloadProgress.Snapshot> snapshots)
+            {
+                // the first frame fails; later frames still come
+                if (frames.incrementAndGet() == 1)
+                {
+                    throw new IllegalStateException("listener failed");
+                }
+            }
+
+            public void onFinished(DownloadProgress.Snapshot snapshot)
+            {
+                finished.add(snapshot);
+            }
+        }, 50);
+
+        final DownloadProgress first = reporter.start("http://example.com/a.zip");
+        final DownloadProgress second = reporter.start("http://example.com/b.zip");
+        assertEquals(2, reporter.getActiveCount());
+        long start = System.nanoTime();
+        long adds = 0;
+        while (System.nanoTime() - start < 600 * 1000000L)
+        {
+            first.add(1);
+            second.add(2);
+            adds++;
+        }
+        long elapsed_ms = (System.nanoTime() - start) / 1000000;
+
+        reporter.finish(first);
+        reporter.finish(second);
+        assertEquals(0, reporter.getActiveCount());
+        assertTrue(frames.get() >= 2);
+        assertTrue(frames.get() <= elapsed_ms / 50 + 2);
+        assertEquals(2, finished.size());
+        assertEquals(adds, finished.get(0).bytes);
+        assertEquals(2 * adds, finished.get(1).bytes);
+
+        // with nothing tracked the timer is stopped
+        int frames_after = frames.get();
+        Thread.sleep(200);
+        assertEquals(frames_after, frames.get());
+    }
+
+    public void
+    testDownloadReportsEveryByte() throws Exception
+    {
+        byte[] payload = LocalHttpServer.payloadOf(3 * 1024 * 1024 + 7);
+        LocalHttpServer server = new LocalHttpServer(payload);
+        File folder = TestFiles.newFolder("progress");
+        File old_root = Downloader.getStorageRoot();
+        try {
+            Downloader.setStorageRoot(folder);
+            DownloadProgress progress = new DownloadProgress(1, server.url("/file.bin"));
+            Downloader.download(server.url("/file.bin"), progress);
+            assertEquals(payload.length, progress.getTotal());
+            assertEquals(payload.length, progress.getBytes());
+        }
+        finally {
+            Downloader.setStorageRoot(old_root);
+            server.close();
+            TestFiles.delete(folder);
+        }
+    }
+}
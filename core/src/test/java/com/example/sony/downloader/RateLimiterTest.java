@@ -0,0 +1,200 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Checks the rates the RateLimiter actually achieves against a local
+ * server, which on its own delivers far faster than any rate tested here.
+ */
+public class RateLimiterTest extends TestCase {
+    private static final int RATE = 256 * 1024;
+
+    private LocalHttpServer server;
+    private HttpClient client;
+    private TransferEngine engine;
+
+    @Override
+    protected void
+    setUp() throws Exception
+    {
+        server = new LocalHttpServer(LocalHttpServer.payloadOf(4 * 1024 * 1024));
+        client = new HttpClient();
+        engine = new TransferEngine();
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception
+    {
+        server.close();
+    }
+
+    public void
+    testTotalRateIsEnforced() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter(RATE);
+        long start = System.nanoTime();
+        long bytes = fetch(limiter.newJob(), 0, 2 * RATE - 1, null);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        assertEquals(2 * RATE, bytes);
+        assertRate(RATE, bytes / seconds);
+    }
+
+    public void
+    testPerJobRateIsEnforced() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter(RateLimiter.UNLIMITED);
+        limiter.setPerJobRate(RATE / 2);
+        final AtomicLong[] counters = runJobs(limiter, new int[] {1, 1}, 2000);
+
+        // unlimited in total, so each job gets its own cap
+        for (AtomicLong counter : counters)
+        {
+            assertRate(RATE / 2, counter.get() / 2.0);
+        }
+    }
+
+    public void
+    testTotalIsSharedFairlyBetweenJobs() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter(RATE);
+        // one job with four segments against one with a single stream
+        AtomicLong[] counters = runJobs(limiter, new int[] {4, 1}, 2000);
+
+        double total = (counters[0].get() + counters[1].get()) / 2.0;
+        assertRate(RATE, total);
+        double share = counters[0].get() / (double) (counters[0].get() + counters[1].get());
+        assertTrue("share of the segmented job was " + share, share > 0.35 && share < 0.65);
+    }
+
+    public void
+    testRateChangeAppliesToRunningDownload() throws Exception
+    {
+        final RateLimiter limiter = new RateLimiter(RATE / 4);
+        final AtomicLong counter = new AtomicLong();
+        Thread download = new Thread(new Runnable() {
+            public void run()
+            {
+                try {
+                    fetch(limiter.newJob(), 0, 4 * RATE - 1, counter);
+                }
+                catch (IOException e) {
+                    // counted bytes tell the story
+                }
+            }
+        });
+        download.start();
+        Thread.sleep(1000);
+        limiter.setRate(RATE);
+        long before = counter.get();
+        Thread.sleep(1000);
+        long after = counter.get();
+        limiter.setRate(RateLimiter.UNLIMITED);
+        download.join(5000);
+
+        assertRate(RATE / 4, before);
+        assertRate(RATE, after - before);
+        assertFalse(download.isAlive());
+    }
+
+    public void
+    testUnlimitedDoesNotThrottle() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter(RateLimiter.UNLIMITED);
+        long start = System.nanoTime();
+        fetch(limiter.newJob(), 0, 4 * 1024 * 1024 - 1, null);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        assertTrue("took " + seconds + " s", seconds < 2);
+    }
+
+    /*
+     * Runs one job per entry of segments, each with that many parallel
+     * range streams, for the given time, and returns the bytes per job.
+     */
+    private AtomicLong[]
+    runJobs(RateLimiter limiter, int[] segments, long millis) throws Exception
+    {
+        AtomicLong[] counters = new AtomicLong[segments.length];
+        ExecutorService pool = Executors.newCachedThreadPool();
+        try {
+            for (int job = 0; job < segments.length; job++)
+            {
+                final RateLimiter job_limiter = limiter.newJob();
+                final AtomicLong counter = counters[job] = new AtomicLong();
+                for (int segment = 0; segment < segments[job]; segment++)
+                {
+                    pool.execute(new Runnable() {
+                        public void run()
+                        {
+                            try {
+                                fetch(job_limiter, 0, 4 * 1024 * 1024 - 1, counter);
+                            }
+                            catch (IOException e) {
+                                // cut off by shutdownNow
+                            }
+                        }
+                    });
+                }
+            }
+            Thread.sleep(millis);
+            return counters;
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /*
+     * Fetches bytes start..end through the limiter, adding them to the
+     * counter (if not null) as they arrive. Returns the number of bytes read.
+     */
+    private long
+    fetch(RateLimiter limiter, long start, long end, final AtomicLong counter) throws IOException
+    {
+        HttpURLConnection connection = client.openRange(server.url("/file.bin"), start, end, null);
+        InputStream input_stream = null;
+        try {
+            input_stream = connection.getInputStream();
+            return engine.copy(limiter.throttle(input_stream), new OutputStream() {
+                @Override
+                public void write(int b)
+                {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws InterruptedIOException
+                {
+                    if (Thread.currentThread().isInterrupted())
+                    {
+                        throw new InterruptedIOException();
+                    }
+                    if (counter != null)
+                    {
+                        counter.addAndGet(len);
+                    }
+                }
+            });
+        }
+        finally {
+            HttpClient.release(connection, input_stream);
+        }
+    }
+
+    /*
+     * Asserts that the achieved rate is within 25% of the expected one.
+     */
+    private static void
+    assertRate(double expected, double actual)
+    {
+        assertTrue("expected about " + (long) expected + " B/s, got " + (long) actual,
+                actual > expected * 0.75 && actual < expected * 1.25);
+    }
+}
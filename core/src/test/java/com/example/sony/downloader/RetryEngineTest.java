@@ -0,0 +1,222 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs jobs through the RetryEngine against a local server that injects
+ * faults, and checks the backoff and circuit-breaker policies on their own.
+ * Delays are kept to milliseconds so the tests run quickly.
+ */
+public class RetryEngineTest extends TestCase {
+    private static final int SIZE = 64 * 1024;
+
+    private LocalHttpServer server;
+    private HttpClient client;
+    private DownloadScheduler scheduler;
+
+    @Override
+    protected void
+    setUp() throws Exception
+    {
+        server = new LocalHttpServer(LocalHttpServer.payloadOf(SIZE));
+        client = new HttpClient();
+        scheduler = new DownloadScheduler(2, 2);
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception
+    {
+        scheduler.shutdown();
+        server.close();
+    }
+
+    public void
+    testTransientErrorsAreRetried() throws Exception
+    {
+        server.failNext(2, 503, -1);
+        Outcome outcome = run(engine(5, new CircuitBreaker()), server.url("/file.bin"));
+
+        assertNull(outcome.failure);
+        assertEquals(3, outcome.attempts);
+        assertEquals(3, server.getRequestCount());
+    }
+
+    public void
+    testNotFoundIsNotRetried() throws Exception
+    {
+        server.failNext(Integer.MAX_VALUE, 404, -1);
+        Outcome outcome = run(engine(5, new CircuitBreaker()), server.url("/missing.bin"));
+
+        assertEquals(1, outcome.attempts);
+        assertEquals(1, server.getRequestCount());
+        IOException failure = RetryEngine.ioFailureOf(outcome.failure);
+        assertTrue("failed with " + outcome.failure, failure instanceof HttpStatusException);
+        assertEquals(404, ((HttpStatusException) failure).status);
+    }
+
+    public void
+    testDroppedConnectionIsRetried() throws Exception
+    {
+        server.dropNext(1);
+        Outcome outcome = run(engine(5, new CircuitBreaker()), server.url("/file.bin"));
+
+        assertNull(outcome.failure);
+        assertEquals(2, outcome.attempts);
+    }
+
+    public void
+    testRetryAfterIsHonoured() throws Exception
+    {
+        server.failNext(1, 503, 1);
+        long start = System.currentTimeMillis();
+        RetryEngine engine = new RetryEngine(scheduler, new ExponentialBackoff(5, 10, 5000), new CircuitBreaker());
+        Outcome outcome = run(engine, server.url("/file.bin"));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertNull(outcome.failure);
+        assertEquals(2, outcome.attempts);
+        assertTrue("retried after " + elapsed + " ms", elapsed >= 900);
+    }
+
+    public void
+    testOpenBreakerFailsFast() throws Exception
+    {
+        server.failNext(Integer.MAX_VALUE, 503, -1);
+        CircuitBreaker breaker = new CircuitBreaker(3, 10 * 1000, 10 * 1000);
+        RetryEngine engine = engine(4, breaker);
+        Outcome outcome = run(engine, server.url("/file.bin"));
+
+        // three requests open the breaker; the fourth and last attempt never reaches the server
+        assertNotNull(outcome.failure);
+        assertEquals(4, outcome.attempts);
+        assertEquals(3, server.getRequestCount());
+        assertTrue(breaker.isOpen("127.0.0.1"));
+
+        // another job for the same host fails without a request
+        engine.setPolicy(new ExponentialBackoff(1, 10, 50));
+        long start = System.currentTimeMillis();
+        outcome = run(engine, server.url("/other.bin"));
+        assertNotNull(outcome.failure);
+        assertEquals(1, outcome.attempts);
+        assertEquals(3, server.getRequestCount());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    public void
+    testBackoffGrowsWithinBounds()
+    {
+        ExponentialBackoff backoff = new ExponentialBackoff(8, 100, 1000);
+        IOException timeout = new SocketTimeoutException();
+        long ceiling = 100;
+        for (int attempt = 1; attempt < 8; attempt++)
+        {
+            for (int i = 0; i < 50; i++)
+            {
+                long delay = backoff.delayBeforeRetry(attempt, timeout);
+                assertTrue("attempt " + attempt + " waited " + delay, delay >= ceiling / 2 && delay <= ceiling);
+            }
+            ceiling = Math.min(1000, ceiling * 2);
+        }
+        assertEquals(RetryPolicy.NO_RETRY, backoff.delayBeforeRetry(8, timeout));
+        assertEquals(RetryPolicy.NO_RETRY, backoff.delayBeforeRetry(1, new HttpStatusException("u", 404, -1)));
+        assertEquals(RetryPolicy.NO_RETRY, backoff.delayBeforeRetry(1, new RetryPolicy.PermanentException("bad")));
+
+        // Retry-After wins when it asks for longer, but not beyond the maximum
+        assertEquals(800, backoff.delayBeforeRetry(1, new HttpStatusException("u", 503, 800)));
+        assertEquals(1000, backoff.delayBeforeRetry(1, new HttpStatusException("u", 429, 5000)));
+    }
+
+    public void
+    testBreakerLetsOneTrialThrough() throws Exception
+    {
+        CircuitBreaker breaker = new CircuitBreaker(2, 50, 400);
+        breaker.recordFailure("host");
+        assertEquals(0, breaker.acquire("host"));
+        breaker.recordFailure("host");
+        assertTrue(breaker.isOpen("host"));
+        assertTrue(breaker.acquire("host") > 0);
+
+        Thread.sleep(60);
+        assertEquals(0, breaker.acquire("host"));       // the trial
+        assertTrue(breaker.acquire("host") > 0);        // everyone else waits for it
+
+        // a failed trial opens the breaker for twice as long
+        breaker.recordFailure("host");
+        long wait = breaker.acquire("host");
+        assertTrue("waiting " + wait, wait > 50 && wait <= 100);
+
+        Thread.sleep(110);
+        assertEquals(0, breaker.acquire("host"));
+        breaker.recordSuccess("host");
+        assertFalse(breaker.isOpen("host"));
+        assertEquals(0, breaker.acquire("host"));
+    }
+
+    private RetryEngine
+    engine(int max_attempts, CircuitBreaker breaker)
+    {
+        return new RetryEngine(scheduler, new ExponentialBackoff(max_attempts, 10, 50), breaker);
+    }
+
+    /*
+     * Fetches the URL through the engine, failing the attempt on a short
+     * body, and waits for the outcome.
+     */
+    private Outcome
+    run(RetryEngine engine, final String url) throws InterruptedException
+    {
+        final Outcome outcome = new Outcome();
+        engine.submit(url, DownloadScheduler.PRIORITY_NORMAL, DownloadScheduler.SIZE_UNKNOWN,
+                new RetryEngine.Task() {
+                    public void run(int attempt) throws IOException
+                    {
+                        URLConnection connection = client.open(url, null, false);
+                        InputStream input_stream = null;
+                        try {
+                            input_stream = HttpClient.body(connection);
+                            byte[] buffer = new byte[8192];
+                            long total = 0;
+                            int count;
+                            while ((count = input_stream.read(buffer)) != -1)
+                            {
+                                total += count;
+                            }
+                            if (total != SIZE)
+                            {
+                                throw new EOFException("got " + total + " of " + SIZE + " bytes");
+                            }
+                        }
+                        finally {
+                            HttpClient.release(connection, input_stream);
+                        }
+                    }
+                },
+                new RetryEngine.Listener() {
+                    public void onSuccess(String url, int attempts)
+                    {
+                        outcome.attempts = attempts;
+                        outcome.done.countDown();
+                    }
+
+                    public void onFailure(String url, Exception reason, int attempts)
+                    {
+                        outcome.failure = reason;
+                        outcome.attempts = attempts;
+                        outcome.done.countDown();
+                    }
+                });
+        assertTrue("no outcome", outcome.done.await(10, TimeUnit.SECONDS));
+        return outcome;
+    }
+
+    private static class Outcome {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Exception failure;
+        volatile int attempts;
+    }
+}
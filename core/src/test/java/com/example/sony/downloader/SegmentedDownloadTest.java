@@ -0,0 +1,165 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Checks that a SegmentedDownload fills every range of the file, and that
+ * when one range fails the others stop cleanly: nothing moves after run()
+ * returns, and the journal on disk says exactly what is on disk.
+ */
+public class SegmentedDownloadTest extends TestCase {
+    private static final int PAYLOAD_SIZE = 5 * 1024 * 1024 + 123;
+
+    private byte[] payload;
+    private LocalHttpServer server;
+    private File folder;
+    private File part_file;
+
+    @Override
+    protected void
+    setUp() throws Exception
+    {
+        payload = LocalHttpServer.payloadOf(PAYLOAD_SIZE);
+        server = new LocalHttpServer(payload);
+        folder = TestFiles.newFolder("segments");
+        folder.mkdirs();
+        part_file = new File(folder, "big.bin.part");
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception
+    {
+        server.close();
+        TestFiles.delete(folder);
+    }
+
+    public void
+    testSegmentsFillTheFile() throws Exception
+    {
+        DownloadJournal journal = newJournal();
+        assertEquals(4, journal.getSegments().size());
+        StreamingDigest digest = new StreamingDigest(StreamingDigest.SHA_256);
+        newDownload(journal, digest).run();
+
+        assertEquals(PAYLOAD_SIZE, journal.getCommittedBytes());
+        assertTrue(Arrays.equals(payload, TestFiles.read(part_file)));
+        digest.catchUp(part_file, journal.getLength());
+        assertEquals(sha256(payload), digest.finish());
+    }
+
+    public void
+    testFailedSegmentStopsTheOthers() throws Exception
+    {
+        DownloadJournal journal = newJournal();
+        server.setChunkDelay(2);
+        server.dropNext(1);
+        try {
+            // blocks take a while between being written and being committed,
+            // so the other segments are caught in the middle when one fails
+            new SegmentedDownload(new HttpClient(), part_file, journal, new SlowCommitEngine(),
+                    new RateLimiter(RateLimiter.UNLIMITED).newJob(), new StreamingDigest(StreamingDigest.SHA_256),
+                    null).run();
+            fail("download with a dropped segment succeeded");
+        }
+        catch (IOException e) {
+            // expected
+        }
+
+        long[] committed = committedOf(journal);
+        Thread.sleep(300);
+        assertTrue(Arrays.equals(committed, committedOf(journal)));
+        assertTrue(journal.getCommittedBytes() < PAYLOAD_SIZE);
+
+        // the checkpoint holds the final counts, and the bytes they vouch for are there
+        DownloadJournal loaded = DownloadJournal.load(part_file);
+        assertNotNull(loaded);
+        assertTrue(Arrays.equals(committed, committedOf(loaded)));
+        assertCommittedBytesMatch(loaded);
+
+        // resuming fetches only the rest and ends with the right file
+        server.setChunkDelay(0);
+        int requests = server.getRequestCount();
+        StreamingDigest digest = new StreamingDigest(StreamingDigest.SHA_256);
+        newDownload(loaded, digest).run();
+        assertTrue(server.getRequestCount() - requests <= 4);
+        assertTrue(Arrays.equals(payload, TestFiles.read(part_file)));
+        digest.catchUp(part_file, loaded.getLength());
+        assertEquals(sha256(payload), digest.finish());
+    }
+
+    private DownloadJournal
+    newJournal() throws IOException
+    {
+        RemoteFile remote_file = RemoteFile.probe(new HttpClient(), server.url("/big.bin"));
+        return DownloadJournal.create(part_file, remote_file, SegmentedDownload.segmentCountFor(remote_file, 4));
+    }
+
+    private SegmentedDownload
+    newDownload(DownloadJournal journal, StreamingDigest digest)
+    {
+        return new SegmentedDownload(new HttpClient(), part_file, journal, new TransferEngine(),
+                new RateLimiter(RateLimiter.UNLIMITED).newJob(), digest, null);
+    }
+
+    private void
+    assertCommittedBytesMatch(DownloadJournal journal) throws IOException
+    {
+        byte[] on_disk = TestFiles.read(part_file);
+        for (DownloadJournal.Segment segment : journal.getSegments())
+        {
+            int start = (int) segment.start;
+            int end = (int) segment.nextOffset();
+            assertTrue(Arrays.equals(Arrays.copyOfRange(payload, start, end),
+                    Arrays.copyOfRange(on_disk, start, end)));
+        }
+    }
+
+    private static long[]
+    committedOf(DownloadJournal journal)
+    {
+        List<DownloadJournal.Segment> segments = journal.getSegments();
+        long[] committed = new long[segments.size()];
+        for (int i = 0; i < committed.length; i++)
+        {
+            committed[i] = segments.get(i).getCommitted();
+        }
+        return committed;
+    }
+
+    /*
+     * A TransferEngine that pauses (ignoring interrupts) before telling the
+     * listener about each block written to a channel.
+     */
+    private static class SlowCommitEngine extends TransferEngine {
+        @Override
+        public long
+        copy(InputStream input_stream, FileChannel channel, long position, long count,
+             final TransferListener listener) throws IOException
+        {
+            return super.copy(input_stream, channel, position, count, new TransferListener() {
+                public void onBlock(byte[] block, int length) throws IOException
+                {
+                    long until = System.nanoTime() + 20 * 1000000L;
+                    while (System.nanoTime() < until)
+                    {
+                        Thread.yield();
+                    }
+                    listener.onBlock(block, length);
+                }
+            });
+        }
+    }
+
+    static String
+    sha256(byte[] data)
+    {
+        StreamingDigest digest = new StreamingDigest(StreamingDigest.SHA_256);
+        digest.update(data, data.length);
+        return digest.finish();
+    }
+}
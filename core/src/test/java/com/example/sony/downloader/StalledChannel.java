@@ -0,0 +1,170 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+/**
+ * A file channel whose force(), or positional reads, wait until the test
+ * releases them, to check what other threads can do in the meantime.
+ */
+class StalledChannel extends FileChannel {
+    // counted down when the first stalled call starts waiting
+    final CountDownLatch stalled = new CountDownLatch(1);
+
+    // lets every stalled call go on
+    final CountDownLatch release = new CountDownLatch(1);
+
+    private final FileChannel channel;
+    private final boolean stall_force;
+    private final boolean stall_reads;
+
+    StalledChannel(FileChannel channel, boolean stall_force, boolean stall_reads)
+    {
+        this.channel = channel;
+        this.stall_force = stall_force;
+        this.stall_reads = stall_reads;
+    }
+
+    @Override
+    public void
+    force(boolean metadata) throws IOException
+    {
+        if (stall_force)
+        {
+            stall();
+        }
+        channel.force(metadata);
+    }
+
+    @Override
+    public int
+    read(ByteBuffer buffer) throws IOException
+    {
+        return channel.read(buffer);
+    }
+
+    @Override
+    public long
+    read(ByteBuffer[] buffers, int offset, int length) throws IOException
+    {
+        return channel.read(buffers, offset, length);
+    }
+
+    @Override
+    public int
+    write(ByteBuffer buffer) throws IOException
+    {
+        return channel.write(buffer);
+    }
+
+    @Override
+    public long
+    write(ByteBuffer[] buffers, int offset, int length) throws IOException
+    {
+        return channel.write(buffers, offset, length);
+    }
+
+    @Override
+    public long
+    position() throws IOException
+    {
+        return channel.position();
+    }
+
+    @Override
+    public FileChannel
+    position(long position) throws IOException
+    {
+        channel.position(position);
+        return this;
+    }
+
+    @Override
+    public long
+    size() throws IOException
+    {
+        return channel.size();
+    }
+
+    @Override
+    public FileChannel
+    truncate(long size) throws IOException
+    {
+        channel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public long
+    transferTo(long position, long count, WritableByteChannel target) throws IOException
+    {
+        return channel.transferTo(position, count, target);
+    }
+
+    @Override
+    public long
+    transferFrom(ReadableByteChannel source, long position, long count) throws IOException
+    {
+        return channel.transferFrom(source, position, count);
+    }
+
+    @Override
+    public int
+    read(ByteBuffer buffer, long position) throws IOException
+    {
+        if (stall_reads)
+        {
+            stall();
+        }
+        return channel.read(buffer, position);
+    }
+
+    @Override
+    public int
+    write(ByteBuffer buffer, long position) throws IOException
+    {
+        return channel.write(buffer, position);
+    }
+
+    @Override
+    public MappedByteBuffer
+    map(MapMode mode, long position, long size) throws IOException
+    {
+        return channel.map(mode, position, size);
+    }
+
+    @Override
+    public FileLock
+    lock(long position, long size, boolean shared) throws IOException
+    {
+        return channel.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock
+    tryLock(long position, long size, boolean shared) throws IOException
+    {
+        return channel.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void
+    implCloseChannel() throws IOException
+    {
+        channel.close();
+    }
+
+    private void
+    stall() throws IOException
+    {
+        stalled.countDown();
+        try {
+            release.await();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.sony.downloader;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * File helpers shared by the tests that download into a scratch folder.
+ */
+public class TestFiles {
+    private
+    TestFiles()
+    {
+    }
+
+    /*
+     * Returns a new, not yet existing folder under the temp directory.
+     */
+    public static File
+    newFolder(String prefix) throws IOException
+    {
+        File folder = File.createTempFile(prefix, "");
+        folder.delete();
+        return folder;
+    }
+
+    /*
+     * Deletes the folder and everything in it.
+     */
+    public static void
+    delete(File folder)
+    {
+        File[] files = folder.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                delete(file);
+            }
+        }
+        folder.delete();
+    }
+
+    public static byte[]
+    read(File file) throws IOException
+    {
+        InputStream input_stream = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = input_stream.read(buffer)) != -1)
+            {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        }
+        finally {
+            input_stream.close();
+        }
+    }
+
+    public static void
+    write(File file, byte[] data) throws IOException
+    {
+        OutputStream output_stream = new FileOutputStream(file);
+        try {
+            output_stream.write(data);
+        }
+        finally {
+            output_stream.close();
+        }
+    }
+
+    /*
+     * Returns the sorted names of the files in the folder, leaving out the
+     * ignored ones.
+     */
+    public static List<String>
+    namesIn(File folder, String... ignored)
+    {
+        ArrayList<String> names = new ArrayList<>();
+        String[] listed = folder.list();
+        if (listed != null)
+        {
+            names.addAll(Arrays.asList(listed));
+        }
+        names.removeAll(Arrays.asList(ignored));
+        Collections.sort(names);
+        return names;
+    }
+}
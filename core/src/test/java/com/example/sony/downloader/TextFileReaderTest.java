@@ -0,0 +1,167 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Checks that the TextFileReader gives the same text as decoding the whole
+ * file at once, for read and mapped files and with characters straddling
+ * windows, and how it splits lines and words.
+ */
+public class TextFileReaderTest extends TestCase {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File folder;
+
+    @Override
+    protected void
+    setUp() throws Exception
+    {
+        folder = TestFiles.newFolder("text");
+        folder.mkdirs();
+    }
+
+    @Override
+    protected void
+    tearDown() throws Exception
+    {
+        TestFiles.delete(folder);
+    }
+
+    public void
+    testTextIsDecodedAcrossWindows() throws Exception
+    {
+        // one, two, three and four byte characters, so every window size
+        // below cuts through some of them
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 100 * 1000; i++)
+        {
+            text.append("Call me Ishmael ").append(i).append(" \u00e9t\u00e9 \u20ac \u9be8 \ud83d\udc33\n");
+        }
+        byte[] bytes = text.toString().getBytes(UTF_8);
+        String small = text.substring(0, 1000);
+        File small_file = file("small.txt", small.getBytes(UTF_8));
+        File large_file = file("large.txt", bytes);
+        assertTrue(large_file.length() >= TextFileReader.MIN_MAP_SIZE);
+
+        for (int window_size : new int[] {16, 17, 31, 4093, TextFileReader.DEFAULT_WINDOW_SIZE})
+        {
+            assertEquals("window " + window_size, small, readAll(small_file, window_size));
+            assertEquals("window " + window_size, text.toString(), readAll(large_file, window_size));
+        }
+        File old_root = Downloader.getStorageRoot();
+        try {
+            Downloader.setStorageRoot(folder);
+            assertEquals(text.toString(), Downloader.readEntireFile(large_file.getName()));
+        }
+        finally {
+            Downloader.setStorageRoot(old_root);
+        }
+    }
+
+    public void
+    testSmallReadsGiveTheSameText() throws Exception
+    {
+        String text = "na\u00efve \ud83d\udc33 caf\u00e9\n";
+        TextFileReader reader = new TextFileReader(file("chars.txt", text.getBytes(UTF_8)), UTF_8, 16);
+        try {
+            StringBuilder read = new StringBuilder();
+            char[] buffer = new char[3];
+            int count;
+            while ((count = reader.read(buffer, 1, 2)) != -1)
+            {
+                assertTrue(count > 0 && count <= 2);
+                read.append(buffer, 1, count);
+            }
+            assertEquals(text, read.toString());
+            assertEquals(-1, reader.read(buffer, 0, 3));
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    public void
+    testMalformedBytesAndOtherCharsets() throws Exception
+    {
+        byte[] malformed = {'a', (byte) 0xff, 'b', (byte) 0xe2, (byte) 0x82};
+        assertEquals(new String(malformed, UTF_8), readAll(file("bad.txt", malformed), 16));
+
+        byte[] latin = "gar\u00e7on".getBytes("ISO-8859-1");
+        TextFileReader reader = new TextFileReader(file("latin.txt", latin), Charset.forName("ISO-8859-1"));
+        try {
+            assertEquals("gar\u00e7on", reader.readAll());
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    public void
+    testLinesAndWords() throws Exception
+    {
+        File file = file("lines.txt", "first\r\nsecond\rthird\n\nThe whale's 'tail', 42nd\n".getBytes(UTF_8));
+        TextFileReader reader = new TextFileReader(file, UTF_8, 16);
+        try {
+            List<String> lines = new ArrayList<>();
+            for (String line : reader.lines())
+            {
+                lines.add(line);
+            }
+            assertEquals(Arrays.asList("first", "second", "third", "", "The whale's 'tail', 42nd"), lines);
+        }
+        finally {
+            reader.close();
+        }
+
+        reader = new TextFileReader(file, UTF_8, 16);
+        try {
+            List<String> words = new ArrayList<>();
+            for (String word : reader.words())
+            {
+                words.add(word);
+            }
+            assertEquals(Arrays.asList("first", "second", "third", "The", "whale's", "tail", "42nd"), words);
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    public void
+    testClosedReaderFails() throws Exception
+    {
+        TextFileReader reader = new TextFileReader(file("closed.txt", "text".getBytes(UTF_8)));
+        reader.close();
+        try {
+            reader.read(new char[4], 0, 4);
+            fail("read from a closed reader");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    private File
+    file(String name, byte[] bytes) throws IOException
+    {
+        File file = new File(folder, name);
+        TestFiles.write(file, bytes);
+        return file;
+    }
+
+    private static String
+    readAll(File file, int window_size) throws IOException
+    {
+        TextFileReader reader = new TextFileReader(file, UTF_8, window_size);
+        try {
+            return reader.readAll();
+        }
+        finally {
+            reader.close();
+        }
+    }
+}
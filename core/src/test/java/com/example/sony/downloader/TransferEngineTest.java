@@ -0,0 +1,111 @@
+package com.example.sony.downloader;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Checks that the TransferEngine copies every byte value unchanged, in
+ * whole blocks, and reuses its blocks between copies.
+ */
+public class TransferEngineTest extends TestCase {
+    public void
+    testEveryByteValueSurvives() throws Exception
+    {
+        byte[] data = new byte[256 * 1000 + 3];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (byte) i;
+        }
+        TransferEngine engine = new TransferEngine(TransferEngine.MIN_BLOCK_SIZE);
+        ByteArrayOutputStream output_stream = new ByteArrayOutputStream();
+
+        assertEquals(data.length, engine.copy(new ByteArrayInputStream(data), output_stream));
+        assertTrue(Arrays.equals(data, output_stream.toByteArray()));
+    }
+
+    public void
+    testListenerSeesEveryBlock() throws Exception
+    {
+        byte[] data = LocalHttpServer.payloadOf(100000);
+        TransferEngine engine = new TransferEngine(4096);
+        final ByteArrayOutputStream seen = new ByteArrayOutputStream();
+        final int[] largest_block = {0};
+        engine.copy(new ByteArrayInputStream(data), new ByteArrayOutputStream(),
+                new TransferEngine.TransferListener() {
+                    public void onBlock(byte[] block, int length)
+                    {
+                        seen.write(block, 0, length);
+                        largest_block[0] = Math.max(largest_block[0], length);
+                    }
+                });
+
+        assertTrue(Arrays.equals(data, seen.toByteArray()));
+        assertEquals(4096, largest_block[0]);
+    }
+
+    public void
+    testBlocksAreReused() throws Exception
+    {
+        TransferEngine engine = new TransferEngine();
+        byte[] block = engine.acquireBlock();
+        assertEquals(TransferEngine.DEFAULT_BLOCK_SIZE, block.length);
+        engine.releaseBlock(block);
+        assertSame(block, engine.acquireBlock());
+
+        // a copy hands its block back when done, even when it fails
+        engine.releaseBlock(block);
+        try {
+            engine.copy(new ByteArrayInputStream(new byte[10]), new OutputStream() {
+                @Override
+                public void
+                write(int b) throws IOException
+                {
+                    throw new IOException("disk full");
+                }
+            });
+            fail("copy to a failing stream succeeded");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        assertSame(block, engine.acquireBlock());
+    }
+
+    public void
+    testPositionalCopiesFillTheirOwnRanges() throws Exception
+    {
+        byte[] data = LocalHttpServer.payloadOf(300000);
+        File file = File.createTempFile("transfer", ".bin");
+        RandomAccessFile random_access_file = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = random_access_file.getChannel();
+            TransferEngine engine = new TransferEngine(TransferEngine.MIN_BLOCK_SIZE);
+
+            // the second half first, and the first half stopping at its count
+            assertEquals(150000, engine.copy(new ByteArrayInputStream(data, 150000, 150000), channel, 150000,
+                    Long.MAX_VALUE));
+            assertEquals(150000, engine.copy(new ByteArrayInputStream(data), channel, 0, 150000));
+            assertEquals(0, channel.position());
+            assertTrue(Arrays.equals(data, TestFiles.read(file)));
+        }
+        finally {
+            random_access_file.close();
+            file.delete();
+        }
+    }
+
+    public void
+    testTinyBlocksAreRejected()
+    {
+        try {
+            new TransferEngine(TransferEngine.MIN_BLOCK_SIZE - 1);
+            fail("block size below the minimum accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}